@@ -13,17 +13,39 @@ import android.widget.TextView;
 
 import com.google.common.base.Function;
 
+import java.io.File;
 import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 
+import la.manga.app.concurrency.IoExecutor;
 import la.manga.app.entities.DtTalkProvider;
 import la.manga.app.entities.Talk;
 import la.manga.app.entities.TalkProvider;
+import la.manga.app.net.Downloader;
+import la.manga.app.net.HttpCache;
+import la.manga.app.storage.FileCache;
 import la.manga.app.ui.TalkAdapter;
 
 public class TalksActivity extends AppCompatActivity {
     private static final String TAG = TalksActivity.class.getName();
 
-    private TalkProvider talkProvider = new DtTalkProvider(DtTalkProvider.TalkType.EVENING);
+    /**
+     * The budget of cached catalog pages.
+     */
+    private static final long RESPONSE_CACHE_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * Caches catalog pages across activities, since only one cache may own its directory.
+     */
+    private static HttpCache responseCache;
+
+    /**
+     * Fetches catalog pages across activities.
+     */
+    private static IoExecutor ioExecutor;
+
+    private Downloader downloader;
+    private TalkProvider talkProvider;
     private RecyclerView talksView;
     private TalkAdapter talkAdapter;
     private TextView tvStatus;
@@ -39,6 +61,23 @@ public class TalksActivity extends AppCompatActivity {
         setSupportActionBar(toolbar);
 
         handler = new Handler();
+
+        downloader = new Downloader();
+        talkProvider = new DtTalkProvider(DtTalkProvider.TalkType.EVENING, downloader);
+    }
+
+    private static synchronized HttpCache getResponseCache(File cacheDir) {
+        if (responseCache == null)
+            responseCache = new HttpCache(new FileCache(new File(cacheDir, "http")), RESPONSE_CACHE_BYTES);
+
+        return responseCache;
+    }
+
+    private static synchronized IoExecutor getIoExecutor() {
+        if (ioExecutor == null)
+            ioExecutor = new IoExecutor();
+
+        return ioExecutor;
     }
 
     @Override
@@ -98,10 +137,14 @@ public class TalksActivity extends AppCompatActivity {
         tvStatus.setText(R.string.loading);
         tvStatus.setVisibility(View.VISIBLE);
 
-        new Thread(new Runnable() {
+        Runnable fetch = new Runnable() {
             @Override
             public void run() {
                 try {
+                    // the cache indexes its directory when it's created, so that's kept off the UI thread
+                    if (downloader.getResponseCache() == null)
+                        downloader.setResponseCache(getResponseCache(getCacheDir()));
+
                     final List<Talk> fetched = talkProvider.fetch(n);
 
                     handler.post(new Runnable() {
@@ -116,6 +159,14 @@ public class TalksActivity extends AppCompatActivity {
                     Log.e(TAG, "Failed to fetch more talks", e);
                 }
             }
-        }).start();
+        };
+
+        try {
+            getIoExecutor().execute(fetch);
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "Failed to fetch more talks", e);
+            fetching = false;
+            tvStatus.setVisibility(View.GONE);
+        }
     }
 }
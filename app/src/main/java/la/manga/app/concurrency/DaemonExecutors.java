@@ -0,0 +1,94 @@
+package la.manga.app.concurrency;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared executors for background jobs, each of which runs its jobs one
+ * at a time on a daemon thread of its own, so that it never keeps the
+ * process alive. Shared pools run each job right away instead, on daemon
+ * threads which are reused while they're idle. The executors are created
+ * when they're first used, and never shut down.
+ */
+public final class DaemonExecutors {
+    /**
+     * How long the idle threads of a pool are kept.
+     */
+    private static final long POOL_KEEP_ALIVE_SECONDS = 60;
+
+    private static final Map<String, ScheduledExecutorService> executors = new HashMap<>();
+    private static final Map<String, ExecutorService> pools = new HashMap<>();
+
+    private DaemonExecutors() {
+    }
+
+    /**
+     * Gets the shared executor by a name, which runs jobs at normal priority.
+     */
+    public static ScheduledExecutorService get(String name) {
+        return get(name, Thread.NORM_PRIORITY);
+    }
+
+    /**
+     * Gets the shared executor by a name, creating it if it wasn't yet.
+     *
+     * @param name     The name of the executor, which its thread is given.
+     * @param priority The priority of the thread, which only applies when the executor is created.
+     */
+    public static synchronized ScheduledExecutorService get(final String name, final int priority) {
+        ScheduledExecutorService executor = executors.get(name);
+
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, name);
+                    thread.setDaemon(true);
+                    thread.setPriority(priority);
+                    return thread;
+                }
+            });
+
+            executors.put(name, executor);
+        }
+
+        return executor;
+    }
+
+    /**
+     * Gets the shared pool by a name, creating it if it wasn't yet. The pool
+     * starts a thread for each job unless one is idle, so jobs which wait for
+     * each other never deadlock, and its threads are stopped after a minute idle.
+     *
+     * @param name The name of the pool, which its threads are given along with their number.
+     */
+    public static synchronized ExecutorService getPool(final String name) {
+        ExecutorService pool = pools.get(name);
+
+        if (pool == null) {
+            pool = new ThreadPoolExecutor(0, Integer.MAX_VALUE, POOL_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger nextId = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, name + " #" + nextId.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+            pools.put(name, pool);
+        }
+
+        return pool;
+    }
+}
@@ -0,0 +1,254 @@
+package la.manga.app.concurrency;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An executor for blocking I/O, with separate lanes for network transfers
+ * and for maintenance jobs, so that neither can hold up the other.
+ * <p>
+ * Each lane has a bounded number of threads and a bounded queue. When a
+ * lane's queue is full, work is rejected, run by the caller, or the caller
+ * waits for room, as set by a {@link Backpressure} policy. Threads which
+ * stay idle for the keep-alive time are stopped, and started again when
+ * there's work.
+ */
+public class IoExecutor implements Executor {
+    public enum Lane {
+        /**
+         * Network transfers, which run for long and mostly wait for the network.
+         */
+        TRANSFER,
+
+        /**
+         * Background jobs on local storage, such as clearing or scanning caches,
+         * which run at the lowest priority.
+         */
+        MAINTENANCE
+    }
+
+    public enum Backpressure {
+        /**
+         * Work is rejected with a {@link RejectedExecutionException}.
+         */
+        REJECT,
+
+        /**
+         * Work is run by the thread which submitted it.
+         */
+        CALLER_RUNS,
+
+        /**
+         * The thread which submitted the work waits until there's room for it.
+         */
+        BLOCK
+    }
+
+    private final ThreadPoolExecutor transfers;
+    private final ThreadPoolExecutor maintenance;
+    private final AtomicLong transfersRejected = new AtomicLong();
+    private final AtomicLong maintenanceRejected = new AtomicLong();
+
+    /**
+     * Creates an executor with 4 transfer threads, 1 maintenance thread,
+     * and queues of 64 each, which rejects work beyond that.
+     */
+    public IoExecutor() {
+        this(4, 1, 64, Backpressure.REJECT, 30 * 1000);
+    }
+
+    /**
+     * @param transferThreads    The number of threads for transfers.
+     * @param maintenanceThreads The number of threads for maintenance jobs.
+     * @param queueCapacity      How much work may wait in each lane.
+     * @param backpressure       What happens to work which doesn't fit in its lane's queue.
+     * @param keepAliveMillis    How long threads stay idle before they're stopped.
+     */
+    public IoExecutor(int transferThreads, int maintenanceThreads, int queueCapacity,
+                      Backpressure backpressure, long keepAliveMillis) {
+        transfers = createLane("IO transfer", Thread.NORM_PRIORITY,
+                transferThreads, queueCapacity, backpressure, keepAliveMillis);
+        maintenance = createLane("IO maintenance", Thread.MIN_PRIORITY,
+                maintenanceThreads, queueCapacity, backpressure, keepAliveMillis);
+    }
+
+    private ThreadPoolExecutor createLane(final String name, final int priority, int threads, int queueCapacity,
+                                          Backpressure backpressure, long keepAliveMillis) {
+        ThreadPoolExecutor lane = new ThreadPoolExecutor(threads, threads, keepAliveMillis, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+            private final AtomicInteger nextId = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + " #" + nextId.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(priority);
+                return thread;
+            }
+        }, createRejectionHandler(backpressure));
+
+        // idle threads are stopped, the core ones included
+        lane.allowCoreThreadTimeOut(true);
+
+        return lane;
+    }
+
+    private RejectedExecutionHandler createRejectionHandler(Backpressure backpressure) {
+        switch (backpressure) {
+            case CALLER_RUNS:
+                return new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+                        if (executor.isShutdown())
+                            reject(executor);
+
+                        runnable.run();
+                    }
+                };
+
+            case BLOCK:
+                return new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+                        if (executor.isShutdown())
+                            reject(executor);
+
+                        try {
+                            executor.getQueue().put(runnable);
+                        } catch (InterruptedException _) {
+                            Thread.currentThread().interrupt();
+                            reject(executor);
+                        }
+                    }
+                };
+
+            default:
+                return new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+                        reject(executor);
+                    }
+                };
+        }
+    }
+
+    private void reject(ThreadPoolExecutor executor) {
+        (executor == transfers ? transfersRejected : maintenanceRejected).incrementAndGet();
+        throw new RejectedExecutionException("The I/O executor is full or shut down.");
+    }
+
+    /**
+     * Runs work in the transfer lane.
+     */
+    @Override
+    public void execute(Runnable runnable) {
+        execute(runnable, Lane.TRANSFER);
+    }
+
+    /**
+     * Runs work in a lane.
+     *
+     * @throws RejectedExecutionException The lane is full and rejects work, or the executor was shut down.
+     */
+    public void execute(Runnable runnable, Lane lane) {
+        laneOf(lane).execute(runnable);
+    }
+
+    /**
+     * Gets an executor which runs work in a lane.
+     */
+    public Executor getLane(final Lane lane) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                IoExecutor.this.execute(runnable, lane);
+            }
+        };
+    }
+
+    private ThreadPoolExecutor laneOf(Lane lane) {
+        return lane == Lane.TRANSFER ? transfers : maintenance;
+    }
+
+    /**
+     * Stops accepting work, while the work already accepted still runs.
+     */
+    public void shutdown() {
+        transfers.shutdown();
+        maintenance.shutdown();
+    }
+
+    /**
+     * Stops accepting work, drops the work which didn't start, and interrupts the work running.
+     *
+     * @return The work which didn't start.
+     */
+    public List<Runnable> shutdownNow() {
+        List<Runnable> dropped = new ArrayList<>(transfers.shutdownNow());
+        dropped.addAll(maintenance.shutdownNow());
+        return dropped;
+    }
+
+    public boolean isShutdown() {
+        return transfers.isShutdown();
+    }
+
+    /**
+     * Waits for all work to finish after a shutdown, until the timeout elapses.
+     *
+     * @return Whether all work finished.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        return transfers.awaitTermination(timeout, unit)
+                && maintenance.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    public Stats getStats(Lane lane) {
+        ThreadPoolExecutor executor = laneOf(lane);
+        Stats stats = new Stats();
+        stats.threads = executor.getPoolSize();
+        stats.active = executor.getActiveCount();
+        stats.queued = executor.getQueue().size();
+        stats.completed = executor.getCompletedTaskCount();
+        stats.rejected = (lane == Lane.TRANSFER ? transfersRejected : maintenanceRejected).get();
+        return stats;
+    }
+
+    public static class Stats {
+        /**
+         * The number of threads the lane has, idle or not.
+         */
+        public int threads;
+
+        /**
+         * The number of threads running work.
+         */
+        public int active;
+
+        /**
+         * How much work waits for a thread.
+         */
+        public int queued;
+
+        /**
+         * How much work was completed.
+         */
+        public long completed;
+
+        /**
+         * How much work was rejected.
+         */
+        public long rejected;
+    }
+}
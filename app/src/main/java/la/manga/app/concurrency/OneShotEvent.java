@@ -1,36 +1,153 @@
 package la.manga.app.concurrency;
 
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.AbstractQueuedSynchronizer;
 
 /**
  * A manual reset event.
+ * <p>
+ * Waiting on an event which was already signalled takes a single volatile
+ * read, and signalling wakes all waiters at once. Timed waits keep waiting
+ * until their deadline, however often they're woken up in between.
+ * Callbacks may be registered to run once the event is signalled, instead
+ * of parking a thread until then. A callback which fails when it's run by
+ * the signal, or whose executor rejects it, doesn't keep the other callbacks
+ * from running; the signal throws the first such failure once they all ran.
  */
 public class OneShotEvent {
-    private volatile boolean set = false;
-    private final Object syncObject = new Object();
+    private final Sync sync = new Sync();
 
+    /**
+     * The callbacks to run when the event is signalled, last registered first,
+     * or {@link #SIGNALLED} once they were run.
+     */
+    private final AtomicReference<Callback> callbacks = new AtomicReference<>();
+
+    private static final Callback SIGNALLED = new Callback(null, null, null);
+
+    /**
+     * Signals the event, waking all waiters and running the callbacks.
+     *
+     * @throws RuntimeException The first callback which failed or was rejected,
+     *                          thrown once the event is set and all others ran.
+     */
     public void signal() {
-        set = true;
+        if (!sync.releaseShared(1))
+            return;
+
+        Callback head = callbacks.getAndSet(SIGNALLED);
+        Callback ordered = null;
+
+        // run the callbacks in the order they were registered
+        while (head != null) {
+            Callback next = head.next;
+            head.next = ordered;
+            ordered = head;
+            head = next;
+        }
+
+        RuntimeException failure = null;
 
-        synchronized (syncObject) {
-            syncObject.notifyAll();
+        for (Callback c = ordered; c != null; c = c.next) {
+            try {
+                c.executor.execute(c.runnable);
+            } catch (RuntimeException e) {
+                // the others run all the same
+                if (failure == null)
+                    failure = e;
+            }
         }
+
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * Gets whether the event was signalled.
+     */
+    public boolean isSet() {
+        return sync.isSet();
     }
 
     public void waitForSignal() throws InterruptedException {
-        synchronized (syncObject) {
-            while (!set)
-                syncObject.wait();
-        }
+        sync.acquireSharedInterruptibly(1);
     }
 
     public void waitForSignal(long millis) throws InterruptedException, TimeoutException {
-        synchronized (syncObject) {
-            if (!set)
-                syncObject.wait(millis);
+        waitForSignal(millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Waits for the event to be signalled, until the timeout elapses.
+     *
+     * @throws TimeoutException The event wasn't signalled in time.
+     */
+    public void waitForSignal(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        if (!sync.tryAcquireSharedNanos(1, unit.toNanos(timeout)))
+            throw new TimeoutException();
+    }
+
+    /**
+     * Runs a callback once the event is signalled, or right away if it already was.
+     *
+     * @param runnable The callback.
+     * @param executor The executor to run the callback on.
+     */
+    public void onSignal(Runnable runnable, Executor executor) {
+        if (runnable == null || executor == null)
+            throw new NullPointerException();
+
+        Callback c = new Callback(runnable, executor, null);
+
+        while (true) {
+            Callback head = callbacks.get();
+
+            if (head == SIGNALLED) {
+                executor.execute(runnable);
+                return;
+            }
+
+            c.next = head;
+
+            if (callbacks.compareAndSet(head, c))
+                return;
+        }
+    }
+
+    /**
+     * Holds 1 once the event was signalled, and lets all acquirers through from then on.
+     */
+    private static class Sync extends AbstractQueuedSynchronizer {
+        private static final long serialVersionUID = 3765712090601094199L;
+
+        boolean isSet() {
+            return getState() != 0;
+        }
+
+        @Override
+        protected int tryAcquireShared(int ignored) {
+            return getState() != 0 ? 1 : -1;
+        }
+
+        @Override
+        protected boolean tryReleaseShared(int ignored) {
+            // only the first signal wakes the waiters and runs the callbacks
+            return compareAndSetState(0, 1);
+        }
+    }
+
+    private static class Callback {
+        final Runnable runnable;
+        final Executor executor;
+        Callback next;
 
-            if (!set)
-                throw new TimeoutException();
+        Callback(Runnable runnable, Executor executor, Callback next) {
+            this.runnable = runnable;
+            this.executor = executor;
+            this.next = next;
         }
     }
 }
@@ -18,6 +18,8 @@ import java.util.Calendar;
 import java.util.List;
 import java.util.Locale;
 
+import la.manga.app.net.Downloader;
+
 public class DtTalkProvider implements TalkProvider {
     public enum TalkType {
         EVENING,
@@ -29,12 +31,23 @@ public class DtTalkProvider implements TalkProvider {
     private static final String SERVER_IP = "46.101.209.138";
 
     private final JSONParser parser = new JSONParser();
+    private final Downloader downloader;
     private final String baseUrl;
     private int currentPage = 0;
     private boolean endOfData = false;
     private JSONArray cachedEntries = new JSONArray();
 
     public DtTalkProvider(TalkType type) {
+        this(type, new Downloader());
+    }
+
+    /**
+     * Creates a provider which fetches pages with a specific downloader,
+     * such as one which caches responses.
+     */
+    public DtTalkProvider(TalkType type, Downloader downloader) {
+        this.downloader = downloader;
+
         if (type == TalkType.EVENING)
             baseUrl = "http://" + SERVER_IP + "/en/webservice/talks/1";
         else if (type == TalkType.MORNING)
@@ -110,7 +123,7 @@ public class DtTalkProvider implements TalkProvider {
     private InputStream openStream() throws IOException {
         URL url = new URL(String.format(Locale.getDefault(), "%s?page=%d", baseUrl, currentPage));
         Log.i(TAG, "Fetching entries from URL: " + url);
-        return url.openStream();
+        return downloader.download(url);
     }
 
     private Talk parseEntry(JSONObject entry) throws MalformedURLException {
@@ -0,0 +1,236 @@
+package la.manga.app.memory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import la.manga.app.BuildConfig;
+
+/**
+ * A bounded pool of reusable byte buffers.
+ * <p>
+ * Buffers are handed out in power-of-two size classes, so that a buffer
+ * released by one user can satisfy any later request of the same class.
+ * The total number of idle bytes the pool holds on to is bounded; buffers released beyond that bound, or buffers
+ * larger than the biggest size class, are simply left to the garbage collector.
+ * <p>
+ * When leak tracking is enabled (by default in debug builds), the pool
+ * remembers where each outstanding buffer was acquired, and rejects buffers
+ * which are released twice or which did not come from it.
+ */
+public class BufferPool {
+    public static final int MIN_BUFFER_SIZE = 1 << 10;
+    public static final int MAX_BUFFER_SIZE = 1 << 22;
+    public static final long DEFAULT_CAPACITY = 8 << 20;
+
+    private static final int MIN_SHIFT = 10;
+    private static final int MAX_SHIFT = 22;
+    private static final int CLASS_COUNT = MAX_SHIFT - MIN_SHIFT + 1;
+
+    private static final BufferPool shared = new BufferPool(DEFAULT_CAPACITY, BuildConfig.DEBUG);
+
+    private final long capacity;
+    private final boolean trackLeaks;
+    private final List<ArrayDeque<byte[]>> heapFreeLists = new ArrayList<>(CLASS_COUNT);
+    private final Map<byte[], Throwable> outstanding = new IdentityHashMap<>();
+    private int outstandingCount = 0;
+    private long idleBytes = 0;
+    private long allocations = 0;
+    private long reuses = 0;
+    private long discards = 0;
+
+    /**
+     * Gets the process-wide pool shared by the download pipeline and the caches.
+     *
+     * @return The shared buffer pool.
+     */
+    public static BufferPool getShared() {
+        return shared;
+    }
+
+    /**
+     * Creates a new buffer pool.
+     *
+     * @param capacity   The maximum number of idle bytes to retain.
+     * @param trackLeaks Whether to record the acquisition site of outstanding buffers.
+     */
+    public BufferPool(long capacity, boolean trackLeaks) {
+        if (capacity < 0)
+            throw new IllegalArgumentException("Capacity must not be negative.");
+
+        this.capacity = capacity;
+        this.trackLeaks = trackLeaks;
+
+        for (int i = 0; i < CLASS_COUNT; i++)
+            heapFreeLists.add(new ArrayDeque<byte[]>());
+    }
+
+    /**
+     * Acquires a heap buffer of at least the specified size.
+     * The returned array may be larger than requested, and its content is undefined.
+     *
+     * @param minSize The minimum number of bytes required.
+     * @return A byte array which must be given back with {@link #release(byte[])}.
+     */
+    public synchronized byte[] acquireHeap(int minSize) {
+        int sizeClass = sizeClassOf(minSize);
+        byte[] buffer = null;
+
+        if (sizeClass != -1)
+            buffer = heapFreeLists.get(sizeClass).pollFirst();
+
+        if (buffer != null) {
+            idleBytes -= buffer.length;
+            reuses++;
+        } else {
+            buffer = new byte[sizeClass != -1 ? classSize(sizeClass) : minSize];
+            allocations++;
+        }
+
+        onAcquired(buffer);
+
+        return buffer;
+    }
+
+    /**
+     * Gives a heap buffer back to the pool.
+     *
+     * @param buffer A buffer previously acquired with {@link #acquireHeap(int)}.
+     */
+    public synchronized void release(byte[] buffer) {
+        onReleased(buffer);
+
+        int sizeClass = exactSizeClassOf(buffer.length);
+
+        if (sizeClass == -1 || idleBytes + buffer.length > capacity) {
+            discards++;
+            return;
+        }
+
+        heapFreeLists.get(sizeClass).addFirst(buffer);
+        idleBytes += buffer.length;
+    }
+
+    /**
+     * Drops all idle buffers, letting the garbage collector reclaim them.
+     */
+    public synchronized void trim() {
+        for (int i = 0; i < CLASS_COUNT; i++)
+            heapFreeLists.get(i).clear();
+
+        idleBytes = 0;
+    }
+
+    /**
+     * Gets whether this pool records the acquisition sites of outstanding buffers.
+     */
+    public boolean isTrackingLeaks() {
+        return trackLeaks;
+    }
+
+    /**
+     * Gets the acquisition sites of all buffers which were not released yet.
+     * This is always empty if leak tracking is disabled.
+     *
+     * @return A list of stack traces, one per outstanding buffer.
+     */
+    public synchronized List<Throwable> getLeaks() {
+        return new ArrayList<>(outstanding.values());
+    }
+
+    /**
+     * Gets a snapshot of the pool's usage counters.
+     *
+     * @return The current statistics.
+     */
+    public synchronized Stats getStats() {
+        Stats stats = new Stats();
+
+        stats.capacity = capacity;
+        stats.idleBytes = idleBytes;
+        stats.outstanding = outstandingCount;
+        stats.allocations = allocations;
+        stats.reuses = reuses;
+        stats.discards = discards;
+
+        return stats;
+    }
+
+    private void onAcquired(byte[] buffer) {
+        outstandingCount++;
+
+        if (trackLeaks)
+            outstanding.put(buffer, new Throwable("Buffer acquired here"));
+    }
+
+    private void onReleased(byte[] buffer) {
+        if (trackLeaks && outstanding.remove(buffer) == null)
+            throw new IllegalStateException("Buffer was released twice or was not acquired from this pool.");
+
+        outstandingCount--;
+    }
+
+    /**
+     * Gets the smallest size class that fits the specified size, or -1 if too large.
+     */
+    private static int sizeClassOf(int size) {
+        if (size < 0)
+            throw new IllegalArgumentException("Buffer size must not be negative.");
+
+        if (size > MAX_BUFFER_SIZE)
+            return -1;
+
+        if (size <= MIN_BUFFER_SIZE)
+            return 0;
+
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+
+    /**
+     * Gets the size class of which the specified size is exactly the size, or -1 if none.
+     */
+    private static int exactSizeClassOf(int size) {
+        if (size < MIN_BUFFER_SIZE || size > MAX_BUFFER_SIZE || Integer.bitCount(size) != 1)
+            return -1;
+
+        return Integer.numberOfTrailingZeros(size) - MIN_SHIFT;
+    }
+
+    private static int classSize(int sizeClass) {
+        return 1 << (sizeClass + MIN_SHIFT);
+    }
+
+    public static class Stats {
+        /**
+         * The maximum number of idle bytes the pool retains.
+         */
+        public long capacity;
+
+        /**
+         * The number of bytes currently held idle in the pool.
+         */
+        public long idleBytes;
+
+        /**
+         * The number of buffers acquired and not yet released.
+         */
+        public int outstanding;
+
+        /**
+         * How many times a new buffer had to be allocated.
+         */
+        public long allocations;
+
+        /**
+         * How many times an idle buffer was handed out again.
+         */
+        public long reuses;
+
+        /**
+         * How many released buffers were dropped instead of being kept.
+         */
+        public long discards;
+    }
+}
@@ -0,0 +1,71 @@
+package la.manga.app.net;
+
+import java.io.IOException;
+
+/**
+ * Checks that responses from several sources all describe the same content.
+ * <p>
+ * The first response which tells the complete content length sets it, and
+ * any later response with a different length is rejected. Entity tags are
+ * usually specific to each host, so they are only compared when the length
+ * is unknown on either side.
+ */
+class ContentValidator {
+    private int totalLength = -1;
+    private String entityTag;
+
+    /**
+     * Thrown when a source's content does not match the content of the others.
+     */
+    static class MismatchException extends IOException {
+        private static final long serialVersionUID = -2434539612036447349L;
+
+        MismatchException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Checks a response against the previously seen ones, and learns from it.
+     *
+     * @param is The response stream.
+     * @throws MismatchException The response describes different content.
+     */
+    void check(Downloader.InputStream is) throws MismatchException {
+        check(is.getTotalLength(), is.getEntityTag());
+    }
+
+    /**
+     * Checks a probe against the previously seen responses, and learns from it.
+     *
+     * @param probe The probe result.
+     * @throws MismatchException The probe describes different content.
+     */
+    void check(Downloader.Probe probe) throws MismatchException {
+        check(probe.getContentLength(), probe.getEntityTag());
+    }
+
+    private synchronized void check(int length, String tag) throws MismatchException {
+        if (length != -1 && totalLength != -1) {
+            if (length != totalLength)
+                throw new MismatchException("Source content length " + length + " differs from " + totalLength + ".");
+        } else if (tag != null && entityTag != null && !tag.equals(entityTag)) {
+            throw new MismatchException("Source entity tag " + tag + " differs from " + entityTag + ".");
+        }
+
+        if (totalLength == -1)
+            totalLength = length;
+
+        if (entityTag == null)
+            entityTag = tag;
+    }
+
+    /**
+     * Gets the complete content length, as told by the sources.
+     *
+     * @return The length in bytes, or -1 if no source told it yet.
+     */
+    synchronized int getTotalLength() {
+        return totalLength;
+    }
+}
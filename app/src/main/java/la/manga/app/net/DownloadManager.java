@@ -6,40 +6,143 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import la.manga.app.concurrency.DaemonExecutors;
+import la.manga.app.concurrency.IoExecutor;
 import la.manga.app.concurrency.OneShotEvent;
+import la.manga.app.memory.BufferPool;
+import la.manga.app.storage.AccessTrackingCache;
 import la.manga.app.storage.Cache;
+import la.manga.app.storage.FileCache;
+import la.manga.app.storage.FollowableCache;
+import la.manga.app.storage.InsufficientSpaceException;
 
 /**
  * Manages a downloads dataCache, supporting continuable downloads.
  */
 public class DownloadManager {
+    /**
+     * How long progress updates wait to be persisted along with others.
+     */
+    private static final int STATE_COMMIT_WINDOW = 200;
+
+    /**
+     * How many tasks' progress updates are persisted at once at most.
+     */
+    private static final int MAX_STATE_BATCH = 32;
+
+    /**
+     * The prefix of task cache entries holding records which couldn't be read.
+     */
+    static final String QUARANTINE_PREFIX = "quarantined.";
+
+    /**
+     * How many task records are read at once, and for how long, when resuming tasks on startup.
+     */
+    private static final int RECOVERY_PARALLELISM = 4;
+    private static final int RECOVERY_TIMEOUT = 10 * 1000;
+
+    /**
+     * How much data of an interrupted task is read at once, looking for where it was last written.
+     */
+    private static final int RECOVERY_BLOCK = 0x10000;
+
+    /**
+     * How many task records garbage collection reads before pausing, and for how long,
+     * so that it doesn't compete with downloads for the disk.
+     */
+    private static final int RETENTION_BATCH = 16;
+    private static final int RETENTION_PAUSE = 50;
+
+    /**
+     * How long suspended tasks may take to record their progress when the manager is shut down.
+     */
+    private static final int SUSPEND_TIMEOUT = 1000;
+
+    /**
+     * How long to wait before resuming interrupted tasks again, when the executor
+     * rejected them and no task of the manager is running to make room.
+     */
+    private static final int RESUME_RETRY_DELAY = 1000;
+
+    /**
+     * The order in which interrupted tasks are resumed: those closest to
+     * completion first, and those whose length is unknown last.
+     */
+    private static final Comparator<ProgressInfo> RESUME_ORDER = new Comparator<ProgressInfo>() {
+        @Override
+        public int compare(ProgressInfo a, ProgressInfo b) {
+            long x = remainingBytes(a);
+            long y = remainingBytes(b);
+            return x < y ? -1 : (x == y ? 0 : 1);
+        }
+
+        private long remainingBytes(ProgressInfo pi) {
+            return pi.totalBytes < 0 ? Long.MAX_VALUE : pi.totalBytes - pi.downloadedBytes;
+        }
+    };
+
     private final Cache taskCache;
+    private final TaskStateWriter stateWriter;
     private final Cache dataCache;
     private final Executor executor;
-    private final Map<TaskId, Task> activeTasks = new HashMap<>();
+    private boolean ownsExecutor = false;
+    private boolean shutDown = false;
+    private final LongHashMap<Task> activeTasks = new LongHashMap<>();
+
+    /**
+     * The tasks which were started and didn't finish yet, including those waiting for the executor.
+     */
+    private final Set<Task> liveTasks = new HashSet<>();
     private AtomicInteger nextIdToken = new AtomicInteger(0);
     private volatile Downloader downloader = new Downloader();
     private volatile int chunkSize = 0x10000;
+    private volatile BufferPool bufferPool = BufferPool.getShared();
+    private volatile int stallThroughput = 0x1000;
+    private volatile int stallWindow = 10 * 1000;
+    private volatile boolean parallelSourcing = false;
+    private volatile int segmentSize = 0x100000;
+    private volatile boolean probing = true;
+    private volatile long minFreeSpace = 0x1000000;
+
+    /**
+     * Interrupted tasks waiting to be resumed, and how many resumed ones are running.
+     */
+    private final List<ProgressInfo> pendingResumes = new ArrayList<>();
+    private int runningResumes = 0;
+    private int resumeParallelism = 0;
+    private ProgressListener resumeListener;
+    private RecoveryReport recoveryReport;
 
     /**
      * Creates a new download manager.
@@ -50,12 +153,75 @@ public class DownloadManager {
      *                  This executor will not be owned by the manager,
      *                  and therefore shutdown() has to be called
      *                  externally. It has to remain alive for the
-     *                  lifetime of this manager.
+     *                  lifetime of this manager. If it's an
+     *                  {@link IoExecutor}, maintenance jobs run in
+     *                  its maintenance lane.
      */
     public DownloadManager(Cache taskCache, Cache dataCache, Executor executor) {
         this.taskCache = taskCache;
         this.dataCache = dataCache;
         this.executor = executor;
+        this.stateWriter = new TaskStateWriter(taskCache, STATE_COMMIT_WINDOW, MAX_STATE_BATCH);
+    }
+
+    /**
+     * Creates a new download manager, which runs its tasks on an
+     * {@link IoExecutor} of its own, shut down along with the manager.
+     *
+     * @param taskCache The cache in which task state will be saved.
+     * @param dataCache The cache in which downloaded data will be saved.
+     * @see #shutdown(long)
+     */
+    public DownloadManager(Cache taskCache, Cache dataCache) {
+        this(taskCache, dataCache, new IoExecutor());
+        this.ownsExecutor = true;
+    }
+
+    /**
+     * Creates a new download manager, which resumes the tasks that were
+     * interrupted when the previous one stopped, as when the process died.
+     * <p>
+     * The task cache is scanned once, and the tasks which were starting or
+     * in progress are resumed in the background, closest to completion first,
+     * with no more than the given number running at once. A task whose data
+     * is shorter than recorded is resumed from where its data ends.
+     *
+     * @param taskCache        The cache in which task state will be saved.
+     * @param dataCache        The cache in which downloaded data will be saved.
+     * @param executor         The executor for running download tasks.
+     * @param parallelism      How many resumed tasks may run at once.
+     * @param progressListener A progress listener for the resumed tasks, or null.
+     * @throws IOException The task cache couldn't be scanned.
+     * @see #getRecoveryReport()
+     */
+    public DownloadManager(Cache taskCache, Cache dataCache, Executor executor,
+                           int parallelism, ProgressListener progressListener) throws IOException {
+        this(taskCache, dataCache, executor);
+
+        if (parallelism < 1)
+            throw new IllegalArgumentException("At least one task must be resumed at once.");
+
+        this.resumeParallelism = parallelism;
+        this.resumeListener = progressListener;
+
+        try {
+            recoveryReport = recoverTasks(RECOVERY_PARALLELISM, RECOVERY_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while scanning tasks.");
+        }
+
+        queueResumes(recoveryReport);
+        startPendingResumes();
+    }
+
+    /**
+     * Persists the latest progress of all tasks right away.
+     * Progress updates are otherwise persisted in batches, shortly after
+     * they happen, while state transitions are persisted immediately.
+     */
+    public void flushTaskStates() {
+        stateWriter.commit();
     }
 
     /**
@@ -96,243 +262,1172 @@ public class DownloadManager {
     }
 
     /**
-     * Gets the ids of the tasks associated with this manager.
+     * Gets the pool from which chunk buffers are taken.
      *
-     * @return A list of task ids.
-     * @throws IOException
+     * @return The current buffer pool.
      */
-    public synchronized List<TaskId> getTaskIds() throws IOException {
-        List<TaskId> result = new ArrayList<>();
-
-        for (String name : taskCache.getEntryNames())
-            result.add(new TaskId(name));
-
-        return result;
+    public BufferPool getBufferPool() {
+        return bufferPool;
     }
 
     /**
-     * Gets the state of the specified task.
+     * Sets the pool from which chunk buffers are taken.
+     * This will not affect currently active downloads.
      *
-     * @param id The id of the task whose state to get.
-     * @return The current state of the task.
-     * @throws IOException
+     * @param bufferPool The new buffer pool to use.
      */
-    public synchronized TaskState getTaskState(TaskId id) throws IOException {
-        if (isActive(id))
-            return activeTasks.get(id).getState();
-
-        InputStream is = taskCache.readEntry(id.getCacheEntryId());
-        ProgressInfo pi = ProgressInfo.deserialize(is);
-
-        if (pi.state == TaskState.IN_PROGRESS || pi.state == TaskState.STARTING)
-            pi.state = TaskState.PENDING; // start as inactive
-
-        return pi.state;
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
     }
 
     /**
-     * Gets whether the task specified by the task id is currently active.
+     * Gets the minimal throughput below which a download is considered stalled.
      *
-     * @param id The id of the task to check on.
-     * @return True if the task is active, false otherwise.
+     * @return The throughput in bytes per second, or 0 if stall detection is disabled.
      */
-    public synchronized boolean isActive(TaskId id) {
-        return activeTasks.containsKey(id);
+    public int getStallThroughput() {
+        return stallThroughput;
     }
 
     /**
-     * A thread-safe method for setting the active state of a task.
+     * Gets the length of the windows over which download throughput is measured.
+     *
+     * @return The window length in milliseconds.
      */
-    private synchronized void setTaskActiveState(Task t, boolean active) {
-        TaskId id = t.getId();
-
-        if (active)
-            activeTasks.put(id, t);
-        else if (activeTasks.containsKey(id))
-            activeTasks.remove(id);
+    public int getStallWindow() {
+        return stallWindow;
     }
 
     /**
-     * Deletes the cached data associated with a task.
-     * Can be used to free up space after a task has
-     * already been downloaded and its input stream
-     * has been read and utilized, and is no longer needed.
+     * Sets the thresholds for detecting stalled downloads.
+     * When a download transfers less than the minimal throughput over a whole
+     * window, a hedged range request is opened from its current offset, and
+     * whichever connection delivers the next chunk first is kept.
+     * This will not affect currently active downloads.
      *
-     * @param taskId The id of the task whose cache data to delete.
+     * @param minBytesPerSecond The minimal throughput, or 0 to disable stall detection.
+     * @param windowMillis      The length of the measurement windows in milliseconds.
      */
-    public synchronized void deleteTaskFromCache(TaskId taskId) {
-        if (isActive(taskId))
-            throw new IllegalArgumentException("Attempt to delete a running task.");
+    public void setStallThreshold(int minBytesPerSecond, int windowMillis) {
+        if (minBytesPerSecond < 0 || windowMillis <= 0)
+            throw new IllegalArgumentException("Invalid stall threshold.");
 
-        taskCache.deleteEntry(taskId.getCacheEntryId());
-        dataCache.deleteEntry(taskId.getCacheEntryId());
+        this.stallThroughput = minBytesPerSecond;
+        this.stallWindow = windowMillis;
     }
 
     /**
-     * Clears tasks that ended with an error state.
-     * This doesn't clear cancelled tasks.
+     * Gets whether downloads with several sources fetch from all of them at once.
      *
-     * @throws IOException
+     * @return True if parallel sourcing is enabled.
      */
-    public Future<Void> clearFailedTasks() throws IOException {
-        return clearTasksByState(TaskState.ERROR);
+    public boolean isParallelSourcing() {
+        return parallelSourcing;
     }
 
     /**
-     * Clears tasks that had been cancelled.
-     * This doesn't clear failed tasks.
+     * Sets whether downloads with several sources fetch from all of them at once.
+     * When disabled, such downloads use one source at a time, and only move to
+     * the next one when the current one fails. When enabled, different segments
+     * are fetched from different sources in parallel, as long as the sources
+     * support ranges; otherwise, downloads fall back to failing over.
+     * This will not affect currently active downloads.
      *
-     * @throws IOException
+     * @param parallelSourcing True to enable parallel sourcing.
      */
-    public Future<Void> clearCancelledTasks() throws IOException {
-        return clearTasksByState(TaskState.CANCELLED);
+    public void setParallelSourcing(boolean parallelSourcing) {
+        this.parallelSourcing = parallelSourcing;
     }
 
-    private synchronized Future<Void> clearTasksByState(final TaskState state) throws IOException {
-        FutureTask<Void> task = new FutureTask<>(new Callable<Void>() {
-            @Override
-            public Void call() throws Exception {
-                for (TaskId id : getTaskIds()) {
-                    if (getTaskState(id) == state) {
-                        String cacheEntryId = id.getCacheEntryId();
-                        taskCache.deleteEntry(cacheEntryId);
-                        dataCache.deleteEntry(cacheEntryId);
-                    }
-                }
+    /**
+     * Gets the size of the segments fetched by parallel sourcing.
+     *
+     * @return The size of each segment in bytes.
+     */
+    public int getSegmentSize() {
+        return segmentSize;
+    }
 
-                return null;
-            }
-        });
+    /**
+     * Sets the size of the segments fetched by parallel sourcing.
+     * Up to two segments per source may be held in memory at once.
+     *
+     * @param segmentSize The size of each segment in bytes.
+     */
+    public void setSegmentSize(int segmentSize) {
+        this.segmentSize = segmentSize;
+    }
 
-        executor.execute(task);
+    /**
+     * Gets whether downloads probe their sources before transferring.
+     *
+     * @return True if probing is enabled.
+     */
+    public boolean isProbing() {
+        return probing;
+    }
 
-        return task;
+    /**
+     * Sets whether downloads probe their sources before transferring.
+     * Probing tells the content length up front, so that it can be reported
+     * from the start, lets a resumed download which is already complete
+     * finish without transferring anything, and avoids parallel sourcing
+     * and hedging against servers which don't honor ranges.
+     * Probe results are remembered by the downloader for a while.
+     *
+     * @param probing True to enable probing.
+     * @see Downloader#probe(URL)
+     */
+    public void setProbing(boolean probing) {
+        this.probing = probing;
     }
 
     /**
-     * Starts a new download.
+     * Gets how much space downloads leave free in the data cache.
      *
-     * @param url              The URL to download.
-     * @param progressListener A progress listener updated on task state changes.
-     * @return An async task handle for the specified download.
-     * @throws IOException
+     * @return The space in bytes.
      */
-    public Task startDownload(URL url, ProgressListener progressListener) throws IOException {
-        return startTask(new Task(url, progressListener));
+    public long getMinFreeSpace() {
+        return minFreeSpace;
     }
 
     /**
-     * Restarts an existing incomplete download task.
+     * Sets how much space downloads leave free in the data cache.
+     * A download whose length is known is only started if the rest of its
+     * content fits in the data cache along with this margin; otherwise, it
+     * fails with an {@link InsufficientSpaceException} before transferring.
+     * Caches which set aside space for their entries also fail when the space runs
+     * out because of other downloads started at the same time.
      *
-     * @param taskId           The id of the task to restart.
-     * @param progressListener A progress listener updated on task state changes.
-     * @return An async task handle for the specified download.
-     * @throws IOException
+     * @param minFreeSpace The space in bytes.
      */
-    public Task restartDownload(TaskId taskId, ProgressListener progressListener) throws IOException {
-        InputStream is = taskCache.readEntry(taskId.getCacheEntryId());
-        ProgressInfo pi = ProgressInfo.deserialize(is);
-        return startTask(new RestartedTask(pi, progressListener));
+    public void setMinFreeSpace(long minFreeSpace) {
+        this.minFreeSpace = minFreeSpace;
     }
 
     /**
-     * Resumes an existing incomplete download task.
+     * Gets the ids of the tasks associated with this manager.
      *
-     * @param taskId           The id of the task to restart.
-     * @param progressListener A progress listener updated on task state changes.
-     * @return An async task handle for the specified download.
+     * @return A list of task ids.
      * @throws IOException
      */
-    public Task resumeDownload(TaskId taskId, ProgressListener progressListener) throws IOException {
-        InputStream is = taskCache.readEntry(taskId.getCacheEntryId());
-        ProgressInfo pi = ProgressInfo.deserialize(is);
-        return startTask(new ResumedTask(pi, progressListener));
+    public synchronized List<TaskId> getTaskIds() throws IOException {
+        List<TaskId> result = new ArrayList<>();
+
+        for (String name : taskCache.getEntryNames()) {
+            if (!name.startsWith(QUARANTINE_PREFIX))
+                result.add(new TaskId(name));
+        }
+
+        return result;
     }
 
-    private synchronized Task startTask(Task t) throws IOException {
-        t.prepare();
-        executor.execute(t);
-        return t;
+    /**
+     * Gets what was found when resuming interrupted tasks on startup.
+     *
+     * @return The report, or null if the manager doesn't resume tasks.
+     */
+    public RecoveryReport getRecoveryReport() {
+        return recoveryReport;
     }
 
     /**
-     * An asynchronous, cancellable task for a single download.
+     * Reads the states of all tasks in the task cache, as on startup.
+     * Records are read in parallel, and those which can't be read, as when
+     * a crash cut them short, are quarantined, by moving them aside under
+     * {@link #QUARANTINE_PREFIX}, so that they're no longer listed as tasks.
+     * Records which weren't read once the time is up are left as they are.
+     *
+     * @param parallelism   The number of records read at once.
+     * @param timeoutMillis How long reading may take, in milliseconds.
+     * @return The tasks which were read, quarantined, or left unchecked.
+     * @throws IOException
+     * @throws InterruptedException
      */
-    public class Task implements RunnableFuture<InputStream> {
-        /**
-         * The downloaded URL.
-         */
-        private final URL url;
+    public RecoveryReport recoverTasks(int parallelism, long timeoutMillis) throws IOException, InterruptedException {
+        RecoveryReport report = new RecoveryReport();
+        final List<String> names = new ArrayList<>();
+        List<Callable<ProgressInfo>> reads = new ArrayList<>();
+
+        for (TaskId id : getTaskIds())
+            names.add(id.getCacheEntryId());
+
+        for (final String name : names) {
+            reads.add(new Callable<ProgressInfo>() {
+                @Override
+                public ProgressInfo call() throws Exception {
+                    return readTaskRecord(name);
+                }
+            });
+        }
 
-        /**
-         * A progress listener to update on each state change.
-         */
-        private final ProgressListener progressListener;
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, names.size())),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "Task recovery");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
 
-        /**
-         * Finished state synchronization and flags.
-         */
-        private volatile boolean cancelled = false;
-        private volatile Throwable exception = null;
-        private volatile boolean completed = false;
-        private final OneShotEvent finishEvent = new OneShotEvent();
+        try {
+            List<Future<ProgressInfo>> results = pool.invokeAll(reads, timeoutMillis, TimeUnit.MILLISECONDS);
 
-        /**
-         * The stream of downloaded bytes to be returned as a result.
-         */
-        private InputStream result;
+            for (int i = 0; i < names.size(); i++) {
+                String name = names.get(i);
+                Future<ProgressInfo> result = results.get(i);
 
-        /**
-         * The identifier name of this task in the caches.
-         */
-        private String cacheEntryId;
+                if (result.isCancelled()) {
+                    report.unchecked.add(new TaskId(name));
+                    continue;
+                }
 
-        /**
-         * The TaskId associated with this task.
-         */
-        private TaskId id;
+                try {
+                    ProgressInfo pi = result.get();
+
+                    // a record deleted meanwhile is simply gone
+                    if (pi != null)
+                        report.tasks.put(new TaskId(name), pi);
+                } catch (ExecutionException _) {
+                    quarantine(name);
+                    report.quarantined.add(new TaskId(name));
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
 
-        /**
-         * Holds how many bytes were downloaded so far.
-         */
-        private volatile int downloadedBytes = 0;
+        report.elapsedMillis = (System.nanoTime() - report.startNanos) / 1000000;
 
-        /**
-         * Holds the current state of the task.
-         */
-        private volatile TaskState state;
+        return report;
+    }
 
-        /**
-         * Creates a brand new task with a new task-id in the caches.
-         */
-        public Task(URL url, ProgressListener progressListener) {
-            this.url = url;
-            this.progressListener = progressListener;
-        }
+    /**
+     * Queues the interrupted tasks found by a scan to be resumed, in order,
+     * checking that their data holds as many bytes as they recorded.
+     */
+    private synchronized void queueResumes(RecoveryReport report) {
+        for (ProgressInfo pi : report.tasks.values()) {
+            if (pi.state != TaskState.STARTING && pi.state != TaskState.IN_PROGRESS)
+                continue;
 
-        /**
-         * Gets the URL downloaded by this task.
-         */
-        public URL getUrl() {
-            return url;
-        }
+            if (pi.downloadedBytes > 0) {
+                String name = pi.taskId.getCacheEntryId();
+                long length = Math.min(dataCache.getEntryLength(name), pi.downloadedBytes);
 
-        /**
-         * Gets how many bytes were downloaded so far.
-         */
-        public int getDownloadedBytes() {
-            return downloadedBytes;
-        }
+                // what was recorded before a crash may not have reached the data
+                long written = length > 0 ? findWrittenLength(name, length) : 0;
 
-        /**
-         * Gets the current state of the task.
-         */
-        public TaskState getState() {
-            return state;
+                if (written < pi.downloadedBytes) {
+                    pi.downloadedBytes = (int) written;
+                    report.truncated.add(pi.taskId);
+                }
+            }
+
+            pendingResumes.add(pi);
         }
 
-        /**
-         * Gets the identifier name of this task in the caches.
+        Collections.sort(pendingResumes, RESUME_ORDER);
+
+        for (ProgressInfo pi : pendingResumes)
+            report.resumed.add(pi.taskId);
+    }
+
+    /**
+     * Finds how much of an entry's data was written before a crash. An entry
+     * which was extended to its expected size keeps that length, with zeros
+     * where it wasn't written yet, so the data is taken to end at its last
+     * byte which isn't zero. Data which did end with zeros is downloaded
+     * again, which costs little, while resuming past data which was never
+     * written would corrupt the download.
+     *
+     * @param length How much of the entry to look at.
+     * @return The length of the data, up to the specified length.
+     */
+    private long findWrittenLength(String name, long length) {
+        byte[] block = new byte[RECOVERY_BLOCK];
+        long end = length;
+
+        while (end > 0) {
+            long start = Math.max(0, end - RECOVERY_BLOCK);
+            int n = (int) (end - start);
+            InputStream is = dataCache.readEntry(name, start, n);
+
+            if (is == null)
+                return 0;
+
+            int read = 0;
+
+            try {
+                int nread;
+
+                while (read < n && (nread = is.read(block, read, n - read)) != -1)
+                    read += nread;
+            } catch (IOException _) {
+                // only what was read counts
+            } finally {
+                tryClose(is);
+            }
+
+            for (int i = read - 1; i >= 0; i--) {
+                if (block[i] != 0)
+                    return start + i + 1;
+            }
+
+            end = start;
+        }
+
+        return 0;
+    }
+
+    /**
+     * Starts resuming queued tasks, as long as fewer than allowed are running.
+     * The lock isn't held while they're handed to the executor, which may
+     * block, or run them on this thread.
+     */
+    private void startPendingResumes() {
+        while (true) {
+            ProgressInfo pi;
+
+            synchronized (this) {
+                if (pendingResumes.isEmpty() && recoveryReport != null && recoveryReport.resumedMillis == -1)
+                    recoveryReport.resumedMillis = (System.nanoTime() - recoveryReport.startNanos) / 1000000;
+
+                if (runningResumes >= resumeParallelism || pendingResumes.isEmpty())
+                    return;
+
+                pi = pendingResumes.remove(0);
+
+                // counted beforehand, since a task run by this thread is finished once it's started
+                runningResumes++;
+            }
+
+            try {
+                startTask(new AutoResumedTask(pi, resumeListener));
+            } catch (IOException | IllegalArgumentException _) {
+                // the task can't be resumed, so the next one takes its place
+                synchronized (this) {
+                    runningResumes--;
+                }
+            } catch (RejectedExecutionException _) {
+                // the executor is full, so this one waits for a running one to finish
+                boolean retryLater;
+
+                synchronized (this) {
+                    runningResumes--;
+
+                    if (shutDown)
+                        return;
+
+                    pendingResumes.add(0, pi);
+                    retryLater = liveTasks.isEmpty();
+                }
+
+                // with no task of this manager running, none will finish to start it
+                if (retryLater) {
+                    DaemonExecutors.get("Task resumption").schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            startPendingResumes();
+                        }
+                    }, RESUME_RETRY_DELAY, TimeUnit.MILLISECONDS);
+                }
+
+                return;
+            }
+        }
+    }
+
+    private void onResumeFinished() {
+        synchronized (this) {
+            runningResumes--;
+        }
+
+        startPendingResumes();
+    }
+
+    /**
+     * Removes a task from the queue of tasks to resume, since it's being taken care of otherwise.
+     */
+    private synchronized void unqueueResume(TaskId taskId) {
+        for (int i = 0; i < pendingResumes.size(); i++) {
+            if (pendingResumes.get(i).taskId.equals(taskId)) {
+                pendingResumes.remove(i);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Reads the state record of a task.
+     *
+     * @return The state, or null if there is no record.
+     * @throws IOException The record can't be read.
+     */
+    private ProgressInfo readTaskRecord(String name) throws IOException {
+        InputStream is = taskCache.readEntry(name);
+
+        if (is == null)
+            return null;
+
+        try {
+            ProgressInfo pi = ProgressInfo.deserialize(is);
+
+            if (pi.taskId == null || pi.state == null)
+                throw new IOException("Task record is incomplete.");
+
+            return pi;
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Moves a task record which can't be read aside, keeping its content for inspection.
+     */
+    private synchronized void quarantine(String name) {
+        stateWriter.discard(name);
+
+        InputStream is = taskCache.readEntry(name);
+
+        if (is == null)
+            return;
+
+        OutputStream os = null;
+
+        try {
+            String target = QUARANTINE_PREFIX + name;
+
+            os = TaskStateWriter.replaceEntry(taskCache, target);
+
+            byte[] buffer = new byte[0x1000];
+            int nread;
+
+            while ((nread = is.read(buffer)) != -1)
+                os.write(buffer, 0, nread);
+        } catch (IOException _) {
+            // the record is dropped all the same, since it can't be used
+        } finally {
+            tryClose(is);
+            tryClose(os);
+        }
+
+        taskCache.deleteEntry(name);
+    }
+
+    private static boolean tryClose(Closeable c) {
+        try {
+            if (c != null)
+                c.close();
+
+            return true;
+        } catch (IOException _) {
+            return false;
+        }
+    }
+
+    /**
+     * Gets the state of the specified task.
+     *
+     * @param id The id of the task whose state to get.
+     * @return The current state of the task.
+     * @throws IOException
+     */
+    public synchronized TaskState getTaskState(TaskId id) throws IOException {
+        Task active = getActiveTask(id);
+
+        if (active != null)
+            return active.getState();
+
+        InputStream is = taskCache.readEntry(id.getCacheEntryId());
+        ProgressInfo pi = ProgressInfo.deserialize(is);
+
+        if (pi.state == TaskState.IN_PROGRESS || pi.state == TaskState.STARTING)
+            pi.state = TaskState.PENDING; // start as inactive
+
+        return pi.state;
+    }
+
+    /**
+     * Gets whether the task specified by the task id is currently active,
+     * which it is from when it's started until it finishes, including
+     * while it waits for the executor.
+     *
+     * @param id The id of the task to check on.
+     * @return True if the task is active, false otherwise.
+     */
+    public synchronized boolean isActive(TaskId id) {
+        return getActiveTask(id) != null;
+    }
+
+    /**
+     * Gets the active task by its id, or null if it isn't active. Tasks are
+     * kept by number, which a task with another name may share, so the task
+     * found by it is only the one asked for if their ids are equal.
+     */
+    private Task getActiveTask(TaskId id) {
+        Task active = activeTasks.get(id.getValue());
+
+        if (active == null || !active.getId().equals(id))
+            return null;
+
+        return active;
+    }
+
+    /**
+     * A thread-safe method for setting the active state of a task.
+     */
+    private synchronized void setTaskActiveState(Task t, boolean active) {
+        long id = t.getId().getValue();
+
+        if (active)
+            activeTasks.put(id, t);
+        else if (activeTasks.get(id) == t)
+            activeTasks.remove(id);
+    }
+
+    /**
+     * Deletes the cached data associated with a task.
+     * Can be used to free up space after a task has
+     * already been downloaded and its input stream
+     * has been read and utilized, and is no longer needed.
+     *
+     * @param taskId The id of the task whose cache data to delete.
+     */
+    public synchronized void deleteTaskFromCache(TaskId taskId) {
+        if (isActive(taskId))
+            throw new IllegalArgumentException("Attempt to delete a running task.");
+
+        unqueueResume(taskId);
+
+        stateWriter.discard(taskId.getCacheEntryId());
+        taskCache.deleteEntry(taskId.getCacheEntryId());
+        dataCache.deleteEntry(taskId.getCacheEntryId());
+    }
+
+    /**
+     * Clears tasks that ended with an error state.
+     * This doesn't clear cancelled tasks.
+     *
+     * @throws IOException
+     */
+    public Future<Void> clearFailedTasks() throws IOException {
+        return clearTasksByState(TaskState.ERROR);
+    }
+
+    /**
+     * Clears tasks that had been cancelled.
+     * This doesn't clear failed tasks.
+     *
+     * @throws IOException
+     */
+    public Future<Void> clearCancelledTasks() throws IOException {
+        return clearTasksByState(TaskState.CANCELLED);
+    }
+
+    private synchronized Future<Void> clearTasksByState(final TaskState state) throws IOException {
+        FutureTask<Void> task = new FutureTask<>(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                for (TaskId id : getTaskIds()) {
+                    if (getTaskState(id) == state) {
+                        String cacheEntryId = id.getCacheEntryId();
+                        stateWriter.discard(cacheEntryId);
+                        taskCache.deleteEntry(cacheEntryId);
+                        dataCache.deleteEntry(cacheEntryId);
+                    }
+                }
+
+                return null;
+            }
+        });
+
+        getMaintenanceExecutor().execute(task);
+
+        return task;
+    }
+
+    /**
+     * Gets the executor for jobs other than downloads, which is the maintenance lane of an
+     * {@link IoExecutor}, so that they don't wait behind downloads, or the executor itself.
+     */
+    private Executor getMaintenanceExecutor() {
+        if (executor instanceof IoExecutor)
+            return ((IoExecutor) executor).getLane(IoExecutor.Lane.MAINTENANCE);
+
+        return executor;
+    }
+
+    /**
+     * Gets the executor for the extra connections of tasks, which are hedges and the
+     * workers of parallel transfers. It's a shared pool rather than a lane, since a task
+     * waits for them on its own thread, and they mustn't queue up behind it.
+     */
+    private static Executor getConnectionExecutor() {
+        return DaemonExecutors.getPool("Download connections");
+    }
+
+    /**
+     * Removes the finished tasks which a retention policy doesn't keep, along
+     * with the data entries which have no task record, and the records of
+     * completed tasks whose data is gone. Task records are read a few at a
+     * time in the background, pausing in between, and nothing is removed
+     * until all were read. Running tasks and tasks which weren't finished
+     * are never removed.
+     *
+     * @param policy The rules by which finished tasks are kept.
+     * @param dryRun Whether to only report what would be removed.
+     * @return What was, or would have been, removed.
+     */
+    public Future<RetentionReport> collectGarbage(final RetentionPolicy policy, final boolean dryRun) {
+        FutureTask<RetentionReport> task = new FutureTask<>(new Callable<RetentionReport>() {
+            @Override
+            public RetentionReport call() throws Exception {
+                return collectGarbageNow(policy, dryRun);
+            }
+        });
+
+        if (executor instanceof IoExecutor)
+            getMaintenanceExecutor().execute(task);
+        else
+            DaemonExecutors.get("Task retention", Thread.MIN_PRIORITY).execute(task);
+
+        return task;
+    }
+
+    private RetentionReport collectGarbageNow(RetentionPolicy policy, boolean dryRun) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        long now = System.currentTimeMillis();
+        RetentionReport report = new RetentionReport(dryRun);
+
+        // data is listed before records, since a task's record is written before its data
+        List<String> dataNames = dataCache.getEntryNames();
+        List<TaskId> ids = getTaskIds();
+        Set<String> recorded = new HashSet<>();
+        Map<String, Long> retained = new HashMap<>();
+        Map<TaskId, Long> recordedAt = new HashMap<>();
+        long retainedBytes = 0;
+
+        for (TaskId id : ids)
+            recorded.add(id.getCacheEntryId());
+
+        for (String name : dataNames) {
+            if (!recorded.contains(name) && !isActive(new TaskId(name)))
+                report.orphanedData.add(name);
+        }
+
+        for (int i = 0; i < ids.size(); i++) {
+            if (i > 0 && i % RETENTION_BATCH == 0)
+                Thread.sleep(RETENTION_PAUSE);
+
+            TaskId id = ids.get(i);
+            ProgressInfo pi;
+
+            if (isActive(id))
+                continue;
+
+            try {
+                pi = readTaskRecord(id.getCacheEntryId());
+            } catch (IOException _) {
+                // an unreadable record is left to recoverTasks
+                continue;
+            }
+
+            if (pi == null || !isFinished(pi.state))
+                continue;
+
+            recordedAt.put(id, pi.recordedAt);
+            long length = dataCache.getEntryLength(id.getCacheEntryId());
+            long accessed = getLastAccessed(id, pi);
+            RetentionReason reason = null;
+
+            if (policy.getRemovedStates().contains(pi.state))
+                reason = RetentionReason.STATE;
+            else if (pi.state != TaskState.DONE)
+                continue;
+            else if (length == -1)
+                reason = RetentionReason.ORPHANED_RECORD;
+            else if (policy.getMaxAge() != -1 && pi.recordedAt > 0 && now - pi.recordedAt > policy.getMaxAge())
+                reason = RetentionReason.AGE;
+            else if (policy.getMaxIdleTime() != -1 && accessed > 0 && now - accessed > policy.getMaxIdleTime())
+                reason = RetentionReason.IDLE;
+
+            if (reason != null) {
+                report.removed.put(id, reason);
+                report.freedBytes += Math.max(0, length);
+            } else {
+                retained.put(id.getCacheEntryId(), accessed);
+                retainedBytes += length;
+            }
+        }
+
+        if (policy.getMaxTotalBytes() != -1 && retainedBytes > policy.getMaxTotalBytes()) {
+            List<Map.Entry<String, Long>> byAccess = new ArrayList<>(retained.entrySet());
+
+            Collections.sort(byAccess, new Comparator<Map.Entry<String, Long>>() {
+                @Override
+                public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+                    long x = a.getValue();
+                    long y = b.getValue();
+                    return x < y ? -1 : (x == y ? 0 : 1);
+                }
+            });
+
+            // the least recently used go first
+            for (int i = 0; i < byAccess.size() && retainedBytes > policy.getMaxTotalBytes(); i++) {
+                String name = byAccess.get(i).getKey();
+                long length = Math.max(0, dataCache.getEntryLength(name));
+
+                report.removed.put(new TaskId(name), RetentionReason.SIZE);
+                report.freedBytes += length;
+                retainedBytes -= length;
+            }
+        }
+
+        for (String name : report.orphanedData)
+            report.freedBytes += Math.max(0, dataCache.getEntryLength(name));
+
+        report.retainedBytes = retainedBytes;
+
+        if (!dryRun) {
+            for (TaskId id : report.removed.keySet())
+                deleteTaskIfUnchanged(id, recordedAt.get(id));
+
+            for (String name : report.orphanedData) {
+                synchronized (this) {
+                    if (!isActive(new TaskId(name)) && !taskCache.hasEntry(name))
+                        dataCache.deleteEntry(name);
+                }
+            }
+        }
+
+        report.elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+        return report;
+    }
+
+    private static boolean isFinished(TaskState state) {
+        return state == TaskState.DONE || state == TaskState.ERROR || state == TaskState.CANCELLED;
+    }
+
+    /**
+     * Deletes a finished task, unless it was started or recorded again
+     * since its record was read, in which case it's kept.
+     */
+    private synchronized void deleteTaskIfUnchanged(TaskId id, long recordedAt) {
+        if (isActive(id))
+            return;
+
+        try {
+            ProgressInfo pi = readTaskRecord(id.getCacheEntryId());
+
+            if (pi == null || !isFinished(pi.state) || pi.recordedAt != recordedAt)
+                return;
+        } catch (IOException _) {
+            // an unreadable record is left to recoverTasks
+            return;
+        }
+
+        deleteTaskFromCache(id);
+    }
+
+    /**
+     * Gets when the data of a task was last used, as far as the data cache tells,
+     * or when its state was last recorded otherwise.
+     */
+    private long getLastAccessed(TaskId id, ProgressInfo pi) {
+        if (dataCache instanceof AccessTrackingCache) {
+            try {
+                long accessed = ((AccessTrackingCache) dataCache).getEntryLastAccessed(id.getCacheEntryId());
+
+                if (accessed != -1)
+                    return accessed;
+            } catch (UnsupportedOperationException _) {
+                // a wrapper of a cache which doesn't track access times
+            }
+        }
+
+        return pi.recordedAt;
+    }
+
+    /**
+     * Starts a new download.
+     *
+     * @param url              The URL to download.
+     * @param progressListener A progress listener updated on task state changes.
+     * @return An async task handle for the specified download.
+     * @throws IOException
+     */
+    public Task startDownload(URL url, ProgressListener progressListener) throws IOException {
+        return startTask(new Task(url, progressListener));
+    }
+
+    /**
+     * Starts a new download from several equivalent sources.
+     * The sources are tried in order, and must all serve the same content.
+     *
+     * @param urls             The URLs of the sources, in order of preference.
+     * @param progressListener A progress listener updated on task state changes.
+     * @return An async task handle for the specified download.
+     * @throws IOException
+     * @see #setParallelSourcing(boolean)
+     */
+    public Task startDownload(List<URL> urls, ProgressListener progressListener) throws IOException {
+        return startTask(new Task(urls, progressListener));
+    }
+
+    /**
+     * Restarts an existing incomplete download task.
+     *
+     * @param taskId           The id of the task to restart.
+     * @param progressListener A progress listener updated on task state changes.
+     * @return An async task handle for the specified download.
+     * @throws IOException
+     */
+    public Task restartDownload(TaskId taskId, ProgressListener progressListener) throws IOException {
+        unqueueResume(taskId);
+
+        InputStream is = taskCache.readEntry(taskId.getCacheEntryId());
+        ProgressInfo pi = ProgressInfo.deserialize(is);
+        return startTask(new RestartedTask(pi, progressListener));
+    }
+
+    /**
+     * Resumes an existing incomplete download task.
+     *
+     * @param taskId           The id of the task to restart.
+     * @param progressListener A progress listener updated on task state changes.
+     * @return An async task handle for the specified download.
+     * @throws IOException
+     */
+    public Task resumeDownload(TaskId taskId, ProgressListener progressListener) throws IOException {
+        unqueueResume(taskId);
+
+        InputStream is = taskCache.readEntry(taskId.getCacheEntryId());
+        ProgressInfo pi = ProgressInfo.deserialize(is);
+        return startTask(new ResumedTask(pi, progressListener));
+    }
+
+    private Task startTask(Task t) throws IOException {
+        synchronized (this) {
+            if (shutDown)
+                throw new RejectedExecutionException("The download manager was shut down.");
+
+            t.prepare();
+            liveTasks.add(t);
+
+            // a task waiting for the executor is already active, so that it isn't deleted meanwhile
+            setTaskActiveState(t, true);
+        }
+
+        // the executor may block until there's room, or run the task on this thread
+        try {
+            executor.execute(t);
+        } catch (RejectedExecutionException e) {
+            // the task stays recorded as starting, so it can be resumed later
+            synchronized (this) {
+                liveTasks.remove(t);
+                setTaskActiveState(t, false);
+            }
+
+            throw e;
+        }
+
+        return t;
+    }
+
+    private void onTaskFinished(Task t) {
+        boolean resume;
+
+        synchronized (this) {
+            liveTasks.remove(t);
+            resume = !pendingResumes.isEmpty();
+        }
+
+        // any task which finishes may make room for a resume the executor rejected
+        if (resume)
+            startPendingResumes();
+    }
+
+    /**
+     * Shuts the manager down. Tasks may finish until the timeout elapses, and
+     * those which don't are suspended: they stop, but keep the state they had
+     * recorded, along with their latest progress, instead of being recorded
+     * as cancelled, so that they're resumed along with the other interrupted
+     * tasks by the next manager. No tasks may be started afterwards. If the
+     * manager created its executor, the executor is shut down as well, and
+     * the jobs which didn't start on it, such as garbage collections, are
+     * cancelled.
+     *
+     * @param timeoutMillis How long tasks may take to finish, in milliseconds.
+     * @return The tasks which were suspended.
+     * @throws InterruptedException
+     */
+    public List<TaskId> shutdown(long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        List<Task> tasks;
+
+        synchronized (this) {
+            shutDown = true;
+            pendingResumes.clear();
+            tasks = new ArrayList<>(liveTasks);
+        }
+
+        if (ownsExecutor)
+            ((IoExecutor) executor).shutdown();
+
+        List<Task> suspended = new ArrayList<>();
+
+        for (Task t : tasks) {
+            try {
+                t.finishEvent.waitForSignal(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException _) {
+                if (t.suspend())
+                    suspended.add(t);
+            }
+        }
+
+        List<TaskId> ids = new ArrayList<>();
+
+        for (Task t : suspended) {
+            try {
+                // a running transfer records its progress as it stops
+                t.finishEvent.waitForSignal(SUSPEND_TIMEOUT);
+            } catch (TimeoutException _) {
+                // its last progress is flushed below
+            }
+
+            ids.add(t.getId());
+        }
+
+        flushTaskStates();
+
+        if (ownsExecutor) {
+            // jobs which never started are cancelled, so that nobody waits for them forever
+            for (Runnable r : ((IoExecutor) executor).shutdownNow()) {
+                if (r instanceof Future)
+                    ((Future<?>) r).cancel(false);
+            }
+        }
+
+        return ids;
+    }
+
+    /**
+     * An asynchronous, cancellable task for a single download.
+     */
+    public class Task implements RunnableFuture<InputStream> {
+        /**
+         * The downloaded URL, which is the first of the sources.
+         */
+        private final URL url;
+
+        /**
+         * The equivalent sources to download from, in order of preference.
+         */
+        private final List<DownloadSource> sources = new ArrayList<>();
+
+        /**
+         * The index of the source used by sequential transfers.
+         */
+        private int sourceIndex = 0;
+
+        /**
+         * Checks that all sources serve the same content.
+         */
+        private final ContentValidator validator = new ContentValidator();
+
+        /**
+         * A progress listener to update on each state change.
+         */
+        private final ProgressListener progressListener;
+
+        /**
+         * Finished state synchronization and flags.
+         */
+        private volatile boolean started = false;
+        private volatile boolean cancelled = false;
+        private volatile boolean suspended = false;
+        private volatile Throwable exception = null;
+        private volatile boolean completed = false;
+        private final OneShotEvent finishEvent = new OneShotEvent();
+
+        /**
+         * Signalled once the data cache entry is open for writing, or it won't ever be.
+         */
+        private final OneShotEvent openEvent = new OneShotEvent();
+
+        /**
+         * The connection currently being read, so that it can be aborted on cancellation.
+         */
+        private volatile Downloader.InputStream connection;
+
+        /**
+         * The hedged request currently racing a stalled connection, if any.
+         */
+        private volatile Hedge hedge;
+
+        /**
+         * The parallel transfer in progress, if any.
+         */
+        private volatile ParallelTransfer parallelTransfer;
+
+        /**
+         * What probing the sources told about the content, if they were probed.
+         */
+        private Downloader.Probe probe;
+
+        /**
+         * The chosen way of transferring the content, once planned.
+         */
+        private volatile TransferStrategy strategy;
+
+        /**
+         * The length of the whole content and its validators, as far as known.
+         */
+        private volatile int totalBytes = -1;
+        private String entityTag;
+        private long lastModified;
+
+        /**
+         * Stall detection and hedging counters.
+         */
+        private volatile int stallCount = 0;
+        private volatile int hedgeWinCount = 0;
+        private volatile int bytesPerSecond = -1;
+
+        /**
+         * The stream of downloaded bytes to be returned as a result.
+         */
+        private InputStream result;
+
+        /**
+         * The identifier name of this task in the caches.
+         */
+        private String cacheEntryId;
+
+        /**
+         * The TaskId associated with this task.
+         */
+        private TaskId id;
+
+        /**
+         * Holds how many bytes were downloaded so far.
+         */
+        private volatile int downloadedBytes = 0;
+
+        /**
+         * Holds the current state of the task.
+         */
+        private volatile TaskState state;
+
+        /**
+         * Creates a brand new task with a new task-id in the caches.
+         */
+        public Task(URL url, ProgressListener progressListener) {
+            this(Collections.singletonList(url), progressListener);
+        }
+
+        /**
+         * Creates a brand new task, downloading from several equivalent sources.
+         */
+        public Task(List<URL> urls, ProgressListener progressListener) {
+            if (urls.isEmpty())
+                throw new IllegalArgumentException("At least one URL is required.");
+
+            for (URL u : urls)
+                sources.add(new DownloadSource(u));
+
+            this.url = urls.get(0);
+            this.progressListener = progressListener;
+        }
+
+        /**
+         * Gets the URL downloaded by this task.
+         * If the task has several sources, this is the first of them.
+         */
+        public URL getUrl() {
+            return url;
+        }
+
+        /**
+         * Gets the URLs of all sources of this task, in order of preference.
+         */
+        public List<URL> getUrls() {
+            List<URL> urls = new ArrayList<>();
+
+            for (DownloadSource source : sources)
+                urls.add(source.getUrl());
+
+            return urls;
+        }
+
+        /**
+         * Gets the sources of this task, along with their statistics.
+         */
+        public List<DownloadSource> getSources() {
+            return Collections.unmodifiableList(sources);
+        }
+
+        /**
+         * Gets how many bytes were downloaded so far.
+         */
+        public int getDownloadedBytes() {
+            return downloadedBytes;
+        }
+
+        /**
+         * Gets how many times the download was detected as stalled.
+         * Each stall opens a hedged request, unless one is already racing.
+         */
+        public int getStallCount() {
+            return stallCount;
+        }
+
+        /**
+         * Gets how many hedged requests won against a stalled connection.
+         */
+        public int getHedgeWinCount() {
+            return hedgeWinCount;
+        }
+
+        /**
+         * Gets the throughput measured over the last complete window.
+         *
+         * @return The throughput in bytes per second, or -1 if not measured yet.
+         */
+        public int getBytesPerSecond() {
+            return bytesPerSecond;
+        }
+
+        /**
+         * Gets the length of the whole content.
+         *
+         * @return The length in bytes, or -1 if not known yet.
+         */
+        public int getTotalBytes() {
+            return totalBytes;
+        }
+
+        /**
+         * Gets the way this task transfers its content.
+         *
+         * @return The strategy, or null if the task has not planned it yet.
+         */
+        public TransferStrategy getStrategy() {
+            return strategy;
+        }
+
+        /**
+         * Gets the current state of the task.
+         */
+        public TaskState getState() {
+            return state;
+        }
+
+        /**
+         * Gets the identifier name of this task in the caches.
          */
         public TaskId getId() {
             return id;
@@ -344,53 +1439,452 @@ public class DownloadManager {
          */
         @Override
         public void run() {
-            InputStream is = null;
-            OutputStream os = null;
+            synchronized (this) {
+                // a task cancelled before it started has already been finished by cancel()
+                if (cancelled)
+                    return;
+
+                started = true;
+            }
 
-            setTaskActiveState(this, true);
+            OutputStream os = null;
+            BufferPool pool = bufferPool;
+            int size = chunkSize;
+            byte[] buffer = null;
 
             try {
-                os = openDataCacheEntry();
-                is = downloadUrl();
-                byte[] buffer = new byte[chunkSize];
-                int nbytes;
+                strategy = plan();
 
-                while ((nbytes = is.read(buffer)) != -1) {
-                    if (cancelled) {
-                        onStateChanged(TaskState.CANCELLED);
-                        return;
-                    }
+                if (cancelled)
+                    throw new CancellationException();
 
-                    os.write(buffer, 0, nbytes);
+                if (strategy != TransferStrategy.NONE) {
+                    os = openDataCacheEntry();
+                    openEvent.signal();
+                    buffer = pool.acquireHeap(size);
 
-                    downloadedBytes += nbytes;
+                    boolean transferred = false;
 
-                    onStateChanged(TaskState.IN_PROGRESS);
-                }
+                    if (strategy == TransferStrategy.PARALLEL)
+                        transferred = transferInParallel(os, pool, buffer);
 
-                os.close();
-                os = null;
+                    if (!transferred)
+                        transferSequentially(os, pool, buffer, size);
+
+                    os.close();
+                    os = null;
+                }
 
                 result = dataCache.readEntry(cacheEntryId);
-                completed = true;
+
+                if (!markCompleted())
+                    throw new CancellationException();
+
                 onStateChanged(TaskState.DONE);
             } catch (Exception e) {
-                exception = e;
+                TaskState finalState = TaskState.CANCELLED;
+
+                // a suspended task records where it stopped, to be resumed
+                if (suspended && cancelled)
+                    finalState = TaskState.IN_PROGRESS;
+
+                if (markFailed(e)) {
+                    finalState = TaskState.ERROR;
+                } else {
+                    tryClose(result);
+                    result = null;
+                }
 
                 try {
-                    onStateChanged(TaskState.ERROR);
+                    onStateChanged(finalState);
                 } catch (IOException _) {
                     // ignore failure to persist state change
                 }
             } finally {
-                tryClose(is);
                 tryClose(os);
 
-                setTaskActiveState(this, false);
+                if (buffer != null)
+                    pool.release(buffer);
+
+                setTaskActiveState(this, false);
+
+                // wakeup all waiting threads
+                signalFinished();
+            }
+        }
+
+        /**
+         * Probes the sources, and picks a transfer strategy based on what they tell.
+         * Without a probe, parallel sourcing is still attempted, since its first
+         * segment tells whether the sources honor ranges.
+         */
+        private TransferStrategy plan() throws IOException {
+            if (probing)
+                probe = probeSources();
+
+            if (probe != null) {
+                if (hasContentChanged(probe))
+                    discardDownloadedContent();
+
+                totalBytes = probe.getContentLength();
+                entityTag = probe.getEntityTag();
+                lastModified = probe.getLastModified();
+
+                onStateChanged(TaskState.STARTING);
+            }
+
+            if (totalBytes != -1 && getDownloadedBytes() >= totalBytes && dataCache.hasEntry(cacheEntryId))
+                return TransferStrategy.NONE;
+
+            checkAvailableSpace();
+
+            if (parallelSourcing && sources.size() > 1 && supportsRanges())
+                return TransferStrategy.PARALLEL;
+
+            return TransferStrategy.SEQUENTIAL;
+        }
+
+        /**
+         * Fails the task if the data cache has no room for the rest of the content.
+         */
+        private void checkAvailableSpace() {
+            if (totalBytes == -1)
+                return;
+
+            long required = totalBytes - getDownloadedBytes() + minFreeSpace;
+            long available = dataCache.getAvailableSpace();
+
+            if (available != -1 && required > available)
+                throw new InsufficientSpaceException(required, available);
+        }
+
+        /**
+         * Probes the sources in order, until one of them answers.
+         *
+         * @return The first answer, or null if no source answered.
+         */
+        private Downloader.Probe probeSources() {
+            for (DownloadSource source : sources) {
+                if (source.isDisabled())
+                    continue;
+
+                try {
+                    Downloader.Probe p = getDownloader().probe(source.getUrl());
+                    validator.check(p);
+                    return p;
+                } catch (IOException _) {
+                    // some servers refuse HEAD requests, so this is not held against the source
+                }
+            }
+
+            return null;
+        }
+
+        /**
+         * Gets whether the probed content differs from what was downloaded so far.
+         * Only the length and validators known on both sides are compared.
+         */
+        private boolean hasContentChanged(Downloader.Probe probe) {
+            if (totalBytes != -1 && probe.getContentLength() != -1 && totalBytes != probe.getContentLength())
+                return true;
+
+            if (entityTag != null && probe.getEntityTag() != null && !entityTag.equals(probe.getEntityTag()))
+                return true;
+
+            return lastModified != 0 && probe.getLastModified() != 0 && lastModified != probe.getLastModified();
+        }
+
+        /**
+         * Gets whether the sources may honor ranges, as far as the probe tells.
+         */
+        private boolean supportsRanges() {
+            return probe == null || probe.acceptsRanges();
+        }
+
+        /**
+         * Learns the content length and validators from a connection, unless already known.
+         */
+        private void learnContent(Downloader.InputStream is) {
+            if (totalBytes == -1)
+                totalBytes = is.getTotalLength();
+
+            if (entityTag == null)
+                entityTag = is.getEntityTag();
+
+            if (lastModified == 0)
+                lastModified = is.getLastModified();
+        }
+
+        /**
+         * Restores the content length and validators persisted by a previous session.
+         */
+        void restoreContent(ProgressInfo pi) {
+            totalBytes = pi.totalBytes;
+            entityTag = pi.entityTag;
+            lastModified = pi.lastModified;
+        }
+
+        /**
+         * Called when the content has changed since the download started,
+         * so that the part downloaded so far is useless.
+         * Can be used by subclasses which continue earlier downloads.
+         */
+        protected void discardDownloadedContent() {
+            totalBytes = -1;
+            entityTag = null;
+            lastModified = 0;
+        }
+
+        /**
+         * Downloads the content from one source at a time, moving on to the next
+         * source when the current one fails, and hedging when it stalls.
+         */
+        private void transferSequentially(OutputStream os, BufferPool pool, byte[] buffer, int size) throws IOException {
+            ThroughputMonitor monitor = new ThroughputMonitor(stallThroughput, stallWindow);
+            Downloader.InputStream is = null;
+
+            try {
+                is = openConnection(null);
+
+                while (true) {
+                    long readStart = System.nanoTime();
+                    int nbytes;
+
+                    try {
+                        nbytes = is.read(buffer, 0, size);
+                    } catch (IOException e) {
+                        // a read aborted by a winning hedge is expected
+                        if (hedge != null && hedge.hasWon()) {
+                            nbytes = 0;
+                        } else if (cancelled) {
+                            throw e;
+                        } else {
+                            tryClose(is);
+                            is = failOver(e);
+                            monitor.reset();
+                            continue;
+                        }
+                    }
+
+                    if (cancelled)
+                        throw new CancellationException();
+
+                    if (hedge != null) {
+                        if (nbytes == -1 ? hedge.hasWon() : !hedge.onPrimaryDelivered(nbytes)) {
+                            tryClose(is);
+                            is = takeOverHedge(os);
+                            monitor.reset();
+                            onStateChanged(TaskState.IN_PROGRESS);
+                            continue;
+                        }
+
+                        if (nbytes == -1)
+                            hedge.abort();
+
+                        if (hedge.hasLost())
+                            hedge = null;
+                    }
+
+                    if (nbytes == -1)
+                        break;
+
+                    os.write(buffer, 0, nbytes);
+
+                    downloadedBytes += nbytes;
+                    sources.get(sourceIndex).onTransferred(nbytes, System.nanoTime() - readStart);
+
+                    if (monitor.onTransferred(nbytes)) {
+                        stallCount++;
+
+                        if (hedge == null && supportsRanges())
+                            startHedge(is, pool, size);
+                    }
+
+                    bytesPerSecond = monitor.getLastBytesPerSecond();
+
+                    onStateChanged(TaskState.IN_PROGRESS);
+                }
+            } finally {
+                connection = null;
+
+                if (hedge != null) {
+                    hedge.abort();
+                    hedge.dispose();
+                    hedge = null;
+                }
+
+                tryClose(is);
+            }
+        }
+
+        /**
+         * Downloads different segments of the content from different sources at once.
+         *
+         * @return True if the whole content was transferred, or false if the
+         *         sources don't support it, and the rest has to be transferred
+         *         sequentially.
+         */
+        private boolean transferInParallel(final OutputStream os, BufferPool pool, byte[] buffer) throws IOException {
+            ParallelTransfer transfer = new ParallelTransfer(getDownloader(), sources, validator, pool,
+                    getConnectionExecutor(), segmentSize);
+            parallelTransfer = transfer;
+
+            // cancel() may have missed the transfer, if it ran just before it was set
+            if (cancelled)
+                throw new CancellationException();
+
+            try {
+                int offset = transfer.run(getDownloadedBytes(), new ParallelTransfer.Sink() {
+                    @Override
+                    public void write(byte[] buffer, int count) throws IOException {
+                        if (cancelled)
+                            throw new CancellationException();
+
+                        os.write(buffer, 0, count);
+                        downloadedBytes += count;
+                        onStateChanged(TaskState.IN_PROGRESS);
+                    }
+                }, buffer);
+
+                int total = validator.getTotalLength();
+
+                return total != -1 && offset >= total;
+            } finally {
+                parallelTransfer = null;
+            }
+        }
+
+        /**
+         * Opens a hedged request from the current offset, to race the stalled connection.
+         */
+        private void startHedge(Downloader.InputStream primary, BufferPool pool, int probeSize) {
+            URL source = sources.get(sourceIndex).getUrl();
+            hedge = new Hedge(getDownloader(), source, getDownloadedBytes(), primary, pool, probeSize);
+
+            // cancel() may have missed the hedge, if it ran just before it was set
+            if (cancelled) {
+                hedge.abort();
+                return;
+            }
+
+            try {
+                getConnectionExecutor().execute(hedge);
+            } catch (RejectedExecutionException _) {
+                // the primary connection carries on alone
+                hedge.abort();
+            }
+        }
+
+        /**
+         * Switches over to the connection of a hedge which won its race.
+         */
+        private Downloader.InputStream takeOverHedge(OutputStream os) throws IOException {
+            Hedge winner = hedge;
+
+            downloadedBytes += winner.getTakeOverBytes();
+            Downloader.InputStream is = winner.takeOver(os);
+            hedge = null;
+            hedgeWinCount++;
+
+            connection = is;
+
+            if (cancelled)
+                is.abort();
+
+            return is;
+        }
+
+        /**
+         * Opens a connection from the current offset, and registers it for cancellation.
+         * Starts with the current source, and moves on through the others in turn
+         * while they fail, giving up once each usable source has failed once.
+         * If the task was cancelled while connecting, the connection is
+         * aborted at once, so that the first read fails immediately.
+         *
+         * @param lastError The error which made the previous connection fail, if any.
+         */
+        private Downloader.InputStream openConnection(IOException lastError) throws IOException {
+            for (int attempts = 0; attempts < sources.size(); attempts++) {
+                DownloadSource source = sources.get(sourceIndex);
+
+                if (!source.isDisabled()) {
+                    try {
+                        Downloader.InputStream is = downloadFrom(source.getUrl(), getDownloadedBytes());
+
+                        try {
+                            validator.check(is);
+                        } catch (ContentValidator.MismatchException e) {
+                            tryClose(is);
+                            throw e;
+                        }
+
+                        learnContent(is);
+                        connection = is;
+
+                        if (cancelled)
+                            is.abort();
+
+                        return is;
+                    } catch (ContentValidator.MismatchException e) {
+                        source.disable();
+                        lastError = e;
+                    } catch (IOException e) {
+                        if (cancelled)
+                            throw e;
+
+                        source.onFailed();
+                        lastError = e;
+                    }
+                }
+
+                sourceIndex = (sourceIndex + 1) % sources.size();
+            }
+
+            throw lastError != null ? lastError : new IOException("No usable download source.");
+        }
+
+        /**
+         * Gives up on the current source after a failed read, and reconnects to the next one.
+         */
+        private Downloader.InputStream failOver(IOException e) throws IOException {
+            sources.get(sourceIndex).onFailed();
+
+            if (hedge != null) {
+                hedge.abort();
+                hedge.dispose();
+                hedge = null;
+            }
+
+            sourceIndex = (sourceIndex + 1) % sources.size();
+
+            return openConnection(e);
+        }
+
+        /**
+         * Marks the task as completed, unless it was cancelled first.
+         *
+         * @return True if the task was marked as completed.
+         */
+        private synchronized boolean markCompleted() {
+            if (cancelled)
+                return false;
+
+            completed = true;
+            return true;
+        }
 
-                // wakeup all waiting threads
-                finishEvent.signal();
-            }
+        /**
+         * Records the exception the task failed with, unless it was cancelled first,
+         * in which case the exception is merely a result of the cancellation.
+         *
+         * @return True if the task was marked as failed.
+         */
+        private synchronized boolean markFailed(Exception e) {
+            if (cancelled)
+                return false;
+
+            exception = e;
+            return true;
         }
 
         /**
@@ -405,15 +1899,20 @@ public class DownloadManager {
         }
 
         /**
-         * Starts the download process.
-         * Can be used by subclasses to start downloading
-         * from a specific offset in the file, etc.
+         * Starts the download process from one of the sources,
+         * at the specified offset in the file.
+         * Can be used by subclasses to customize the request.
          *
+         * @param source The URL of the source to download from.
+         * @param offset The offset to start downloading from.
          * @return An input stream of downloaded bytes.
          * @throws IOException
          */
-        protected InputStream downloadUrl() throws IOException {
-            return getDownloader().download(url);
+        protected Downloader.InputStream downloadFrom(URL source, int offset) throws IOException {
+            if (offset == 0)
+                return getDownloader().download(source);
+
+            return getDownloader().downloadWithOffset(source, offset);
         }
 
         /**
@@ -422,7 +1921,30 @@ public class DownloadManager {
          * for resuming suspended downloads or restarting on error.
          */
         protected OutputStream openDataCacheEntry() {
-            return dataCache.createEntry(cacheEntryId);
+            return dataCache.createEntry(cacheEntryId, totalBytes);
+        }
+
+        /**
+         * Called once the task has finished, whether it completed, failed, or was cancelled.
+         */
+        protected void onFinished() {
+        }
+
+        /**
+         * Wakes up everything waiting for the task, and lets the manager know it has finished.
+         * A listener which fails is only thrown once the task was wrapped up all the same.
+         */
+        private void signalFinished() {
+            try {
+                openEvent.signal();
+            } finally {
+                try {
+                    finishEvent.signal();
+                } finally {
+                    onTaskFinished(this);
+                    onFinished();
+                }
+            }
         }
 
         /**
@@ -432,10 +1954,7 @@ public class DownloadManager {
          * of resuming suspended downloads or restarting on error.
          */
         protected String generateCacheEntryId() {
-            long now = System.currentTimeMillis();
-            int token = nextIdToken.incrementAndGet();
-            String filename = new File(url.getPath()).getName();
-            return String.format("%s.%s-%s", now, token, filename);
+            return TaskId.format(TaskId.pack(System.currentTimeMillis(), nextIdToken.incrementAndGet()));
         }
 
         /**
@@ -444,8 +1963,11 @@ public class DownloadManager {
          * persists the new task state to the cache,
          * so that if anything happens, it can be reloaded
          * and possibly resumed from its most recent state.
+         * Transitions are persisted before the listener is updated,
+         * while progress within a state is persisted in batches.
          */
         private void onStateChanged(TaskState state) throws IOException {
+            this.state = state;
             ProgressInfo progressInfo = makeProgressInfo(getDownloadedBytes(), state);
 
             persistState(progressInfo);
@@ -460,59 +1982,101 @@ public class DownloadManager {
          * restarting suspended or failed downloads.
          */
         private void persistState(ProgressInfo progressInfo) throws IOException {
-            OutputStream os = null;
-
-            try {
-                taskCache.deleteEntry(cacheEntryId);
-                os = taskCache.createEntry(cacheEntryId);
-                ProgressInfo.serialize(progressInfo, os);
-            } finally {
-                tryClose(os);
-            }
+            if (progressInfo.state == TaskState.IN_PROGRESS && !suspended)
+                stateWriter.write(cacheEntryId, progressInfo);
+            else
+                stateWriter.writeDurably(cacheEntryId, progressInfo);
         }
 
-        private ProgressInfo makeProgressInfo(int totalBytes, TaskState state) {
+        private ProgressInfo makeProgressInfo(int downloadedBytes, TaskState state) {
             ProgressInfo pi = new ProgressInfo();
 
             pi.task = this;
             pi.taskId = getId();
             pi.url = url;
-            pi.downloadedBytes = totalBytes;
+            pi.urls = getUrls();
+            pi.downloadedBytes = downloadedBytes;
+            pi.totalBytes = totalBytes;
+            pi.entityTag = entityTag;
+            pi.lastModified = lastModified;
             pi.state = state;
+            pi.stallCount = stallCount;
+            pi.hedgeWinCount = hedgeWinCount;
+            pi.bytesPerSecond = bytesPerSecond;
+            pi.recordedAt = System.currentTimeMillis();
+            pi.fileName = new File(url.getPath()).getName();
 
             return pi;
         }
 
-        private boolean tryClose(Closeable c) {
-            try {
-                if (c != null)
-                    c.close();
-
-                return true;
-            } catch (IOException _) {
-                return false;
-            }
-        }
-
         /**
          * Cancels the download task.
-         * This will trigger cancellation at the earliest
-         * possible opportunity. If the task is already
-         * close to completion, this may not actually
-         * have an effect, since it may complete before
-         * it gets a chance to stop.
+         * If the task has not started yet, it is finished right away,
+         * and will never run. Otherwise, it stops at the earliest
+         * possible opportunity: with {@code mayInterruptIfRunning},
+         * the connection is aborted, so that a read blocked on the
+         * network fails at once and the executor thread is released;
+         * without it, the task stops once the current chunk arrives.
+         * Either way, the CANCELLED state is persisted exactly once.
+         * <p>
+         * The running thread itself is never interrupted, since reads
+         * from an {@link java.net.HttpURLConnection} ignore interrupts,
+         * while the caches might not tolerate them.
          *
-         * @param mayInterruptIfRunning If false, does nothing.
+         * @param mayInterruptIfRunning Whether to abort a running transfer immediately.
          * @return True if the task was cancelled before it was completed.
          */
         @Override
         public boolean cancel(boolean mayInterruptIfRunning) {
-            if (!mayInterruptIfRunning)
-                return false;
+            boolean running;
 
-            cancelled = !completed;
+            synchronized (this) {
+                if (cancelled || completed || exception != null)
+                    return false;
 
-            return cancelled;
+                cancelled = true;
+                running = started;
+            }
+
+            if (!running) {
+                try {
+                    // a suspended task keeps the state it had recorded
+                    if (!suspended)
+                        onStateChanged(TaskState.CANCELLED);
+                } catch (IOException _) {
+                    // ignore failure to persist state change
+                }
+
+                setTaskActiveState(this, false);
+                signalFinished();
+            } else if (mayInterruptIfRunning) {
+                Downloader.InputStream is = connection;
+                Hedge h = hedge;
+                ParallelTransfer transfer = parallelTransfer;
+
+                if (is != null)
+                    is.abort();
+
+                if (h != null)
+                    h.abort();
+
+                if (transfer != null)
+                    transfer.abort();
+            }
+
+            return true;
+        }
+
+        /**
+         * Stops the task like {@link #cancel(boolean)}, but records it as in progress, rather
+         * than as cancelled, so that it's resumed later. A task which wasn't running yet keeps
+         * the state it had recorded.
+         *
+         * @return True if the task was suspended before it was completed.
+         */
+        boolean suspend() {
+            suspended = true;
+            return cancel(true);
         }
 
         /**
@@ -546,6 +2110,53 @@ public class DownloadManager {
             return result;
         }
 
+        /**
+         * Runs a callback once the task has finished, whether it was completed,
+         * failed, or was cancelled, or right away if it already has, so that
+         * no thread has to wait in {@link #get()} meanwhile.
+         *
+         * @param listener The callback, which may call {@link #get()} without waiting.
+         * @param executor The executor to run the callback on.
+         */
+        public void addListener(Runnable listener, Executor executor) {
+            finishEvent.onSignal(listener, executor);
+        }
+
+        /**
+         * Reads the downloaded bytes while they're being downloaded.
+         * Waits until the transfer starts, and then returns a stream which
+         * follows the data cache entry, waiting for bytes as they arrive,
+         * and ending once the transfer stops. Since the transfer might stop
+         * short of the whole content, {@link #get()} tells whether the stream
+         * ended because the download was completed.
+         *
+         * @return A stream following the downloaded bytes, or null if the data
+         * cache can't be followed.
+         * @throws InterruptedException
+         * @throws ExecutionException The task failed before its transfer started.
+         */
+        public InputStream follow() throws InterruptedException, ExecutionException {
+            if (!(dataCache instanceof FollowableCache))
+                return null;
+
+            openEvent.waitForSignal();
+
+            InputStream is;
+
+            try {
+                is = ((FollowableCache) dataCache).followEntry(cacheEntryId);
+            } catch (UnsupportedOperationException _) {
+                // a wrapper of a cache which can't be followed
+                return null;
+            }
+
+            // the entry was never created, so the task has failed or was cancelled
+            if (is == null)
+                return get();
+
+            return is;
+        }
+
         /**
          * Gets the input stream containing the downloaded bytes,
          * if the download was completed until the specified time.
@@ -560,7 +2171,7 @@ public class DownloadManager {
          */
         @Override
         public InputStream get(long l, @NonNull TimeUnit timeUnit) throws InterruptedException, ExecutionException, TimeoutException {
-            finishEvent.waitForSignal(timeUnit.toMillis(l));
+            finishEvent.waitForSignal(l, timeUnit);
             validateState();
             return result;
         }
@@ -599,7 +2210,7 @@ public class DownloadManager {
          * @throws IllegalArgumentException
          */
         public RestartedTask(ProgressInfo pi, ProgressListener progressListener) throws IllegalArgumentException {
-            super(pi.url, progressListener);
+            super(pi.getUrls(), progressListener);
 
             if (isActive(pi.taskId))
                 throw new IllegalArgumentException("Attempt to restart a running task.");
@@ -610,7 +2221,7 @@ public class DownloadManager {
         @Override
         protected OutputStream openDataCacheEntry() {
             dataCache.deleteEntry(existingCacheEntryId);
-            return dataCache.createEntry(existingCacheEntryId);
+            return dataCache.createEntry(existingCacheEntryId, getTotalBytes());
         }
 
         @Override
@@ -626,7 +2237,8 @@ public class DownloadManager {
      */
     private class ResumedTask extends Task {
         private final String existingCacheEntryId;
-        private final int downloadedBytes;
+        private int downloadedBytes;
+        private boolean discarded = false;
 
         /**
          * Creates a new resumed task from an existing one.
@@ -635,28 +2247,47 @@ public class DownloadManager {
          * @throws IllegalArgumentException
          */
         public ResumedTask(ProgressInfo pi, ProgressListener progressListener) throws IllegalArgumentException {
-            super(pi.url, progressListener);
+            super(pi.getUrls(), progressListener);
 
             if (isActive(pi.taskId))
                 throw new IllegalArgumentException("Attempt to resume a running task.");
 
             existingCacheEntryId = pi.taskId.getCacheEntryId();
             downloadedBytes = pi.downloadedBytes;
+
+            if (pi.hasContentInfo())
+                restoreContent(pi);
         }
 
         @Override
         protected OutputStream openDataCacheEntry() {
-            return dataCache.appendToEntry(existingCacheEntryId);
+            if (discarded) {
+                dataCache.deleteEntry(existingCacheEntryId);
+                return dataCache.createEntry(existingCacheEntryId, getTotalBytes());
+            }
+
+            // the entry may hold more than was recorded, or be preallocated
+            OutputStream os = dataCache.writeEntryAt(existingCacheEntryId, downloadedBytes);
+
+            // a bounded cache may have evicted the entry, so start over
+            if (os == null) {
+                downloadedBytes = 0;
+                os = dataCache.createEntry(existingCacheEntryId, getTotalBytes());
+            }
+
+            return os;
         }
 
         @Override
-        public String generateCacheEntryId() {
-            return existingCacheEntryId;
+        protected void discardDownloadedContent() {
+            super.discardDownloadedContent();
+            downloadedBytes = 0;
+            discarded = true;
         }
 
         @Override
-        protected InputStream downloadUrl() throws IOException {
-            return getDownloader().downloadWithOffset(getUrl(), downloadedBytes);
+        public String generateCacheEntryId() {
+            return existingCacheEntryId;
         }
 
         @Override
@@ -665,6 +2296,21 @@ public class DownloadManager {
         }
     }
 
+    /**
+     * A resumed task which was interrupted when the previous manager stopped,
+     * and which lets the next interrupted task be resumed once it finishes.
+     */
+    private class AutoResumedTask extends ResumedTask {
+        public AutoResumedTask(ProgressInfo pi, ProgressListener progressListener) throws IllegalArgumentException {
+            super(pi, progressListener);
+        }
+
+        @Override
+        protected void onFinished() {
+            onResumeFinished();
+        }
+    }
+
     public interface ProgressListener {
         /**
          * Called every time the download has progressed.
@@ -683,7 +2329,206 @@ public class DownloadManager {
         ERROR
     }
 
+    public enum TransferStrategy {
+        /**
+         * The content was already complete, so nothing is transferred.
+         */
+        NONE,
+
+        /**
+         * One source at a time, failing over to the next ones.
+         */
+        SEQUENTIAL,
+
+        /**
+         * Segments from several sources at once.
+         */
+        PARALLEL
+    }
+
+    /**
+     * What reading the states of all tasks found.
+     */
+    public static class RecoveryReport {
+        /**
+         * The states of the tasks which were read.
+         */
+        public final Map<TaskId, ProgressInfo> tasks = new LinkedHashMap<>();
+
+        /**
+         * The tasks whose records couldn't be read, and were moved aside.
+         */
+        public final List<TaskId> quarantined = new ArrayList<>();
+
+        /**
+         * The tasks whose records weren't read in time.
+         */
+        public final List<TaskId> unchecked = new ArrayList<>();
+
+        /**
+         * The interrupted tasks which were queued to be resumed, in the order
+         * they're resumed in, when the manager resumes tasks on startup.
+         */
+        public final List<TaskId> resumed = new ArrayList<>();
+
+        /**
+         * The resumed tasks whose data was shorter than recorded.
+         */
+        public final List<TaskId> truncated = new ArrayList<>();
+
+        /**
+         * How long reading took, in milliseconds.
+         */
+        public long elapsedMillis;
+
+        /**
+         * How long it took until the last queued task was started, in milliseconds,
+         * counting from the start of the scan, or -1 if some are still waiting.
+         */
+        public volatile long resumedMillis = -1;
+
+        final long startNanos = System.nanoTime();
+    }
+
+    /**
+     * The rules by which finished tasks are kept by garbage collection.
+     * Limits are unset, that is -1, by default.
+     */
+    public static class RetentionPolicy {
+        private long maxAge = -1;
+        private long maxIdleTime = -1;
+        private long maxTotalBytes = -1;
+        private Set<TaskState> removedStates = EnumSet.noneOf(TaskState.class);
+
+        public long getMaxAge() {
+            return maxAge;
+        }
+
+        /**
+         * Sets how long completed tasks are kept after they completed, in milliseconds.
+         */
+        public void setMaxAge(long maxAge) {
+            this.maxAge = maxAge;
+        }
+
+        public long getMaxIdleTime() {
+            return maxIdleTime;
+        }
+
+        /**
+         * Sets how long completed tasks are kept after their data was last used, in milliseconds.
+         * Only an {@link AccessTrackingCache}, such as a {@link FileCache}, tells when it was;
+         * otherwise, this is counted from when the task completed.
+         */
+        public void setMaxIdleTime(long maxIdleTime) {
+            this.maxIdleTime = maxIdleTime;
+        }
+
+        public long getMaxTotalBytes() {
+            return maxTotalBytes;
+        }
+
+        /**
+         * Sets how much data of completed tasks is kept, removing the least recently used beyond it.
+         */
+        public void setMaxTotalBytes(long maxTotalBytes) {
+            this.maxTotalBytes = maxTotalBytes;
+        }
+
+        public Set<TaskState> getRemovedStates() {
+            return removedStates;
+        }
+
+        /**
+         * Sets the states of finished tasks which are always removed, such as failed and cancelled ones.
+         */
+        public void setRemovedStates(Set<TaskState> removedStates) {
+            this.removedStates = removedStates.isEmpty()
+                    ? EnumSet.noneOf(TaskState.class) : EnumSet.copyOf(removedStates);
+        }
+    }
+
+    public enum RetentionReason {
+        /**
+         * The task completed longer ago than kept.
+         */
+        AGE,
+
+        /**
+         * The task's data wasn't used for longer than kept.
+         */
+        IDLE,
+
+        /**
+         * The data of the tasks kept would exceed the size limit.
+         */
+        SIZE,
+
+        /**
+         * The task finished in a state which isn't kept.
+         */
+        STATE,
+
+        /**
+         * The task completed, but its data is gone.
+         */
+        ORPHANED_RECORD
+    }
+
+    /**
+     * What garbage collection removed, or would remove in a dry run.
+     */
+    public static class RetentionReport {
+        /**
+         * Whether nothing was actually removed.
+         */
+        public final boolean dryRun;
+
+        /**
+         * The tasks removed, and why.
+         */
+        public final Map<TaskId, RetentionReason> removed = new LinkedHashMap<>();
+
+        /**
+         * The names of the data entries removed since they had no task record.
+         */
+        public final List<String> orphanedData = new ArrayList<>();
+
+        /**
+         * The bytes of data removed, and kept for completed tasks.
+         */
+        public long freedBytes;
+        public long retainedBytes;
+
+        /**
+         * How long collecting took, in milliseconds.
+         */
+        public long elapsedMillis;
+
+        RetentionReport(boolean dryRun) {
+            this.dryRun = dryRun;
+        }
+    }
+
+    /**
+     * Identifies a task by a 64-bit number, along with the name of its cache
+     * entries. New tasks are numbered by the time they're created and a counter,
+     * and named by their number in decimal. Tasks created before were named
+     * {@code <millis>.<counter>-<file name>}; those keep their names, and are
+     * numbered from the same parts. Names in neither form are numbered by their
+     * hash. Since legacy names may share a number, ids with equal numbers are
+     * only equal if their names are too; the names are compared only then.
+     */
     public static class TaskId implements Serializable {
+        // pinned, so that records holding ids from before they were numbered stay readable
+        private static final long serialVersionUID = -2170281333258149385L;
+
+        /**
+         * How many bits of a number are taken by the counter, below the time.
+         */
+        private static final int COUNTER_BITS = 20;
+
+        private long value;
         private String cacheEntryId;
 
         TaskId() {
@@ -691,6 +2536,57 @@ public class DownloadManager {
 
         TaskId(String cacheEntryId) {
             this.cacheEntryId = cacheEntryId;
+            this.value = parse(cacheEntryId);
+        }
+
+        static long pack(long millis, int counter) {
+            return millis << COUNTER_BITS | counter & ((1 << COUNTER_BITS) - 1);
+        }
+
+        static String format(long value) {
+            return Long.toString(value);
+        }
+
+        /**
+         * Numbers a cache entry name, in whichever form it is.
+         */
+        static long parse(String name) {
+            int dot = name.indexOf('.');
+            int dash = name.indexOf('-', dot + 1);
+
+            try {
+                if (dot == -1)
+                    return Long.parseLong(name);
+
+                if (dash != -1)
+                    return pack(Long.parseLong(name.substring(0, dot)), Integer.parseInt(name.substring(dot + 1, dash)));
+            } catch (NumberFormatException _) {
+                // not a number, so it's hashed
+            }
+
+            // FNV-1a
+            long hash = 0xcbf29ce484222325L;
+
+            for (int i = 0; i < name.length(); i++) {
+                hash ^= name.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+
+            return hash;
+        }
+
+        /**
+         * Numbers ids read from records written before they were numbered.
+         */
+        private Object readResolve() {
+            if (value == 0 && cacheEntryId != null)
+                return new TaskId(cacheEntryId);
+
+            return this;
+        }
+
+        public long getValue() {
+            return value;
         }
 
         public String getCacheEntryId() {
@@ -704,13 +2600,17 @@ public class DownloadManager {
 
             TaskId taskId = (TaskId) o;
 
-            return cacheEntryId != null ? cacheEntryId.equals(taskId.cacheEntryId) : taskId.cacheEntryId == null;
-
+            return value == taskId.value && cacheEntryId.equals(taskId.cacheEntryId);
         }
 
         @Override
         public int hashCode() {
-            return cacheEntryId != null ? cacheEntryId.hashCode() : 0;
+            return (int) (value ^ (value >>> 32));
+        }
+
+        @Override
+        public String toString() {
+            return cacheEntryId;
         }
     }
 
@@ -738,11 +2638,70 @@ public class DownloadManager {
         ProgressInfo() {
         } // package-private creation
 
-        private int compatVersion = 1;
+        // pinned, so that adding fields keeps persisted records readable
+        private static final long serialVersionUID = -3747809763679898474L;
+
+        private int compatVersion = 2;
         public transient Task task;
         public TaskId taskId;
         public URL url;
+        public List<URL> urls;
         public TaskState state;
         public int downloadedBytes;
+
+        /**
+         * The length of the whole content, or -1 if unknown, and its validators.
+         */
+        public int totalBytes = -1;
+        public String entityTag;
+        public long lastModified;
+
+        /**
+         * Stall detection and hedging counters of the current session.
+         */
+        public int stallCount;
+        public int hedgeWinCount;
+        public int bytesPerSecond = -1;
+
+        /**
+         * When the state was recorded, in milliseconds since the epoch,
+         * or 0 in records from before it was.
+         */
+        public long recordedAt;
+
+        /**
+         * The name of the downloaded file, or null in records from before it was kept,
+         * whose task ids held it instead.
+         */
+        public String fileName;
+
+        /**
+         * Gets the URLs of the task's sources.
+         * Records persisted before tasks had several sources only have the one URL.
+         */
+        public List<URL> getUrls() {
+            if (urls == null)
+                return Collections.singletonList(url);
+
+            return urls;
+        }
+
+        /**
+         * Gets the name of the downloaded file, as named by the first source.
+         */
+        public String getFileName() {
+            if (fileName == null)
+                return new File(getUrls().get(0).getPath()).getName();
+
+            return fileName;
+        }
+
+        /**
+         * Gets whether the record holds the content length and validators,
+         * which records from before version 2 lack.
+         */
+        boolean hasContentInfo() {
+            return compatVersion >= 2;
+        }
     }
 }
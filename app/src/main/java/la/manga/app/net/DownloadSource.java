@@ -0,0 +1,85 @@
+package la.manga.app.net;
+
+import java.net.URL;
+
+/**
+ * One of several equivalent URLs from which a task may download its content,
+ * along with the statistics by which the task chooses between them.
+ */
+public class DownloadSource {
+    /**
+     * A source is given up on after this many failures without delivering anything.
+     */
+    static final int MAX_CONSECUTIVE_FAILURES = 3;
+
+    private final URL url;
+    private long downloadedBytes = 0;
+    private long activeNanos = 0;
+    private int failures = 0;
+    private int consecutiveFailures = 0;
+    private boolean disabled = false;
+
+    DownloadSource(URL url) {
+        this.url = url;
+    }
+
+    /**
+     * Gets the URL of this source.
+     */
+    public URL getUrl() {
+        return url;
+    }
+
+    /**
+     * Gets how many bytes were downloaded from this source.
+     */
+    public synchronized long getDownloadedBytes() {
+        return downloadedBytes;
+    }
+
+    /**
+     * Gets the throughput measured for this source while it was transferring.
+     *
+     * @return The throughput in bytes per second, or -1 if nothing was measured yet.
+     */
+    public synchronized long getBytesPerSecond() {
+        if (activeNanos == 0)
+            return -1;
+
+        return downloadedBytes * 1000000000L / activeNanos;
+    }
+
+    /**
+     * Gets how many times transfers from this source failed.
+     */
+    public synchronized int getFailures() {
+        return failures;
+    }
+
+    /**
+     * Gets whether this source was given up on, either because it failed
+     * too many times in a row, or because its content did not match.
+     */
+    public synchronized boolean isDisabled() {
+        return disabled;
+    }
+
+    synchronized void onTransferred(long nbytes, long nanos) {
+        downloadedBytes += nbytes;
+        activeNanos += nanos;
+
+        if (nbytes > 0)
+            consecutiveFailures = 0;
+    }
+
+    synchronized void onFailed() {
+        failures++;
+
+        if (++consecutiveFailures >= MAX_CONSECUTIVE_FAILURES)
+            disabled = true;
+    }
+
+    synchronized void disable() {
+        disabled = true;
+    }
+}
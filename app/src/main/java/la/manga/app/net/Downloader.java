@@ -1,10 +1,15 @@
 package la.manga.app.net;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.CacheRequest;
 import java.net.HttpURLConnection;
 import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Downloads stuff from the network.
@@ -12,6 +17,21 @@ import java.net.URL;
 public class Downloader {
     private int connectTimeout = 10 * 1000;
     private int readTimeout = 10 * 1000;
+    private int abortPollInterval = 0;
+    private int probeMaxAge = 5 * 60 * 1000;
+    private volatile HttpCache responseCache;
+
+    /**
+     * How many probed URLs are remembered at most.
+     */
+    private static final int MAX_CACHED_PROBES = 64;
+
+    private final Map<String, Probe> probes = new LinkedHashMap<String, Probe>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Probe> eldest) {
+            return size() > MAX_CACHED_PROBES;
+        }
+    };
 
     /**
      * Returns the timeout for connection attempts.
@@ -49,6 +69,121 @@ public class Downloader {
         readTimeout = timeout;
     }
 
+    /**
+     * Returns the interval at which blocked reads check whether they were aborted.
+     *
+     * @return The interval in milliseconds, or 0 if reads rely on disconnection alone.
+     */
+    public int getAbortPollInterval() {
+        return abortPollInterval;
+    }
+
+    /**
+     * Sets the interval at which blocked reads check whether they were aborted.
+     * On Android, disconnecting a connection fails a blocked read immediately,
+     * so this should be left at 0. Some JVMs, however, hold a lock across the
+     * blocking read which also stalls the disconnection; there, a positive
+     * interval makes the socket time out in slices of this length, so that
+     * {@link InputStream#abort()} takes effect within one slice, while the
+     * read still only fails once the full read timeout passes without data.
+     * Note that the server must then also start responding within one slice.
+     *
+     * @param interval The interval in milliseconds, or 0 to disable polling.
+     */
+    public void setAbortPollInterval(int interval) {
+        abortPollInterval = interval;
+    }
+
+    /**
+     * Returns how long probe results are reused before a URL is probed again.
+     *
+     * @return The age in milliseconds.
+     */
+    public int getProbeMaxAge() {
+        return probeMaxAge;
+    }
+
+    /**
+     * Sets how long probe results are reused before a URL is probed again.
+     *
+     * @param age The age in milliseconds, or 0 to always probe.
+     */
+    public void setProbeMaxAge(int age) {
+        probeMaxAge = age;
+    }
+
+    /**
+     * Returns the cache which whole downloads are served from.
+     *
+     * @return The cache, or null if downloads only rely on the process-wide cache, if any.
+     */
+    public HttpCache getResponseCache() {
+        return responseCache;
+    }
+
+    /**
+     * Sets a cache to serve whole downloads from, and to store them in.
+     * Unlike a process-wide cache, stale responses are revalidated with the
+     * server, and served from the cache if they weren't modified. Requests
+     * of this downloader then bypass the process-wide cache, if any.
+     * Ranges of content are never cached.
+     *
+     * @param cache The cache, or null to stop using one.
+     * @see HttpCache
+     */
+    public void setResponseCache(HttpCache cache) {
+        responseCache = cache;
+    }
+
+    /**
+     * Finds out what a URL serves without downloading it, using a HEAD request.
+     * Results are remembered per URL for a while, so that planning several
+     * downloads of the same URL only costs one round trip.
+     *
+     * @param url The URL to probe.
+     * @return What the server told about the content.
+     * @throws IOException
+     * @see #setProbeMaxAge(int)
+     */
+    public Probe probe(URL url) throws IOException {
+        String key = url.toString();
+
+        synchronized (probes) {
+            Probe probe = probes.get(key);
+
+            if (probe != null && System.nanoTime() - probe.time < probeMaxAge * 1000000L)
+                return probe;
+        }
+
+        HttpURLConnection conn = open(url);
+
+        try {
+            conn.setRequestMethod("HEAD");
+            establishConnection(conn);
+
+            Probe probe = new Probe(conn);
+
+            synchronized (probes) {
+                probes.put(key, probe);
+            }
+
+            return probe;
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * Forgets the probe result of a URL, as when its content is known to have changed.
+     *
+     * @param url The probed URL.
+     */
+    public void invalidateProbe(URL url) {
+        synchronized (probes) {
+            probes.remove(url.toString());
+        }
+    }
+
     /**
      * Downloads the content of a URL starting at a specified offset.
      *
@@ -63,6 +198,9 @@ public class Downloader {
 
     /**
      * Downloads a byte range of the content of a URL.
+     * If the server ignores the requested range, and sends the whole
+     * content instead, the returned stream still only delivers the
+     * requested range, by skipping and truncating the content.
      *
      * @param url The URL to download.
      * @param offset The beginning offset to start downloading from.
@@ -78,7 +216,12 @@ public class Downloader {
 
         establishConnection(conn);
 
-        return new InputStream(conn);
+        try {
+            return new InputStream(conn, offset, count, readTimeout, abortPollInterval > 0);
+        } catch (IOException e) {
+            conn.disconnect();
+            throw e;
+        }
     }
 
     /**
@@ -89,7 +232,64 @@ public class Downloader {
      * @throws IOException
      */
     public InputStream download(URL url) throws IOException {
-        return downloadRange(url, 0, 0);
+        HttpCache cache = responseCache;
+
+        if (cache == null)
+            return downloadRange(url, 0, 0);
+
+        HttpCache.Entry entry = cache.lookUp(url);
+
+        if (entry != null && entry.isFresh(System.currentTimeMillis())) {
+            java.io.InputStream content = cache.openContent(entry);
+
+            if (content != null) {
+                cache.onHit(false);
+                return new InputStream(entry, content);
+            }
+
+            entry = null;
+        }
+
+        HttpURLConnection conn = open(url);
+        conn.setUseCaches(false);
+
+        if (entry != null)
+            entry.addValidators(conn);
+
+        long requestTime = System.currentTimeMillis();
+
+        try {
+            conn.connect();
+
+            if (entry != null && conn.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                entry = cache.update(entry, conn, requestTime);
+                conn.disconnect();
+
+                java.io.InputStream content = cache.openContent(entry);
+
+                if (content != null) {
+                    cache.onHit(true);
+                    return new InputStream(entry, content);
+                }
+
+                // the content was evicted meanwhile, so it's fetched without validators
+                return download(url);
+            }
+
+            cache.onMiss();
+            establishConnection(conn);
+
+            InputStream is = new InputStream(conn, 0, 0, readTimeout, abortPollInterval > 0);
+            CacheRequest request = cache.store(url.toString(), conn, requestTime);
+
+            if (request != null)
+                is.storeIn(request);
+
+            return is;
+        } catch (IOException e) {
+            conn.disconnect();
+            throw e;
+        }
     }
 
     private HttpURLConnection open(URL url) throws IOException {
@@ -100,7 +300,7 @@ public class Downloader {
 
     private void setDefaultSettings(HttpURLConnection conn) throws ProtocolException {
         conn.setConnectTimeout(connectTimeout);
-        conn.setReadTimeout(readTimeout);
+        conn.setReadTimeout(abortPollInterval > 0 ? Math.min(abortPollInterval, readTimeout) : readTimeout);
         conn.setRequestMethod("GET");
         conn.setDoInput(true);
         conn.setRequestProperty("User-Agent", "Mozilla/5.0 (Windows NT 6.1; Win64; x64) "
@@ -128,38 +328,369 @@ public class Downloader {
             throw new IOException("HTTP server responded with error: " + rc);
     }
 
+    /**
+     * Parses the complete length out of a "bytes first-last/length" Content-Range value.
+     *
+     * @return The complete length, or -1 if unknown.
+     */
+    static int parseTotalLength(String contentRange) {
+        if (contentRange == null)
+            return -1;
+
+        int slash = contentRange.lastIndexOf('/');
+
+        if (slash == -1)
+            return -1;
+
+        try {
+            return Integer.parseInt(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException _) {
+            return -1; // "*" for an unknown length
+        }
+    }
+
+    /**
+     * What a server told about a URL's content, in response to a HEAD request.
+     */
+    public static class Probe {
+        private final int contentLength;
+        private final boolean acceptsRanges;
+        private final String entityTag;
+        private final long lastModified;
+        private final long time = System.nanoTime();
+
+        Probe(HttpURLConnection conn) {
+            this.contentLength = conn.getContentLength();
+            this.acceptsRanges = "bytes".equalsIgnoreCase(conn.getHeaderField("Accept-Ranges"));
+            this.entityTag = conn.getHeaderField("ETag");
+            this.lastModified = conn.getLastModified();
+        }
+
+        /**
+         * Gets the length of the content.
+         *
+         * @return The length in bytes, or -1 if unknown.
+         */
+        public int getContentLength() {
+            return contentLength;
+        }
+
+        /**
+         * Gets whether the server announced that it honors byte ranges.
+         * Servers which don't announce it may still honor them.
+         */
+        public boolean acceptsRanges() {
+            return acceptsRanges;
+        }
+
+        /**
+         * Gets the entity tag the server sent for the content.
+         *
+         * @return The ETag header value, or null if none was sent.
+         */
+        public String getEntityTag() {
+            return entityTag;
+        }
+
+        /**
+         * Gets the last modification time the server sent for the content.
+         *
+         * @return The time in milliseconds since the epoch, or 0 if none was sent.
+         */
+        public long getLastModified() {
+            return lastModified;
+        }
+    }
+
     public class InputStream extends java.io.InputStream {
         private final HttpURLConnection conn;
         private final java.io.InputStream is;
         private final int contentLength;
+        private final int totalLength;
+        private final boolean partial;
+        private final String entityTag;
+        private final long lastModified;
+        private final int readTimeout;
+        private final boolean polling;
+        private volatile boolean aborted = false;
+        private int remaining = -1;
+        private int delivered = 0;
+        private final byte[] singleByte = new byte[1];
+
+        /**
+         * Where the content is stored in a response cache as it's read, if anywhere.
+         */
+        private CacheRequest cacheRequest;
+        private OutputStream cacheBody;
 
-        InputStream(HttpURLConnection conn) throws IOException {
+        InputStream(HttpURLConnection conn, int offset, int count, int readTimeout, boolean polling) throws IOException {
             this.conn = conn;
-            this.contentLength = conn.getContentLength();
+            this.readTimeout = readTimeout;
+            this.polling = polling;
+            this.partial = conn.getResponseCode() == HttpURLConnection.HTTP_PARTIAL;
+            this.entityTag = conn.getHeaderField("ETag");
+            this.lastModified = conn.getLastModified();
             this.is = conn.getInputStream();
+
+            int length = conn.getContentLength();
+
+            if (partial) {
+                this.totalLength = parseTotalLength(conn.getHeaderField("Content-Range"));
+            } else {
+                // the server ignored the range, so cut it out of the whole content
+                this.totalLength = length;
+
+                if (offset > 0) {
+                    skipFully(offset);
+
+                    if (length != -1)
+                        length = Math.max(0, length - offset);
+                }
+
+                if (count > 0) {
+                    remaining = count;
+
+                    if (length != -1)
+                        length = Math.min(length, count);
+                }
+            }
+
+            this.contentLength = length;
         }
 
+        /**
+         * Serves a response stored in a response cache.
+         */
+        InputStream(HttpCache.Entry entry, java.io.InputStream content) {
+            this.conn = null;
+            this.is = content;
+            this.readTimeout = 0;
+            this.polling = false;
+            this.partial = false;
+            this.entityTag = entry.getHeader("ETag");
+            this.lastModified = Math.max(0, entry.getDate("Last-Modified"));
+
+            long length = -1;
+
+            try {
+                String value = entry.getHeader("Content-Length");
+
+                if (value != null)
+                    length = Long.parseLong(value.trim());
+            } catch (NumberFormatException _) {
+                // ignored
+            }
+
+            this.contentLength = length >= 0 && length <= Integer.MAX_VALUE ? (int) length : -1;
+            this.totalLength = contentLength;
+        }
+
+        /**
+         * Stores the content in a response cache as it's read, which
+         * keeps it only if it's read up to the end.
+         */
+        void storeIn(CacheRequest request) throws IOException {
+            cacheRequest = request;
+            cacheBody = request.getBody();
+        }
+
+        /**
+         * Gets whether the content is served from a response cache.
+         */
+        public boolean isCached() {
+            return conn == null;
+        }
+
+        /**
+         * Gets the number of bytes this stream delivers.
+         *
+         * @return The length in bytes, or -1 if unknown.
+         */
         public int getLength() {
             return contentLength;
         }
 
+        /**
+         * Gets the length of the whole content, regardless of the requested range.
+         *
+         * @return The length in bytes, or -1 if unknown.
+         */
+        public int getTotalLength() {
+            return totalLength;
+        }
+
+        /**
+         * Gets whether the server honored the requested range with a partial response.
+         */
+        public boolean isPartial() {
+            return partial;
+        }
+
+        /**
+         * Gets the entity tag the server sent for the content.
+         *
+         * @return The ETag header value, or null if none was sent.
+         */
+        public String getEntityTag() {
+            return entityTag;
+        }
+
+        /**
+         * Gets the last modification time the server sent for the content.
+         *
+         * @return The time in milliseconds since the epoch, or 0 if none was sent.
+         */
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Aborts the transfer by disconnecting the underlying connection.
+         * This may be called from any thread, and makes a read which is
+         * currently blocked on the network fail promptly.
+         *
+         * @see Downloader#setAbortPollInterval(int)
+         */
+        public void abort() {
+            aborted = true;
+
+            if (conn != null)
+                conn.disconnect();
+        }
+
         @Override
         public int read() throws IOException {
-            return is.read();
+            return read(singleByte, 0, 1) == -1 ? -1 : singleByte[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (remaining == 0)
+                return -1;
+
+            if (remaining != -1)
+                count = Math.min(count, remaining);
+
+            int nread = readFromConnection(buffer, offset, count);
+
+            if (nread == -1) {
+                // a dropped connection may look like the end of the content
+                if (contentLength != -1 && delivered < contentLength)
+                    throw new IOException("Connection closed before the end of the content.");
+
+                finishStoring(true);
+                return -1;
+            }
+
+            delivered += nread;
+
+            if (cacheBody != null) {
+                try {
+                    cacheBody.write(buffer, offset, nread);
+                } catch (IOException _) {
+                    // failing to store the content doesn't fail the download
+                    finishStoring(false);
+                }
+
+                // readers which stop at the announced length never see the end of the stream
+                if (delivered == contentLength)
+                    finishStoring(true);
+            }
+
+            if (remaining != -1)
+                remaining -= nread;
+
+            return nread;
+        }
+
+        private int readFromConnection(byte[] buffer, int offset, int count) throws IOException {
+            long start = System.nanoTime();
+
+            while (true) {
+                if (aborted)
+                    throw new InterruptedIOException("Download was aborted.");
+
+                try {
+                    return is.read(buffer, offset, count);
+                } catch (SocketTimeoutException e) {
+                    long elapsed = (System.nanoTime() - start) / 1000000;
+
+                    if (aborted)
+                        throw new InterruptedIOException("Download was aborted.");
+
+                    if (!polling || elapsed >= readTimeout)
+                        throw e;
+                } catch (IOException e) {
+                    if (aborted)
+                        throw new InterruptedIOException("Download was aborted.");
+
+                    throw e;
+                }
+            }
+        }
+
+        private void skipFully(int count) throws IOException {
+            byte[] buffer = new byte[Math.min(count, 0x1000)];
+
+            while (count > 0) {
+                int nread = readFromConnection(buffer, 0, Math.min(count, buffer.length));
+
+                if (nread == -1)
+                    throw new IOException("Content ended before the requested offset.");
+
+                count -= nread;
+            }
+        }
+
+        /**
+         * Stores the content read so far, or drops it if it isn't complete.
+         */
+        private void finishStoring(boolean complete) {
+            if (cacheRequest == null)
+                return;
+
+            try {
+                if (complete)
+                    cacheBody.close();
+                else
+                    cacheRequest.abort();
+            } catch (IOException _) {
+                cacheRequest.abort();
+            }
+
+            cacheRequest = null;
+            cacheBody = null;
         }
 
         @Override
         public void close() throws IOException {
+            finishStoring(false);
             is.close();
         }
 
         @Override
         public long skip(long n) throws IOException {
-            return is.skip(n);
+            // skipped content can't be stored
+            finishStoring(false);
+
+            if (remaining != -1)
+                n = Math.min(n, remaining);
+
+            long skipped = is.skip(n);
+
+            delivered += skipped;
+
+            if (remaining != -1)
+                remaining -= skipped;
+
+            return skipped;
         }
 
         @Override
         public int available() throws IOException {
+            if (remaining != -1)
+                return Math.min(is.available(), remaining);
+
             return is.available();
         }
 
@@ -0,0 +1,229 @@
+package la.manga.app.net;
+
+import java.io.IOException;
+import java.net.URL;
+
+import la.manga.app.memory.BufferPool;
+
+/**
+ * A hedged range request, racing a stalled connection from the same offset.
+ * <p>
+ * The hedge connects on its own thread, and reads ahead into a buffer, while
+ * the task keeps reading the primary connection and reports what it gets.
+ * Whichever connection first delivers a full probe's worth of bytes from the
+ * offset wins, and the other one is aborted. If the hedge wins, the task
+ * takes over its stream, after writing out the part of the hedge's buffer
+ * which the primary connection had not delivered yet.
+ */
+class Hedge implements Runnable {
+    private enum Winner {
+        NONE,
+        PRIMARY,
+        HEDGE
+    }
+
+    private final Downloader downloader;
+    private final URL url;
+    private final int offset;
+    private final Downloader.InputStream primary;
+    private final BufferPool pool;
+    private final byte[] buffer;
+    private final int probeSize;
+
+    private Winner winner = Winner.NONE;
+    private Downloader.InputStream stream;
+    private int buffered = 0;
+    private int primaryBytes = 0;
+    private boolean takenOver = false;
+    private boolean started = false;
+
+    /**
+     * Creates a new hedge, which is started by running it on a separate thread.
+     *
+     * @param downloader The downloader to open the hedged connection with.
+     * @param url        The downloaded URL.
+     * @param offset     The offset up to which the primary connection has delivered.
+     * @param primary    The stalled primary connection.
+     * @param pool       The pool to take the read-ahead buffer from.
+     * @param probeSize  How many bytes a connection has to deliver to win.
+     */
+    Hedge(Downloader downloader, URL url, int offset, Downloader.InputStream primary, BufferPool pool, int probeSize) {
+        this.downloader = downloader;
+        this.url = url;
+        this.offset = offset;
+        this.primary = primary;
+        this.pool = pool;
+        this.buffer = pool.acquireHeap(probeSize);
+        this.probeSize = probeSize;
+    }
+
+    @Override
+    public void run() {
+        synchronized (this) {
+            // a hedge aborted before it started has already released its buffer
+            if (winner == Winner.PRIMARY)
+                return;
+
+            started = true;
+        }
+
+        try {
+            Downloader.InputStream is = downloader.downloadWithOffset(url, offset);
+
+            synchronized (this) {
+                stream = is;
+
+                if (winner == Winner.PRIMARY) {
+                    lose();
+                    return;
+                }
+            }
+
+            while (true) {
+                int nread = is.read(buffer, buffered, probeSize - buffered);
+
+                synchronized (this) {
+                    if (winner == Winner.PRIMARY) {
+                        lose();
+                        return;
+                    }
+
+                    if (nread != -1)
+                        buffered += nread;
+
+                    if (nread == -1 || buffered == probeSize) {
+                        winner = Winner.HEDGE;
+                        break;
+                    }
+                }
+            }
+
+            primary.abort();
+        } catch (IOException _) {
+            synchronized (this) {
+                if (winner == Winner.NONE)
+                    winner = Winner.PRIMARY;
+
+                lose();
+            }
+        }
+    }
+
+    /**
+     * Reports bytes delivered by the primary connection since the hedge started.
+     * The caller may only write those bytes out if this returns true.
+     *
+     * @param nbytes The number of bytes the primary connection has just delivered.
+     * @return False if the hedge has already won, and the bytes must be discarded.
+     */
+    boolean onPrimaryDelivered(int nbytes) {
+        Downloader.InputStream toAbort = null;
+
+        synchronized (this) {
+            if (winner == Winner.HEDGE)
+                return false;
+
+            primaryBytes += nbytes;
+
+            if (winner == Winner.NONE && primaryBytes >= probeSize) {
+                winner = Winner.PRIMARY;
+                toAbort = stream;
+            }
+        }
+
+        if (toAbort != null)
+            toAbort.abort();
+
+        return true;
+    }
+
+    /**
+     * Aborts the hedge, leaving the primary connection as the winner.
+     * A hedge which didn't start yet releases its buffer, and won't start.
+     * This has no effect if the hedge has already won.
+     */
+    void abort() {
+        Downloader.InputStream toAbort;
+
+        synchronized (this) {
+            if (winner != Winner.NONE)
+                return;
+
+            winner = Winner.PRIMARY;
+            toAbort = stream;
+
+            if (!started) {
+                pool.release(buffer);
+                return;
+            }
+        }
+
+        if (toAbort != null)
+            toAbort.abort();
+    }
+
+    /**
+     * Gets whether the primary connection has won the race.
+     */
+    synchronized boolean hasLost() {
+        return winner == Winner.PRIMARY;
+    }
+
+    /**
+     * Gets whether the hedge has won the race.
+     */
+    synchronized boolean hasWon() {
+        return winner == Winner.HEDGE;
+    }
+
+    /**
+     * Writes the bytes which only the hedge has delivered, and hands over its connection.
+     * This may only be called once, after the hedge has won, and releases its buffer.
+     *
+     * @param os The stream to which the primary connection's bytes were written.
+     * @return The hedge's connection, positioned after the written bytes.
+     * @throws IOException
+     */
+    synchronized Downloader.InputStream takeOver(java.io.OutputStream os) throws IOException {
+        takenOver = true;
+
+        try {
+            if (buffered > primaryBytes)
+                os.write(buffer, primaryBytes, buffered - primaryBytes);
+
+            return stream;
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Gets how many bytes {@link #takeOver(java.io.OutputStream)} writes.
+     */
+    synchronized int getTakeOverBytes() {
+        return Math.max(0, buffered - primaryBytes);
+    }
+
+    /**
+     * Disposes of a hedge which won, but which the task will not take over,
+     * as when the task is cancelled. Otherwise, does nothing.
+     */
+    synchronized void dispose() {
+        if (winner == Winner.HEDGE && !takenOver) {
+            takenOver = true;
+            lose();
+        }
+    }
+
+    private void lose() {
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException _) {
+                // ignored
+            }
+        }
+
+        pool.release(buffer);
+    }
+}
@@ -0,0 +1,785 @@
+package la.manga.app.net;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.CacheRequest;
+import java.net.CacheResponse;
+import java.net.HttpURLConnection;
+import java.net.ResponseCache;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+
+import la.manga.app.storage.Cache;
+
+/**
+ * An HTTP response cache, which stores responses in a {@link Cache}.
+ * <p>
+ * The cache may be installed process-wide with {@link ResponseCache#setDefault(ResponseCache)},
+ * so that {@link HttpURLConnection} consults it for every request which uses caches. That
+ * interface can only serve a fresh response or none at all, so stale responses are fetched
+ * again in full. A {@link Downloader} given the cache with
+ * {@link Downloader#setResponseCache(HttpCache)} also revalidates stale responses, by sending
+ * their ETag and Last-Modified along, and serves the stored content if the server answers
+ * that it wasn't modified.
+ * <p>
+ * Freshness follows the max-age, no-cache and no-store directives of Cache-Control, and then
+ * Expires. Lacking both, a response stays fresh for a tenth of the time since it was last
+ * modified, as RFC 7234 suggests. Only successful responses to GET requests are stored, and
+ * only if they can either be fresh or be revalidated. Responses which vary by request headers
+ * are never stored.
+ * <p>
+ * Each response is stored as two entries, one for its content and one for its status and
+ * headers. The headers are only written once the content is complete, so content without
+ * headers is never served, and is deleted when the cache is created. Revalidated headers
+ * replace the stored ones at once where the cache can replace entries. The stored responses
+ * are kept within a byte budget, by evicting the least recently used ones, and responses
+ * which take more than an eighth of the budget aren't stored.
+ */
+public class HttpCache extends ResponseCache {
+    private static final String CONTENT_SUFFIX = ".body";
+    private static final String HEADERS_SUFFIX = ".meta";
+    private static final int HEADERS_VERSION = 1;
+
+    private final Cache cache;
+    private final long maxBytes;
+    private final long maxEntryBytes;
+
+    /**
+     * The stored size of all responses, from the least to the most recently used, by key.
+     */
+    private final LinkedHashMap<String, Long> sizes = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * The keys of responses which are being stored.
+     */
+    private final Set<String> storing = new HashSet<>();
+
+    private long totalBytes = 0;
+    private long hits = 0;
+    private long conditionalHits = 0;
+    private long misses = 0;
+    private long stores = 0;
+    private long evictions = 0;
+
+    /**
+     * Creates a response cache, which takes over the responses already stored in the cache.
+     *
+     * @param cache    The cache to store responses in, which shouldn't be used for anything else.
+     * @param maxBytes The byte budget for stored responses.
+     */
+    public HttpCache(Cache cache, long maxBytes) {
+        this.cache = cache;
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxBytes / 8;
+
+        for (String name : cache.getEntryNames()) {
+            if (name.endsWith(HEADERS_SUFFIX)) {
+                String key = name.substring(0, name.length() - HEADERS_SUFFIX.length());
+                long length = cache.getEntryLength(key + CONTENT_SUFFIX);
+
+                if (length == -1)
+                    cache.deleteEntry(name);
+                else
+                    sizes.put(key, length + cache.getEntryLength(name));
+            }
+        }
+
+        for (String name : cache.getEntryNames()) {
+            if (name.endsWith(CONTENT_SUFFIX) && !sizes.containsKey(name.substring(0, name.length() - CONTENT_SUFFIX.length())))
+                cache.deleteEntry(name);
+        }
+
+        for (long size : sizes.values())
+            totalBytes += size;
+
+        trim();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized Stats getStats() {
+        Stats stats = new Stats();
+        stats.maxBytes = maxBytes;
+        stats.totalBytes = totalBytes;
+        stats.entries = sizes.size();
+        stats.hits = hits;
+        stats.conditionalHits = conditionalHits;
+        stats.misses = misses;
+        stats.stores = stores;
+        stats.evictions = evictions;
+        return stats;
+    }
+
+    /**
+     * Serves a stored response, if it's still fresh.
+     */
+    @Override
+    public CacheResponse get(URI uri, String method, Map<String, List<String>> requestHeaders) {
+        if (!"GET".equals(method) || bypassesCache(requestHeaders))
+            return null;
+
+        final Entry entry = lookUp(uri.toString());
+
+        if (entry != null && entry.isFresh(System.currentTimeMillis())) {
+            final InputStream content = openContent(entry);
+
+            if (content != null) {
+                onHit(false);
+
+                return new CacheResponse() {
+                    @Override
+                    public Map<String, List<String>> getHeaders() {
+                        return entry.headers;
+                    }
+
+                    @Override
+                    public InputStream getBody() {
+                        return content;
+                    }
+                };
+            }
+        }
+
+        onMiss();
+        return null;
+    }
+
+    @Override
+    public CacheRequest put(URI uri, URLConnection conn) throws IOException {
+        if (!(conn instanceof HttpURLConnection))
+            return null;
+
+        long now = System.currentTimeMillis();
+        return store(uri.toString(), (HttpURLConnection) conn, now);
+    }
+
+    /**
+     * Gets whether a request asks not to be served from the cache,
+     * or asks for something other than the whole stored response.
+     */
+    private static boolean bypassesCache(Map<String, List<String>> requestHeaders) {
+        if (requestHeaders == null)
+            return false;
+
+        for (Map.Entry<String, List<String>> header : requestHeaders.entrySet()) {
+            String name = header.getKey();
+
+            if (name == null)
+                continue;
+
+            if (name.equalsIgnoreCase("Range") || name.equalsIgnoreCase("If-None-Match")
+                    || name.equalsIgnoreCase("If-Modified-Since") || name.equalsIgnoreCase("Authorization"))
+                return true;
+
+            if (name.equalsIgnoreCase("Cache-Control") || name.equalsIgnoreCase("Pragma")) {
+                CacheControl control = new CacheControl(header.getValue());
+
+                if (control.noCache || control.noStore || control.maxAge == 0)
+                    return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Finds the stored response of a URL, which then becomes the most recently used.
+     *
+     * @return The response, or null if none is stored.
+     */
+    Entry lookUp(URL url) {
+        return lookUp(url.toString());
+    }
+
+    private Entry lookUp(String url) {
+        String key = keyOf(url);
+
+        synchronized (this) {
+            if (sizes.get(key) == null)
+                return null;
+        }
+
+        InputStream is = cache.readEntry(key + HEADERS_SUFFIX);
+
+        if (is == null)
+            return null;
+
+        try {
+            Entry entry = Entry.read(key, is);
+
+            // a different URL with the same digest is as good as missing
+            return url.equals(entry.url) ? entry : null;
+        } catch (IOException _) {
+            return null;
+        } finally {
+            try {
+                is.close();
+            } catch (IOException _) {
+                // ignored
+            }
+        }
+    }
+
+    /**
+     * Opens the stored content of a response.
+     *
+     * @return The content, or null if it's no longer stored.
+     */
+    InputStream openContent(Entry entry) {
+        return cache.readEntry(entry.key + CONTENT_SUFFIX);
+    }
+
+    synchronized void onHit(boolean conditional) {
+        if (conditional)
+            conditionalHits++;
+        else
+            hits++;
+    }
+
+    synchronized void onMiss() {
+        misses++;
+    }
+
+    /**
+     * Refreshes a stored response with the headers of a response telling it wasn't modified.
+     *
+     * @param entry       The stored response.
+     * @param conn        The connection which got the response.
+     * @param requestTime When the request was sent, in milliseconds since the epoch.
+     * @return The refreshed response.
+     */
+    Entry update(Entry entry, HttpURLConnection conn, long requestTime) {
+        Map<String, List<String>> headers = new LinkedHashMap<>(entry.headers);
+
+        for (Map.Entry<String, List<String>> header : conn.getHeaderFields().entrySet()) {
+            String name = header.getKey();
+
+            // the status and framing of the content stay those of the stored response
+            if (name == null || name.equalsIgnoreCase("Content-Length") || name.equalsIgnoreCase("Transfer-Encoding")
+                    || name.equalsIgnoreCase("Content-Encoding"))
+                continue;
+
+            removeHeader(headers, name);
+            headers.put(name, header.getValue());
+        }
+
+        Entry updated = new Entry(entry.key, entry.url, Collections.unmodifiableMap(headers),
+                requestTime, System.currentTimeMillis());
+
+        synchronized (this) {
+            // don't bring back a response which was evicted, or is being replaced
+            if (sizes.containsKey(entry.key) && !storing.contains(entry.key)) {
+                try {
+                    long before = cache.getEntryLength(entry.key + HEADERS_SUFFIX);
+
+                    // replaced at once where the cache can, so the response is never left without headers
+                    writeHeaders(updated, TaskStateWriter.replaceEntry(cache, entry.key + HEADERS_SUFFIX));
+
+                    long delta = cache.getEntryLength(entry.key + HEADERS_SUFFIX) - before;
+                    sizes.put(entry.key, sizes.get(entry.key) + delta);
+                    totalBytes += delta;
+                } catch (IOException _) {
+                    remove(entry.key);
+                }
+            }
+        }
+
+        return updated;
+    }
+
+    /**
+     * Starts storing a response, if it can be stored.
+     *
+     * @param requestTime When the request was sent, in milliseconds since the epoch.
+     * @return The request to write the content to, or null if the response isn't stored.
+     */
+    CacheRequest store(String url, HttpURLConnection conn, long requestTime) throws IOException {
+        if (!"GET".equals(conn.getRequestMethod()) || conn.getResponseCode() != HttpURLConnection.HTTP_OK)
+            return null;
+
+        Map<String, List<String>> headers = new LinkedHashMap<>();
+
+        for (Map.Entry<String, List<String>> header : conn.getHeaderFields().entrySet())
+            headers.put(header.getKey(), Collections.unmodifiableList(new ArrayList<>(header.getValue())));
+
+        String key = keyOf(url);
+        Entry entry = new Entry(key, url, Collections.unmodifiableMap(headers), requestTime, System.currentTimeMillis());
+        CacheControl control = entry.getCacheControl();
+
+        synchronized (this) {
+            // a response which mustn't be stored replaces the stored one all the same
+            if (!storing.contains(key))
+                remove(key);
+
+            if (control.noStore || entry.getHeader("Vary") != null || conn.getContentLength() > maxEntryBytes)
+                return null;
+
+            if (entry.getFreshnessLifetime() <= 0 && !entry.hasValidators())
+                return null;
+
+            if (!storing.add(key))
+                return null;
+
+            try {
+                return new Store(entry, cache.createEntry(key + CONTENT_SUFFIX));
+            } catch (RuntimeException e) {
+                storing.remove(key);
+                throw new IOException("Failed to store response.", e);
+            }
+        }
+    }
+
+    private synchronized void commit(Entry entry, long length) throws IOException {
+        try {
+            writeHeaders(entry, cache.createEntry(entry.key + HEADERS_SUFFIX));
+        } catch (IOException e) {
+            abandon(entry.key);
+            throw e;
+        }
+
+        long size = length + cache.getEntryLength(entry.key + HEADERS_SUFFIX);
+        sizes.put(entry.key, size);
+        totalBytes += size;
+        storing.remove(entry.key);
+        stores++;
+
+        trim();
+    }
+
+    private synchronized void abandon(String key) {
+        cache.deleteEntry(key + HEADERS_SUFFIX);
+        cache.deleteEntry(key + CONTENT_SUFFIX);
+        storing.remove(key);
+    }
+
+    private static void writeHeaders(Entry entry, OutputStream os) throws IOException {
+        try {
+            entry.write(os);
+        } finally {
+            os.close();
+        }
+    }
+
+    private synchronized void remove(String key) {
+        Long size = sizes.remove(key);
+
+        if (size != null) {
+            totalBytes -= size;
+            cache.deleteEntry(key + HEADERS_SUFFIX);
+            cache.deleteEntry(key + CONTENT_SUFFIX);
+        }
+    }
+
+    /**
+     * Evicts the least recently used responses until the cache is within its budget.
+     */
+    private synchronized void trim() {
+        while (totalBytes > maxBytes && !sizes.isEmpty()) {
+            remove(sizes.keySet().iterator().next());
+            evictions++;
+        }
+    }
+
+    private static void removeHeader(Map<String, List<String>> headers, String name) {
+        for (String existing : new ArrayList<>(headers.keySet())) {
+            if (existing != null && existing.equalsIgnoreCase(name))
+                headers.remove(existing);
+        }
+    }
+
+    /**
+     * Gets the name of the entries of a URL, which is its SHA-1 digest in hex.
+     */
+    private static String keyOf(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(url.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder();
+
+            for (byte b : digest)
+                sb.append(String.format("%02x", b & 0xff));
+
+            return sb.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new RuntimeException("Failed to digest URL.", e);
+        }
+    }
+
+    /**
+     * Writes the content of a response to the cache, and stores
+     * the response once the content is complete.
+     */
+    private class Store extends CacheRequest {
+        private final Entry entry;
+        private final OutputStream os;
+        private long length = 0;
+        private boolean done = false;
+
+        Store(Entry entry, OutputStream os) {
+            this.entry = entry;
+            this.os = os;
+        }
+
+        @Override
+        public OutputStream getBody() {
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    if (done)
+                        return;
+
+                    // content which outgrows what may be stored is dropped, without failing the transfer
+                    if (length + len > maxEntryBytes) {
+                        abort();
+                        return;
+                    }
+
+                    os.write(b, off, len);
+                    length += len;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    if (done)
+                        return;
+
+                    done = true;
+
+                    try {
+                        os.close();
+                    } catch (IOException e) {
+                        abandon(entry.key);
+                        throw e;
+                    }
+
+                    commit(entry, length);
+                }
+            };
+        }
+
+        @Override
+        public void abort() {
+            if (done)
+                return;
+
+            done = true;
+
+            try {
+                os.close();
+            } catch (IOException _) {
+                // ignored
+            }
+
+            abandon(entry.key);
+        }
+    }
+
+    /**
+     * The directives of a Cache-Control or Pragma header which matter to a private cache.
+     */
+    static class CacheControl {
+        boolean noCache = false;
+        boolean noStore = false;
+        long maxAge = -1;
+
+        CacheControl(List<String> values) {
+            if (values == null)
+                return;
+
+            for (String value : values) {
+                for (String directive : value.split(",")) {
+                    String d = directive.trim().toLowerCase(Locale.US);
+
+                    if (d.equals("no-cache")) {
+                        noCache = true;
+                    } else if (d.equals("no-store")) {
+                        noStore = true;
+                    } else if (d.startsWith("max-age=")) {
+                        try {
+                            maxAge = Long.parseLong(d.substring("max-age=".length()).replace("\"", "").trim());
+                        } catch (NumberFormatException _) {
+                            // an invalid max-age makes the response stale
+                            maxAge = 0;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A stored response, without its content.
+     */
+    static class Entry {
+        final String key;
+        final String url;
+
+        /**
+         * The headers of the response, with its status line under the null key.
+         */
+        final Map<String, List<String>> headers;
+
+        final long requestTime;
+        final long responseTime;
+
+        Entry(String key, String url, Map<String, List<String>> headers, long requestTime, long responseTime) {
+            this.key = key;
+            this.url = url;
+            this.headers = headers;
+            this.requestTime = requestTime;
+            this.responseTime = responseTime;
+        }
+
+        /**
+         * Gets the first value of a header, whose name is matched regardless of case.
+         *
+         * @return The value, or null if there is no such header.
+         */
+        String getHeader(String name) {
+            for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+                if (header.getKey() != null && header.getKey().equalsIgnoreCase(name) && !header.getValue().isEmpty())
+                    return header.getValue().get(0);
+            }
+
+            return null;
+        }
+
+        private List<String> getHeaders(String name) {
+            List<String> values = new ArrayList<>();
+
+            for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+                if (header.getKey() != null && header.getKey().equalsIgnoreCase(name))
+                    values.addAll(header.getValue());
+            }
+
+            return values;
+        }
+
+        CacheControl getCacheControl() {
+            return new CacheControl(getHeaders("Cache-Control"));
+        }
+
+        /**
+         * Gets a date header.
+         *
+         * @return The date in milliseconds since the epoch, -1 if there is no such header, or 0 if it's invalid.
+         */
+        long getDate(String name) {
+            String value = getHeader(name);
+
+            if (value == null)
+                return -1;
+
+            SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+
+            try {
+                return format.parse(value).getTime();
+            } catch (ParseException _) {
+                return 0;
+            }
+        }
+
+        /**
+         * Gets how long the response stays fresh after the server sent it.
+         *
+         * @return The lifetime in milliseconds.
+         */
+        long getFreshnessLifetime() {
+            CacheControl control = getCacheControl();
+
+            if (control.noCache)
+                return 0;
+
+            if (control.maxAge != -1)
+                return control.maxAge * 1000;
+
+            long date = getDate("Date");
+
+            if (date <= 0)
+                date = responseTime;
+
+            long expires = getDate("Expires");
+
+            if (expires != -1)
+                return Math.max(0, expires - date);
+
+            long lastModified = getDate("Last-Modified");
+
+            if (lastModified > 0 && lastModified < date)
+                return (date - lastModified) / 10;
+
+            return 0;
+        }
+
+        /**
+         * Gets how long ago the server sent the response.
+         *
+         * @param now The current time in milliseconds since the epoch.
+         * @return The age in milliseconds.
+         */
+        long getAge(long now) {
+            long date = getDate("Date");
+            long apparentAge = date > 0 ? Math.max(0, responseTime - date) : 0;
+            long ageValue = 0;
+            String age = getHeader("Age");
+
+            if (age != null) {
+                try {
+                    ageValue = Long.parseLong(age.trim()) * 1000;
+                } catch (NumberFormatException _) {
+                    // ignored
+                }
+            }
+
+            return Math.max(apparentAge, ageValue) + (responseTime - requestTime) + (now - responseTime);
+        }
+
+        boolean isFresh(long now) {
+            return getAge(now) < getFreshnessLifetime();
+        }
+
+        boolean hasValidators() {
+            return getHeader("ETag") != null || getHeader("Last-Modified") != null;
+        }
+
+        /**
+         * Makes a request conditional, so that the server only sends the content if it changed.
+         */
+        void addValidators(HttpURLConnection conn) {
+            String entityTag = getHeader("ETag");
+            String lastModified = getHeader("Last-Modified");
+
+            if (entityTag != null)
+                conn.setRequestProperty("If-None-Match", entityTag);
+
+            if (lastModified != null)
+                conn.setRequestProperty("If-Modified-Since", lastModified);
+        }
+
+        void write(OutputStream os) throws IOException {
+            DataOutputStream out = new DataOutputStream(os);
+
+            out.writeInt(HEADERS_VERSION);
+            out.writeUTF(url);
+            out.writeLong(requestTime);
+            out.writeLong(responseTime);
+            out.writeInt(headers.size());
+
+            for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+                out.writeBoolean(header.getKey() != null);
+
+                if (header.getKey() != null)
+                    out.writeUTF(header.getKey());
+
+                out.writeInt(header.getValue().size());
+
+                for (String value : header.getValue())
+                    out.writeUTF(value);
+            }
+
+            out.flush();
+        }
+
+        static Entry read(String key, InputStream is) throws IOException {
+            DataInputStream in = new DataInputStream(is);
+
+            if (in.readInt() != HEADERS_VERSION)
+                throw new IOException("Unknown stored response version.");
+
+            String url = in.readUTF();
+            long requestTime = in.readLong();
+            long responseTime = in.readLong();
+            int count = in.readInt();
+            Map<String, List<String>> headers = new LinkedHashMap<>();
+
+            for (int i = 0; i < count; i++) {
+                String name = in.readBoolean() ? in.readUTF() : null;
+                int valueCount = in.readInt();
+                List<String> values = new ArrayList<>();
+
+                for (int j = 0; j < valueCount; j++)
+                    values.add(in.readUTF());
+
+                headers.put(name, Collections.unmodifiableList(values));
+            }
+
+            return new Entry(key, url, Collections.unmodifiableMap(headers), requestTime, responseTime);
+        }
+    }
+
+    public static class Stats {
+        /**
+         * The byte budget for stored responses.
+         */
+        public long maxBytes;
+
+        /**
+         * The stored size of all responses.
+         */
+        public long totalBytes;
+
+        /**
+         * The number of stored responses.
+         */
+        public int entries;
+
+        /**
+         * How many requests were served fresh responses.
+         */
+        public long hits;
+
+        /**
+         * How many requests were served stored responses, after the server told they weren't modified.
+         */
+        public long conditionalHits;
+
+        /**
+         * How many requests had to be served by the server.
+         */
+        public long misses;
+
+        /**
+         * How many responses were stored.
+         */
+        public long stores;
+
+        /**
+         * How many responses were evicted to keep within the budget.
+         */
+        public long evictions;
+
+        /**
+         * Gets the fraction of requests whose content was served from the cache.
+         *
+         * @return The fraction between 0 and 1, or 0 if there were no requests.
+         */
+        public double getHitRate() {
+            long requests = hits + conditionalHits + misses;
+            return requests == 0 ? 0 : (double) (hits + conditionalHits) / requests;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package la.manga.app.net;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A map from primitive long keys to values, which neither boxes keys
+ * nor allocates entries, so that looking up a key allocates nothing.
+ * <p>
+ * Keys are kept in an open-addressing table with linear probing, which is
+ * kept at most half full. Removed keys are filled in by shifting the keys
+ * probed after them back, so that there are no tombstones to skip.
+ * Not thread-safe.
+ */
+class LongHashMap<V> {
+    private static final int MIN_CAPACITY = 16;
+
+    /**
+     * Key 0 marks free slots, so its value is kept aside.
+     */
+    private long[] keys;
+    private Object[] values;
+    private int mask;
+    private int size = 0;
+    private boolean hasZeroKey = false;
+    private V zeroValue;
+
+    LongHashMap() {
+        allocate(MIN_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    int size() {
+        return size + (hasZeroKey ? 1 : 0);
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    boolean containsKey(long key) {
+        if (key == 0)
+            return hasZeroKey;
+
+        return keys[indexOf(key)] != 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(long key) {
+        if (key == 0)
+            return zeroValue;
+
+        return (V) values[indexOf(key)];
+    }
+
+    /**
+     * @return The previous value of the key, or null if it had none.
+     */
+    @SuppressWarnings("unchecked")
+    V put(long key, V value) {
+        if (key == 0) {
+            V previous = zeroValue;
+            hasZeroKey = true;
+            zeroValue = value;
+            return previous;
+        }
+
+        int i = indexOf(key);
+
+        if (keys[i] != 0) {
+            V previous = (V) values[i];
+            values[i] = value;
+            return previous;
+        }
+
+        keys[i] = key;
+        values[i] = value;
+
+        if (++size > keys.length / 2)
+            rehash(keys.length * 2);
+
+        return null;
+    }
+
+    /**
+     * @return The value of the key, or null if it had none.
+     */
+    @SuppressWarnings("unchecked")
+    V remove(long key) {
+        if (key == 0) {
+            V previous = zeroValue;
+            hasZeroKey = false;
+            zeroValue = null;
+            return previous;
+        }
+
+        int i = indexOf(key);
+
+        if (keys[i] == 0)
+            return null;
+
+        V previous = (V) values[i];
+        size--;
+
+        // move back the keys which probed past the freed slot, so that they're still found
+        int free = i;
+
+        for (int j = (i + 1) & mask; keys[j] != 0; j = (j + 1) & mask) {
+            int home = slotOf(keys[j]);
+
+            // the key may move back unless its home slot lies between the freed slot and it
+            if (((j - home) & mask) >= ((j - free) & mask)) {
+                keys[free] = keys[j];
+                values[free] = values[j];
+                free = j;
+            }
+        }
+
+        keys[free] = 0;
+        values[free] = null;
+
+        return previous;
+    }
+
+    /**
+     * Gets the values, in no particular order.
+     */
+    @SuppressWarnings("unchecked")
+    List<V> values() {
+        List<V> result = new ArrayList<>(size());
+
+        if (hasZeroKey)
+            result.add(zeroValue);
+
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0)
+                result.add((V) values[i]);
+        }
+
+        return result;
+    }
+
+    /**
+     * Finds the slot of a key, or the free slot where it would go.
+     */
+    private int indexOf(long key) {
+        int i = slotOf(key);
+
+        while (keys[i] != 0 && keys[i] != key)
+            i = (i + 1) & mask;
+
+        return i;
+    }
+
+    /**
+     * Spreads the bits of a key over the slots, since ids differ mostly in their low and middle bits.
+     */
+    private int slotOf(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+
+        allocate(capacity);
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int j = indexOf(oldKeys[i]);
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,463 @@
+package la.manga.app.net;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import la.manga.app.memory.BufferPool;
+
+/**
+ * Downloads content in segments from several sources at the same time.
+ * <p>
+ * The first segment is fetched on the calling thread, and tells the content
+ * length and whether the source honors ranges at all. The rest is split into
+ * fixed-size segments, which one worker per source claims in order. Segments
+ * are handed to the sink strictly in order, so only a bounded number of them
+ * may be held in memory ahead of the one being waited for.
+ * <p>
+ * Sources whose measured throughput is far below the best source's stop
+ * claiming segments, since a slow source holding the next needed segment
+ * would hold up every segment after it. A failed segment goes back to the
+ * queue for any other source to pick up.
+ */
+class ParallelTransfer {
+    /**
+     * A source is benched while another source is this many times faster.
+     */
+    private static final int SLOW_SOURCE_FACTOR = 4;
+
+    /**
+     * How long a benched source waits before checking whether it may work again.
+     */
+    private static final long BENCH_WAIT_MILLIS = 100;
+
+    /**
+     * Receives the downloaded content, in order.
+     */
+    interface Sink {
+        void write(byte[] buffer, int count) throws IOException;
+    }
+
+    private static class Segment {
+        final int start;
+        final int length;
+        byte[] buffer;
+
+        Segment(int start, int length) {
+            this.start = start;
+            this.length = length;
+        }
+    }
+
+    private final Downloader downloader;
+    private final List<DownloadSource> sources;
+    private final ContentValidator validator;
+    private final BufferPool pool;
+    private final Executor workers;
+    private final int segmentSize;
+    private final int maxAhead;
+
+    private final ArrayDeque<Segment> pending = new ArrayDeque<>();
+    private final Map<Integer, Segment> completed = new HashMap<>();
+    private final Set<Downloader.InputStream> connections = new HashSet<>();
+    private int inFlight = 0;
+    private int liveWorkers = 0;
+    private boolean aborted = false;
+    private boolean rangesSupported = false;
+    private IOException failure;
+
+    /**
+     * Creates a new parallel transfer.
+     *
+     * @param downloader  The downloader to open connections with.
+     * @param sources     The equivalent sources to download from.
+     * @param validator   Checks that all sources serve the same content.
+     * @param pool        The pool to take segment buffers from.
+     * @param workers     The executor to run a worker per source on, which must
+     *                    run them all at once, since the transfer waits for them.
+     * @param segmentSize The size of each segment, in bytes.
+     */
+    ParallelTransfer(Downloader downloader, List<DownloadSource> sources, ContentValidator validator,
+                     BufferPool pool, Executor workers, int segmentSize) {
+        this.downloader = downloader;
+        this.sources = sources;
+        this.validator = validator;
+        this.pool = pool;
+        this.workers = workers;
+        this.segmentSize = segmentSize;
+        this.maxAhead = 2 * sources.size();
+    }
+
+    /**
+     * Transfers the content from the specified offset to its end, if the sources allow it.
+     * Otherwise, transfers as much as could be transferred, and leaves the rest to the caller.
+     *
+     * @param offset The offset to start from.
+     * @param sink   The sink to write the content into.
+     * @param chunk  A buffer for streaming the first segment.
+     * @return The offset reached, which is the content length if the transfer is complete.
+     * @throws IOException
+     */
+    int run(int offset, Sink sink, byte[] chunk) throws IOException {
+        try {
+            offset = transferFirstSegment(offset, sink, chunk);
+
+            int total = validator.getTotalLength();
+
+            if (!rangesSupported || total == -1 || offset >= total)
+                return offset;
+
+            planSegments(offset, total);
+            startWorkers();
+
+            while (offset < total) {
+                Segment segment = awaitSegment(offset);
+
+                try {
+                    sink.write(segment.buffer, segment.length);
+                } finally {
+                    releaseSegment(segment);
+                }
+
+                offset += segment.length;
+            }
+
+            return offset;
+        } finally {
+            abort();
+        }
+    }
+
+    /**
+     * Stops all workers, and aborts their connections.
+     * This may be called from any thread.
+     */
+    void abort() {
+        Downloader.InputStream[] toAbort;
+
+        synchronized (this) {
+            if (aborted)
+                return;
+
+            aborted = true;
+
+            for (Segment segment : completed.values())
+                pool.release(segment.buffer);
+
+            completed.clear();
+            toAbort = connections.toArray(new Downloader.InputStream[connections.size()]);
+            notifyAll();
+        }
+
+        for (Downloader.InputStream is : toAbort)
+            is.abort();
+    }
+
+    /**
+     * Streams the first segment from the first source that delivers it, learning the content length.
+     *
+     * @return The offset reached.
+     */
+    private int transferFirstSegment(int offset, Sink sink, byte[] chunk) throws IOException {
+        IOException lastError = null;
+
+        for (DownloadSource source : sources) {
+            if (source.isDisabled())
+                continue;
+
+            Downloader.InputStream is = null;
+
+            try {
+                is = connect(source, offset, segmentSize);
+
+                rangesSupported = is.isPartial();
+                long start = System.nanoTime();
+                int transferred = 0;
+                int nread;
+
+                try {
+                    while ((nread = is.read(chunk, 0, chunk.length)) != -1) {
+                        sink.write(chunk, nread);
+                        transferred += nread;
+                    }
+                } finally {
+                    offset += transferred;
+                    source.onTransferred(transferred, System.nanoTime() - start);
+                }
+
+                return offset;
+            } catch (ContentValidator.MismatchException e) {
+                source.disable();
+                lastError = e;
+            } catch (IOException e) {
+                if (isAborted())
+                    throw e;
+
+                source.onFailed();
+                lastError = e;
+            } finally {
+                disconnect(is);
+            }
+        }
+
+        throw lastError != null ? lastError : new IOException("No usable download source.");
+    }
+
+    private synchronized void planSegments(int offset, int total) {
+        while (offset < total) {
+            int length = Math.min(segmentSize, total - offset);
+            pending.addLast(new Segment(offset, length));
+            offset += length;
+        }
+    }
+
+    private void startWorkers() {
+        for (final DownloadSource source : sources) {
+            if (source.isDisabled())
+                continue;
+
+            synchronized (this) {
+                liveWorkers++;
+            }
+
+            try {
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        work(source);
+                    }
+                });
+            } catch (RejectedExecutionException _) {
+                // the other sources carry on without this one
+                onWorkerExited();
+            }
+        }
+    }
+
+    private void work(DownloadSource source) {
+        try {
+            Segment segment;
+
+            while ((segment = claim(source)) != null)
+                fetch(source, segment);
+        } finally {
+            onWorkerExited();
+        }
+    }
+
+    private void fetch(DownloadSource source, Segment segment) {
+        byte[] buffer = pool.acquireHeap(segment.length);
+        Downloader.InputStream is = null;
+        long start = System.nanoTime();
+
+        try {
+            is = connect(source, segment.start, segment.length);
+
+            if (!is.isPartial())
+                throw new ContentValidator.MismatchException("Source does not support ranges.");
+
+            readFully(is, buffer, segment.length);
+            source.onTransferred(segment.length, System.nanoTime() - start);
+            complete(segment, buffer);
+        } catch (ContentValidator.MismatchException e) {
+            source.disable();
+            pool.release(buffer);
+            requeue(segment, e);
+        } catch (IOException e) {
+            if (!isAborted())
+                source.onFailed();
+
+            pool.release(buffer);
+            requeue(segment, e);
+        } finally {
+            disconnect(is);
+        }
+    }
+
+    private Downloader.InputStream connect(DownloadSource source, int offset, int count) throws IOException {
+        Downloader.InputStream is = downloader.downloadRange(source.getUrl(), offset, count);
+
+        synchronized (this) {
+            connections.add(is);
+
+            if (aborted)
+                is.abort();
+        }
+
+        try {
+            validator.check(is);
+        } catch (ContentValidator.MismatchException e) {
+            disconnect(is);
+            throw e;
+        }
+
+        return is;
+    }
+
+    private void disconnect(Downloader.InputStream is) {
+        if (is == null)
+            return;
+
+        synchronized (this) {
+            connections.remove(is);
+        }
+
+        try {
+            is.close();
+        } catch (IOException _) {
+            // ignored
+        }
+    }
+
+    private static void readFully(Downloader.InputStream is, byte[] buffer, int length) throws IOException {
+        int offset = 0;
+
+        while (offset < length) {
+            int nread = is.read(buffer, offset, length - offset);
+
+            if (nread == -1)
+                throw new IOException("Source ended before the end of its segment.");
+
+            offset += nread;
+        }
+    }
+
+    private synchronized Segment claim(DownloadSource source) {
+        while (true) {
+            if (aborted || failure != null || source.isDisabled())
+                return null;
+
+            if (pending.isEmpty()) {
+                // in-flight segments may still fail and come back
+                if (inFlight == 0)
+                    return null;
+
+                waitQuietly(0);
+                continue;
+            }
+
+            if (inFlight + completed.size() >= maxAhead) {
+                waitQuietly(0);
+                continue;
+            }
+
+            if (!isPreferred(source)) {
+                waitQuietly(BENCH_WAIT_MILLIS);
+                continue;
+            }
+
+            inFlight++;
+            return pending.pollFirst();
+        }
+    }
+
+    /**
+     * Gets whether a source is fast enough, compared to the others, to claim a segment.
+     * Sources not measured yet are always given a chance.
+     */
+    private boolean isPreferred(DownloadSource source) {
+        long own = source.getBytesPerSecond();
+
+        if (own == -1)
+            return true;
+
+        long best = 0;
+
+        for (DownloadSource other : sources) {
+            if (!other.isDisabled())
+                best = Math.max(best, other.getBytesPerSecond());
+        }
+
+        return own * SLOW_SOURCE_FACTOR >= best;
+    }
+
+    private synchronized void complete(Segment segment, byte[] buffer) {
+        inFlight--;
+
+        if (aborted) {
+            pool.release(buffer);
+            return;
+        }
+
+        segment.buffer = buffer;
+        completed.put(segment.start, segment);
+        notifyAll();
+    }
+
+    private synchronized void requeue(Segment segment, IOException e) {
+        inFlight--;
+        pending.addFirst(segment);
+
+        if (!hasUsableSource())
+            fail(new IOException("All download sources failed.", e));
+
+        notifyAll();
+    }
+
+    private synchronized void onWorkerExited() {
+        liveWorkers--;
+
+        if (liveWorkers == 0 && (!pending.isEmpty() || inFlight != 0))
+            fail(new IOException("All download sources failed."));
+
+        notifyAll();
+    }
+
+    private synchronized Segment awaitSegment(int start) throws IOException {
+        while (true) {
+            if (failure != null)
+                throw failure;
+
+            if (aborted)
+                throw new InterruptedIOException("Download was aborted.");
+
+            Segment segment = completed.remove(start);
+
+            if (segment != null) {
+                notifyAll();
+                return segment;
+            }
+
+            waitQuietly(0);
+        }
+    }
+
+    private void releaseSegment(Segment segment) {
+        pool.release(segment.buffer);
+        segment.buffer = null;
+    }
+
+    private boolean hasUsableSource() {
+        for (DownloadSource source : sources) {
+            if (!source.isDisabled())
+                return true;
+        }
+
+        return false;
+    }
+
+    private void fail(IOException e) {
+        if (failure == null)
+            failure = e;
+    }
+
+    private synchronized boolean isAborted() {
+        return aborted;
+    }
+
+    private void waitQuietly(long millis) {
+        try {
+            wait(millis);
+        } catch (InterruptedException _) {
+            Thread.currentThread().interrupt();
+            aborted = true;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package la.manga.app.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import la.manga.app.concurrency.DaemonExecutors;
+import la.manga.app.storage.Cache;
+import la.manga.app.storage.FileCache;
+import la.manga.app.storage.ReplaceableCache;
+
+/**
+ * Persists the states of all tasks of a download manager in batches.
+ * <p>
+ * Updates are collected from all tasks, and only the latest one of each
+ * task is kept, so that a task which reports progress on each chunk writes
+ * its state once per batch at most. A batch is committed once a short window
+ * passes after its first update, or as soon as it fills up, whichever comes
+ * first. Updates which must not be lost, such as transitions into terminal
+ * states, are committed right away, along with everything else pending, and
+ * the caller only returns once the batch was written.
+ * <p>
+ * Batches are committed one at a time, in the order they were taken, so an
+ * update is never overwritten by an older one of the same task.
+ * <p>
+ * Each task keeps its state in an entry of its own, which is replaced on its
+ * own. With a {@link FileCache} under its default sync policy, every
+ * replacement is synced before it's renamed into place, so a batch costs
+ * a sync per task in it. That is deliberate: a sync only covers
+ * the file it's called on, and without it, a power loss may leave a renamed
+ * record empty, which loses the task. Batching saves the syncs of updates
+ * coalesced within the window, not those of distinct tasks.
+ */
+class TaskStateWriter {
+    private final Cache cache;
+    private final int windowMillis;
+    private final int maxBatchSize;
+    private final Object commitLock = new Object();
+
+    /**
+     * The latest uncommitted update of each task, by cache entry name.
+     */
+    private final Map<String, DownloadManager.ProgressInfo> pending = new LinkedHashMap<>();
+
+    /**
+     * Failures to commit an update, which are reported to its task's next update.
+     */
+    private final Map<String, IOException> failures = new HashMap<>();
+
+    private boolean scheduled = false;
+    private long batches = 0;
+    private long writes = 0;
+    private long coalesced = 0;
+
+    /**
+     * @param cache        The cache in which task states are saved.
+     * @param windowMillis How long updates wait for others to be committed along.
+     * @param maxBatchSize The number of tasks whose updates are committed at once.
+     */
+    TaskStateWriter(Cache cache, int windowMillis, int maxBatchSize) {
+        this.cache = cache;
+        this.windowMillis = windowMillis;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Queues the state of a task to be committed with the next batch.
+     *
+     * @param name         The cache entry name of the task.
+     * @param progressInfo The state of the task.
+     * @throws IOException A previous update of the task failed to be committed.
+     */
+    void write(String name, DownloadManager.ProgressInfo progressInfo) throws IOException {
+        boolean full;
+
+        synchronized (this) {
+            IOException failure = failures.remove(name);
+
+            if (failure != null)
+                throw failure;
+
+            if (pending.put(name, progressInfo) != null)
+                coalesced++;
+
+            full = pending.size() >= maxBatchSize;
+
+            if (!full && !scheduled) {
+                scheduled = true;
+
+                DaemonExecutors.get("Task state writer").schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        commit();
+                    }
+                }, windowMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        if (full)
+            commit();
+    }
+
+    /**
+     * Commits the state of a task right away, along with all pending updates.
+     *
+     * @param name         The cache entry name of the task.
+     * @param progressInfo The state of the task.
+     * @throws IOException The state failed to be committed.
+     */
+    void writeDurably(String name, DownloadManager.ProgressInfo progressInfo) throws IOException {
+        synchronized (this) {
+            // an earlier failure is superseded by this state
+            failures.remove(name);
+            pending.put(name, progressInfo);
+        }
+
+        commit();
+
+        synchronized (this) {
+            IOException failure = failures.remove(name);
+
+            if (failure != null)
+                throw failure;
+        }
+    }
+
+    /**
+     * Commits all pending updates.
+     */
+    void commit() {
+        synchronized (commitLock) {
+            Map<String, DownloadManager.ProgressInfo> batch;
+
+            synchronized (this) {
+                scheduled = false;
+
+                if (pending.isEmpty())
+                    return;
+
+                batch = new LinkedHashMap<>(pending);
+                pending.clear();
+            }
+
+            for (Map.Entry<String, DownloadManager.ProgressInfo> update : batch.entrySet()) {
+                try {
+                    persist(update.getKey(), update.getValue());
+                } catch (IOException | RuntimeException e) {
+                    synchronized (this) {
+                        failures.put(update.getKey(), e instanceof IOException
+                                ? (IOException) e : new IOException("Failed to persist task state.", e));
+                    }
+                }
+            }
+
+            synchronized (this) {
+                batches++;
+                writes += batch.size();
+            }
+        }
+    }
+
+    /**
+     * Discards the pending update of a task, whose state is being deleted.
+     */
+    synchronized void discard(String name) {
+        pending.remove(name);
+        failures.remove(name);
+    }
+
+    /**
+     * Writes the state of a task, replacing the previous one at once if the cache
+     * allows it, so that a crash never leaves the task without a readable state.
+     */
+    private void persist(String name, DownloadManager.ProgressInfo progressInfo) throws IOException {
+        // serialize up front, so that a failure to serialize never commits a partial record
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DownloadManager.ProgressInfo.serialize(progressInfo, record);
+
+        OutputStream os = null;
+
+        try {
+            os = replaceEntry(cache, name);
+            record.writeTo(os);
+        } finally {
+            if (os != null)
+                os.close();
+        }
+    }
+
+    /**
+     * Opens a stream which replaces an entry at once if the cache can,
+     * or else deletes the entry and creates it anew.
+     */
+    static OutputStream replaceEntry(Cache cache, String name) {
+        if (cache instanceof ReplaceableCache) {
+            try {
+                return ((ReplaceableCache) cache).replaceEntry(name);
+            } catch (UnsupportedOperationException _) {
+                // a wrapper of a cache which can't replace entries
+            }
+        }
+
+        cache.deleteEntry(name);
+        return cache.createEntry(name);
+    }
+
+    synchronized Stats getStats() {
+        Stats stats = new Stats();
+        stats.batches = batches;
+        stats.writes = writes;
+        stats.coalesced = coalesced;
+        stats.pending = pending.size();
+        return stats;
+    }
+
+    static class Stats {
+        /**
+         * How many batches were committed.
+         */
+        long batches;
+
+        /**
+         * How many task states were written.
+         */
+        long writes;
+
+        /**
+         * How many updates were replaced by later ones of the same task before being written.
+         */
+        long coalesced;
+
+        /**
+         * The number of tasks with uncommitted updates.
+         */
+        int pending;
+    }
+}
@@ -0,0 +1,66 @@
+package la.manga.app.net;
+
+/**
+ * Measures the throughput of a transfer over consecutive time windows,
+ * and tells when it drops below a minimal rate.
+ */
+class ThroughputMonitor {
+    private final int minBytesPerSecond;
+    private final long windowNanos;
+    private long windowStart;
+    private long windowBytes = 0;
+    private int lastBytesPerSecond = -1;
+
+    /**
+     * Creates a new throughput monitor, whose first window starts now.
+     *
+     * @param minBytesPerSecond The minimal acceptable rate, or 0 to never report a stall.
+     * @param windowMillis      The length of each measurement window, in milliseconds.
+     */
+    ThroughputMonitor(int minBytesPerSecond, int windowMillis) {
+        this.minBytesPerSecond = minBytesPerSecond;
+        this.windowNanos = windowMillis * 1000000L;
+        this.windowStart = System.nanoTime();
+    }
+
+    /**
+     * Records transferred bytes, and checks whether the transfer is stalled.
+     * A stall is reported at most once per window, when a window that has
+     * ended transferred less than the minimal rate.
+     *
+     * @param nbytes The number of bytes just transferred.
+     * @return True if the window that has just ended was too slow.
+     */
+    boolean onTransferred(int nbytes) {
+        windowBytes += nbytes;
+
+        long now = System.nanoTime();
+        long elapsed = now - windowStart;
+
+        if (elapsed < windowNanos)
+            return false;
+
+        lastBytesPerSecond = (int) Math.min(Integer.MAX_VALUE, windowBytes * 1000000000L / elapsed);
+        windowStart = now;
+        windowBytes = 0;
+
+        return minBytesPerSecond > 0 && lastBytesPerSecond < minBytesPerSecond;
+    }
+
+    /**
+     * Starts a new measurement window, discarding the current one.
+     */
+    void reset() {
+        windowStart = System.nanoTime();
+        windowBytes = 0;
+    }
+
+    /**
+     * Gets the rate measured over the last complete window.
+     *
+     * @return The rate in bytes per second, or -1 if no window has ended yet.
+     */
+    int getLastBytesPerSecond() {
+        return lastBytesPerSecond;
+    }
+}
@@ -0,0 +1,14 @@
+package la.manga.app.storage;
+
+/**
+ * A cache which knows when its entries were last used.
+ */
+public interface AccessTrackingCache extends Cache {
+    /**
+     * Gets when an entry was last read or written to.
+     *
+     * @param name The name of the entry.
+     * @return The time in milliseconds since the epoch, or -1 if the entry does not exist.
+     */
+    long getEntryLastAccessed(String name);
+}
@@ -2,6 +2,7 @@ package la.manga.app.storage;
 
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 /**
@@ -17,6 +18,21 @@ public interface Cache {
      */
     OutputStream createEntry(String name);
 
+    /**
+     * Creates a new cache entry, whose final size is expected to be known.
+     * The cache may set the space aside up front, so that a lack of space
+     * is found out right away, rather than partway through writing. Any space
+     * set aside which was not written is released once the stream is closed,
+     * so the hint may safely be too large.
+     *
+     * @param name         The name of the entry.
+     * @param expectedSize The expected size of the entry in bytes, or -1 if unknown.
+     * @return An output stream for the new entry.
+     * @throws IllegalArgumentException Entry name already exists in the cache.
+     * @throws InsufficientSpaceException The cache does not have room for the expected size.
+     */
+    OutputStream createEntry(String name, long expectedSize);
+
     /**
      * Gets the names of all entries in the cache.
      *
@@ -32,6 +48,39 @@ public interface Cache {
      */
     InputStream readEntry(String name);
 
+    /**
+     * Reads a range of an existing cache entry, without reading what comes before it.
+     * The range is cut short at the end of the entry.
+     *
+     * @param name   The name of the entry.
+     * @param offset The offset to start reading at.
+     * @param length The maximal number of bytes to read, or -1 to read up to the end.
+     * @return An input stream for the range, or null if the entry does not exist.
+     */
+    InputStream readEntry(String name, long offset, long length);
+
+    /**
+     * Gets a read-only view of a range of an existing cache entry.
+     * The range is cut short at the end of the entry. The view reflects
+     * the entry as it was when this was called, and must not be used
+     * after the entry is written to or deleted.
+     *
+     * @param name   The name of the entry.
+     * @param offset The offset the view starts at.
+     * @param length The maximal length of the view, or -1 for everything up to the end.
+     * @return A buffer whose position is 0 and whose limit is the length of the range,
+     *         or null if the entry does not exist.
+     */
+    ByteBuffer getEntryBuffer(String name, long offset, int length);
+
+    /**
+     * Gets the length of an existing cache entry.
+     *
+     * @param name The name of the entry.
+     * @return The length in bytes, or -1 if the entry does not exist.
+     */
+    long getEntryLength(String name);
+
     /**
      * Appends to an existing cache entry.
      *
@@ -40,6 +89,18 @@ public interface Cache {
      */
     OutputStream appendToEntry(String name);
 
+    /**
+     * Writes to an existing cache entry from a specified offset.
+     * Any content beyond the offset is discarded, and once the stream is
+     * closed, the entry ends where writing stopped. If the entry is shorter
+     * than the offset, the gap is filled with zeros.
+     *
+     * @param name   The name of the entry.
+     * @param offset The offset to start writing at.
+     * @return An output stream for the entry, or null if the entry does not exist.
+     */
+    OutputStream writeEntryAt(String name, long offset);
+
     /**
      * Deletes an existing entry from the cache.
      * If the entry does not exist, does nothing.
@@ -60,4 +121,11 @@ public interface Cache {
      * @return True if the entry exists in the cache, and false otherwise.
      */
     boolean hasEntry(String name);
+
+    /**
+     * Gets how much more content the cache can currently store.
+     *
+     * @return The available space in bytes, or -1 if the cache cannot tell.
+     */
+    long getAvailableSpace();
 }
@@ -1,25 +1,207 @@
 package la.manga.app.storage;
 
-import com.google.common.base.Function;
-import com.google.common.collect.Lists;
-
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.util.Arrays;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import la.manga.app.concurrency.DaemonExecutors;
 
 /**
  * A cache made of files in a dedicated directory.
+ * <p>
+ * Ranges are read with positional reads, so that seeking costs nothing.
+ * Views of large ranges are memory-mapped, which avoids copying them
+ * into the heap, while views of small ones are read into heap buffers,
+ * since a mapping costs more to set up than a small read.
+ * <p>
+ * Entries created with a size hint are checked against the available
+ * space, so that a lack of space is found out before anything is written,
+ * and their files are extended to that size up front. Most file systems
+ * allocate the blocks of an extended file only as they're written, so this
+ * neither reserves the space on disk nor keeps the file contiguous. Entries
+ * are written with positional writes, and trimmed to the written length
+ * once their stream is closed.
+ * <p>
+ * A cache may be given a byte quota, beyond which the least recently used
+ * entries are evicted. Eviction runs in the background, one entry at a
+ * time, so it never holds up other operations for long. Entries which are
+ * open for writing, or pinned with {@link #pinEntry(String)}, are never
+ * evicted.
+ * <p>
+ * The names, sizes, modification and access times of all entries are
+ * kept in an in-memory index, which is built from the directory when the
+ * cache is created, and kept current by every operation. Lookups, sizes
+ * and misses are answered from the index without touching the disk, so
+ * the cache must be the only one to change its directory.
+ * <p>
+ * Operations on an entry lock one of a fixed set of lock stripes, picked
+ * by the entry's name, so that operations on different entries seldom wait
+ * for each other. The index is guarded by the cache itself, which is only
+ * held for bookkeeping, and never while files are opened or deleted. A lock
+ * stripe may be taken before the cache's lock, but never after it.
+ * <p>
+ * A cache with many entries may be sharded, in which case each entry file
+ * is kept in one of {@link #SHARDS} subdirectories, picked by hashing its
+ * name, so that no directory grows large enough to make lookups slow.
+ * Entries stored in the other layout are moved into place when the cache
+ * is created, so a cache may switch layouts at any time.
+ * <p>
+ * Entries may be followed while they're written. The cache keeps track of
+ * how far each such entry was written, which followers read up to, since
+ * an extended file is longer than what was written to it.
+ * <p>
+ * Replaced entries are written to a file in the {@link #PENDING_DIRECTORY}
+ * directory, which is renamed over the entry's file once complete, so that
+ * a crash never leaves an entry half replaced. Files left there by a crash
+ * are deleted when the cache is created. Whether files are synced to the
+ * disk before they're renamed or closed is set by a {@link SyncPolicy}.
  */
-public class FileCache implements Cache {
+public class FileCache implements FollowableCache, ReplaceableCache, AccessTrackingCache {
+    /**
+     * Views of ranges at least this long are memory-mapped.
+     */
+    static final int MAP_THRESHOLD = 0x40000;
+
+    /**
+     * The number of lock stripes, which is a power of two.
+     */
+    private static final int LOCK_STRIPES = 64;
+
+    /**
+     * The number of subdirectories of a sharded cache.
+     */
+    static final int SHARDS = 256;
+
+    /**
+     * The subdirectory which replacements of entries are written in,
+     * which can't be the name of an entry.
+     */
+    static final String PENDING_DIRECTORY = ".pending";
+
+    public enum Layout {
+        /**
+         * All entry files are directly in the cache directory.
+         */
+        FLAT,
+
+        /**
+         * Entry files are spread over subdirectories.
+         */
+        SHARDED
+    }
+
+    public enum SyncPolicy {
+        /**
+         * Nothing is synced, so replacements are only atomic as long as
+         * the system keeps running, or its file system keeps writes in order.
+         */
+        NONE,
+
+        /**
+         * Replacements are synced before they're renamed, so that a replaced
+         * entry holds either its old or its new content, even after a power loss.
+         */
+        REPLACE,
+
+        /**
+         * Replacements are synced before they're renamed, and all other
+         * entries are synced when their streams are closed.
+         */
+        ALL
+    }
+
     private final File dir;
+    private final long maxBytes;
+    private final Executor evictor;
+    private final Layout layout;
+    private final File pendingDir;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final AtomicLong nextReplacement = new AtomicLong();
+    private volatile SyncPolicy syncPolicy = SyncPolicy.REPLACE;
+
+    /**
+     * All entries, from the least to the most recently used. Entries are only
+     * moved when they're read or written, so looking them up leaves the order be.
+     */
+    private final LinkedHashMap<String, EntryInfo> index = new LinkedHashMap<>();
+    private final Map<String, Integer> pins = new HashMap<>();
 
+    /**
+     * The progress of entries which are being written.
+     */
+    private final Map<String, Tail> tails = new HashMap<>();
+    private long totalBytes = 0;
+    private boolean evicting = false;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long evictedBytes = 0;
+
+    /**
+     * Creates a cache without a quota.
+     *
+     * @param dir The directory of the cache, which is created if needed.
+     */
     public FileCache(File dir) {
+        this(dir, -1, null);
+    }
+
+    /**
+     * Creates a cache with a quota, evicting on a shared background thread.
+     *
+     * @param dir      The directory of the cache, which is created if needed.
+     * @param maxBytes The quota in bytes.
+     */
+    public FileCache(File dir, long maxBytes) {
+        this(dir, maxBytes, DaemonExecutors.get("FileCache eviction"));
+    }
+
+    /**
+     * Creates a cache with a quota.
+     *
+     * @param dir      The directory of the cache, which is created if needed.
+     * @param maxBytes The quota in bytes, or -1 for none.
+     * @param evictor  The executor to evict entries on.
+     */
+    public FileCache(File dir, long maxBytes, Executor evictor) {
+        this(dir, maxBytes, evictor, Layout.FLAT);
+    }
+
+    /**
+     * Creates a cache with a quota and a specified layout.
+     *
+     * @param dir      The directory of the cache, which is created if needed.
+     * @param maxBytes The quota in bytes, or -1 for none.
+     * @param evictor  The executor to evict entries on, or null if there is no quota.
+     * @param layout   How entry files are laid out in the directory.
+     */
+    public FileCache(File dir, long maxBytes, Executor evictor, Layout layout) {
         this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.evictor = evictor;
+        this.layout = layout;
+        this.pendingDir = new File(dir, PENDING_DIRECTORY);
+
+        for (int i = 0; i < locks.length; i++)
+            locks[i] = new Object();
 
         if (!dir.exists())
             if (!dir.mkdir())
@@ -27,81 +209,1098 @@ public class FileCache implements Cache {
 
         if (!dir.isDirectory())
             throw new IllegalArgumentException("Specified path is not a directory.");
+
+        deletePendingReplacements();
+        rebuildIndex();
+        scheduleEviction();
+    }
+
+    /**
+     * Gets the quota of this cache.
+     *
+     * @return The quota in bytes, or -1 if there is none.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
     }
 
+    public SyncPolicy getSyncPolicy() {
+        return syncPolicy;
+    }
+
+    /**
+     * Sets when files are synced to the disk.
+     * Syncing makes writes durable at the cost of waiting for the disk.
+     */
+    public void setSyncPolicy(SyncPolicy policy) {
+        syncPolicy = policy;
+    }
 
+    public Layout getLayout() {
+        return layout;
+    }
+
+    /**
+     * Gets the total size of all entries.
+     * Entries being written count with their expected size while it's larger.
+     *
+     * @return The size in bytes.
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Keeps an entry from being evicted, until it's unpinned as many times as it was pinned.
+     *
+     * @param name The name of the entry.
+     */
+    public void pinEntry(String name) {
+        // the entry's lock keeps it from being pinned while it's evicted
+        synchronized (lockFor(name)) {
+            addPin(name);
+        }
+    }
+
+    private synchronized void addPin(String name) {
+        Integer count = pins.get(name);
+        pins.put(name, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Releases a pin of an entry, allowing its eviction once all pins are released.
+     *
+     * @param name The name of the entry.
+     */
+    public void unpinEntry(String name) {
+        if (removePin(name))
+            startEviction();
+    }
+
+    /**
+     * @return True if eviction must be started.
+     */
+    private synchronized boolean removePin(String name) {
+        Integer count = pins.get(name);
+
+        if (count == null)
+            throw new IllegalStateException("Entry is not pinned.");
+
+        if (count == 1)
+            pins.remove(name);
+        else
+            pins.put(name, count - 1);
+
+        return markEvicting();
+    }
+
+    /**
+     * Gets whether an entry is pinned.
+     *
+     * @param name The name of the entry.
+     */
+    public synchronized boolean isPinned(String name) {
+        return pins.containsKey(name);
+    }
+
+    /**
+     * Gets when an entry was last written to.
+     *
+     * @param name The name of the entry.
+     * @return The time in milliseconds since the epoch, or -1 if the entry does not exist.
+     */
+    public synchronized long getEntryLastModified(String name) {
+        EntryInfo info = index.get(name);
+        return info == null ? -1 : info.modified;
+    }
+
+    /**
+     * Access times are not stored, so they start out as the modification times.
+     */
     @Override
-    public synchronized OutputStream createEntry(String name) {
-        File file = new File(dir, name);
+    public synchronized long getEntryLastAccessed(String name) {
+        EntryInfo info = index.get(name);
+        return info == null ? -1 : info.accessed;
+    }
+
+    /**
+     * Gets statistics of the cache's use.
+     *
+     * @return A snapshot of the cache's counters.
+     */
+    public synchronized Stats getStats() {
+        Stats stats = new Stats();
+
+        stats.maxBytes = maxBytes;
+        stats.totalBytes = totalBytes;
+        stats.entries = index.size();
+        stats.pinned = pins.size();
+        stats.hits = hits;
+        stats.misses = misses;
+        stats.evictions = evictions;
+        stats.evictedBytes = evictedBytes;
+
+        return stats;
+    }
+
+
+    @Override
+    public OutputStream createEntry(String name) {
+        return createEntry(name, -1);
+    }
+
+    @Override
+    public OutputStream createEntry(String name, long expectedSize) {
+        File file = fileFor(name);
+
+        synchronized (lockFor(name)) {
+            if (hasEntry(name))
+                throw new IllegalArgumentException("File already exists in cache");
+
+            if (expectedSize > 0) {
+                long available = getAvailableSpace();
+
+                if (expectedSize > available)
+                    throw new InsufficientSpaceException(expectedSize, available);
+            }
+
+            try {
+                return new EntryOutputStream(name, 0, expectedSize);
+            } catch (IOException e) {
+                // don't leave a partially created entry behind
+                file.delete();
+                throw new RuntimeException("Failed to create file cache entry.", e);
+            }
+        }
+    }
 
-        if (file.exists())
-            throw new IllegalArgumentException("File already exists in cache");
+    @Override
+    public OutputStream replaceEntry(String name) {
+        File temp = new File(pendingDir, nextReplacement.incrementAndGet() + "-" + name);
 
         try {
-            return new FileOutputStream(file);
-        } catch (Exception e) {
-            throw new RuntimeException("Failed to create file cache entry.", e);
+            if (!pendingDir.isDirectory() && !pendingDir.mkdir() && !pendingDir.isDirectory())
+                throw new IOException("Failed to create file cache pending directory.");
+
+            return new ReplacementOutputStream(name, temp);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to replace file cache entry.", e);
         }
     }
 
+    /**
+     * Gets the names of all entries in the cache.
+     * The names are taken from the index, so that listing a large cache
+     * neither touches the disk nor holds up operations on the entries.
+     */
     @Override
     public synchronized List<String> getEntryNames() {
-        return Lists.transform(Arrays.asList(dir.listFiles()), new Function<File, String>() {
-            @Override
-            public String apply(File file) {
-                return file.getName();
+        return new ArrayList<>(index.keySet());
+    }
+
+    @Override
+    public InputStream readEntry(String name) {
+        File file = fileFor(name);
+
+        synchronized (lockFor(name)) {
+            if (!touchEntry(name))
+                return null;
+
+            try {
+                return new FileInputStream(file);
+            } catch (FileNotFoundException e) {
+                throw new RuntimeException("Failed to read file cache entry.", e);
             }
-        });
+        }
     }
 
     @Override
-    public synchronized InputStream readEntry(String name) {
-        File file = new File(dir, name);
+    public InputStream readEntry(String name, long offset, long length) {
+        File file = fileFor(name);
+
+        synchronized (lockFor(name)) {
+            if (!touchEntry(name))
+                return null;
+
+            try {
+                return new EntryInputStream(file, offset, length);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to read file cache entry.", e);
+            }
+        }
+    }
 
-        if (!file.exists())
-            return null;
+    @Override
+    public ByteBuffer getEntryBuffer(String name, long offset, int length) {
+        File file = fileFor(name);
+        RandomAccessFile raf = null;
 
         try {
-            return new FileInputStream(file);
-        } catch (FileNotFoundException e) {
+            synchronized (lockFor(name)) {
+                if (!touchEntry(name))
+                    return null;
+
+                raf = new RandomAccessFile(file, "r");
+            }
+
+            FileChannel channel = raf.getChannel();
+            long available = Math.max(0, channel.size() - offset);
+
+            if (length == -1 && available > Integer.MAX_VALUE)
+                throw new IllegalArgumentException("Range is too long for a buffer.");
+
+            int size = (int) (length == -1 ? available : Math.min(length, available));
+
+            // the mapping stays valid after the channel is closed
+            if (size >= MAP_THRESHOLD)
+                return channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) == -1)
+                    break;
+            }
+
+            buffer.flip();
+
+            return buffer.asReadOnlyBuffer();
+        } catch (IOException e) {
             throw new RuntimeException("Failed to read file cache entry.", e);
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException _) {
+                    // ignored
+                }
+            }
         }
     }
 
     @Override
-    public synchronized OutputStream appendToEntry(String name) {
-        File file = new File(dir, name);
+    public InputStream followEntry(String name) {
+        File file = fileFor(name);
 
-        if (!file.exists())
-            return null;
+        synchronized (lockFor(name)) {
+            if (!touchEntry(name))
+                return null;
 
-        try {
-            return new FileOutputStream(file, true);
-        } catch (Exception e) {
-            throw new RuntimeException("Failed to create file cache entry.", e);
+            Tail tail;
+
+            synchronized (this) {
+                tail = tails.get(name);
+            }
+
+            try {
+                if (tail == null)
+                    return new EntryInputStream(file, 0, -1);
+
+                return new FollowInputStream(file, tail);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to read file cache entry.", e);
+            }
         }
     }
 
+    /**
+     * Gets the length of an existing cache entry.
+     * An entry which is being written counts with its expected size while it's larger.
+     */
     @Override
-    public synchronized void deleteEntry(String name) {
-        File file = new File(dir, name);
+    public synchronized long getEntryLength(String name) {
+        EntryInfo info = index.get(name);
+        return info == null ? -1 : info.size;
+    }
 
-        if (!file.exists())
-            return;
+    @Override
+    public OutputStream appendToEntry(String name) {
+        File file = fileFor(name);
+
+        synchronized (lockFor(name)) {
+            if (!hasEntry(name))
+                return null;
 
-        if (!file.delete())
-            throw new RuntimeException("Failed to delete file cache entry.");
+            try {
+                return new EntryOutputStream(name, file.length(), -1);
+            } catch (Exception e) {
+                throw new RuntimeException("Failed to create file cache entry.", e);
+            }
+        }
     }
 
     @Override
-    public synchronized void clear() {
+    public OutputStream writeEntryAt(String name, long offset) {
+        synchronized (lockFor(name)) {
+            if (!hasEntry(name))
+                return null;
+
+            try {
+                return new EntryOutputStream(name, offset, -1);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to open file cache entry.", e);
+            }
+        }
+    }
+
+    @Override
+    public void deleteEntry(String name) {
+        File file = fileFor(name);
+
+        synchronized (lockFor(name)) {
+            if (!hasEntry(name))
+                return;
+
+            if (!file.delete() && file.exists())
+                throw new RuntimeException("Failed to delete file cache entry.");
+
+            removeEntry(name);
+        }
+    }
+
+    /**
+     * Deletes all entries from the cache.
+     * Entries are deleted one by one, so entries created meanwhile may be kept.
+     */
+    @Override
+    public void clear() {
         for (String entry : getEntryNames())
             deleteEntry(entry);
     }
 
     @Override
     public synchronized boolean hasEntry(String name) {
-        File file = new File(dir, name);
-        return file.exists();
+        return index.containsKey(name);
+    }
+
+    /**
+     * Gets how much more content the cache can currently store.
+     * With a quota, this counts the space which evicting every
+     * entry that isn't pinned or being written would make.
+     */
+    @Override
+    public long getAvailableSpace() {
+        long usable = dir.getUsableSpace();
+
+        if (maxBytes == -1)
+            return usable;
+
+        synchronized (this) {
+            long pinnedBytes = 0;
+
+            for (Map.Entry<String, EntryInfo> entry : index.entrySet()) {
+                if (pins.containsKey(entry.getKey()))
+                    pinnedBytes += entry.getValue().size;
+            }
+
+            return Math.max(0, Math.min(usable + totalBytes - pinnedBytes, maxBytes - pinnedBytes));
+        }
+    }
+
+    /**
+     * Deletes the replacements which weren't complete when the cache was last used.
+     */
+    private void deletePendingReplacements() {
+        File[] files = pendingDir.listFiles();
+
+        if (files == null)
+            return;
+
+        for (File file : files)
+            file.delete();
+    }
+
+    /**
+     * Indexes the existing entries, taking the least recently modified as the least recently used.
+     * Entry files found in the other layout are moved where this one keeps them. An entry found
+     * in both layouts, since a move was interrupted, keeps its most recently modified file.
+     */
+    private void rebuildIndex() {
+        Map<String, File> newest = new HashMap<>();
+
+        for (File file : dir.listFiles()) {
+            if (file.isFile()) {
+                addNewest(newest, file);
+            } else if (isShardDirectory(file)) {
+                for (File entry : file.listFiles()) {
+                    if (entry.isFile())
+                        addNewest(newest, entry);
+                }
+            }
+        }
+
+        List<File> files = new ArrayList<>(newest.values());
+
+        Collections.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long x = a.lastModified();
+                long y = b.lastModified();
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+
+        for (File file : files) {
+            String name = file.getName();
+            File target = fileFor(name);
+
+            if (!file.equals(target))
+                migrate(file, target);
+
+            EntryInfo info = new EntryInfo();
+            info.size = target.length();
+            info.modified = target.lastModified();
+            info.accessed = info.modified;
+
+            index.put(name, info);
+            totalBytes += info.size;
+        }
+    }
+
+    /**
+     * Keeps the most recently modified file of each entry, and deletes the other.
+     */
+    private void addNewest(Map<String, File> newest, File file) {
+        File other = newest.get(file.getName());
+
+        if (other != null) {
+            // the file in this layout wins a tie, since it's not moved
+            boolean newer = file.lastModified() > other.lastModified()
+                    || file.lastModified() == other.lastModified() && file.equals(fileFor(file.getName()));
+
+            if (!newer) {
+                file.delete();
+                return;
+            }
+
+            other.delete();
+        }
+
+        newest.put(file.getName(), file);
+    }
+
+    private static boolean isShardDirectory(File file) {
+        return file.isDirectory() && file.getName().length() == 2
+                && Character.digit(file.getName().charAt(0), 16) != -1
+                && Character.digit(file.getName().charAt(1), 16) != -1;
+    }
+
+    /**
+     * Moves an entry file into the current layout, keeping its modification time.
+     */
+    private static void migrate(File file, File target) {
+        long modified = file.lastModified();
+        File parent = target.getParentFile();
+
+        if (!parent.isDirectory() && !parent.mkdir())
+            throw new RuntimeException("Failed to create file cache shard directory.");
+
+        if (!file.renameTo(target))
+            throw new RuntimeException("Failed to move file cache entry " + file.getName() + ".");
+
+        target.setLastModified(modified);
+    }
+
+    /**
+     * Gets the file of an entry.
+     */
+    private File fileFor(String name) {
+        if (layout == Layout.FLAT)
+            return new File(dir, name);
+
+        String shard = Integer.toHexString(0x100 | hash(name) & (SHARDS - 1)).substring(1);
+        return new File(new File(dir, shard), name);
+    }
+
+    /**
+     * Hashes an entry name, spreading the high bits since only the low ones are used.
+     */
+    private static int hash(String name) {
+        int hash = name.hashCode();
+
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+
+        return hash;
+    }
+
+    private Object lockFor(String name) {
+        return locks[hash(name) & (LOCK_STRIPES - 1)];
+    }
+
+    /**
+     * Marks an entry as the most recently used, if it exists.
+     *
+     * @return True if the entry exists.
+     */
+    private synchronized boolean touchEntry(String name) {
+        EntryInfo info = index.get(name);
+
+        if (info == null) {
+            misses++;
+            return false;
+        }
+
+        hits++;
+        info.accessed = System.currentTimeMillis();
+        markUsed(name, info);
+        return true;
+    }
+
+    private synchronized void removeEntry(String name) {
+        EntryInfo info = index.remove(name);
+
+        if (info != null)
+            totalBytes -= info.size;
+
+        Tail tail = tails.remove(name);
+
+        if (tail != null)
+            tail.delete();
+    }
+
+    /**
+     * Records the size of an entry as it's written, which also marks it as the most recently used.
+     */
+    private void setEntrySize(String name, long size) {
+        EntryInfo info = index.get(name);
+
+        if (info == null)
+            info = new EntryInfo();
+
+        totalBytes += size - info.size;
+        info.size = size;
+        info.modified = System.currentTimeMillis();
+        info.accessed = info.modified;
+        markUsed(name, info);
+    }
+
+    /**
+     * Moves an entry to the most recently used end of the index.
+     */
+    private void markUsed(String name, EntryInfo info) {
+        index.remove(name);
+        index.put(name, info);
+    }
+
+    /**
+     * @param written The length of the entry's content so far.
+     * @return The progress of the entry, which is shared by all of its writers.
+     */
+    private synchronized Tail onEntryOpened(String name, long size, long written) {
+        addPin(name);
+        setEntrySize(name, size);
+
+        Tail tail = tails.get(name);
+
+        if (tail == null) {
+            tail = new Tail();
+            tails.put(name, tail);
+        }
+
+        tail.open(written);
+        return tail;
+    }
+
+    /**
+     * @return True if eviction must be started.
+     */
+    private synchronized boolean onEntryGrown(String name, long size) {
+        if (!index.containsKey(name))
+            return false;
+
+        setEntrySize(name, size);
+        return markEvicting();
+    }
+
+    /**
+     * @return True if eviction must be started.
+     */
+    private synchronized boolean onEntryReplaced(String name, long size) {
+        // followers of the old content see it as deleted
+        Tail tail = tails.remove(name);
+
+        if (tail != null)
+            tail.delete();
+
+        setEntrySize(name, size);
+        return markEvicting();
+    }
+
+    /**
+     * @return True if eviction must be started.
+     */
+    private synchronized boolean onEntryClosed(String name, long size, Tail tail) {
+        // an entry deleted while it was written stays deleted
+        if (index.containsKey(name))
+            setEntrySize(name, size);
+
+        if (tail.close() && tails.get(name) == tail)
+            tails.remove(name);
+
+        return removePin(name);
+    }
+
+    /**
+     * Starts evicting if the cache is over its quota, unless it already is.
+     * The cache's lock must not be held, since the evictor may run right away.
+     */
+    private void scheduleEviction() {
+        if (markEvicting())
+            startEviction();
+    }
+
+    /**
+     * Marks the cache as evicting if it's over its quota, unless it already is.
+     *
+     * @return True if eviction must be started, once the cache's lock is released.
+     */
+    private synchronized boolean markEvicting() {
+        if (maxBytes == -1 || evicting || totalBytes <= maxBytes)
+            return false;
+
+        evicting = true;
+        return true;
+    }
+
+    private void startEviction() {
+        try {
+            evictor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    while (evictNext()) {
+                        // each entry is evicted separately, so others may use the cache in between
+                    }
+                }
+            });
+        } catch (RejectedExecutionException _) {
+            // eviction is tried again the next time the cache grows
+            synchronized (this) {
+                evicting = false;
+            }
+        }
+    }
+
+    /**
+     * Evicts the least recently used entry which isn't pinned, if the cache is over its quota.
+     *
+     * @return True if eviction should go on.
+     */
+    private boolean evictNext() {
+        String name = pickEvictionCandidate();
+
+        if (name == null)
+            return false;
+
+        synchronized (lockFor(name)) {
+            synchronized (this) {
+                // the entry may have been used while its lock was awaited
+                if (!index.containsKey(name) || pins.containsKey(name))
+                    return true;
+            }
+
+            // the entry's lock keeps it from being opened or pinned meanwhile
+            File file = fileFor(name);
+            boolean deleted = file.delete() || !file.exists();
+
+            synchronized (this) {
+                if (!deleted) {
+                    evicting = false;
+                    return false;
+                }
+
+                evictions++;
+                evictedBytes += index.get(name).size;
+                removeEntry(name);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Finds the least recently used entry which isn't pinned,
+     * and ends eviction if there is none, or if it's no longer needed.
+     */
+    private synchronized String pickEvictionCandidate() {
+        if (totalBytes > maxBytes) {
+            for (String name : index.keySet()) {
+                if (!pins.containsKey(name))
+                    return name;
+            }
+        }
+
+        evicting = false;
+        return null;
+    }
+
+    /**
+     * How far an entry was written, which followers of the entry wait on.
+     */
+    private static class Tail {
+        private long written = 0;
+        private int writers = 0;
+        private boolean deleted = false;
+
+        synchronized void open(long position) {
+            writers++;
+            advance(position);
+        }
+
+        synchronized void advance(long position) {
+            if (position > written) {
+                written = position;
+                notifyAll();
+            }
+        }
+
+        /**
+         * @return True if no writers are left.
+         */
+        synchronized boolean close() {
+            writers--;
+            notifyAll();
+            return writers == 0;
+        }
+
+        synchronized void delete() {
+            deleted = true;
+            notifyAll();
+        }
+
+        /**
+         * Waits until the entry was written beyond a position, or is no longer written to.
+         *
+         * @return How far the entry was written.
+         * @throws IOException The entry was deleted.
+         */
+        synchronized long awaitBeyond(long position) throws IOException {
+            try {
+                while (position >= written && writers > 0 && !deleted)
+                    wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while following a cache entry.");
+            }
+
+            if (deleted)
+                throw new IOException("Entry was deleted while it was followed.");
+
+            return written;
+        }
+    }
+
+    private static class EntryInfo {
+        long size = 0;
+        long modified;
+        long accessed;
+    }
+
+    public static class Stats {
+        /**
+         * The quota in bytes, or -1 if there is none.
+         */
+        public long maxBytes;
+
+        /**
+         * The total size of all entries.
+         */
+        public long totalBytes;
+
+        /**
+         * The number of entries in the cache.
+         */
+        public int entries;
+
+        /**
+         * The number of pinned entries, including the ones being written.
+         */
+        public int pinned;
+
+        /**
+         * How many reads found their entry.
+         */
+        public long hits;
+
+        /**
+         * How many reads found no entry.
+         */
+        public long misses;
+
+        /**
+         * How many entries were evicted to stay within the quota.
+         */
+        public long evictions;
+
+        /**
+         * The total size of the evicted entries.
+         */
+        public long evictedBytes;
+    }
+
+    /**
+     * Reads a range of an entry file with positional reads,
+     * so that skipping only moves the position.
+     */
+    private static class EntryInputStream extends InputStream {
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private long position;
+        private final long end;
+
+        EntryInputStream(File path, long offset, long length) throws IOException {
+            file = new RandomAccessFile(path, "r");
+            channel = file.getChannel();
+            position = offset;
+
+            long size = channel.size();
+            end = length == -1 ? size : Math.min(size, offset + length);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= end)
+                return -1;
+
+            len = (int) Math.min(len, end - position);
+
+            int nread = channel.read(ByteBuffer.wrap(b, off, len), position);
+
+            if (nread > 0)
+                position += nread;
+
+            return nread;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, end - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.max(0, Math.min(Integer.MAX_VALUE, end - position));
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+
+    /**
+     * Reads an entry file as it's written, up to how far it was written,
+     * and waits at that point until the entry is no longer written to.
+     */
+    private static class FollowInputStream extends InputStream {
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final Tail tail;
+        private long position = 0;
+
+        FollowInputStream(File path, Tail tail) throws IOException {
+            file = new RandomAccessFile(path, "r");
+            channel = file.getChannel();
+            this.tail = tail;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+
+            long end = tail.awaitBeyond(position);
+
+            if (position >= end)
+                return -1;
+
+            len = (int) Math.min(len, end - position);
+
+            int nread = channel.read(ByteBuffer.wrap(b, off, len), position);
+
+            if (nread > 0)
+                position += nread;
+
+            return nread;
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+
+    /**
+     * Writes the replacement of an entry to a file of its own, and moves it
+     * in place of the entry's file once closed, unless writing failed.
+     */
+    private class ReplacementOutputStream extends OutputStream {
+        private final String name;
+        private final File temp;
+        private final FileOutputStream os;
+        private boolean failed = false;
+        private boolean closed = false;
+
+        ReplacementOutputStream(String name, File temp) throws IOException {
+            this.name = name;
+            this.temp = temp;
+            this.os = new FileOutputStream(temp);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                os.write(b, off, len);
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed)
+                return;
+
+            closed = true;
+
+            try {
+                if (!failed && syncPolicy != SyncPolicy.NONE)
+                    os.getFD().sync();
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            } finally {
+                os.close();
+
+                if (failed)
+                    temp.delete();
+            }
+
+            // the entry keeps its content if its replacement couldn't be written
+            if (failed)
+                return;
+
+            File target = fileFor(name);
+            File parent = target.getParentFile();
+            boolean evict;
+
+            synchronized (lockFor(name)) {
+                if (!parent.isDirectory() && !parent.mkdir() && !parent.isDirectory()) {
+                    temp.delete();
+                    throw new IOException("Failed to create file cache shard directory.");
+                }
+
+                if (!temp.renameTo(target)) {
+                    temp.delete();
+                    throw new IOException("Failed to replace file cache entry.");
+                }
+
+                evict = onEntryReplaced(name, target.length());
+            }
+
+            if (evict)
+                startEviction();
+        }
+    }
+
+    /**
+     * Writes an entry file at increasing positions from a starting offset,
+     * and trims the file to the last written position when closed.
+     * The entry is pinned while it's open.
+     */
+    private class EntryOutputStream extends OutputStream {
+        private final String name;
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private long position;
+        private long accounted;
+        private final Tail tail;
+
+        EntryOutputStream(String name, long offset, long expectedSize) throws IOException {
+            this.name = name;
+            File path = fileFor(name);
+            File parent = path.getParentFile();
+
+            if (!parent.isDirectory() && !parent.mkdir() && !parent.isDirectory())
+                throw new IOException("Failed to create file cache shard directory.");
+
+            file = new RandomAccessFile(path, "rw");
+            channel = file.getChannel();
+            position = offset;
+            long written = Math.max(file.length(), offset);
+
+            try {
+                if (expectedSize > offset)
+                    file.setLength(expectedSize);
+                else if (file.length() < offset)
+                    file.setLength(offset);
+            } catch (IOException e) {
+                file.close();
+                throw e;
+            }
+
+            accounted = file.length();
+            tail = onEntryOpened(name, accounted, written);
+            scheduleEviction();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+
+            while (buffer.hasRemaining())
+                position += channel.write(buffer, position);
+
+            tail.advance(position);
+
+            // extended entries only grow if they outgrow their expected size
+            if (position > accounted) {
+                accounted = position;
+
+                if (onEntryGrown(name, accounted))
+                    startEviction();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!channel.isOpen())
+                return;
+
+            try {
+                channel.truncate(position);
+
+                if (syncPolicy == SyncPolicy.ALL)
+                    channel.force(true);
+            } finally {
+                file.close();
+
+                if (onEntryClosed(name, position, tail))
+                    startEviction();
+            }
+        }
     }
 }
@@ -0,0 +1,20 @@
+package la.manga.app.storage;
+
+import java.io.InputStream;
+
+/**
+ * A cache whose entries may be read while they're still being written.
+ */
+public interface FollowableCache extends Cache {
+    /**
+     * Reads an existing cache entry, following it as it's written.
+     * The stream returns what was written so far right away, waits for more
+     * while any stream writing to the entry is open, and ends once they're
+     * all closed. If the entry is deleted meanwhile, reading fails. The entry
+     * is expected to only grow while it's followed.
+     *
+     * @param name The name of the entry.
+     * @return An input stream following the entry, or null if the entry does not exist.
+     */
+    InputStream followEntry(String name);
+}
@@ -0,0 +1,482 @@
+package la.manga.app.storage;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import la.manga.app.concurrency.DaemonExecutors;
+
+/**
+ * Measures how another cache is used.
+ * <p>
+ * Each operation is counted along with how often it missed, which is when
+ * the entry it was called for didn't exist, and how long it took. Latencies
+ * go into histograms with a bucket per power of two nanoseconds, so that
+ * recording one is a couple of atomic increments, and percentiles can be
+ * told within a factor of two. The bytes going through the streams of the
+ * cache are counted as they're read and written. Only the calls themselves
+ * are timed, not what's done later with the streams they return.
+ * <p>
+ * Nothing on the hot path takes a lock, so the counters are updated
+ * independently, and a snapshot taken while the cache is in use may be
+ * slightly inconsistent. The number and size of entries are only found out
+ * when a snapshot is taken, by listing the cache.
+ * <p>
+ * Entries may be followed or replaced, and their access times told, if the
+ * measured cache allows it; otherwise, doing so throws an
+ * {@link UnsupportedOperationException}.
+ */
+public class InstrumentedCache implements FollowableCache, ReplaceableCache, AccessTrackingCache {
+    /**
+     * The number of latency buckets, the last of which holds everything longer.
+     */
+    static final int BUCKETS = 40;
+
+    public enum Operation {
+        CREATE,
+        LIST,
+        READ,
+        READ_RANGE,
+        GET_BUFFER,
+        GET_LENGTH,
+        APPEND,
+        WRITE_AT,
+        DELETE,
+        CLEAR,
+        HAS_ENTRY,
+        FOLLOW,
+        REPLACE
+    }
+
+    /**
+     * Receives periodic snapshots.
+     */
+    public interface StatsListener {
+        void onStats(Stats stats);
+    }
+
+    private final Cache cache;
+    private final Counters[] counters = new Counters[Operation.values().length];
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    /**
+     * @param cache The cache to measure.
+     */
+    public InstrumentedCache(Cache cache) {
+        this.cache = cache;
+
+        for (int i = 0; i < counters.length; i++)
+            counters[i] = new Counters();
+    }
+
+    /**
+     * Gets the measured cache.
+     */
+    public Cache getCache() {
+        return cache;
+    }
+
+    /**
+     * Takes a snapshot of what was measured so far.
+     */
+    public Stats getStats() {
+        Stats stats = new Stats();
+        stats.timestamp = System.currentTimeMillis();
+        stats.bytesRead = bytesRead.get();
+        stats.bytesWritten = bytesWritten.get();
+
+        for (Operation op : Operation.values())
+            stats.operations.put(op, counters[op.ordinal()].snapshot());
+
+        for (String name : cache.getEntryNames()) {
+            long length = cache.getEntryLength(name);
+
+            // entries deleted meanwhile don't count
+            if (length != -1) {
+                stats.entries++;
+                stats.totalBytes += length;
+            }
+        }
+
+        return stats;
+    }
+
+    /**
+     * Passes snapshots to a listener periodically, on a shared background thread.
+     *
+     * @param period   The time between snapshots.
+     * @param unit     The unit of the period.
+     * @param listener The listener to pass the snapshots to.
+     * @return A future which stops the snapshots once cancelled.
+     */
+    public ScheduledFuture<?> dumpPeriodically(long period, TimeUnit unit, final StatsListener listener) {
+        return DaemonExecutors.get("Cache stats dumper").scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    listener.onStats(getStats());
+                } catch (RuntimeException _) {
+                    // a failing listener must not cancel later snapshots
+                }
+            }
+        }, period, period, unit);
+    }
+
+    @Override
+    public OutputStream createEntry(String name) {
+        long start = System.nanoTime();
+        OutputStream os = cache.createEntry(name);
+        record(Operation.CREATE, start, false);
+        return new CountingOutputStream(os);
+    }
+
+    @Override
+    public OutputStream createEntry(String name, long expectedSize) {
+        long start = System.nanoTime();
+        OutputStream os = cache.createEntry(name, expectedSize);
+        record(Operation.CREATE, start, false);
+        return new CountingOutputStream(os);
+    }
+
+    @Override
+    public List<String> getEntryNames() {
+        long start = System.nanoTime();
+        List<String> names = cache.getEntryNames();
+        record(Operation.LIST, start, false);
+        return names;
+    }
+
+    @Override
+    public InputStream readEntry(String name) {
+        long start = System.nanoTime();
+        InputStream is = cache.readEntry(name);
+        record(Operation.READ, start, is == null);
+        return is == null ? null : new CountingInputStream(is);
+    }
+
+    @Override
+    public InputStream readEntry(String name, long offset, long length) {
+        long start = System.nanoTime();
+        InputStream is = cache.readEntry(name, offset, length);
+        record(Operation.READ_RANGE, start, is == null);
+        return is == null ? null : new CountingInputStream(is);
+    }
+
+    @Override
+    public ByteBuffer getEntryBuffer(String name, long offset, int length) {
+        long start = System.nanoTime();
+        ByteBuffer buffer = cache.getEntryBuffer(name, offset, length);
+        record(Operation.GET_BUFFER, start, buffer == null);
+
+        if (buffer != null)
+            bytesRead.addAndGet(buffer.remaining());
+
+        return buffer;
+    }
+
+    @Override
+    public long getEntryLength(String name) {
+        long start = System.nanoTime();
+        long length = cache.getEntryLength(name);
+        record(Operation.GET_LENGTH, start, length == -1);
+        return length;
+    }
+
+    @Override
+    public OutputStream appendToEntry(String name) {
+        long start = System.nanoTime();
+        OutputStream os = cache.appendToEntry(name);
+        record(Operation.APPEND, start, os == null);
+        return os == null ? null : new CountingOutputStream(os);
+    }
+
+    @Override
+    public OutputStream writeEntryAt(String name, long offset) {
+        long start = System.nanoTime();
+        OutputStream os = cache.writeEntryAt(name, offset);
+        record(Operation.WRITE_AT, start, os == null);
+        return os == null ? null : new CountingOutputStream(os);
+    }
+
+    @Override
+    public void deleteEntry(String name) {
+        long start = System.nanoTime();
+        cache.deleteEntry(name);
+        record(Operation.DELETE, start, false);
+    }
+
+    @Override
+    public void clear() {
+        long start = System.nanoTime();
+        cache.clear();
+        record(Operation.CLEAR, start, false);
+    }
+
+    @Override
+    public boolean hasEntry(String name) {
+        long start = System.nanoTime();
+        boolean exists = cache.hasEntry(name);
+        record(Operation.HAS_ENTRY, start, !exists);
+        return exists;
+    }
+
+    @Override
+    public long getAvailableSpace() {
+        return cache.getAvailableSpace();
+    }
+
+    /**
+     * @throws UnsupportedOperationException The measured cache can't be followed.
+     */
+    @Override
+    public InputStream followEntry(String name) {
+        if (!(cache instanceof FollowableCache))
+            throw new UnsupportedOperationException("The measured cache can't be followed.");
+
+        long start = System.nanoTime();
+        InputStream is = ((FollowableCache) cache).followEntry(name);
+        record(Operation.FOLLOW, start, is == null);
+        return is == null ? null : new CountingInputStream(is);
+    }
+
+    /**
+     * @throws UnsupportedOperationException The measured cache can't replace entries.
+     */
+    @Override
+    public OutputStream replaceEntry(String name) {
+        if (!(cache instanceof ReplaceableCache))
+            throw new UnsupportedOperationException("The measured cache can't replace entries.");
+
+        long start = System.nanoTime();
+        OutputStream os = ((ReplaceableCache) cache).replaceEntry(name);
+        record(Operation.REPLACE, start, false);
+        return new CountingOutputStream(os);
+    }
+
+    /**
+     * @throws UnsupportedOperationException The measured cache doesn't track access times.
+     */
+    @Override
+    public long getEntryLastAccessed(String name) {
+        if (!(cache instanceof AccessTrackingCache))
+            throw new UnsupportedOperationException("The measured cache doesn't track access times.");
+
+        return ((AccessTrackingCache) cache).getEntryLastAccessed(name);
+    }
+
+    private void record(Operation op, long start, boolean missed) {
+        counters[op.ordinal()].record(System.nanoTime() - start, missed);
+    }
+
+    /**
+     * Gets the latency bucket of a duration, which is the number of bits it takes.
+     */
+    static int bucketOf(long nanos) {
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(Math.max(0, nanos)));
+    }
+
+    /**
+     * The counters of one operation.
+     */
+    private static class Counters {
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+        void record(long nanos, boolean missed) {
+            calls.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            histogram.incrementAndGet(bucketOf(nanos));
+
+            if (missed)
+                misses.incrementAndGet();
+        }
+
+        OperationStats snapshot() {
+            OperationStats stats = new OperationStats();
+            stats.calls = calls.get();
+            stats.misses = misses.get();
+            stats.totalNanos = totalNanos.get();
+
+            for (int i = 0; i < BUCKETS; i++)
+                stats.histogram[i] = histogram.get(i);
+
+            return stats;
+        }
+    }
+
+    /**
+     * What was measured of a cache at some point.
+     */
+    public static class Stats {
+        /**
+         * When the snapshot was taken, in milliseconds since the epoch.
+         */
+        public long timestamp;
+
+        /**
+         * The number of entries in the cache.
+         */
+        public int entries;
+
+        /**
+         * The total length of all entries.
+         */
+        public long totalBytes;
+
+        /**
+         * The bytes read through streams and buffers of the cache.
+         */
+        public long bytesRead;
+
+        /**
+         * The bytes written through streams of the cache.
+         */
+        public long bytesWritten;
+
+        /**
+         * The measurements of each operation.
+         */
+        public final Map<Operation, OperationStats> operations = new EnumMap<>(Operation.class);
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("entries=%d totalBytes=%d bytesRead=%d bytesWritten=%d",
+                    entries, totalBytes, bytesRead, bytesWritten));
+
+            for (Map.Entry<Operation, OperationStats> entry : operations.entrySet()) {
+                if (entry.getValue().calls > 0)
+                    sb.append('\n').append(entry.getKey()).append(": ").append(entry.getValue());
+            }
+
+            return sb.toString();
+        }
+    }
+
+    /**
+     * What was measured of one operation.
+     */
+    public static class OperationStats {
+        /**
+         * How many times the operation was called.
+         */
+        public long calls;
+
+        /**
+         * How many of the calls were for entries which didn't exist.
+         */
+        public long misses;
+
+        /**
+         * The total time the calls took.
+         */
+        public long totalNanos;
+
+        /**
+         * How many calls took each number of bits of nanoseconds, which is
+         * from 2^(i-1) up to 2^i nanoseconds for bucket i.
+         */
+        public final long[] histogram = new long[BUCKETS];
+
+        /**
+         * Gets the mean time the calls took.
+         */
+        public long getMeanNanos() {
+            return calls == 0 ? 0 : totalNanos / calls;
+        }
+
+        /**
+         * Gets the time within which a fraction of the calls took, rounded up to a power of two.
+         *
+         * @param fraction The fraction of calls, between 0 and 1.
+         * @return The upper bound of the bucket the fraction falls in, or 0 if there were no calls.
+         */
+        public long getPercentileNanos(double fraction) {
+            long total = 0;
+
+            for (long count : histogram)
+                total += count;
+
+            long target = (long) Math.ceil(total * fraction);
+            long seen = 0;
+
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += histogram[i];
+
+                if (seen >= target && seen > 0)
+                    return i == BUCKETS - 1 ? Long.MAX_VALUE : 1L << i;
+            }
+
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("calls=%d misses=%d mean=%dns p50=%dns p99=%dns",
+                    calls, misses, getMeanNanos(), getPercentileNanos(0.5), getPercentileNanos(0.99));
+        }
+    }
+
+    private class CountingInputStream extends FilterInputStream {
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+
+            if (b != -1)
+                bytesRead.incrementAndGet();
+
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int nread = in.read(b, off, len);
+
+            if (nread > 0)
+                bytesRead.addAndGet(nread);
+
+            return nread;
+        }
+    }
+
+    private class CountingOutputStream extends FilterOutputStream {
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            bytesWritten.incrementAndGet();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            bytesWritten.addAndGet(len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            // FilterOutputStream would flush first, and ignore a failure to flush
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package la.manga.app.storage;
+
+/**
+ * Thrown when a cache does not have room for an entry of the expected size.
+ */
+public class InsufficientSpaceException extends RuntimeException {
+    private static final long serialVersionUID = 5136372170215971350L;
+
+    private final long requiredSpace;
+    private final long availableSpace;
+
+    public InsufficientSpaceException(long requiredSpace, long availableSpace) {
+        super("Not enough space in cache: " + requiredSpace + " bytes required, "
+                + availableSpace + " bytes available.");
+
+        this.requiredSpace = requiredSpace;
+        this.availableSpace = availableSpace;
+    }
+
+    /**
+     * Gets how many bytes were required.
+     */
+    public long getRequiredSpace() {
+        return requiredSpace;
+    }
+
+    /**
+     * Gets how many bytes were available.
+     */
+    public long getAvailableSpace() {
+        return availableSpace;
+    }
+}
@@ -0,0 +1,1318 @@
+package la.manga.app.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+
+import la.manga.app.concurrency.DaemonExecutors;
+
+/**
+ * A cache which appends its entries to large segment files, in the manner of Bitcask.
+ * <p>
+ * Small entries are buffered in memory while they're written, and appended
+ * to the active segment as a single record once their stream is closed, so
+ * writing a small entry costs no more than one positional write, and either
+ * all or none of it survives a crash. Entries which outgrow the buffer are
+ * streamed into a segment of their own instead, whose record is sealed once
+ * the stream is closed. Like a file of a {@link FileCache}, such an entry
+ * keeps what was written of it if the process dies before then. Appending
+ * to an entry whose record fills a segment of its own continues that record
+ * in place, where other changes write the entry anew.
+ * <p>
+ * An in-memory key directory maps each name to its latest record, and
+ * deleting an entry appends a tombstone record. Content which was written
+ * becomes visible to readers once its stream is closed. The active segment
+ * is sealed once it reaches its size, and a hint file listing its records
+ * is written next to it, so that the key directory can be rebuilt without
+ * reading the content. Segments without hints are scanned, and records cut
+ * short by a crash are dropped.
+ * <p>
+ * Once at least half of a sealed segment is taken up by records which were
+ * overwritten or deleted, it's compacted in the background: its live records
+ * are copied to the active segment, and its files are deleted. Each segment
+ * is compacted separately, and read without holding up other operations.
+ */
+public class LogCache implements Cache {
+    /**
+     * The size at which the active segment is sealed.
+     */
+    public static final long DEFAULT_SEGMENT_SIZE = 0x400000;
+
+    /**
+     * Entries larger than this are written to segments of their own.
+     */
+    static final int INLINE_LIMIT = 0x10000;
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String HINT_SUFFIX = ".hint";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+
+    /**
+     * The length of a record's header: checksum, type, sequence number, name length and value length.
+     */
+    private static final int HEADER_SIZE = 4 + 1 + 8 + 4 + 8;
+
+    /**
+     * The value length of a record which was never sealed.
+     */
+    private static final long UNSEALED = -1;
+
+    private final File dir;
+    private final long segmentSize;
+    private final Executor compactor;
+
+    /**
+     * The latest record of each entry.
+     */
+    private final Map<String, Location> keydir = new HashMap<>();
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private final LinkedHashSet<Segment> compactionQueue = new LinkedHashSet<>();
+    private Segment active;
+    private int nextSegmentId = 1;
+    private long nextSeq = 1;
+    private boolean compacting = false;
+    private long compactions = 0;
+
+    /**
+     * Creates a cache, compacting on a shared background thread.
+     *
+     * @param dir The directory of the cache, which is created if needed.
+     */
+    public LogCache(File dir) {
+        this(dir, DEFAULT_SEGMENT_SIZE, DaemonExecutors.get("LogCache compaction"));
+    }
+
+    /**
+     * Creates a cache.
+     *
+     * @param dir         The directory of the cache, which is created if needed.
+     * @param segmentSize The size at which segments are sealed.
+     * @param compactor   The executor to compact segments on.
+     */
+    public LogCache(File dir, long segmentSize, Executor compactor) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.compactor = compactor;
+
+        if (!dir.exists())
+            if (!dir.mkdir())
+                throw new RuntimeException("Failed to create log cache directory.");
+
+        if (!dir.isDirectory())
+            throw new IllegalArgumentException("Specified path is not a directory.");
+
+        try {
+            recover();
+            active = openSegment();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open log cache.", e);
+        }
+
+        synchronized (this) {
+            for (Segment segment : new ArrayList<>(segments.values()))
+                scheduleCompaction(segment);
+        }
+    }
+
+    @Override
+    public OutputStream createEntry(String name) {
+        return createEntry(name, -1);
+    }
+
+    /**
+     * Creates a new cache entry. An entry which is expected to be
+     * larger than the inline limit is written to a segment of its own
+     * right away, which is extended to the expected size.
+     */
+    @Override
+    public synchronized OutputStream createEntry(String name, long expectedSize) {
+        if (keydir.containsKey(name))
+            throw new IllegalArgumentException("An entry by the specified name already exists in the cache.");
+
+        if (expectedSize > 0) {
+            long available = getAvailableSpace();
+
+            if (expectedSize > available)
+                throw new InsufficientSpaceException(expectedSize, available);
+        }
+
+        // the placeholder gets a sequence number of its own, which is never written
+        Location empty = new Location(null, 0, 0, 0, nextSeq++);
+        keydir.put(name, empty);
+
+        EntryWriter writer = new EntryWriter(name, empty);
+
+        if (expectedSize > INLINE_LIMIT) {
+            try {
+                writer.spill(expectedSize);
+            } catch (IOException e) {
+                keydir.remove(name);
+                throw new RuntimeException("Failed to create log cache entry.", e);
+            }
+        }
+
+        return writer;
+    }
+
+    @Override
+    public synchronized List<String> getEntryNames() {
+        return new ArrayList<>(keydir.keySet());
+    }
+
+    @Override
+    public InputStream readEntry(String name) {
+        return readEntry(name, 0, -1);
+    }
+
+    @Override
+    public synchronized InputStream readEntry(String name, long offset, long length) {
+        Location location = keydir.get(name);
+
+        if (location == null)
+            return null;
+
+        long start = Math.min(offset, location.length);
+        long end = length == -1 ? location.length : Math.min(location.length, start + length);
+
+        // an empty range needs no file
+        File file = location.segment == null || start == end ? null : location.segment.file;
+
+        try {
+            return new RecordInputStream(file, location.valueOffset + start, end - start);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read log cache entry.", e);
+        }
+    }
+
+    @Override
+    public ByteBuffer getEntryBuffer(String name, long offset, int length) {
+        InputStream is;
+        long size;
+
+        synchronized (this) {
+            Location location = keydir.get(name);
+
+            if (location == null)
+                return null;
+
+            long start = Math.min(offset, location.length);
+            long end = length == -1 ? location.length : Math.min(location.length, start + length);
+
+            if (end - start > Integer.MAX_VALUE)
+                throw new IllegalArgumentException("Range is too long for a buffer.");
+
+            size = end - start;
+            is = readEntry(name, start, size);
+        }
+
+        try {
+            byte[] content = new byte[(int) size];
+            new DataInputStream(is).readFully(content);
+            return ByteBuffer.wrap(content).asReadOnlyBuffer();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read log cache entry.", e);
+        } finally {
+            closeQuietly(is);
+        }
+    }
+
+    @Override
+    public synchronized long getEntryLength(String name) {
+        Location location = keydir.get(name);
+        return location == null ? -1 : location.length;
+    }
+
+    @Override
+    public OutputStream appendToEntry(String name) {
+        return rewrite(name, -1);
+    }
+
+    @Override
+    public OutputStream writeEntryAt(String name, long offset) {
+        return rewrite(name, offset);
+    }
+
+    /**
+     * Opens a writer for a new record of an entry, which starts out
+     * with the entry's current content up to an offset.
+     *
+     * @param offset The offset to start writing at, or -1 for the end.
+     */
+    private OutputStream rewrite(String name, long offset) {
+        EntryWriter writer;
+        InputStream is = null;
+        long gap;
+
+        synchronized (this) {
+            Location location = keydir.get(name);
+
+            if (location == null)
+                return null;
+
+            if (offset == -1)
+                offset = location.length;
+
+            long kept = Math.min(offset, location.length);
+            gap = offset - kept;
+            writer = new EntryWriter(name, location);
+
+            if (kept == location.length && fillsSegment(location)) {
+                // readers only see the record up to its length, so it's extended in place
+                location.segment.appending = true;
+            } else {
+                try {
+                    // opened right away, since compaction may delete the segment once the lock is released
+                    is = new RecordInputStream(location.segment == null ? null : location.segment.file, location.valueOffset, kept);
+                } catch (IOException e) {
+                    throw new RuntimeException("Failed to open log cache entry.", e);
+                }
+            }
+        }
+
+        try {
+            byte[] buffer = new byte[0x2000];
+            int nread;
+
+            if (is == null)
+                writer.reopen();
+            else
+                while ((nread = is.read(buffer)) != -1)
+                    writer.write(buffer, 0, nread);
+
+            Arrays.fill(buffer, (byte) 0);
+
+            for (; gap > 0; gap -= buffer.length)
+                writer.write(buffer, 0, (int) Math.min(gap, buffer.length));
+        } catch (IOException e) {
+            writer.discard();
+            throw new RuntimeException("Failed to open log cache entry.", e);
+        } finally {
+            closeQuietly(is);
+        }
+
+        return writer;
+    }
+
+    /**
+     * Checks whether the record of an entry is the only one in a sealed segment,
+     * which isn't already being appended to.
+     */
+    private boolean fillsSegment(Location location) {
+        Segment segment = location.segment;
+
+        return segment != null && segment != active && !segment.appending && segments.containsKey(segment.id)
+                && location.offset == 0 && location.valueOffset + location.length == segment.size;
+    }
+
+    @Override
+    public synchronized void deleteEntry(String name) {
+        Location location = keydir.remove(name);
+
+        if (location == null || location.segment == null)
+            return;
+
+        try {
+            append(DELETE, nextSeq++, name, new byte[0], 0);
+        } catch (IOException e) {
+            keydir.put(name, location);
+            throw new RuntimeException("Failed to delete log cache entry.", e);
+        }
+
+        retire(location);
+    }
+
+    @Override
+    public synchronized void clear() {
+        keydir.clear();
+        compactionQueue.clear();
+
+        closeQuietly(active.writer);
+
+        for (Segment segment : segments.values())
+            deleteSegmentFiles(segment);
+
+        segments.clear();
+
+        try {
+            active = openSegment();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open log cache segment.", e);
+        }
+    }
+
+    @Override
+    public synchronized boolean hasEntry(String name) {
+        return keydir.containsKey(name);
+    }
+
+    @Override
+    public long getAvailableSpace() {
+        return dir.getUsableSpace();
+    }
+
+    /**
+     * Gets statistics of the cache's segments.
+     *
+     * @return A snapshot of the cache's counters.
+     */
+    public synchronized Stats getStats() {
+        Stats stats = new Stats();
+
+        stats.entries = keydir.size();
+        stats.segments = segments.size();
+        stats.compactions = compactions;
+
+        for (Segment segment : segments.values()) {
+            stats.totalBytes += segment.size;
+            stats.liveBytes += segment.liveBytes;
+        }
+
+        return stats;
+    }
+
+    /**
+     * Rebuilds the key directory from the segments, keeping the latest record of each entry.
+     */
+    private void recover() throws IOException {
+        File[] files = dir.listFiles();
+        Map<String, Record> latest = new HashMap<>();
+
+        for (File file : files) {
+            String fileName = file.getName();
+
+            if (!fileName.endsWith(SEGMENT_SUFFIX))
+                continue;
+
+            int id;
+
+            try {
+                id = Integer.parseInt(fileName.substring(0, fileName.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException _) {
+                continue;
+            }
+
+            Segment segment = new Segment(id, file);
+            nextSegmentId = Math.max(nextSegmentId, id + 1);
+
+            List<Record> records = readHints(segment);
+
+            if (records == null) {
+                records = scan(segment);
+
+                if (!records.isEmpty())
+                    writeHints(segment, records);
+            }
+
+            segment.size = file.length();
+
+            if (records.isEmpty()) {
+                deleteSegmentFiles(segment);
+                continue;
+            }
+
+            segments.put(id, segment);
+
+            for (Record record : records) {
+                segment.minSeq = Math.min(segment.minSeq, record.seq);
+
+                if (record.type == DELETE)
+                    segment.tombstones++;
+
+                nextSeq = Math.max(nextSeq, record.seq + 1);
+
+                Record previous = latest.get(record.name);
+
+                if (previous == null || previous.seq < record.seq)
+                    latest.put(record.name, record);
+            }
+        }
+
+        for (Record record : latest.values()) {
+            if (record.type != PUT)
+                continue;
+
+            Location location = new Location(record.segment, record.offset, record.valueOffset, record.length, record.seq);
+            record.segment.liveBytes += location.recordSize();
+            keydir.put(record.name, location);
+        }
+    }
+
+    /**
+     * Reads the records of a segment, stopping at the first one which was cut short,
+     * and trimming the segment there.
+     */
+    private List<Record> scan(Segment segment) throws IOException {
+        List<Record> records = new ArrayList<>();
+        RandomAccessFile file = new RandomAccessFile(segment.file, "rw");
+
+        try {
+            FileChannel channel = file.getChannel();
+            long size = channel.size();
+            long position = 0;
+
+            while (position + HEADER_SIZE <= size) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                readFully(channel, header, position);
+                header.flip();
+
+                int checksum = header.getInt();
+                byte type = header.get();
+                long seq = header.getLong();
+                int nameLength = header.getInt();
+                long valueLength = header.getLong();
+
+                if ((type != PUT && type != DELETE) || nameLength < 0 || position + HEADER_SIZE + nameLength > size)
+                    break;
+
+                ByteBuffer name = ByteBuffer.allocate(nameLength);
+                readFully(channel, name, position + HEADER_SIZE);
+
+                long valueOffset = position + HEADER_SIZE + nameLength;
+
+                if (valueLength == UNSEALED) {
+                    // a streamed entry whose writer never finished keeps what was written
+                    valueLength = size - valueOffset;
+                } else {
+                    if (valueLength < 0 || valueOffset + valueLength > size)
+                        break;
+
+                    CRC32 crc = new CRC32();
+                    ByteBuffer value = ByteBuffer.allocate(0x2000);
+
+                    for (long read = 0; read < valueLength; read += value.limit()) {
+                        value.clear();
+                        value.limit((int) Math.min(value.capacity(), valueLength - read));
+                        readFully(channel, value, valueOffset + read);
+                        crc.update(value.array(), 0, value.limit());
+                    }
+
+                    updateHeader(crc, type, seq, nameLength, valueLength, name.array());
+
+                    if ((int) crc.getValue() != checksum)
+                        break;
+                }
+
+                records.add(new Record(segment, type, seq, new String(name.array(), UTF8), position, valueOffset, valueLength));
+                position = valueOffset + valueLength;
+            }
+
+            if (position < size)
+                channel.truncate(position);
+        } finally {
+            file.close();
+        }
+
+        return records;
+    }
+
+    /**
+     * Reads the hint file of a segment.
+     *
+     * @return The records of the segment, or null if it has no usable hint file.
+     */
+    private static List<Record> readHints(Segment segment) {
+        File hintFile = hintFileOf(segment);
+
+        if (!hintFile.exists())
+            return null;
+
+        List<Record> records = new ArrayList<>();
+        DataInputStream is = null;
+
+        try {
+            is = new DataInputStream(new BufferedInputStream(new FileInputStream(hintFile)));
+            int count = is.readInt();
+
+            for (int i = 0; i < count; i++) {
+                byte type = is.readByte();
+                long seq = is.readLong();
+                String name = is.readUTF();
+                long offset = is.readLong();
+                long valueOffset = is.readLong();
+                long length = is.readLong();
+
+                records.add(new Record(segment, type, seq, name, offset, valueOffset, length));
+            }
+
+            return records;
+        } catch (IOException _) {
+            // a torn hint file is rebuilt from the segment
+            return null;
+        } finally {
+            closeQuietly(is);
+        }
+    }
+
+    /**
+     * Writes the hint file of a segment, replacing it as a whole.
+     */
+    private static void writeHints(Segment segment, List<Record> records) throws IOException {
+        File hintFile = hintFileOf(segment);
+        File temp = new File(hintFile.getPath() + ".tmp");
+        DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+
+        try {
+            os.writeInt(records.size());
+
+            for (Record record : records) {
+                os.writeByte(record.type);
+                os.writeLong(record.seq);
+                os.writeUTF(record.name);
+                os.writeLong(record.offset);
+                os.writeLong(record.valueOffset);
+                os.writeLong(record.length);
+            }
+        } finally {
+            os.close();
+        }
+
+        if (!temp.renameTo(hintFile))
+            throw new IOException("Failed to write log cache hint file.");
+    }
+
+    private static File hintFileOf(Segment segment) {
+        String path = segment.file.getPath();
+        return new File(path.substring(0, path.length() - SEGMENT_SUFFIX.length()) + HINT_SUFFIX);
+    }
+
+    private static void deleteSegmentFiles(Segment segment) {
+        segment.file.delete();
+        hintFileOf(segment).delete();
+    }
+
+    private synchronized int takeSegmentId() {
+        return nextSegmentId++;
+    }
+
+    private File segmentFile(int id) {
+        return new File(dir, String.format("%08d%s", id, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Creates a new active segment, which is kept open for appending.
+     */
+    private Segment openSegment() throws IOException {
+        int id = takeSegmentId();
+        Segment segment = new Segment(id, segmentFile(id));
+
+        segment.writer = new RandomAccessFile(segment.file, "rw");
+        segment.records = new ArrayList<>();
+        segments.put(segment.id, segment);
+
+        return segment;
+    }
+
+    /**
+     * Appends a record to the active segment, sealing it if it's full.
+     *
+     * @return The location of the record.
+     */
+    private Location append(byte type, long seq, String name, byte[] value, int length) throws IOException {
+        byte[] nameBytes = name.getBytes(UTF8);
+        CRC32 crc = new CRC32();
+        crc.update(value, 0, length);
+        updateHeader(crc, type, seq, nameBytes.length, length, nameBytes);
+
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + nameBytes.length + length);
+        record.putInt((int) crc.getValue());
+        record.put(type);
+        record.putLong(seq);
+        record.putInt(nameBytes.length);
+        record.putLong(length);
+        record.put(nameBytes);
+        record.put(value, 0, length);
+        record.flip();
+
+        Segment segment = active;
+        long offset = segment.size;
+        FileChannel channel = segment.writer.getChannel();
+
+        while (record.hasRemaining())
+            channel.write(record, offset + record.position());
+
+        long valueOffset = offset + HEADER_SIZE + nameBytes.length;
+
+        segment.size = valueOffset + length;
+        segment.minSeq = Math.min(segment.minSeq, seq);
+        segment.records.add(new Record(segment, type, seq, name, offset, valueOffset, length));
+
+        if (type == DELETE)
+            segment.tombstones++;
+
+        if (segment.size >= segmentSize) {
+            segment.writer.close();
+            segment.writer = null;
+            writeHints(segment, segment.records);
+            segment.records = null;
+            active = openSegment();
+        }
+
+        return new Location(segment, offset, valueOffset, length, seq);
+    }
+
+    /**
+     * Adds the fields of a record's header to its checksum, which starts with its value.
+     */
+    private static void updateHeader(CRC32 crc, byte type, long seq, int nameLength, long valueLength, byte[] name) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE - 4);
+        header.put(type);
+        header.putLong(seq);
+        header.putInt(nameLength);
+        header.putLong(valueLength);
+
+        crc.update(header.array(), 0, header.capacity());
+        crc.update(name, 0, name.length);
+    }
+
+    /**
+     * Makes a record the latest of its entry, unless the entry changed since its writer was opened.
+     *
+     * @return False if the record was not published.
+     */
+    private synchronized boolean publish(String name, Location base, Location location) {
+        Location current = keydir.get(name);
+
+        // compaction moves records, but keeps their sequence numbers
+        if (current == null || current.seq != base.seq)
+            return false;
+
+        keydir.put(name, location);
+        location.segment.liveBytes += location.recordSize();
+        retire(current);
+
+        return true;
+    }
+
+    /**
+     * Accounts for a record which was overwritten or deleted.
+     */
+    private void retire(Location location) {
+        if (location.segment == null)
+            return;
+
+        location.segment.liveBytes -= location.recordSize();
+        scheduleCompaction(location.segment);
+    }
+
+    /**
+     * Queues a sealed segment for compaction if enough of it is dead.
+     */
+    private void scheduleCompaction(Segment segment) {
+        if (segment == active || segment.appending || segment.liveBytes * 2 > segment.size || !segments.containsKey(segment.id))
+            return;
+
+        compactionQueue.add(segment);
+
+        if (compacting)
+            return;
+
+        compacting = true;
+
+        compactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                while (compactNext()) {
+                    // each segment is compacted separately, so others may use the cache in between
+                }
+            }
+        });
+    }
+
+    /**
+     * Compacts the next queued segment.
+     *
+     * @return True if compaction should go on.
+     */
+    private boolean compactNext() {
+        Segment segment;
+
+        synchronized (this) {
+            if (compactionQueue.isEmpty()) {
+                compacting = false;
+                return false;
+            }
+
+            segment = compactionQueue.iterator().next();
+            compactionQueue.remove(segment);
+        }
+
+        try {
+            compact(segment);
+        } catch (IOException _) {
+            // the segment is left as it is, and compacted again once more of it is dead
+        }
+
+        return true;
+    }
+
+    /**
+     * Copies the live records of a segment to the active segment, and deletes it.
+     * The segment is sealed, so it's read without holding the lock, and only
+     * the records which are still live afterwards are copied.
+     */
+    private void compact(Segment segment) throws IOException {
+        synchronized (this) {
+            if (!segments.containsKey(segment.id))
+                return;
+
+            // a segment without live records or tombstones needn't be read
+            if (segment.liveBytes == 0 && segment.tombstones == 0) {
+                segments.remove(segment.id);
+                deleteSegmentFiles(segment);
+                compactions++;
+                return;
+            }
+        }
+
+        List<Record> records = readHints(segment);
+
+        if (records == null) {
+            // scanning would create a segment which the cache was cleared of meanwhile
+            if (!segment.file.exists())
+                return;
+
+            records = scan(segment);
+        }
+
+        List<Record> live = new ArrayList<>();
+
+        synchronized (this) {
+            for (Record record : records) {
+                if (record.type == PUT && isLatest(segment, record))
+                    live.add(record);
+            }
+        }
+
+        Map<Record, byte[]> values = new HashMap<>();
+
+        for (Record record : live) {
+            byte[] value = new byte[(int) record.length];
+            InputStream is = new RecordInputStream(segment.file, record.valueOffset, record.length);
+
+            try {
+                new DataInputStream(is).readFully(value);
+            } finally {
+                closeQuietly(is);
+            }
+
+            values.put(record, value);
+        }
+
+        synchronized (this) {
+            // the cache may have been cleared meanwhile
+            if (!segments.containsKey(segment.id))
+                return;
+
+            for (Record record : records) {
+                if (record.type == PUT) {
+                    byte[] value = values.get(record);
+
+                    if (value == null || !isLatest(segment, record))
+                        continue;
+
+                    Location moved = append(PUT, record.seq, record.name, value, value.length);
+                    keydir.put(record.name, moved);
+                    moved.segment.liveBytes += moved.recordSize();
+                } else if (!keydir.containsKey(record.name) && hasOlderSegment(segment, record.seq)) {
+                    // the tombstone still hides older records of the entry
+                    append(DELETE, record.seq, record.name, new byte[0], 0);
+                }
+            }
+
+            segments.remove(segment.id);
+            deleteSegmentFiles(segment);
+            compactions++;
+        }
+    }
+
+    private boolean isLatest(Segment segment, Record record) {
+        Location location = keydir.get(record.name);
+        return location != null && location.segment == segment && location.offset == record.offset;
+    }
+
+    private boolean hasOlderSegment(Segment segment, long seq) {
+        for (Segment other : segments.values()) {
+            if (other != segment && other.minSeq < seq)
+                return true;
+        }
+
+        return false;
+    }
+
+    private synchronized long takeSeq() {
+        return nextSeq++;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) == -1)
+                throw new EOFException();
+        }
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        if (closeable == null)
+            return;
+
+        try {
+            closeable.close();
+        } catch (IOException _) {
+            // ignored
+        }
+    }
+
+    /**
+     * A segment file, and the bookkeeping for its compaction.
+     */
+    private static class Segment {
+        final int id;
+        final File file;
+        long size = 0;
+        long liveBytes = 0;
+        long minSeq = Long.MAX_VALUE;
+        int tombstones = 0;
+
+        /**
+         * Whether the segment's only record is being appended to.
+         */
+        boolean appending = false;
+
+        /**
+         * The file the active segment is appended to through.
+         */
+        RandomAccessFile writer;
+
+        /**
+         * The records of the active segment, which are written to its hint file once it's sealed.
+         */
+        List<Record> records;
+
+        Segment(int id, File file) {
+            this.id = id;
+            this.file = file;
+        }
+    }
+
+    /**
+     * Where the latest record of an entry is.
+     * An entry which was created but not yet written has no segment.
+     */
+    private static class Location {
+        final Segment segment;
+        final long offset;
+        final long valueOffset;
+        final long length;
+        final long seq;
+
+        Location(Segment segment, long offset, long valueOffset, long length, long seq) {
+            this.segment = segment;
+            this.offset = offset;
+            this.valueOffset = valueOffset;
+            this.length = length;
+            this.seq = seq;
+        }
+
+        long recordSize() {
+            return valueOffset - offset + length;
+        }
+    }
+
+    /**
+     * A record as found in a segment or its hint file.
+     */
+    private static class Record {
+        final Segment segment;
+        final byte type;
+        final long seq;
+        final String name;
+        final long offset;
+        final long valueOffset;
+        final long length;
+
+        Record(Segment segment, byte type, long seq, String name, long offset, long valueOffset, long length) {
+            this.segment = segment;
+            this.type = type;
+            this.seq = seq;
+            this.name = name;
+            this.offset = offset;
+            this.valueOffset = valueOffset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Writes a new record of an entry. The record is buffered until it outgrows
+     * the inline limit, and then streamed into a segment of its own.
+     */
+    private class EntryWriter extends OutputStream {
+        private final String name;
+        private final byte[] nameBytes;
+        private final Location base;
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private int segmentId;
+        private Segment reopened;
+        private byte[] sealedHeader;
+        private RandomAccessFile file;
+        private FileChannel channel;
+        private CRC32 crc;
+        private long length = 0;
+        private boolean closed = false;
+
+        EntryWriter(String name, Location base) {
+            this.name = name;
+            this.nameBytes = name.getBytes(UTF8);
+            this.base = base;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed)
+                throw new IOException("Stream is closed.");
+
+            if (channel == null && buffer.size() + len > INLINE_LIMIT)
+                spill(-1);
+
+            if (channel == null) {
+                buffer.write(b, off, len);
+                return;
+            }
+
+            ByteBuffer bb = ByteBuffer.wrap(b, off, len);
+            long position = HEADER_SIZE + nameBytes.length + length;
+
+            while (bb.hasRemaining())
+                position += channel.write(bb, position);
+
+            crc.update(b, off, len);
+            length += len;
+        }
+
+        /**
+         * Moves the record to a segment of its own, writing an unsealed header
+         * with the current sequence number, so that the content survives a crash.
+         */
+        void spill(long expectedSize) throws IOException {
+            segmentId = takeSegmentId();
+            file = new RandomAccessFile(segmentFile(segmentId), "rw");
+            channel = file.getChannel();
+            crc = new CRC32();
+
+            try {
+                if (expectedSize > 0)
+                    file.setLength(HEADER_SIZE + nameBytes.length + expectedSize);
+
+                writeHeader(0, takeSeq(), UNSEALED);
+            } catch (IOException e) {
+                discard();
+                throw e;
+            }
+
+            byte[] buffered = buffer.toByteArray();
+            buffer = null;
+
+            write(buffered, 0, buffered.length);
+        }
+
+        /**
+         * Continues the base record, which fills a segment of its own, in place.
+         * Its value is read to resume the checksum, and its header is marked
+         * unsealed again, keeping what's written if the process dies.
+         */
+        void reopen() throws IOException {
+            reopened = base.segment;
+            segmentId = reopened.id;
+            buffer = null;
+            file = new RandomAccessFile(reopened.file, "rw");
+            channel = file.getChannel();
+            crc = new CRC32();
+
+            ByteBuffer header = ByteBuffer.allocate((int) base.valueOffset);
+            readFully(channel, header, 0);
+            sealedHeader = header.array();
+
+            ByteBuffer value = ByteBuffer.allocate(0x2000);
+
+            for (long read = 0; read < base.length; read += value.limit()) {
+                value.clear();
+                value.limit((int) Math.min(value.capacity(), base.length - read));
+                readFully(channel, value, base.valueOffset + read);
+                crc.update(value.array(), 0, value.limit());
+            }
+
+            length = base.length;
+
+            // the segment is scanned if the process dies before it's sealed again
+            hintFileOf(reopened).delete();
+            writeHeader(0, takeSeq(), UNSEALED);
+        }
+
+        private void writeHeader(int checksum, long seq, long valueLength) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + nameBytes.length);
+            header.putInt(checksum);
+            header.put(PUT);
+            header.putLong(seq);
+            header.putInt(nameBytes.length);
+            header.putLong(valueLength);
+            header.put(nameBytes);
+            header.flip();
+
+            while (header.hasRemaining())
+                channel.write(header, header.position());
+        }
+
+        /**
+         * Drops the record, along with its segment if it has one.
+         */
+        void discard() {
+            closed = true;
+
+            if (reopened != null) {
+                restore();
+                return;
+            }
+
+            if (file != null) {
+                closeQuietly(file);
+                segmentFile(segmentId).delete();
+            }
+        }
+
+        /**
+         * Seals a reopened record again as it was, and lets its segment be compacted.
+         */
+        private void restore() {
+            try {
+                if (sealedHeader != null) {
+                    channel.truncate(base.valueOffset + base.length);
+
+                    ByteBuffer header = ByteBuffer.wrap(sealedHeader);
+
+                    while (header.hasRemaining())
+                        channel.write(header, header.position());
+
+                    writeHints(reopened, Arrays.asList(new Record(reopened, PUT, base.seq, name, 0, base.valueOffset, base.length)));
+                }
+            } catch (IOException _) {
+                // left unsealed, the record keeps its content when it's recovered
+            } finally {
+                closeQuietly(file);
+            }
+
+            synchronized (LogCache.this) {
+                reopened.appending = false;
+                scheduleCompaction(reopened);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed)
+                return;
+
+            closed = true;
+
+            if (channel == null) {
+                closeInline();
+                return;
+            }
+
+            if (reopened != null) {
+                closeReopened();
+                return;
+            }
+
+            long seq = takeSeq();
+
+            try {
+                updateHeader(crc, PUT, seq, nameBytes.length, length, nameBytes);
+                channel.truncate(HEADER_SIZE + nameBytes.length + length);
+                writeHeader((int) crc.getValue(), seq, length);
+            } catch (IOException e) {
+                discard();
+                throw e;
+            } finally {
+                file.close();
+            }
+
+            Segment segment = new Segment(segmentId, segmentFile(segmentId));
+            long valueOffset = HEADER_SIZE + nameBytes.length;
+
+            segment.size = valueOffset + length;
+            segment.minSeq = seq;
+
+            Location location = new Location(segment, 0, valueOffset, length, seq);
+            writeHints(segment, Arrays.asList(new Record(segment, PUT, seq, name, 0, valueOffset, length)));
+
+            synchronized (LogCache.this) {
+                segments.put(segment.id, segment);
+
+                // an entry deleted while it was written stays deleted
+                if (!publish(name, base, location)) {
+                    segments.remove(segment.id);
+                    deleteSegmentFiles(segment);
+                }
+            }
+        }
+
+        private void closeReopened() throws IOException {
+            long seq = takeSeq();
+
+            try {
+                updateHeader(crc, PUT, seq, nameBytes.length, length, nameBytes);
+                channel.truncate(HEADER_SIZE + nameBytes.length + length);
+                writeHeader((int) crc.getValue(), seq, length);
+            } catch (IOException e) {
+                discard();
+                throw e;
+            } finally {
+                file.close();
+            }
+
+            long valueOffset = HEADER_SIZE + nameBytes.length;
+            Location location = new Location(reopened, 0, valueOffset, length, seq);
+
+            try {
+                writeHints(reopened, Arrays.asList(new Record(reopened, PUT, seq, name, 0, valueOffset, length)));
+            } catch (IOException _) {
+                // the segment is scanned instead when it's recovered
+            }
+
+            synchronized (LogCache.this) {
+                reopened.appending = false;
+                reopened.size = valueOffset + length;
+                reopened.minSeq = seq;
+
+                // the old record was retired along with the entry, so the segment holds nothing live
+                if (!publish(name, base, location)) {
+                    segments.remove(reopened.id);
+                    deleteSegmentFiles(reopened);
+                }
+            }
+        }
+
+        private void closeInline() throws IOException {
+            synchronized (LogCache.this) {
+                Location current = keydir.get(name);
+
+                if (current == null || current.seq != base.seq)
+                    return;
+
+                Location location = append(PUT, takeSeq(), name, buffer.toByteArray(), buffer.size());
+                publish(name, base, location);
+            }
+        }
+    }
+
+    /**
+     * Reads a range of a segment file with positional reads.
+     */
+    private static class RecordInputStream extends InputStream {
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private long position;
+        private final long end;
+
+        RecordInputStream(File path, long offset, long length) throws IOException {
+            file = path == null ? null : new RandomAccessFile(path, "r");
+            channel = file == null ? null : file.getChannel();
+            position = offset;
+            end = offset + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= end)
+                return -1;
+
+            len = (int) Math.min(len, end - position);
+
+            int nread = channel.read(ByteBuffer.wrap(b, off, len), position);
+
+            if (nread > 0)
+                position += nread;
+
+            return nread;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, end - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.max(0, Math.min(Integer.MAX_VALUE, end - position));
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (file != null)
+                file.close();
+        }
+    }
+
+    public static class Stats {
+        /**
+         * The number of entries in the cache.
+         */
+        public int entries;
+
+        /**
+         * The number of segment files.
+         */
+        public int segments;
+
+        /**
+         * The total size of all segments.
+         */
+        public long totalBytes;
+
+        /**
+         * The size of the records which are the latest of their entries.
+         */
+        public long liveBytes;
+
+        /**
+         * How many segments were compacted.
+         */
+        public long compactions;
+    }
+}
@@ -1,63 +1,481 @@
 package la.manga.app.storage;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Implements an in-memory non-persistent cache.
+ * Entries are stored in chunks, and read in place by any number of readers.
+ * Each entry is locked on its own, so operations on different entries never
+ * wait for each other, and listing or clearing the cache doesn't hold up
+ * any of them. Each stream returned for writing is a separate handle on
+ * the entry, and the entry is followed until all of them are closed.
  */
-public class MemoryCache implements Cache {
-    private HashMap<String, ByteArrayOutputStream> entries = new HashMap<>();
+public class MemoryCache implements FollowableCache, ReplaceableCache {
+    private final ConcurrentHashMap<String, EntryStream> entries = new ConcurrentHashMap<>();
 
     @Override
-    public synchronized OutputStream createEntry(String name) {
-        if (hasEntry(name))
+    public OutputStream createEntry(String name) {
+        return createEntry(name, -1);
+    }
+
+    @Override
+    public OutputStream createEntry(String name, long expectedSize) {
+        EntryStream os = new EntryStream(expectedSize);
+
+        if (entries.putIfAbsent(name, os) != null)
             throw new IllegalArgumentException("An entry by the specified name already exists in the cache.");
 
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
-        entries.put(name, os);
-        return os;
+        return new EntryWriter(os);
     }
 
     @Override
-    public synchronized List<String> getEntryNames() {
+    public OutputStream replaceEntry(final String name) {
+        final EntryStream replacement = new EntryStream(-1);
+
+        return new OutputStream() {
+            private boolean closed = false;
+
+            @Override
+            public void write(int b) {
+                replacement.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                replacement.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                if (closed)
+                    return;
+
+                closed = true;
+                EntryStream old = entries.put(name, replacement);
+
+                if (old != null)
+                    old.delete();
+            }
+        };
+    }
+
+    @Override
+    public List<String> getEntryNames() {
         return new ArrayList<>(entries.keySet());
     }
 
     @Override
-    public synchronized InputStream readEntry(String name) {
-        ByteArrayOutputStream os = entries.get(name);
+    public InputStream readEntry(String name) {
+        EntryStream os = entries.get(name);
+
+        if (os == null)
+            return null;
+
+        return os.newReader();
+    }
+
+    @Override
+    public InputStream readEntry(String name, long offset, long length) {
+        EntryStream os = entries.get(name);
+
+        if (os == null)
+            return null;
+
+        return os.newReader(offset, length);
+    }
+
+    @Override
+    public ByteBuffer getEntryBuffer(String name, long offset, int length) {
+        EntryStream os = entries.get(name);
+
+        if (os == null)
+            return null;
+
+        return os.slice(offset, length);
+    }
+
+    @Override
+    public long getEntryLength(String name) {
+        EntryStream os = entries.get(name);
+
+        if (os == null)
+            return -1;
+
+        return os.size();
+    }
+
+    @Override
+    public InputStream followEntry(String name) {
+        EntryStream os = entries.get(name);
 
         if (os == null)
             return null;
 
-        byte[] array = os.toByteArray();
+        return new FollowReader(os);
+    }
+
+    @Override
+    public OutputStream appendToEntry(String name) {
+        EntryStream os = entries.get(name);
+
+        if (os == null)
+            return null;
 
-        return new ByteArrayInputStream(array);
+        return new EntryWriter(os);
     }
 
     @Override
-    public synchronized OutputStream appendToEntry(String name) {
-        return entries.get(name);
+    public OutputStream writeEntryAt(String name, long offset) {
+        EntryStream os = entries.get(name);
+
+        if (os == null)
+            return null;
+
+        os.seek(offset);
+        return new EntryWriter(os);
     }
 
     @Override
-    public synchronized void deleteEntry(String name) {
-        entries.remove(name);
+    public void deleteEntry(String name) {
+        EntryStream os = entries.remove(name);
+
+        if (os != null)
+            os.delete();
     }
 
     @Override
-    public synchronized void clear() {
-        entries.clear();
+    public void clear() {
+        for (String name : getEntryNames())
+            deleteEntry(name);
     }
 
     @Override
-    public synchronized boolean hasEntry(String name) {
+    public boolean hasEntry(String name) {
         return entries.containsKey(name);
     }
+
+    @Override
+    public long getAvailableSpace() {
+        return -1;
+    }
+
+    /**
+     * An entry's backing stream, which stores its content in a list of chunks.
+     * <p>
+     * All chunks but the last are full, and {@link #CHUNK_SIZE} long, so growing
+     * never copies more than one chunk. The last chunk starts small and doubles
+     * until it's full, so that small entries stay small. Readers walk the chunks
+     * in place: later writes either land beyond their bounds, or replace the
+     * chunks they change, so a reader's view never changes.
+     */
+    private static class EntryStream extends OutputStream {
+        static final int CHUNK_SIZE = 0x10000;
+        private static final int MIN_CHUNK_SIZE = 0x100;
+
+        private byte[][] chunks = new byte[4][];
+        private int chunkCount = 0;
+        private long count = 0;
+        private boolean large = false;
+        private int writers = 0;
+        private boolean deleted = false;
+
+        EntryStream(long expectedSize) {
+            if (expectedSize >= CHUNK_SIZE) {
+                chunks = new byte[(int) Math.min(Integer.MAX_VALUE, (expectedSize + CHUNK_SIZE - 1) / CHUNK_SIZE)][];
+                large = true;
+            }
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            while (len > 0) {
+                int within = (int) (count % CHUNK_SIZE);
+                byte[] chunk = reserve(within + Math.min(len, CHUNK_SIZE - within));
+                int n = Math.min(len, chunk.length - within);
+
+                System.arraycopy(b, off, chunk, within, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+
+            // wake up followers
+            notifyAll();
+        }
+
+        synchronized void openWriter() {
+            writers++;
+        }
+
+        synchronized void closeWriter() {
+            writers--;
+            notifyAll();
+        }
+
+        synchronized void delete() {
+            deleted = true;
+            notifyAll();
+        }
+
+        /**
+         * Waits until the entry grows beyond a position, or is no longer written to.
+         *
+         * @return A reader over what was written beyond the position, which is empty at the end.
+         * @throws IOException The entry was deleted.
+         */
+        synchronized ChunkReader awaitBeyond(long position) throws IOException {
+            try {
+                while (position >= count && writers > 0 && !deleted)
+                    wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while following a cache entry.");
+            }
+
+            if (deleted)
+                throw new IOException("Entry was deleted while it was followed.");
+
+            return new ChunkReader(chunks, Math.min(position, count), count);
+        }
+
+        /**
+         * Gets the chunk to write at the end into, making room for the specified length in it.
+         */
+        private byte[] reserve(int length) {
+            int index = (int) (count / CHUNK_SIZE);
+
+            if (index == chunkCount) {
+                if (chunkCount == chunks.length)
+                    chunks = Arrays.copyOf(chunks, chunkCount * 2);
+
+                // only the first chunk of a small entry starts small
+                chunks[chunkCount++] = new byte[large || index > 0 ? CHUNK_SIZE : Math.max(length, MIN_CHUNK_SIZE)];
+            }
+
+            byte[] chunk = chunks[index];
+
+            if (chunk.length < length) {
+                int size = chunk.length;
+
+                while (size < length)
+                    size = Math.min(size * 2, CHUNK_SIZE);
+
+                // the copy has the same content, so readers sharing the array don't mind
+                chunk = Arrays.copyOf(chunk, size);
+                chunks[index] = chunk;
+            }
+
+            return chunk;
+        }
+
+        synchronized long size() {
+            return count;
+        }
+
+        /**
+         * Creates a reader over the bytes written so far.
+         */
+        synchronized InputStream newReader() {
+            return new ChunkReader(chunks, 0, count);
+        }
+
+        /**
+         * Creates a reader over a range of the bytes written so far.
+         */
+        synchronized InputStream newReader(long offset, long length) {
+            long start = Math.min(offset, count);
+            long end = length == -1 ? count : Math.min(count, start + length);
+
+            return new ChunkReader(chunks, start, end);
+        }
+
+        /**
+         * Creates a read-only view of a range of the bytes written so far.
+         * A range within a single chunk shares its array, while a range
+         * spanning several chunks has to be copied.
+         */
+        synchronized ByteBuffer slice(long offset, int length) {
+            long start = Math.min(offset, count);
+            long end = length == -1 ? count : Math.min(count, start + length);
+
+            if (end - start > Integer.MAX_VALUE)
+                throw new IllegalArgumentException("Range is too long for a buffer.");
+
+            int size = (int) (end - start);
+            int index = (int) (start / CHUNK_SIZE);
+            int within = (int) (start % CHUNK_SIZE);
+
+            if (size == 0 || within + size <= CHUNK_SIZE && index < chunkCount)
+                return ByteBuffer.wrap(size == 0 ? new byte[0] : chunks[index], within, size).slice().asReadOnlyBuffer();
+
+            byte[] copy = new byte[size];
+            new ChunkReader(chunks, start, end).read(copy, 0, size);
+
+            return ByteBuffer.wrap(copy).asReadOnlyBuffer();
+        }
+
+        /**
+         * Moves the write position, discarding everything after it,
+         * or filling the gap with zeros if it's beyond the end.
+         * The chunk list and the chunk at the new end are replaced
+         * rather than changed in place, so that readers keep their view.
+         */
+        synchronized void seek(long offset) {
+            if (offset > count) {
+                byte[] zeros = new byte[(int) Math.min(CHUNK_SIZE, offset - count)];
+
+                while (count < offset)
+                    write(zeros, 0, (int) Math.min(zeros.length, offset - count));
+
+                return;
+            }
+
+            int kept = (int) ((offset + CHUNK_SIZE - 1) / CHUNK_SIZE);
+            byte[][] replaced = new byte[Math.max(kept, 4)][];
+
+            System.arraycopy(chunks, 0, replaced, 0, kept);
+
+            if (offset % CHUNK_SIZE != 0)
+                replaced[kept - 1] = Arrays.copyOf(replaced[kept - 1], replaced[kept - 1].length);
+
+            chunks = replaced;
+            chunkCount = kept;
+            count = offset;
+        }
+    }
+
+    /**
+     * A handle for writing to an entry, which tells followers when it's closed.
+     */
+    private static class EntryWriter extends OutputStream {
+        private final EntryStream stream;
+        private boolean closed = false;
+
+        EntryWriter(EntryStream stream) {
+            this.stream = stream;
+            stream.openWriter();
+        }
+
+        @Override
+        public void write(int b) {
+            stream.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            stream.write(b, off, len);
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                stream.closeWriter();
+            }
+        }
+    }
+
+    /**
+     * Reads an entry as it's written, waiting at its end until it's no longer written to.
+     */
+    private static class FollowReader extends InputStream {
+        private final EntryStream stream;
+        private long position = 0;
+
+        FollowReader(EntryStream stream) {
+            this.stream = stream;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+
+            // the chunks are read outside of the lock, since writes never change what they hold
+            int nread = stream.awaitBeyond(position).read(b, off, len);
+
+            if (nread > 0)
+                position += nread;
+
+            return nread;
+        }
+    }
+
+    /**
+     * Reads a range of an entry's chunks in place.
+     */
+    private static class ChunkReader extends InputStream {
+        private final byte[][] chunks;
+        private final long end;
+        private long position;
+
+        ChunkReader(byte[][] chunks, long start, long end) {
+            this.chunks = chunks;
+            this.position = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read() {
+            if (position >= end)
+                return -1;
+
+            byte b = chunks[(int) (position / EntryStream.CHUNK_SIZE)][(int) (position % EntryStream.CHUNK_SIZE)];
+            position++;
+
+            return b & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (position >= end)
+                return len == 0 ? 0 : -1;
+
+            int total = (int) Math.min(len, end - position);
+            int remaining = total;
+
+            while (remaining > 0) {
+                byte[] chunk = chunks[(int) (position / EntryStream.CHUNK_SIZE)];
+                int within = (int) (position % EntryStream.CHUNK_SIZE);
+                int n = Math.min(remaining, EntryStream.CHUNK_SIZE - within);
+
+                System.arraycopy(chunk, within, b, off, n);
+                position += n;
+                off += n;
+                remaining -= n;
+            }
+
+            return total;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, end - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+    }
 }
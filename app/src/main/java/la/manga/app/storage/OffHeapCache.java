@@ -0,0 +1,598 @@
+package la.manga.app.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * An in-memory non-persistent cache, which keeps its content outside of the Java heap.
+ * <p>
+ * Content is stored in fixed-size blocks carved out of direct {@link ByteBuffer}
+ * slabs, which are allocated as needed up to a byte budget. Only the small
+ * per-entry bookkeeping lives on the heap, so a burst of entries does not
+ * make the garbage collector copy or scan their content.
+ * <p>
+ * When the budget is used up, entries are evicted in CLOCK order: each read
+ * marks an entry as referenced, and the clock hand gives referenced entries
+ * a second chance before evicting them. Entries which are open for writing
+ * are never evicted. Readers hold on to the blocks they read rather than to
+ * the entry, so an entry may be evicted or deleted while it's being read,
+ * and its blocks are only reused once its readers are closed. As with
+ * {@link MemoryCache}, readers keep their view of an entry while it's
+ * written to.
+ */
+public class OffHeapCache implements Cache {
+    public static final int BLOCK_SIZE = 0x1000;
+    private static final int BLOCKS_PER_SLAB = 0x100;
+
+    private final long maxBytes;
+    private final int maxBlocks;
+    private final HashMap<String, Entry> entries = new HashMap<>();
+    private final List<Entry> clock = new ArrayList<>();
+    private int hand = 0;
+
+    private ByteBuffer[] slabs = new ByteBuffer[0];
+    private int[] freeBlocks = new int[0];
+    private int freeCount = 0;
+    private int allocatedBlocks = 0;
+    private int usedBlocks = 0;
+    private long evictions = 0;
+    private long evictedBytes = 0;
+
+    /**
+     * Creates a new off-heap cache.
+     *
+     * @param maxBytes The byte budget for the content of all entries.
+     */
+    public OffHeapCache(long maxBytes) {
+        if (maxBytes < BLOCK_SIZE)
+            throw new IllegalArgumentException("Budget must hold at least one block.");
+
+        this.maxBytes = maxBytes;
+        this.maxBlocks = (int) Math.min(Integer.MAX_VALUE, maxBytes / BLOCK_SIZE);
+    }
+
+    @Override
+    public synchronized OutputStream createEntry(String name) {
+        return createEntry(name, -1);
+    }
+
+    @Override
+    public synchronized OutputStream createEntry(String name, long expectedSize) {
+        if (hasEntry(name))
+            throw new IllegalArgumentException("An entry by the specified name already exists in the cache.");
+
+        if (expectedSize > maxBytes)
+            throw new InsufficientSpaceException(expectedSize, maxBytes);
+
+        Entry entry = new Entry(name);
+        entries.put(name, entry);
+        clock.add(entry);
+
+        return new EntryWriter(entry, 0);
+    }
+
+    @Override
+    public synchronized List<String> getEntryNames() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    @Override
+    public synchronized InputStream readEntry(String name) {
+        return readEntry(name, 0, -1);
+    }
+
+    @Override
+    public synchronized InputStream readEntry(String name, long offset, long length) {
+        Entry entry = entries.get(name);
+
+        if (entry == null)
+            return null;
+
+        long start = Math.min(offset, entry.length);
+        long end = length == -1 ? entry.length : Math.min(entry.length, start + length);
+
+        entry.referenced = true;
+        entry.readers++;
+
+        return new EntryReader(entry, start, end);
+    }
+
+    /**
+     * Gets a view of a range of an entry.
+     * Since the blocks of an entry may be reused once it's evicted,
+     * the range is copied rather than shared.
+     */
+    @Override
+    public synchronized ByteBuffer getEntryBuffer(String name, long offset, int length) {
+        Entry entry = entries.get(name);
+
+        if (entry == null)
+            return null;
+
+        long start = Math.min(offset, entry.length);
+        long end = length == -1 ? entry.length : Math.min(entry.length, start + length);
+
+        if (end - start > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Range is too long for a buffer.");
+
+        byte[] copy = new byte[(int) (end - start)];
+        copyOut(entry.blocks, start, copy, 0, copy.length);
+        entry.referenced = true;
+
+        return ByteBuffer.wrap(copy).asReadOnlyBuffer();
+    }
+
+    @Override
+    public synchronized long getEntryLength(String name) {
+        Entry entry = entries.get(name);
+        return entry == null ? -1 : entry.length;
+    }
+
+    @Override
+    public synchronized OutputStream appendToEntry(String name) {
+        Entry entry = entries.get(name);
+
+        if (entry == null)
+            return null;
+
+        return new EntryWriter(entry, entry.length);
+    }
+
+    @Override
+    public synchronized OutputStream writeEntryAt(String name, long offset) {
+        Entry entry = entries.get(name);
+
+        if (entry == null)
+            return null;
+
+        // the writer fills any gap with zeros as it starts writing
+        if (offset < entry.length)
+            truncate(entry, offset);
+
+        return new EntryWriter(entry, offset);
+    }
+
+    @Override
+    public synchronized void deleteEntry(String name) {
+        Entry entry = entries.remove(name);
+
+        if (entry != null)
+            remove(entry);
+    }
+
+    @Override
+    public synchronized void clear() {
+        for (Entry entry : new ArrayList<>(entries.values()))
+            deleteEntry(entry.name);
+    }
+
+    @Override
+    public synchronized boolean hasEntry(String name) {
+        return entries.containsKey(name);
+    }
+
+    /**
+     * Gets how much more content the cache can currently store,
+     * counting the space which evicting every idle entry would make.
+     * The blocks of entries being read are only freed once their
+     * readers are closed, so they don't count.
+     */
+    @Override
+    public synchronized long getAvailableSpace() {
+        long idleBlocks = 0;
+
+        for (Entry entry : clock) {
+            if (!entry.isBusy())
+                idleBlocks += entry.blockCount;
+        }
+
+        return (maxBlocks - usedBlocks + idleBlocks) * (long) BLOCK_SIZE;
+    }
+
+    /**
+     * Gets statistics of the cache's memory use and evictions.
+     *
+     * @return A snapshot of the cache's counters.
+     */
+    public synchronized Stats getStats() {
+        Stats stats = new Stats();
+
+        stats.maxBytes = maxBytes;
+        stats.footprint = usedBlocks * (long) BLOCK_SIZE;
+        stats.allocatedBytes = allocatedBlocks * (long) BLOCK_SIZE;
+        stats.entries = entries.size();
+        stats.evictions = evictions;
+        stats.evictedBytes = evictedBytes;
+
+        return stats;
+    }
+
+    /**
+     * Takes a free block, allocating a new slab or evicting entries if needed.
+     *
+     * @param writer The entry the block is for, which must not be evicted itself.
+     */
+    private int allocateBlock(Entry writer) throws IOException {
+        if (freeCount == 0 && allocatedBlocks < maxBlocks)
+            allocateSlab();
+
+        while (freeCount == 0) {
+            if (!evictNext(writer))
+                throw new IOException("Cache budget is used up by entries in use.");
+        }
+
+        usedBlocks++;
+        return freeBlocks[--freeCount];
+    }
+
+    private void allocateSlab() {
+        int count = Math.min(BLOCKS_PER_SLAB, maxBlocks - allocatedBlocks);
+        int first = allocatedBlocks;
+
+        slabs = Arrays.copyOf(slabs, slabs.length + 1);
+        slabs[slabs.length - 1] = ByteBuffer.allocateDirect(count * BLOCK_SIZE);
+
+        if (freeBlocks.length < first + count)
+            freeBlocks = Arrays.copyOf(freeBlocks, first + count);
+
+        // hand out the blocks in order, so that entries tend to be contiguous
+        for (int i = count - 1; i >= 0; i--)
+            freeBlocks[freeCount++] = first + i;
+
+        allocatedBlocks += count;
+    }
+
+    private void freeBlocks(int[] blocks, int count) {
+        for (int i = 0; i < count; i++)
+            freeBlocks[freeCount++] = blocks[i];
+
+        usedBlocks -= count;
+    }
+
+    /**
+     * Moves the clock hand to the next entry which may be evicted, and evicts it.
+     * Referenced entries lose their mark, and are only evicted on the next round.
+     *
+     * @return False if there was no entry to evict.
+     */
+    private boolean evictNext(Entry writer) {
+        // two rounds clear all marks, so an idle entry must come up by then
+        for (int visited = 0; visited < clock.size() * 2; visited++) {
+            if (hand >= clock.size())
+                hand = 0;
+
+            Entry entry = clock.get(hand);
+
+            // an entry being read may go, since its readers keep its blocks
+            if (entry == writer || entry.writers > 0 || entry.blockCount == 0) {
+                hand++;
+            } else if (entry.referenced) {
+                entry.referenced = false;
+                hand++;
+            } else {
+                evictions++;
+                evictedBytes += entry.length;
+                entries.remove(entry.name);
+                remove(entry);
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Removes an entry from the clock, and frees its blocks once it's no longer read.
+     */
+    private void remove(Entry entry) {
+        int index = clock.indexOf(entry);
+        clock.remove(index);
+
+        if (index < hand)
+            hand--;
+
+        entry.removed = true;
+        retire(entry, 0);
+    }
+
+    /**
+     * Cuts an entry short at an offset. If the entry is being read, the blocks
+     * beyond the offset are kept until its readers are closed, and the block
+     * at the offset is copied into a fresh one before it's written over.
+     */
+    private void truncate(Entry entry, long offset) {
+        int kept = (int) ((offset + BLOCK_SIZE - 1) / BLOCK_SIZE);
+
+        if (entry.readers > 0 && offset % BLOCK_SIZE != 0) {
+            int partial = entry.blocks[kept - 1];
+            int copy;
+
+            try {
+                copy = allocateBlock(entry);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+
+            copyBlock(partial, copy);
+            entry.blocks = entry.blocks.clone();
+            entry.blocks[kept - 1] = copy;
+            entry.retire(partial);
+        }
+
+        retire(entry, kept);
+        entry.length = offset;
+    }
+
+    /**
+     * Drops an entry's blocks from the specified index on, freeing them
+     * right away unless readers may still be looking at them.
+     */
+    private void retire(Entry entry, int from) {
+        int count = entry.blockCount - from;
+
+        if (count <= 0)
+            return;
+
+        if (entry.readers > 0) {
+            for (int i = from; i < entry.blockCount; i++)
+                entry.retire(entry.blocks[i]);
+
+            entry.blocks = entry.blocks.clone();
+        } else {
+            freeBlocks(Arrays.copyOfRange(entry.blocks, from, entry.blockCount), count);
+        }
+
+        entry.blockCount = from;
+        entry.length = Math.min(entry.length, from * (long) BLOCK_SIZE);
+    }
+
+    private synchronized void onReaderClosed(Entry entry) {
+        if (--entry.readers == 0 && entry.retiredCount > 0) {
+            freeBlocks(entry.retired, entry.retiredCount);
+            entry.retired = new int[0];
+            entry.retiredCount = 0;
+        }
+    }
+
+    private synchronized void onWriterClosed(Entry entry) {
+        entry.writers--;
+    }
+
+    private synchronized void write(Entry entry, long position, byte[] b, int off, int len) throws IOException {
+        if (entry.removed)
+            throw new IOException("Entry was removed from the cache.");
+
+        // fill a gap left by writing beyond the end
+        while (entry.length < position) {
+            int n = (int) Math.min(BLOCK_SIZE - entry.length % BLOCK_SIZE, position - entry.length);
+            append(entry, new byte[n], 0, n);
+        }
+
+        // writers write at the end, since writing at an offset truncates first
+        append(entry, b, off, len);
+    }
+
+    private void append(Entry entry, byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int within = (int) (entry.length % BLOCK_SIZE);
+
+            if (entry.length == entry.blockCount * (long) BLOCK_SIZE)
+                entry.addBlock(allocateBlock(entry));
+
+            int block = entry.blocks[(int) (entry.length / BLOCK_SIZE)];
+            int n = Math.min(len, BLOCK_SIZE - within);
+
+            ByteBuffer slab = slabs[block / BLOCKS_PER_SLAB].duplicate();
+            slab.position((block % BLOCKS_PER_SLAB) * BLOCK_SIZE + within);
+            slab.put(b, off, n);
+
+            entry.length += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void copyBlock(int from, int to) {
+        ByteBuffer source = slabs[from / BLOCKS_PER_SLAB].duplicate();
+        int start = (from % BLOCKS_PER_SLAB) * BLOCK_SIZE;
+        source.limit(start + BLOCK_SIZE).position(start);
+
+        ByteBuffer target = slabs[to / BLOCKS_PER_SLAB].duplicate();
+        target.position((to % BLOCKS_PER_SLAB) * BLOCK_SIZE);
+        target.put(source);
+    }
+
+    /**
+     * Copies content out of a list of blocks, using the slabs as they are now.
+     */
+    private void copyOut(int[] blocks, long position, byte[] b, int off, int len) {
+        copyOut(slabs, blocks, position, b, off, len);
+    }
+
+    private static void copyOut(ByteBuffer[] slabs, int[] blocks, long position, byte[] b, int off, int len) {
+        while (len > 0) {
+            int block = blocks[(int) (position / BLOCK_SIZE)];
+            int within = (int) (position % BLOCK_SIZE);
+            int n = Math.min(len, BLOCK_SIZE - within);
+
+            ByteBuffer slab = slabs[block / BLOCKS_PER_SLAB].duplicate();
+            slab.position((block % BLOCKS_PER_SLAB) * BLOCK_SIZE + within);
+            slab.get(b, off, n);
+
+            position += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * The heap-side bookkeeping of an entry.
+     */
+    private static class Entry {
+        final String name;
+        int[] blocks = new int[4];
+        int blockCount = 0;
+        long length = 0;
+        boolean referenced = false;
+        boolean removed = false;
+        int readers = 0;
+        int writers = 0;
+        int[] retired = new int[0];
+        int retiredCount = 0;
+
+        Entry(String name) {
+            this.name = name;
+        }
+
+        boolean isBusy() {
+            return readers > 0 || writers > 0;
+        }
+
+        void addBlock(int block) {
+            if (blockCount == blocks.length)
+                blocks = Arrays.copyOf(blocks, blockCount * 2);
+
+            blocks[blockCount++] = block;
+        }
+
+        void retire(int block) {
+            if (retiredCount == retired.length)
+                retired = Arrays.copyOf(retired, Math.max(4, retiredCount * 2));
+
+            retired[retiredCount++] = block;
+        }
+    }
+
+    private class EntryWriter extends OutputStream {
+        private final Entry entry;
+        private long position;
+        private boolean closed = false;
+
+        EntryWriter(Entry entry, long position) {
+            this.entry = entry;
+            this.position = position;
+            entry.writers++;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed)
+                throw new IOException("Stream is closed.");
+
+            OffHeapCache.this.write(entry, position, b, off, len);
+            position += len;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                onWriterClosed(entry);
+            }
+        }
+    }
+
+    /**
+     * Reads a range of an entry, from the blocks it had when the reader was created.
+     */
+    private class EntryReader extends InputStream {
+        private final Entry entry;
+        private final ByteBuffer[] slabs;
+        private final int[] blocks;
+        private final long end;
+        private long position;
+        private boolean closed = false;
+
+        EntryReader(Entry entry, long start, long end) {
+            this.entry = entry;
+            this.slabs = OffHeapCache.this.slabs;
+            this.blocks = entry.blocks;
+            this.position = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (closed)
+                throw new IOException("Stream is closed.");
+
+            if (position >= end)
+                return len == 0 ? 0 : -1;
+
+            int n = (int) Math.min(len, end - position);
+            copyOut(slabs, blocks, position, b, off, n);
+            position += n;
+
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, end - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, Math.max(0, end - position));
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                onReaderClosed(entry);
+            }
+        }
+    }
+
+    public static class Stats {
+        /**
+         * The byte budget for the content of all entries.
+         */
+        public long maxBytes;
+
+        /**
+         * The number of bytes in blocks holding content.
+         */
+        public long footprint;
+
+        /**
+         * The number of bytes of slab memory allocated so far.
+         */
+        public long allocatedBytes;
+
+        /**
+         * The number of entries in the cache.
+         */
+        public int entries;
+
+        /**
+         * How many entries were evicted to make room for others.
+         */
+        public long evictions;
+
+        /**
+         * The total length of the evicted entries.
+         */
+        public long evictedBytes;
+    }
+}
@@ -0,0 +1,21 @@
+package la.manga.app.storage;
+
+import java.io.OutputStream;
+
+/**
+ * A cache whose entries may be replaced as a whole, at once.
+ */
+public interface ReplaceableCache extends Cache {
+    /**
+     * Writes new content for an entry, which takes the place of its old
+     * content at once, when the stream is closed. Until then, the entry
+     * keeps its old content, or doesn't exist if it didn't. If writing
+     * fails, closing the stream discards the new content, and if the stream
+     * is never closed, as when the process dies, the entry is left as it was.
+     * The entry must not be written to in other ways meanwhile.
+     *
+     * @param name The name of the entry, which may or may not exist.
+     * @return An output stream for the new content.
+     */
+    OutputStream replaceEntry(String name);
+}
@@ -0,0 +1,930 @@
+package la.manga.app.storage;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A cache which keeps small, recently used entries in memory,
+ * in front of a larger backing cache such as a {@link FileCache}.
+ * <p>
+ * Entries up to a size limit are written to the memory tier, and entries
+ * read from the backing cache are promoted to it. Once the memory tier
+ * grows beyond its budget, the least recently used entries are dropped
+ * from it. An entry which grows beyond the size limit while it's written
+ * is moved to the backing cache, and stays there.
+ * <p>
+ * With {@link WritePolicy#WRITE_THROUGH}, writes go to both tiers, so the
+ * backing cache is always current. With {@link WritePolicy#WRITE_BACK},
+ * entries in memory are only written to the backing cache once they're
+ * dropped from memory, or when {@link #flush()} is called. This saves
+ * rewriting entries which change often, at the risk of losing the latest
+ * changes if the process dies.
+ * <p>
+ * The backing cache may be slow, so it's only used outside of the cache's
+ * lock. While an entry is being looked up before it's created or promoted,
+ * or created, promoted, written back or deleted in the backing cache, it's
+ * marked as in flight, and other operations on that entry wait until it's
+ * done, while other entries can still be used. Clearing the cache holds up
+ * operations on all entries until the backing cache is cleared.
+ * <p>
+ * Entries may be followed or replaced, and their access times told, if the
+ * backing cache allows it; otherwise, doing so throws an
+ * {@link UnsupportedOperationException}. Replacements are written to the
+ * backing cache, and once they're complete, the entry is dropped from memory,
+ * to be promoted again when it's read. Entries used in memory count as
+ * accessed then, even though the backing cache doesn't know.
+ */
+public class TieredCache implements FollowableCache, ReplaceableCache, AccessTrackingCache {
+    public enum WritePolicy {
+        WRITE_THROUGH,
+        WRITE_BACK
+    }
+
+    private final MemoryCache memory = new MemoryCache();
+    private final Cache backing;
+    private final long maxMemoryBytes;
+    private final long maxEntrySize;
+    private final WritePolicy policy;
+
+    /**
+     * The entries in memory, from the least to the most recently used.
+     */
+    private final LinkedHashMap<String, Node> nodes = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * The number of open streams writing to each entry in the backing cache only.
+     */
+    private final Map<String, Integer> backingWriters = new HashMap<>();
+
+    /**
+     * The entries which are being used in the backing cache outside of the lock.
+     */
+    private final Set<String> inFlight = new HashSet<>();
+
+    /**
+     * Whether the backing cache is being cleared, which all entries wait for.
+     */
+    private boolean clearing = false;
+    private long memoryBytes = 0;
+
+    /**
+     * Creates a write-through tiered cache.
+     *
+     * @param backing        The backing cache.
+     * @param maxMemoryBytes The budget of the memory tier in bytes.
+     * @param maxEntrySize   The size of the largest entry kept in memory.
+     */
+    public TieredCache(Cache backing, long maxMemoryBytes, long maxEntrySize) {
+        this(backing, maxMemoryBytes, maxEntrySize, WritePolicy.WRITE_THROUGH);
+    }
+
+    /**
+     * Creates a tiered cache.
+     *
+     * @param backing        The backing cache.
+     * @param maxMemoryBytes The budget of the memory tier in bytes.
+     * @param maxEntrySize   The size of the largest entry kept in memory.
+     * @param policy         When entries in memory are written to the backing cache.
+     */
+    public TieredCache(Cache backing, long maxMemoryBytes, long maxEntrySize, WritePolicy policy) {
+        if (maxEntrySize > maxMemoryBytes)
+            throw new IllegalArgumentException("Entries kept in memory must fit into its budget.");
+
+        this.backing = backing;
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.maxEntrySize = maxEntrySize;
+        this.policy = policy;
+    }
+
+    public WritePolicy getWritePolicy() {
+        return policy;
+    }
+
+    /**
+     * Gets the total size of the entries in memory.
+     * Entries being written count with the size they had when they were opened.
+     *
+     * @return The size in bytes.
+     */
+    public synchronized long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    @Override
+    public OutputStream createEntry(String name) {
+        return createEntry(name, -1);
+    }
+
+    @Override
+    public OutputStream createEntry(String name, long expectedSize) {
+        boolean inMemory = expectedSize <= maxEntrySize;
+
+        synchronized (this) {
+            awaitIdle(name);
+
+            if (nodes.containsKey(name))
+                throw new IllegalArgumentException("An entry by the specified name already exists in the cache.");
+
+            inFlight.add(name);
+        }
+
+        boolean exists;
+
+        try {
+            exists = backing.hasEntry(name);
+        } catch (RuntimeException e) {
+            endIo(name);
+            throw e;
+        }
+
+        if (exists) {
+            endIo(name);
+            throw new IllegalArgumentException("An entry by the specified name already exists in the cache.");
+        }
+
+        if (inMemory && policy == WritePolicy.WRITE_BACK) {
+            synchronized (this) {
+                endIo(name);
+
+                Node node = new Node();
+                nodes.put(name, node);
+
+                return new TierWriter(name, node, memory.createEntry(name, expectedSize), null, 0);
+            }
+        }
+
+        OutputStream backingStream;
+
+        // the backing cache may set the space aside, which may take a while
+        try {
+            backingStream = backing.createEntry(name, expectedSize);
+        } catch (RuntimeException e) {
+            endIo(name);
+            throw e;
+        }
+
+        synchronized (this) {
+            endIo(name);
+
+            if (!inMemory)
+                return new TierWriter(name, null, null, backingStream, 0);
+
+            Node node = new Node();
+            nodes.put(name, node);
+
+            return new TierWriter(name, node, memory.createEntry(name, expectedSize), backingStream, 0);
+        }
+    }
+
+    @Override
+    public List<String> getEntryNames() {
+        Set<String> names = new LinkedHashSet<>(backing.getEntryNames());
+
+        synchronized (this) {
+            names.addAll(nodes.keySet());
+        }
+
+        return new ArrayList<>(names);
+    }
+
+    @Override
+    public InputStream readEntry(String name) {
+        return readEntry(name, 0, -1);
+    }
+
+    @Override
+    public InputStream readEntry(String name, long offset, long length) {
+        boolean written;
+
+        synchronized (this) {
+            awaitIdle(name);
+
+            if (touch(name))
+                return memory.readEntry(name, offset, length);
+
+            // entries being written in the backing cache aren't promoted
+            written = backingWriters.containsKey(name);
+
+            if (!written)
+                inFlight.add(name);
+        }
+
+        if (written)
+            return backing.readEntry(name, offset, length);
+
+        long size;
+
+        try {
+            size = backing.getEntryLength(name);
+        } catch (RuntimeException e) {
+            endIo(name);
+            throw e;
+        }
+
+        if (size != -1 && size <= maxEntrySize)
+            return promote(name, offset, length);
+
+        endIo(name);
+        return backing.readEntry(name, offset, length);
+    }
+
+    @Override
+    public ByteBuffer getEntryBuffer(String name, long offset, int length) {
+        synchronized (this) {
+            awaitIdle(name);
+
+            if (touch(name))
+                return memory.getEntryBuffer(name, offset, length);
+        }
+
+        return backing.getEntryBuffer(name, offset, length);
+    }
+
+    @Override
+    public long getEntryLength(String name) {
+        synchronized (this) {
+            if (nodes.containsKey(name))
+                return memory.getEntryLength(name);
+        }
+
+        return backing.getEntryLength(name);
+    }
+
+    @Override
+    public OutputStream appendToEntry(String name) {
+        return openWriter(name, -1);
+    }
+
+    @Override
+    public OutputStream writeEntryAt(String name, long offset) {
+        return openWriter(name, offset);
+    }
+
+    @Override
+    public void deleteEntry(String name) {
+        synchronized (this) {
+            awaitIdle(name);
+
+            Node node = nodes.remove(name);
+
+            if (node != null) {
+                memoryBytes -= node.size;
+                memory.deleteEntry(name);
+            }
+
+            inFlight.add(name);
+        }
+
+        try {
+            backing.deleteEntry(name);
+        } finally {
+            endIo(name);
+        }
+    }
+
+    /**
+     * Deletes all entries. Other operations on entries wait until the backing cache is cleared.
+     */
+    @Override
+    public void clear() {
+        synchronized (this) {
+            awaitIdle(null);
+
+            clearing = true;
+            nodes.clear();
+            memoryBytes = 0;
+            memory.clear();
+        }
+
+        try {
+            backing.clear();
+        } finally {
+            synchronized (this) {
+                clearing = false;
+                notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public boolean hasEntry(String name) {
+        synchronized (this) {
+            if (nodes.containsKey(name))
+                return true;
+        }
+
+        return backing.hasEntry(name);
+    }
+
+    @Override
+    public long getAvailableSpace() {
+        return backing.getAvailableSpace();
+    }
+
+    /**
+     * Follows an entry in memory, or else in the backing cache.
+     * Following an entry in memory fails if it grows beyond the size
+     * limit, since it's then moved to the backing cache.
+     *
+     * @throws UnsupportedOperationException The backing cache can't be followed.
+     */
+    @Override
+    public InputStream followEntry(String name) {
+        if (!(backing instanceof FollowableCache))
+            throw new UnsupportedOperationException("The backing cache can't be followed.");
+
+        synchronized (this) {
+            awaitIdle(name);
+
+            if (touch(name))
+                return memory.followEntry(name);
+        }
+
+        return ((FollowableCache) backing).followEntry(name);
+    }
+
+    /**
+     * Gets when an entry was last used, in memory or in the backing cache.
+     *
+     * @throws UnsupportedOperationException The backing cache doesn't track access times.
+     */
+    @Override
+    public long getEntryLastAccessed(String name) {
+        if (!(backing instanceof AccessTrackingCache))
+            throw new UnsupportedOperationException("The backing cache doesn't track access times.");
+
+        long inMemory = -1;
+
+        synchronized (this) {
+            // looked up without making the entry the most recently used
+            for (Map.Entry<String, Node> entry : nodes.entrySet()) {
+                if (entry.getKey().equals(name)) {
+                    inMemory = entry.getValue().accessed;
+                    break;
+                }
+            }
+        }
+
+        return Math.max(inMemory, ((AccessTrackingCache) backing).getEntryLastAccessed(name));
+    }
+
+    /**
+     * @throws UnsupportedOperationException The backing cache can't replace entries.
+     */
+    @Override
+    public OutputStream replaceEntry(String name) {
+        if (!(backing instanceof ReplaceableCache))
+            throw new UnsupportedOperationException("The backing cache can't replace entries.");
+
+        return new TierReplacement(name, ((ReplaceableCache) backing).replaceEntry(name));
+    }
+
+    /**
+     * Writes all entries which changed in memory to the backing cache.
+     * Entries which are being written are left out. This only does
+     * anything with {@link WritePolicy#WRITE_BACK}.
+     */
+    public void flush() {
+        List<String> names = new ArrayList<>();
+
+        synchronized (this) {
+            for (Map.Entry<String, Node> entry : nodes.entrySet()) {
+                Node node = entry.getValue();
+
+                if (node.dirty && node.writers == 0 && !inFlight.contains(entry.getKey())) {
+                    inFlight.add(entry.getKey());
+                    names.add(entry.getKey());
+                }
+            }
+        }
+
+        writeBack(names, false);
+    }
+
+    /**
+     * Opens a writer of an existing entry, in memory, in the backing cache, or in both.
+     *
+     * @param offset The offset to write at, or -1 to append.
+     */
+    private OutputStream openWriter(String name, long offset) {
+        Node node;
+
+        synchronized (this) {
+            awaitIdle(name);
+            node = nodes.get(name);
+
+            if (node != null && policy == WritePolicy.WRITE_BACK)
+                return openMemoryWriter(name, node, offset, null);
+
+            inFlight.add(name);
+        }
+
+        OutputStream backingStream;
+
+        try {
+            backingStream = offset == -1 ? backing.appendToEntry(name) : backing.writeEntryAt(name, offset);
+        } catch (RuntimeException e) {
+            endIo(name);
+            throw e;
+        }
+
+        synchronized (this) {
+            endIo(name);
+
+            if (node != null)
+                return openMemoryWriter(name, node, offset, backingStream);
+
+            if (backingStream == null)
+                return null;
+
+            return new TierWriter(name, null, null, backingStream, 0);
+        }
+    }
+
+    private OutputStream openMemoryWriter(String name, Node node, long offset, OutputStream backingStream) {
+        if (offset == -1) {
+            OutputStream memoryStream = memory.appendToEntry(name);
+            return new TierWriter(name, node, memoryStream, backingStream, memory.getEntryLength(name));
+        }
+
+        return new TierWriter(name, node, memory.writeEntryAt(name, offset), backingStream, offset);
+    }
+
+    /**
+     * Copies a small entry from the backing cache into memory, and reads it from there.
+     * The entry must be marked as in flight.
+     */
+    private InputStream promote(String name, long offset, long length) {
+        boolean promoted = false;
+
+        try {
+            promoted = copyToMemory(name);
+        } finally {
+            if (!promoted)
+                endIo(name);
+        }
+
+        if (!promoted)
+            return null;
+
+        InputStream is = null;
+        List<String> evicted;
+
+        synchronized (this) {
+            endIo(name);
+
+            Node node = new Node();
+            node.size = memory.getEntryLength(name);
+            nodes.put(name, node);
+            memoryBytes += node.size;
+            evicted = trim();
+
+            // the entry is dropped right away if all others are in use
+            if (nodes.containsKey(name))
+                is = memory.readEntry(name, offset, length);
+        }
+
+        writeBack(evicted, true);
+
+        return is != null ? is : backing.readEntry(name, offset, length);
+    }
+
+    /**
+     * Copies an entry from the backing cache into memory, without taking the lock.
+     *
+     * @return False if the entry is no longer in the backing cache.
+     */
+    private boolean copyToMemory(String name) {
+        InputStream is = backing.readEntry(name);
+
+        if (is == null)
+            return false;
+
+        try {
+            OutputStream os = memory.createEntry(name);
+
+            try {
+                copy(is, os);
+            } finally {
+                os.close();
+            }
+        } catch (IOException e) {
+            memory.deleteEntry(name);
+            throw new RuntimeException(e);
+        } finally {
+            try {
+                is.close();
+            } catch (IOException _) {
+                // ignored
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Drops the least recently used entries from memory until it's within
+     * budget. Entries which changed are only marked as in flight, and must
+     * then be written back with {@link #writeBack(List, boolean)}, which
+     * drops them once they're in the backing cache.
+     *
+     * @return The entries to write back.
+     */
+    private List<String> trim() {
+        List<String> evicted = new ArrayList<>();
+        Iterator<Map.Entry<String, Node>> it = nodes.entrySet().iterator();
+
+        while (memoryBytes > maxMemoryBytes && it.hasNext()) {
+            Map.Entry<String, Node> entry = it.next();
+            String name = entry.getKey();
+            Node node = entry.getValue();
+
+            if (node.writers > 0 || inFlight.contains(name))
+                continue;
+
+            memoryBytes -= node.size;
+
+            if (node.dirty) {
+                inFlight.add(name);
+                evicted.add(name);
+            } else {
+                it.remove();
+                memory.deleteEntry(name);
+            }
+        }
+
+        return evicted;
+    }
+
+    /**
+     * Writes entries which are marked as in flight to the backing cache, outside of the lock.
+     *
+     * @param evicted Whether the entries were evicted, and are dropped from memory once written.
+     */
+    private void writeBack(List<String> names, boolean evicted) {
+        int i = 0;
+
+        try {
+            for (; i < names.size(); i++) {
+                writeBack(names.get(i));
+                onWrittenBack(names.get(i), evicted);
+            }
+        } finally {
+            // the entries left after a failure stay in memory, and still need writing back
+            for (; i < names.size(); i++)
+                onWriteBackFailed(names.get(i), evicted);
+        }
+    }
+
+    /**
+     * Replaces the content of an entry in the backing cache with its content in memory.
+     */
+    private void writeBack(String name) {
+        InputStream is = memory.readEntry(name);
+
+        try {
+            OutputStream os = backing.hasEntry(name)
+                    ? backing.writeEntryAt(name, 0)
+                    : backing.createEntry(name, memory.getEntryLength(name));
+
+            try {
+                copy(is, os);
+            } finally {
+                os.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private synchronized void onWrittenBack(String name, boolean evicted) {
+        Node node = nodes.get(name);
+        node.dirty = false;
+
+        if (evicted) {
+            nodes.remove(name);
+            memory.deleteEntry(name);
+        }
+
+        endIo(name);
+    }
+
+    private synchronized void onWriteBackFailed(String name, boolean evicted) {
+        if (evicted)
+            memoryBytes += nodes.get(name).size;
+
+        endIo(name);
+    }
+
+    /**
+     * Drops the old content of a replaced entry from memory.
+     */
+    private synchronized void onReplaced(String name, boolean replaced) {
+        Node node = replaced ? nodes.remove(name) : null;
+
+        if (node != null) {
+            memoryBytes -= node.size;
+            memory.deleteEntry(name);
+        }
+
+        endIo(name);
+    }
+
+    /**
+     * Waits until an entry is no longer in flight. The lock must be held.
+     *
+     * @param name The name of the entry, or null to wait for all entries.
+     */
+    private void awaitIdle(String name) {
+        boolean interrupted = false;
+
+        while (clearing || (name == null ? !inFlight.isEmpty() : inFlight.contains(name))) {
+            try {
+                wait();
+            } catch (InterruptedException _) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private synchronized void endIo(String name) {
+        inFlight.remove(name);
+        notifyAll();
+    }
+
+    private static void copy(InputStream is, OutputStream os) throws IOException {
+        byte[] buffer = new byte[0x2000];
+        int nread;
+
+        while ((nread = is.read(buffer)) != -1)
+            os.write(buffer, 0, nread);
+    }
+
+    /**
+     * Marks an entry in memory as used.
+     *
+     * @return False if the entry isn't in memory.
+     */
+    private boolean touch(String name) {
+        Node node = nodes.get(name);
+
+        if (node == null)
+            return false;
+
+        node.accessed = System.currentTimeMillis();
+        return true;
+    }
+
+    private synchronized void onWriterOpened(String name, Node node) {
+        if (node != null) {
+            node.writers++;
+            node.accessed = System.currentTimeMillis();
+
+            if (policy == WritePolicy.WRITE_BACK)
+                node.dirty = true;
+        } else {
+            Integer count = backingWriters.get(name);
+            backingWriters.put(name, count == null ? 1 : count + 1);
+        }
+    }
+
+    /**
+     * @return The entries to write back, since they were evicted.
+     */
+    private synchronized List<String> onWriterClosed(String name, Node node) {
+        if (node != null) {
+            node.writers--;
+            node.accessed = System.currentTimeMillis();
+
+            if (nodes.get(name) == node) {
+                long size = memory.getEntryLength(name);
+                memoryBytes += size - node.size;
+                node.size = size;
+                return trim();
+            }
+        } else {
+            Integer count = backingWriters.get(name);
+
+            if (count == 1)
+                backingWriters.remove(name);
+            else
+                backingWriters.put(name, count - 1);
+        }
+
+        return Collections.emptyList();
+    }
+
+    /**
+     * The state of an entry in memory.
+     */
+    private static class Node {
+        long size = 0;
+        int writers = 0;
+        long accessed = System.currentTimeMillis();
+
+        /**
+         * Whether the entry changed since it was last written to the backing cache.
+         */
+        boolean dirty = false;
+    }
+
+    /**
+     * Writes to an entry in memory, in the backing cache, or in both.
+     * Once the entry grows beyond the size limit, the writer moves it
+     * to the backing cache and carries on there.
+     */
+    private class TierWriter extends OutputStream {
+        private final String name;
+        private Node node;
+        private OutputStream memoryStream;
+        private OutputStream backingStream;
+        private long position;
+        private boolean detached = false;
+        private boolean closed = false;
+
+        TierWriter(String name, Node node, OutputStream memoryStream, OutputStream backingStream, long position) {
+            this.name = name;
+            this.node = node;
+            this.memoryStream = memoryStream;
+            this.backingStream = backingStream;
+            this.position = position;
+            onWriterOpened(name, node);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed)
+                throw new IOException("Stream is closed.");
+
+            boolean spilling = false;
+
+            synchronized (TieredCache.this) {
+                if (node != null && position + len > maxEntrySize)
+                    spilling = spill();
+
+                if (node != null)
+                    memoryStream.write(b, off, len);
+            }
+
+            // the backing cache is written to outside of the lock, since it may be slow
+            if (spilling)
+                finishSpill();
+
+            if (backingStream != null)
+                backingStream.write(b, off, len);
+
+            position += len;
+        }
+
+        /**
+         * Moves the entry out of memory, into the backing cache.
+         *
+         * @return True if the entry is marked as in flight, and must still
+         * be copied to the backing cache with {@link #finishSpill()}.
+         */
+        private boolean spill() {
+            Node spilled = node;
+            spilled.writers--;
+            node = null;
+            memoryStream = null;
+            awaitIdle(name);
+
+            // an entry deleted while it's written is not brought back
+            if (nodes.get(name) != spilled) {
+                detached = true;
+                return false;
+            }
+
+            if (backingStream == null) {
+                inFlight.add(name);
+                return true;
+            }
+
+            nodes.remove(name);
+            memory.deleteEntry(name);
+            memoryBytes -= spilled.size;
+            onWriterOpened(name, null);
+            return false;
+        }
+
+        /**
+         * Copies the entry to the backing cache, and carries on writing there.
+         */
+        private void finishSpill() {
+            OutputStream os = null;
+
+            try {
+                writeBack(name);
+                os = backing.appendToEntry(name);
+            } finally {
+                synchronized (TieredCache.this) {
+                    Node spilled = nodes.remove(name);
+                    memory.deleteEntry(name);
+                    memoryBytes -= spilled.size;
+
+                    if (os != null) {
+                        backingStream = os;
+                        onWriterOpened(name, null);
+                    } else {
+                        detached = true;
+                    }
+
+                    endIo(name);
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (backingStream != null)
+                backingStream.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed)
+                return;
+
+            closed = true;
+            List<String> evicted = Collections.emptyList();
+
+            try {
+                // followers of the entry in memory read until its writers are closed
+                synchronized (TieredCache.this) {
+                    if (memoryStream != null)
+                        memoryStream.close();
+                }
+
+                if (backingStream != null)
+                    backingStream.close();
+            } finally {
+                if (!detached)
+                    evicted = onWriterClosed(name, node);
+            }
+
+            writeBack(evicted, true);
+        }
+    }
+
+    /**
+     * Writes a replacement of an entry to the backing cache.
+     */
+    private class TierReplacement extends FilterOutputStream {
+        private final String name;
+        private boolean closed = false;
+
+        TierReplacement(String name, OutputStream out) {
+            super(out);
+            this.name = name;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed)
+                return;
+
+            closed = true;
+
+            // an entry in memory may not be written back over its replacement
+            synchronized (TieredCache.this) {
+                awaitIdle(name);
+                inFlight.add(name);
+            }
+
+            boolean replaced = false;
+
+            try {
+                out.close();
+                replaced = true;
+            } finally {
+                onReplaced(name, replaced);
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package la.manga.app.concurrency;
+
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DaemonExecutorsTest {
+    @Test
+    public void sharesExecutorsByName() {
+        assertSame(DaemonExecutors.get("Test jobs"), DaemonExecutors.get("Test jobs"));
+        assertNotSame(DaemonExecutors.get("Test jobs"), DaemonExecutors.get("Other test jobs"));
+    }
+
+    @Test
+    public void runsJobsOnNamedDaemonThread() throws Exception {
+        Thread thread = DaemonExecutors.get("Low test jobs", Thread.MIN_PRIORITY).submit(new Callable<Thread>() {
+            @Override
+            public Thread call() {
+                return Thread.currentThread();
+            }
+        }).get();
+
+        assertEquals("Low test jobs", thread.getName());
+        assertEquals(Thread.MIN_PRIORITY, thread.getPriority());
+        assertTrue(thread.isDaemon());
+    }
+
+    @Test
+    public void runsPooledJobsAtOnce() throws Exception {
+        assertSame(DaemonExecutors.getPool("Test pool"), DaemonExecutors.getPool("Test pool"));
+
+        final CountDownLatch started = new CountDownLatch(2);
+        Callable<Thread> job = new Callable<Thread>() {
+            @Override
+            public Thread call() throws Exception {
+                // each job waits for the other, which a queue would deadlock
+                started.countDown();
+                assertTrue(started.await(5, TimeUnit.SECONDS));
+                return Thread.currentThread();
+            }
+        };
+
+        Future<Thread> first = DaemonExecutors.getPool("Test pool").submit(job);
+        Future<Thread> second = DaemonExecutors.getPool("Test pool").submit(job);
+
+        assertNotSame(first.get(), second.get());
+        assertTrue(first.get().isDaemon());
+        assertTrue(first.get().getName().startsWith("Test pool #"));
+    }
+}
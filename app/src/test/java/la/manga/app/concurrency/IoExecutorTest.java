@@ -0,0 +1,195 @@
+package la.manga.app.concurrency;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IoExecutorTest {
+    private IoExecutor executor;
+
+    @After
+    public void tearDown() {
+        if (executor != null)
+            executor.shutdownNow();
+    }
+
+    @Test
+    public void runsMaintenanceBesideBusyTransfers() throws Exception {
+        executor = new IoExecutor(1, 1, 4, IoExecutor.Backpressure.REJECT, 1000);
+        OneShotEvent release = new OneShotEvent();
+
+        executor.execute(waitFor(release));
+        executor.execute(waitFor(release));
+
+        final CountDownLatch ran = new CountDownLatch(1);
+
+        executor.getLane(IoExecutor.Lane.MAINTENANCE).execute(new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        });
+
+        assertTrue(ran.await(1, TimeUnit.SECONDS));
+        assertEquals(1, executor.getStats(IoExecutor.Lane.TRANSFER).queued);
+
+        release.signal();
+    }
+
+    @Test
+    public void rejectsWorkBeyondQueue() throws Exception {
+        executor = new IoExecutor(1, 1, 1, IoExecutor.Backpressure.REJECT, 1000);
+        OneShotEvent release = new OneShotEvent();
+
+        executor.execute(waitFor(release));
+        executor.execute(waitFor(release));
+
+        try {
+            executor.execute(waitFor(release));
+            fail("Work beyond the queue was accepted");
+        } catch (RejectedExecutionException _) {
+            // expected
+        }
+
+        assertEquals(1, executor.getStats(IoExecutor.Lane.TRANSFER).rejected);
+        assertEquals(0, executor.getStats(IoExecutor.Lane.MAINTENANCE).rejected);
+
+        release.signal();
+    }
+
+    @Test
+    public void runsWorkBeyondQueueOnCaller() throws Exception {
+        executor = new IoExecutor(1, 1, 1, IoExecutor.Backpressure.CALLER_RUNS, 1000);
+        OneShotEvent release = new OneShotEvent();
+        final Thread[] ranOn = new Thread[1];
+
+        executor.execute(waitFor(release));
+        executor.execute(waitFor(release));
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ranOn[0] = Thread.currentThread();
+            }
+        });
+
+        assertSame(Thread.currentThread(), ranOn[0]);
+
+        release.signal();
+    }
+
+    @Test
+    public void blocksCallerUntilThereIsRoom() throws Exception {
+        executor = new IoExecutor(1, 1, 1, IoExecutor.Backpressure.BLOCK, 1000);
+        final OneShotEvent release = new OneShotEvent();
+        final Thread[] ranOn = new Thread[1];
+
+        executor.execute(waitFor(release));
+        executor.execute(waitFor(release));
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException _) {
+                    // ignored
+                }
+
+                release.signal();
+            }
+        }).start();
+
+        final CountDownLatch ran = new CountDownLatch(1);
+        long start = System.nanoTime();
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ranOn[0] = Thread.currentThread();
+                ran.countDown();
+            }
+        });
+
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(90));
+        assertTrue(ran.await(1, TimeUnit.SECONDS));
+        assertNotSame(Thread.currentThread(), ranOn[0]);
+    }
+
+    @Test
+    public void stopsIdleThreads() throws Exception {
+        executor = new IoExecutor(2, 1, 4, IoExecutor.Backpressure.REJECT, 50);
+        OneShotEvent release = new OneShotEvent();
+        release.signal();
+
+        executor.execute(waitFor(release));
+        executor.execute(waitFor(release));
+
+        Thread.sleep(300);
+
+        assertEquals(0, executor.getStats(IoExecutor.Lane.TRANSFER).threads);
+        assertEquals(2, executor.getStats(IoExecutor.Lane.TRANSFER).completed);
+    }
+
+    @Test
+    public void drainsAcceptedWorkOnShutdown() throws Exception {
+        executor = new IoExecutor(1, 1, 4, IoExecutor.Backpressure.REJECT, 1000);
+        OneShotEvent release = new OneShotEvent();
+
+        executor.execute(waitFor(release));
+        executor.execute(waitFor(release));
+        executor.shutdown();
+
+        try {
+            executor.execute(waitFor(release));
+            fail("Work was accepted after shutdown");
+        } catch (RejectedExecutionException _) {
+            // expected
+        }
+
+        assertFalse(executor.awaitTermination(50, TimeUnit.MILLISECONDS));
+
+        release.signal();
+
+        assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+        assertEquals(2, executor.getStats(IoExecutor.Lane.TRANSFER).completed);
+    }
+
+    @Test
+    public void dropsQueuedWorkOnShutdownNow() throws Exception {
+        executor = new IoExecutor(1, 1, 4, IoExecutor.Backpressure.REJECT, 1000);
+        OneShotEvent release = new OneShotEvent();
+
+        executor.execute(waitFor(release));
+        executor.execute(waitFor(release));
+
+        List<Runnable> dropped = executor.shutdownNow();
+
+        assertEquals(1, dropped.size());
+        assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+    }
+
+    private static Runnable waitFor(final OneShotEvent event) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    event.waitForSignal();
+                } catch (InterruptedException _) {
+                    // ignored
+                }
+            }
+        };
+    }
+}
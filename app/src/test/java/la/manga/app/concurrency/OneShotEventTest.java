@@ -1,11 +1,18 @@
 package la.manga.app.concurrency;
 
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
+import static java.util.Arrays.asList;
 import static org.junit.Assert.*;
 import static org.hamcrest.Matchers.*;
 
@@ -14,6 +21,13 @@ public class OneShotEventTest {
 
     private OneShotEvent ose;
 
+    private final Executor inline = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
     private Thread startThread(Runnable r) {
         Thread t = new Thread(r);
         t.start();
@@ -103,4 +117,197 @@ public class OneShotEventTest {
 
         assertThat(end - start, lessThan(TimeUnit.MILLISECONDS.toNanos(10L)));
     }
+
+    @Test
+    public void waitsWithTimeUnit() throws Exception {
+        long start = System.nanoTime();
+
+        try {
+            ose.waitForSignal(50000, TimeUnit.MICROSECONDS);
+            fail("The wait didn't time out");
+        } catch (TimeoutException _) {
+            // expected
+        }
+
+        assertThat(System.nanoTime() - start + timerTolerance_ns, greaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(50)));
+        assertFalse(ose.isSet());
+
+        ose.signal();
+
+        assertTrue(ose.isSet());
+        ose.waitForSignal(0, TimeUnit.NANOSECONDS);
+    }
+
+    @Test
+    public void runsCallbacksOnSignal() throws Exception {
+        final List<Integer> order = new ArrayList<>();
+
+        for (int i = 0; i < 3; i++) {
+            final int n = i;
+
+            ose.onSignal(new Runnable() {
+                @Override
+                public void run() {
+                    order.add(n);
+                }
+            }, inline);
+        }
+
+        assertTrue(order.isEmpty());
+
+        ose.signal();
+        ose.signal();
+
+        // callbacks registered later run right away
+        ose.onSignal(new Runnable() {
+            @Override
+            public void run() {
+                order.add(3);
+            }
+        }, inline);
+
+        assertEquals(asList(0, 1, 2, 3), order);
+    }
+
+    @Test
+    public void signalsDespiteFailingCallbacks() throws Exception {
+        final List<Integer> ran = new ArrayList<>();
+
+        ose.onSignal(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException();
+            }
+        }, inline);
+
+        ose.onSignal(new Runnable() {
+            @Override
+            public void run() {
+                ran.add(1);
+            }
+        }, new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                throw new RejectedExecutionException();
+            }
+        });
+
+        ose.onSignal(new Runnable() {
+            @Override
+            public void run() {
+                ran.add(2);
+            }
+        }, inline);
+
+        try {
+            ose.signal();
+            fail();
+        } catch (IllegalStateException _) {
+            // the first failure is thrown once the others ran
+        }
+
+        assertTrue(ose.isSet());
+        assertEquals(asList(2), ran);
+    }
+
+    @Test
+    public void releasesContendingWaiters() throws Exception {
+        runContended(16, 2000, false);
+    }
+
+    /**
+     * Compares releasing contending waiters with the old monitor-based
+     * event. It's a benchmark, so it only runs with -Dbenchmarks=true.
+     */
+    @Test
+    public void releasesContendingWaitersComparedToMonitor() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("benchmarks"));
+
+        final int threads = 16;
+        final int rounds = 2000;
+
+        long monitorTime = runContended(threads, rounds, true);
+        long syncTime = runContended(threads, rounds, false);
+
+        System.out.println(String.format("OneShotEvent %d threads x %d rounds: monitor %d ms, synchronizer %d ms",
+                threads, rounds, monitorTime / 1000000, syncTime / 1000000));
+    }
+
+    /**
+     * Releases a number of threads waiting on events, one event per round, each signalled once all are waiting.
+     *
+     * @return The time it took in nanoseconds.
+     */
+    private long runContended(final int threads, int rounds, final boolean monitor) throws Exception {
+        final MonitorEvent[] monitorEvents = new MonitorEvent[rounds];
+        final OneShotEvent[] events = new OneShotEvent[rounds];
+        final CountDownLatch[] waiting = new CountDownLatch[rounds];
+
+        for (int i = 0; i < rounds; i++) {
+            monitorEvents[i] = new MonitorEvent();
+            events[i] = new OneShotEvent();
+            waiting[i] = new CountDownLatch(threads);
+        }
+
+        final CountDownLatch finished = new CountDownLatch(threads);
+        long start = System.nanoTime();
+
+        for (int t = 0; t < threads; t++) {
+            startThread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < events.length; i++) {
+                            waiting[i].countDown();
+
+                            if (monitor)
+                                monitorEvents[i].waitForSignal();
+                            else
+                                events[i].waitForSignal();
+                        }
+                    } catch (InterruptedException _) {
+                        // ignored
+                    }
+
+                    finished.countDown();
+                }
+            });
+        }
+
+        for (int i = 0; i < rounds; i++) {
+            waiting[i].await();
+
+            if (monitor)
+                monitorEvents[i].signal();
+            else
+                events[i].signal();
+        }
+
+        assertTrue(finished.await(30, TimeUnit.SECONDS));
+
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * The event as it was implemented with a monitor, for comparison.
+     */
+    private static class MonitorEvent {
+        private volatile boolean set = false;
+        private final Object syncObject = new Object();
+
+        void signal() {
+            set = true;
+
+            synchronized (syncObject) {
+                syncObject.notifyAll();
+            }
+        }
+
+        void waitForSignal() throws InterruptedException {
+            synchronized (syncObject) {
+                while (!set)
+                    syncObject.wait();
+            }
+        }
+    }
 }
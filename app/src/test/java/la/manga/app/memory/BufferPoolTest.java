@@ -0,0 +1,131 @@
+package la.manga.app.memory;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class BufferPoolTest {
+    private BufferPool pool;
+
+    @Before
+    public void setUp() {
+        pool = new BufferPool(BufferPool.DEFAULT_CAPACITY, true);
+    }
+
+    @Test
+    public void roundsUpToSizeClass() {
+        assertEquals(BufferPool.MIN_BUFFER_SIZE, release(pool.acquireHeap(1)).length);
+        assertEquals(0x1000, release(pool.acquireHeap(0x1000)).length);
+        assertEquals(0x2000, release(pool.acquireHeap(0x1001)).length);
+    }
+
+    @Test
+    public void reusesReleasedBuffers() {
+        byte[] first = pool.acquireHeap(0x10000);
+        pool.release(first);
+
+        byte[] second = pool.acquireHeap(0x10000);
+        pool.release(second);
+
+        assertSame(first, second);
+        assertEquals(1, pool.getStats().allocations);
+        assertEquals(1, pool.getStats().reuses);
+    }
+
+    @Test
+    public void doesNotPoolOversizedBuffers() {
+        byte[] buffer = pool.acquireHeap(BufferPool.MAX_BUFFER_SIZE + 1);
+        assertEquals(BufferPool.MAX_BUFFER_SIZE + 1, buffer.length);
+        pool.release(buffer);
+
+        assertEquals(0, pool.getStats().idleBytes);
+        assertEquals(1, pool.getStats().discards);
+    }
+
+    @Test
+    public void retainsNoMoreThanCapacity() {
+        pool = new BufferPool(0x3000, true);
+
+        byte[] a = pool.acquireHeap(0x1000);
+        byte[] b = pool.acquireHeap(0x1000);
+        byte[] c = pool.acquireHeap(0x2000);
+
+        pool.release(a);
+        pool.release(b);
+        pool.release(c);
+
+        assertEquals(0x2000, pool.getStats().idleBytes);
+        assertNotSame(c, release(pool.acquireHeap(0x2000)));
+    }
+
+    @Test
+    public void tracksLeaks() {
+        byte[] leaked = pool.acquireHeap(0x1000);
+        release(pool.acquireHeap(0x1000));
+
+        assertEquals(1, pool.getLeaks().size());
+        assertEquals(1, pool.getStats().outstanding);
+
+        pool.release(leaked);
+
+        assertEquals(0, pool.getLeaks().size());
+    }
+
+    @Test
+    public void rejectsDoubleRelease() {
+        byte[] buffer = pool.acquireHeap(0x1000);
+        pool.release(buffer);
+
+        try {
+            pool.release(buffer);
+            fail("Double release was not detected");
+        } catch (IllegalStateException _) {
+            // expected
+        }
+    }
+
+    /**
+     * Only measures acquiring and releasing through the pool; that downloads
+     * reuse their chunk buffers is checked by the download manager tests.
+     */
+    @Test
+    public void steadyStateAcquireAndReleaseAllocateNothing() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(allocationBean.isThreadAllocatedMemorySupported());
+
+        final int chunks = 10000;
+        final int chunkSize = 0x10000;
+        long threadId = Thread.currentThread().getId();
+
+        pool = new BufferPool(BufferPool.DEFAULT_CAPACITY, false);
+
+        // warm up, so that the pool and the JIT reach their steady state
+        for (int i = 0; i < chunks; i++)
+            pool.release(pool.acquireHeap(chunkSize));
+
+        long before = allocationBean.getThreadAllocatedBytes(threadId);
+
+        for (int i = 0; i < chunks; i++)
+            pool.release(pool.acquireHeap(chunkSize));
+
+        long allocatedPerChunk = (allocationBean.getThreadAllocatedBytes(threadId) - before) / chunks;
+
+        assertThat(allocatedPerChunk, lessThan(16L));
+    }
+
+    private byte[] release(byte[] buffer) {
+        pool.release(buffer);
+        return buffer;
+    }
+}
@@ -5,27 +5,50 @@ import com.google.common.collect.Iterables;
 
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.reflect.Field;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
+import la.manga.app.concurrency.IoExecutor;
 import la.manga.app.concurrency.OneShotEvent;
+import la.manga.app.memory.BufferPool;
 import la.manga.app.storage.Cache;
+import la.manga.app.storage.FileCache;
+import la.manga.app.storage.InstrumentedCache;
+import la.manga.app.storage.InsufficientSpaceException;
 import la.manga.app.storage.MemoryCache;
 
 import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThan;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
@@ -38,8 +61,12 @@ public class DownloadManagerTest {
     private Cache dataCache;
     private URL url;
     private TestHttpServer server = new TestHttpServer();
+    private TestHttpServer mirror = new TestHttpServer(8090, TestHttpServer.TEST_FILE_SIZE);
     private Executor executor;
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Before
     public void setUp() throws Exception {
         taskCache = new MemoryCache();
@@ -48,11 +75,13 @@ public class DownloadManagerTest {
         dm = new DownloadManager(taskCache, dataCache, executor);
         url = new URL(TestHttpServer.TEST_FILE);
         server.start();
+        mirror.start();
     }
 
     @After
     public void tearDown() {
         server.stop();
+        mirror.stop();
     }
 
     @Test
@@ -77,6 +106,282 @@ public class DownloadManagerTest {
             assertEquals(TestHttpServer.TEST_FILE_SIZE, db.intValue());
     }
 
+    @Test
+    public void reusesChunkBuffersAcrossDownloads() throws Exception {
+        final Set<byte[]> used = Collections.newSetFromMap(new IdentityHashMap<byte[], Boolean>());
+
+        BufferPool pool = new BufferPool(BufferPool.DEFAULT_CAPACITY, true) {
+            @Override
+            public synchronized byte[] acquireHeap(int minSize) {
+                byte[] buffer = super.acquireHeap(minSize);
+                used.add(buffer);
+                return buffer;
+            }
+        };
+
+        dm.setBufferPool(pool);
+
+        dm.startDownload(url, null).get();
+        Set<byte[]> warmedUp = new HashSet<>(used);
+        assertFalse(warmedUp.isEmpty());
+
+        for (int i = 0; i < 5; i++)
+            dm.startDownload(url, null).get();
+
+        // the later downloads got only buffers the first one already used
+        assertEquals(warmedUp, used);
+        assertEquals(0, pool.getLeaks().size());
+    }
+
+    @Test
+    public void hedgesStalledDownload() throws Exception {
+        final int[] hedgeWins = new int[]{0};
+
+        server.setTrickleAfter(TestHttpServer.TEST_FILE_SIZE / 4, 20, 1);
+        dm.setStallThreshold(0x10000, 200);
+
+        DownloadManager.Task task = dm.startDownload(url, new DownloadManager.ProgressListener() {
+            @Override
+            public void onProgress(DownloadManager.ProgressInfo progressInfo) {
+                hedgeWins[0] = progressInfo.hedgeWinCount;
+            }
+        });
+
+        InputStream is = task.get(5, TimeUnit.SECONDS);
+
+        assertThat(task.getStallCount(), greaterThan(0));
+        assertEquals(1, task.getHedgeWinCount());
+        assertEquals(1, hedgeWins[0]);
+        assertEquals(TestHttpServer.TEST_FILE_SIZE, task.getDownloadedBytes());
+        assertTestFileContent(is);
+    }
+
+    @Test
+    public void hedgeAbortedBeforeItStartsReleasesBuffer() throws Exception {
+        BufferPool pool = new BufferPool(BufferPool.DEFAULT_CAPACITY, true);
+        Hedge hedge = new Hedge(new Downloader(), url, 0, null, pool, 0x1000);
+
+        hedge.abort();
+
+        assertTrue(hedge.hasLost());
+        assertEquals(0, pool.getStats().outstanding);
+
+        // the thread which was to run it may still get to, without releasing the buffer again
+        hedge.run();
+
+        assertEquals(0, pool.getStats().outstanding);
+        assertTrue(pool.getLeaks().isEmpty());
+    }
+
+    @Test
+    public void keepsHealthyConnectionWithoutHedging() throws Exception {
+        dm.setStallThreshold(1, 200);
+
+        DownloadManager.Task task = dm.startDownload(url, null);
+        assertTestFileContent(task.get());
+
+        assertEquals(0, task.getStallCount());
+        assertEquals(0, task.getHedgeWinCount());
+    }
+
+    @Test
+    public void failsOverToMirrorWhenSourceIsDown() throws Exception {
+        server.setFailAlways(true);
+
+        DownloadManager.Task task = dm.startDownload(Arrays.asList(url, new URL(mirror.getUrl())), null);
+        assertTestFileContent(task.get(5, TimeUnit.SECONDS));
+
+        assertEquals(1, task.getSources().get(0).getFailures());
+        assertEquals(TestHttpServer.TEST_FILE_SIZE, task.getSources().get(1).getDownloadedBytes());
+    }
+
+    @Test
+    public void failsOverToMirrorInTheMiddle() throws Exception {
+        server.setDropAfter(TestHttpServer.TEST_FILE_SIZE / 4);
+
+        DownloadManager.Task task = dm.startDownload(Arrays.asList(url, new URL(mirror.getUrl())), null);
+        assertTestFileContent(task.get(5, TimeUnit.SECONDS));
+
+        DownloadSource primary = task.getSources().get(0);
+        DownloadSource secondary = task.getSources().get(1);
+
+        assertEquals(1, primary.getFailures());
+        assertThat(primary.getDownloadedBytes(), greaterThan(0L));
+        assertEquals(TestHttpServer.TEST_FILE_SIZE, primary.getDownloadedBytes() + secondary.getDownloadedBytes());
+    }
+
+    @Test
+    public void disablesMirrorWithDifferentContent() throws Exception {
+        TestHttpServer other = new TestHttpServer(8091, TestHttpServer.TEST_FILE_SIZE / 2);
+        other.start();
+
+        try {
+            server.setUseChunked(false);
+            server.setDropAfter(TestHttpServer.TEST_FILE_SIZE / 4);
+            List<URL> urls = Arrays.asList(url, new URL(other.getUrl()), new URL(mirror.getUrl()));
+
+            DownloadManager.Task task = dm.startDownload(urls, null);
+            assertTestFileContent(task.get(5, TimeUnit.SECONDS));
+
+            assertTrue(task.getSources().get(1).isDisabled());
+            assertEquals(0, task.getSources().get(1).getDownloadedBytes());
+        } finally {
+            other.stop();
+        }
+    }
+
+    @Test
+    public void downloadsSegmentsFromMirrorsInParallel() throws Exception {
+        dm.setParallelSourcing(true);
+        dm.setSegmentSize(0x10000);
+
+        DownloadManager.Task task = dm.startDownload(Arrays.asList(url, new URL(mirror.getUrl())), null);
+        assertTestFileContent(task.get(5, TimeUnit.SECONDS));
+
+        DownloadSource primary = task.getSources().get(0);
+        DownloadSource secondary = task.getSources().get(1);
+
+        assertEquals(TestHttpServer.TEST_FILE_SIZE, task.getDownloadedBytes());
+        assertEquals(TestHttpServer.TEST_FILE_SIZE, primary.getDownloadedBytes() + secondary.getDownloadedBytes());
+        assertThat(secondary.getDownloadedBytes(), greaterThan(0L));
+    }
+
+    @Test
+    public void fallsBackToOneSourceWithoutRangeSupport() throws Exception {
+        server.setIgnoreRanges(true);
+        mirror.setIgnoreRanges(true);
+        dm.setParallelSourcing(true);
+        dm.setSegmentSize(0x10000);
+
+        DownloadManager.Task task = dm.startDownload(Arrays.asList(url, new URL(mirror.getUrl())), null);
+        assertTestFileContent(task.get(5, TimeUnit.SECONDS));
+
+        assertEquals(DownloadManager.TransferStrategy.SEQUENTIAL, task.getStrategy());
+        assertEquals(TestHttpServer.TEST_FILE_SIZE, task.getDownloadedBytes());
+    }
+
+    @Test
+    public void reportsTotalBytesFromTheStart() throws Exception {
+        final List<Integer> totals = new ArrayList<>();
+
+        // chunked responses don't tell the length, so only the probe does
+        DownloadManager.Task task = dm.startDownload(url, new DownloadManager.ProgressListener() {
+            @Override
+            public void onProgress(DownloadManager.ProgressInfo progressInfo) {
+                if (progressInfo.state == DownloadManager.TaskState.IN_PROGRESS)
+                    totals.add(progressInfo.totalBytes);
+            }
+        });
+
+        assertTestFileContent(task.get());
+
+        assertEquals(TestHttpServer.TEST_FILE_SIZE, task.getTotalBytes());
+        assertEquals(DownloadManager.TransferStrategy.SEQUENTIAL, task.getStrategy());
+        assertEquals(TestHttpServer.TEST_FILE_SIZE, totals.get(0).intValue());
+    }
+
+    @Test
+    public void skipsTransferOfCompleteDownload() throws Exception {
+        DownloadManager.Task task = dm.startDownload(url, null);
+        task.get().close();
+
+        int requests = server.getRequestCount();
+
+        task = dm.resumeDownload(task.getId(), null);
+        assertTestFileContent(task.get());
+
+        assertEquals(DownloadManager.TransferStrategy.NONE, task.getStrategy());
+        assertEquals(requests, server.getRequestCount());
+    }
+
+    @Test
+    public void discardsResumedDownloadWhenContentChanged() throws Exception {
+        server.setEntityTag("\"v1\"");
+        DownloadManager.Task task = cancelledScenario(new boolean[]{false}).run();
+        assertThat(task.getDownloadedBytes(), greaterThan(0));
+
+        server.setEntityTag("\"v2\"");
+        dm.getDownloader().setProbeMaxAge(0);
+
+        final List<Integer> starts = new ArrayList<>();
+
+        task = dm.resumeDownload(task.getId(), new DownloadManager.ProgressListener() {
+            @Override
+            public void onProgress(DownloadManager.ProgressInfo progressInfo) {
+                if (progressInfo.state == DownloadManager.TaskState.STARTING)
+                    starts.add(progressInfo.downloadedBytes);
+            }
+        });
+
+        assertTestFileContent(task.get());
+
+        // the second event follows the probe
+        assertEquals(0, starts.get(1).intValue());
+        assertEquals(TestHttpServer.TEST_FILE_SIZE, task.getDownloadedBytes());
+    }
+
+    @Test
+    public void followsDownloadWhileInProgress() throws Exception {
+        // the download stalls until a hedge takes over, so it's followed before it's done
+        server.setTrickleAfter(TestHttpServer.TEST_FILE_SIZE / 4, 20, 1);
+        dm.setStallThreshold(0x10000, 200);
+
+        DownloadManager.Task task = dm.startDownload(url, null);
+        InputStream is = task.follow();
+
+        assertFalse(task.isDone());
+        assertTestFileContent(is);
+
+        task.get(5, TimeUnit.SECONDS);
+        assertEquals(TestHttpServer.TEST_FILE_SIZE, task.getDownloadedBytes());
+    }
+
+    @Test
+    public void followingFailedDownloadFails() throws Exception {
+        FileCache data = new FileCache(folder.newFolder());
+        DownloadManager dm = new DownloadManager(taskCache, data, executor);
+
+        dm.setMinFreeSpace(data.getAvailableSpace());
+
+        try {
+            dm.startDownload(url, null).follow();
+            fail("Followed a download which never started");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof InsufficientSpaceException);
+        }
+    }
+
+    @Test
+    public void refusesDownloadWithoutSpace() throws Exception {
+        FileCache data = new FileCache(folder.newFolder());
+        DownloadManager dm = new DownloadManager(taskCache, data, executor);
+
+        dm.setMinFreeSpace(data.getAvailableSpace());
+
+        DownloadManager.Task task = dm.startDownload(url, null);
+
+        try {
+            task.get();
+            fail("Download started without enough space");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof InsufficientSpaceException);
+        }
+
+        assertEquals(DownloadManager.TaskState.ERROR, dm.getTaskState(task.getId()));
+        assertEquals(0, server.getRequestCount() - server.getHeadRequestCount());
+    }
+
+    @Test
+    public void restartsResumedDownloadWhoseDataWasEvicted() throws Exception {
+        DownloadManager.Task task = cancelledScenario(new boolean[]{false}).run();
+        dataCache.deleteEntry(task.getId().getCacheEntryId());
+
+        task = dm.resumeDownload(task.getId(), null);
+        assertTestFileContent(task.get());
+
+        assertEquals(TestHttpServer.TEST_FILE_SIZE, task.getDownloadedBytes());
+    }
+
     @Test
     public void cancelsDownloadInTheMiddle() throws Exception {
         final boolean[] cancelled = new boolean[]{false};
@@ -89,6 +394,176 @@ public class DownloadManagerTest {
         assertTrue(cancelled[0]);
     }
 
+    @Test
+    public void cancelReleasesStalledTaskPromptly() throws Exception {
+        final int[] cancelledCount = new int[]{0};
+
+        server.setStallAfter(TestHttpServer.TEST_FILE_SIZE / 4);
+
+        // only the cancellation can release the stalled read before the test gives up
+        dm.getDownloader().setReadTimeout(10 * 60 * 1000);
+
+        // the JVM's connections can't be disconnected while a read blocks, unlike Android's
+        dm.getDownloader().setAbortPollInterval(50);
+
+        DownloadManager.Task task = dm.startDownload(url, new DownloadManager.ProgressListener() {
+            @Override
+            public void onProgress(DownloadManager.ProgressInfo progressInfo) {
+                if (progressInfo.state == DownloadManager.TaskState.CANCELLED)
+                    cancelledCount[0]++;
+            }
+        });
+
+        server.awaitStall();
+
+        assertTrue(task.cancel(true));
+
+        try {
+            // the read would only time out long after this
+            task.get(dm.getDownloader().getReadTimeout() / 2, TimeUnit.MILLISECONDS);
+            fail("Cancelled task returned a result");
+        } catch (CancellationException _) {
+            // expected
+        }
+
+        assertFalse(dm.isActive(task.getId()));
+        assertEquals(DownloadManager.TaskState.CANCELLED, dm.getTaskState(task.getId()));
+        assertEquals(1, cancelledCount[0]);
+        assertFalse(task.cancel(true));
+    }
+
+    @Test
+    public void cancelsTaskBeforeItStarts() throws Exception {
+        final List<Runnable> queued = new ArrayList<>();
+        final int[] cancelledCount = new int[]{0};
+
+        DownloadManager dm = new DownloadManager(taskCache, dataCache, new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                queued.add(runnable);
+            }
+        });
+
+        DownloadManager.Task task = dm.startDownload(url, new DownloadManager.ProgressListener() {
+            @Override
+            public void onProgress(DownloadManager.ProgressInfo progressInfo) {
+                if (progressInfo.state == DownloadManager.TaskState.CANCELLED)
+                    cancelledCount[0]++;
+            }
+        });
+
+        assertTrue(task.cancel(false));
+        assertTrue(task.isDone());
+        assertEquals(DownloadManager.TaskState.CANCELLED, dm.getTaskState(task.getId()));
+
+        // the executor finally gets to run the task, which must not do anything
+        for (Runnable r : queued)
+            r.run();
+
+        try {
+            task.get(0, TimeUnit.MILLISECONDS);
+            fail("Cancelled task returned a result");
+        } catch (CancellationException _) {
+            // expected
+        }
+
+        assertEquals(1, cancelledCount[0]);
+        assertEquals(0, dataCache.getEntryNames().size());
+    }
+
+    @Test(timeout = 20000)
+    public void startsTasksWhileExecutorBlocks() throws Exception {
+        IoExecutor executor = new IoExecutor(1, 1, 1, IoExecutor.Backpressure.BLOCK, 1000);
+        DownloadManager dm = new DownloadManager(taskCache, dataCache, executor);
+        List<DownloadManager.Task> tasks = new ArrayList<>();
+
+        try {
+            // the last one waits for room, while the running one needs the manager to finish
+            for (int i = 0; i < 3; i++)
+                tasks.add(dm.startDownload(url, null));
+
+            for (DownloadManager.Task t : tasks) {
+                t.get();
+                assertEquals(DownloadManager.TaskState.DONE, dm.getTaskState(t.getId()));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void runsTaskOnCallerWithoutHoldingManager() throws Exception {
+        IoExecutor executor = new IoExecutor(1, 1, 1, IoExecutor.Backpressure.CALLER_RUNS, 1000);
+        final DownloadManager dm = new DownloadManager(taskCache, dataCache, executor);
+        final Thread caller = Thread.currentThread();
+        final boolean[] managerFree = new boolean[1];
+        final CountDownLatch checked = new CountDownLatch(1);
+        List<DownloadManager.Task> tasks = new ArrayList<>();
+
+        DownloadManager.ProgressListener listener = new DownloadManager.ProgressListener() {
+            @Override
+            public void onProgress(DownloadManager.ProgressInfo progressInfo) {
+                if (Thread.currentThread() != caller || progressInfo.state != DownloadManager.TaskState.IN_PROGRESS
+                        || checked.getCount() == 0)
+                    return;
+
+                Thread other = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            dm.getTaskIds();
+                        } catch (IOException _) {
+                            // ignored
+                        }
+                    }
+                });
+
+                other.start();
+
+                try {
+                    other.join(5000);
+                } catch (InterruptedException _) {
+                    Thread.currentThread().interrupt();
+                }
+
+                managerFree[0] = !other.isAlive();
+                checked.countDown();
+            }
+        };
+
+        try {
+            for (int i = 0; i < 3; i++)
+                tasks.add(dm.startDownload(url, listener));
+
+            for (DownloadManager.Task t : tasks)
+                t.get();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(0, checked.getCount());
+        assertTrue(managerFree[0]);
+    }
+
+    @Test
+    public void cancelWithoutInterruptStopsAtNextChunk() throws Exception {
+        final boolean[] cancelled = new boolean[]{false};
+
+        new ControlledProgressScenario() {
+            @Override
+            protected void onProgress() {
+                assertTrue(task.cancel(false));
+            }
+
+            @Override
+            protected void onCancelled() {
+                cancelled[0] = true;
+            }
+        }.run();
+
+        assertTrue(cancelled[0]);
+    }
+
     @Test
     public void errorCausedByServerShutdown() throws Exception {
         final boolean[] aborted = new boolean[]{false};
@@ -114,6 +589,307 @@ public class DownloadManagerTest {
         assertTrue(taskCache.hasEntry(t.getId().getCacheEntryId()));
     }
 
+    @Test
+    public void batchesProgressButPersistsTransitionsFirst() throws Exception {
+        final int[] creates = new int[]{0};
+        final List<DownloadManager.Task> tasks = new ArrayList<>();
+        final List<String> failures = new ArrayList<>();
+        final int[] updates = new int[]{0};
+
+        final Cache counting = new MemoryCache() {
+            @Override
+            public synchronized OutputStream createEntry(String name) {
+                creates[0]++;
+                return super.createEntry(name);
+            }
+
+            @Override
+            public synchronized OutputStream replaceEntry(String name) {
+                creates[0]++;
+                return super.replaceEntry(name);
+            }
+        };
+
+        DownloadManager dm = new DownloadManager(counting, dataCache, executor);
+        dm.setChunkSize(0x1000);
+
+        for (int i = 0; i < 4; i++) {
+            tasks.add(dm.startDownload(url, new DownloadManager.ProgressListener() {
+                @Override
+                public void onProgress(DownloadManager.ProgressInfo progressInfo) {
+                    synchronized (failures) {
+                        updates[0]++;
+
+                        if (progressInfo.state == DownloadManager.TaskState.IN_PROGRESS)
+                            return;
+
+                        try {
+                            // a transition is already persisted when the listener hears of it
+                            InputStream is = counting.readEntry(progressInfo.taskId.getCacheEntryId());
+                            DownloadManager.ProgressInfo persisted = DownloadManager.ProgressInfo.deserialize(is);
+
+                            if (persisted.state != progressInfo.state)
+                                failures.add(persisted.state + " instead of " + progressInfo.state);
+                        } catch (IOException e) {
+                            failures.add(e.toString());
+                        }
+                    }
+                }
+            }));
+        }
+
+        for (DownloadManager.Task t : tasks)
+            t.get();
+
+        assertTrue(failures.toString(), failures.isEmpty());
+        assertThat(creates[0], lessThan(updates[0] / 4));
+    }
+
+    @Test
+    public void quarantinesUnreadableTaskRecords() throws Exception {
+        DownloadManager.Task t1 = dm.startDownload(url, null);
+        DownloadManager.Task t2 = dm.startDownload(url, null);
+
+        t1.get();
+        t2.get();
+
+        // a record cut short by a crash
+        OutputStream os = taskCache.createEntry("truncated");
+        os.write(new byte[]{(byte) 0xac, (byte) 0xed, 0, 5, 0x73});
+        os.close();
+
+        DownloadManager.RecoveryReport report = dm.recoverTasks(4, 10000);
+
+        assertEquals(2, report.tasks.size());
+        assertTrue(report.tasks.containsKey(t1.getId()));
+        assertEquals(DownloadManager.TaskState.DONE, report.tasks.get(t2.getId()).state);
+        assertEquals(Arrays.asList(new DownloadManager.TaskId("truncated")), report.quarantined);
+        assertTrue(report.unchecked.isEmpty());
+
+        assertEquals(2, dm.getTaskIds().size());
+        assertFalse(taskCache.hasEntry("truncated"));
+        assertTrue(taskCache.hasEntry(DownloadManager.QUARANTINE_PREFIX + "truncated"));
+    }
+
+    @Test
+    public void notifiesListenersWhenFinished() throws Exception {
+        final CountDownLatch finished = new CountDownLatch(1);
+        final DownloadManager.Task task = dm.startDownload(url, null);
+        final boolean[] done = new boolean[]{false};
+
+        task.addListener(new Runnable() {
+            @Override
+            public void run() {
+                done[0] = task.isDone();
+                finished.countDown();
+            }
+        }, executor);
+
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertTrue(done[0]);
+
+        // a listener added later runs right away
+        final CountDownLatch later = new CountDownLatch(1);
+
+        task.addListener(new Runnable() {
+            @Override
+            public void run() {
+                later.countDown();
+            }
+        }, executor);
+
+        assertTrue(later.await(10, TimeUnit.SECONDS));
+        assertTestFileContent(task.get());
+    }
+
+    @Test
+    public void notifiesListenersDespiteFailingOne() throws Exception {
+        final CountDownLatch finished = new CountDownLatch(1);
+        DownloadManager.Task task = dm.startDownload(url, null);
+
+        task.addListener(new Runnable() {
+            @Override
+            public void run() {
+                finished.countDown();
+            }
+        }, new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                throw new RejectedExecutionException();
+            }
+        });
+
+        task.addListener(new Runnable() {
+            @Override
+            public void run() {
+                finished.countDown();
+            }
+        }, executor);
+
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertTestFileContent(task.get());
+
+        // the task finished all the same, so there is nothing to suspend
+        assertTrue(dm.shutdown(10000).isEmpty());
+    }
+
+    @Test
+    public void shutdownSuspendsUnfinishedTasks() throws Exception {
+        final OneShotEvent madeSomeProgress = new OneShotEvent();
+        DownloadManager dm = new DownloadManager(taskCache, dataCache);
+
+        server.setStallAfter(TestHttpServer.TEST_FILE_SIZE / 4);
+        dm.getDownloader().setAbortPollInterval(50);
+
+        DownloadManager.Task finished = dm.startDownload(new URL(mirror.getUrl()), null);
+        DownloadManager.Task stalled = dm.startDownload(url, new DownloadManager.ProgressListener() {
+            @Override
+            public void onProgress(DownloadManager.ProgressInfo progressInfo) {
+                if (progressInfo.downloadedBytes > 0)
+                    madeSomeProgress.signal();
+            }
+        });
+
+        madeSomeProgress.waitForSignal();
+
+        List<DownloadManager.TaskId> suspended = dm.shutdown(500);
+
+        assertEquals(Arrays.asList(stalled.getId()), suspended);
+        assertTrue(stalled.isCancelled());
+        assertEquals(DownloadManager.TaskState.DONE, dm.getTaskState(finished.getId()));
+
+        // the suspended task records its progress, to be resumed by the next manager
+        InputStream is = taskCache.readEntry(stalled.getId().getCacheEntryId());
+        DownloadManager.ProgressInfo pi = DownloadManager.ProgressInfo.deserialize(is);
+
+        assertEquals(DownloadManager.TaskState.IN_PROGRESS, pi.state);
+        assertThat(pi.downloadedBytes, greaterThan(0));
+        assertThat(dataCache.getEntryLength(pi.taskId.getCacheEntryId()), greaterThanOrEqualTo((long) pi.downloadedBytes));
+
+        try {
+            dm.startDownload(url, null);
+            fail("A task was started after shutdown");
+        } catch (RejectedExecutionException _) {
+            // expected
+        }
+    }
+
+    @Test
+    public void shutdownCancelsJobsWhichDidNotStart() throws Exception {
+        final OneShotEvent listing = new OneShotEvent();
+        final OneShotEvent release = new OneShotEvent();
+
+        Cache data = new MemoryCache() {
+            @Override
+            public List<String> getEntryNames() {
+                listing.signal();
+
+                try {
+                    release.waitForSignal();
+                } catch (InterruptedException _) {
+                    Thread.currentThread().interrupt();
+                }
+
+                return super.getEntryNames();
+            }
+        };
+
+        DownloadManager dm = new DownloadManager(taskCache, data);
+        DownloadManager.RetentionPolicy policy = new DownloadManager.RetentionPolicy();
+
+        dm.collectGarbage(policy, true);
+        listing.waitForSignal();
+
+        Future<DownloadManager.RetentionReport> queued = dm.collectGarbage(policy, true);
+
+        dm.shutdown(0);
+        release.signal();
+
+        try {
+            queued.get(1, TimeUnit.SECONDS);
+            fail("A job which never started completed");
+        } catch (CancellationException _) {
+            // expected
+        }
+    }
+
+    @Test
+    public void numbersTasks() throws Exception {
+        DownloadManager.Task t1 = dm.startDownload(url, null);
+        DownloadManager.Task t2 = dm.startDownload(url, null);
+
+        t1.get();
+        t2.get();
+
+        assertThat(t2.getId().getValue(), greaterThan(t1.getId().getValue()));
+        assertEquals(Long.toString(t1.getId().getValue()), t1.getId().getCacheEntryId());
+        assertEquals(t1.getId(), new DownloadManager.TaskId(t1.getId().getCacheEntryId()));
+
+        // the file name is kept in the record instead
+        InputStream is = taskCache.readEntry(t1.getId().getCacheEntryId());
+        assertEquals("TEST_FILE", DownloadManager.ProgressInfo.deserialize(is).getFileName());
+    }
+
+    @Test
+    public void numbersTasksNamedBeforeIdsWereNumbered() throws Exception {
+        String legacyName = "1476000000000.7-talk-1.mp3";
+        DownloadManager.TaskId legacy = new DownloadManager.TaskId(legacyName);
+
+        assertEquals(DownloadManager.TaskId.pack(1476000000000L, 7), legacy.getValue());
+        assertEquals(legacyName, legacy.getCacheEntryId());
+
+        // records from before hold ids without a number
+        Field value = DownloadManager.TaskId.class.getDeclaredField("value");
+        value.setAccessible(true);
+        value.setLong(legacy, 0);
+
+        DownloadManager.ProgressInfo pi = new DownloadManager.ProgressInfo();
+        pi.taskId = legacy;
+        pi.url = url;
+        pi.state = DownloadManager.TaskState.DONE;
+
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DownloadManager.ProgressInfo.serialize(pi, record);
+
+        DownloadManager.ProgressInfo read = DownloadManager.ProgressInfo.deserialize(new ByteArrayInputStream(record.toByteArray()));
+
+        assertEquals(DownloadManager.TaskId.pack(1476000000000L, 7), read.taskId.getValue());
+        assertEquals(legacyName, read.taskId.getCacheEntryId());
+        assertEquals("TEST_FILE", read.getFileName());
+
+        // names in neither form are hashed
+        assertEquals(new DownloadManager.TaskId("orphan"), new DownloadManager.TaskId("orphan"));
+        assertFalse(new DownloadManager.TaskId("orphan").equals(new DownloadManager.TaskId("orphan2")));
+
+        // legacy names may share a number, yet name other tasks
+        DownloadManager.TaskId sibling = new DownloadManager.TaskId("1476000000000.7-talk-2.mp3");
+
+        assertEquals(read.taskId.getValue(), sibling.getValue());
+        assertFalse(read.taskId.equals(sibling));
+    }
+
+    @Test
+    public void tellsActiveTaskFromOneSharingItsNumber() throws Exception {
+        server.setStallAfter(TestHttpServer.TEST_FILE_SIZE / 4);
+        dm.getDownloader().setAbortPollInterval(50);
+
+        DownloadManager.Task task = dm.startDownload(url, null);
+
+        // an id of another name which happens to have the task's number
+        DownloadManager.TaskId sharing = new DownloadManager.TaskId("sharing");
+        Field value = DownloadManager.TaskId.class.getDeclaredField("value");
+        value.setAccessible(true);
+        value.setLong(sharing, task.getId().getValue());
+
+        try {
+            assertTrue(dm.isActive(task.getId()));
+            assertFalse(dm.isActive(sharing));
+            assertFalse(sharing.equals(task.getId()));
+        } finally {
+            task.cancel(true);
+        }
+    }
+
     @Test
     public void getsAllTaskIds() throws Exception {
         final boolean[] cancelledFlag = new boolean[]{false};
@@ -226,6 +1002,322 @@ public class DownloadManagerTest {
         assertEquals(1, caches.data.getEntryNames().size());
     }
 
+    @Test
+    public void resumesInterruptedTasksOnStartup() throws Exception {
+        FabricatedCaches caches = new FabricatedCaches();
+        int size = TestHttpServer.TEST_FILE_SIZE;
+
+        DownloadManager.ProgressInfo far = fabricateInterruptedTask(caches, DownloadManager.TaskState.STARTING, 0, 0);
+        DownloadManager.ProgressInfo near = fabricateInterruptedTask(caches, DownloadManager.TaskState.IN_PROGRESS, size / 2, size / 2);
+        // the data didn't reach the disk before the crash, unlike the record
+        DownloadManager.ProgressInfo lost = fabricateInterruptedTask(caches, DownloadManager.TaskState.IN_PROGRESS, size - 0x1000, size / 4);
+        DownloadManager.ProgressInfo done = caches.fabricateTask(DownloadManager.TaskState.DONE);
+
+        final List<DownloadManager.TaskId> finished = new ArrayList<>();
+        final CountDownLatch latch = new CountDownLatch(3);
+
+        DownloadManager dm = new DownloadManager(caches.tasks, caches.data, executor, 1, new DownloadManager.ProgressListener() {
+            @Override
+            public void onProgress(DownloadManager.ProgressInfo progressInfo) {
+                if (progressInfo.state != DownloadManager.TaskState.DONE)
+                    return;
+
+                synchronized (finished) {
+                    finished.add(progressInfo.taskId);
+                }
+
+                latch.countDown();
+            }
+        });
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+
+        DownloadManager.RecoveryReport report = dm.getRecoveryReport();
+        List<DownloadManager.TaskId> order = Arrays.asList(near.taskId, lost.taskId, far.taskId);
+
+        // one at a time, closest to completion first
+        assertEquals(order, report.resumed);
+        assertEquals(order, finished);
+        assertEquals(Arrays.asList(lost.taskId), report.truncated);
+        assertEquals(4, report.tasks.size());
+        assertThat(report.resumedMillis, greaterThanOrEqualTo(0L));
+
+        for (DownloadManager.TaskId id : order) {
+            assertEquals(DownloadManager.TaskState.DONE, dm.getTaskState(id));
+            assertTestFileContent(caches.data.readEntry(id.getCacheEntryId()));
+        }
+
+        assertEquals(DownloadManager.TaskState.DONE, dm.getTaskState(done.taskId));
+    }
+
+    @Test
+    public void resumesWhereExtendedDataWasWrittenBeforeCrash() throws Exception {
+        File dir = folder.newFolder();
+        int size = TestHttpServer.TEST_FILE_SIZE;
+
+        DownloadManager.ProgressInfo pi = new DownloadManager.ProgressInfo();
+        pi.taskId = new DownloadManager.TaskId(String.valueOf(System.nanoTime()));
+        pi.url = url;
+        pi.state = DownloadManager.TaskState.IN_PROGRESS;
+        pi.downloadedBytes = size / 2;
+        pi.totalBytes = size;
+
+        OutputStream record = taskCache.createEntry(pi.taskId.getCacheEntryId());
+        DownloadManager.ProgressInfo.serialize(pi, record);
+        record.close();
+
+        // the data was extended to its full size, but only a quarter reached it before the crash
+        byte[] written = new byte[size / 4];
+
+        for (int i = 0; i < written.length; i++)
+            written[i] = (byte) i;
+
+        new FileCache(dir).createEntry(pi.taskId.getCacheEntryId(), size).write(written);
+
+        Cache data = new FileCache(dir);
+        final CountDownLatch done = new CountDownLatch(1);
+
+        assertEquals(size, data.getEntryLength(pi.taskId.getCacheEntryId()));
+
+        DownloadManager dm = new DownloadManager(taskCache, data, executor, 1, new DownloadManager.ProgressListener() {
+            @Override
+            public void onProgress(DownloadManager.ProgressInfo progressInfo) {
+                if (progressInfo.state == DownloadManager.TaskState.DONE)
+                    done.countDown();
+            }
+        });
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        DownloadManager.RecoveryReport report = dm.getRecoveryReport();
+
+        assertEquals(Arrays.asList(pi.taskId), report.truncated);
+        assertEquals(size / 4, report.tasks.get(pi.taskId).downloadedBytes);
+        assertTestFileContent(data.readEntry(pi.taskId.getCacheEntryId()));
+    }
+
+    @Test
+    public void resumesTasksOnceExecutorTakesWorkAgain() throws Exception {
+        FabricatedCaches caches = new FabricatedCaches();
+        DownloadManager.ProgressInfo interrupted = fabricateInterruptedTask(caches, DownloadManager.TaskState.STARTING, 0, 0);
+
+        final boolean[] full = new boolean[]{true};
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        // nothing of the manager runs on the executor, so no task finishing makes room
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                synchronized (full) {
+                    if (full[0])
+                        throw new RejectedExecutionException();
+                }
+
+                new Thread(runnable).start();
+            }
+        };
+
+        DownloadManager dm = new DownloadManager(caches.tasks, caches.data, executor, 1, new DownloadManager.ProgressListener() {
+            @Override
+            public void onProgress(DownloadManager.ProgressInfo progressInfo) {
+                if (progressInfo.state == DownloadManager.TaskState.DONE)
+                    latch.countDown();
+            }
+        });
+
+        assertEquals(-1, dm.getRecoveryReport().resumedMillis);
+
+        synchronized (full) {
+            full[0] = false;
+        }
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals(DownloadManager.TaskState.DONE, dm.getTaskState(interrupted.taskId));
+        assertThat(dm.getRecoveryReport().resumedMillis, greaterThanOrEqualTo(0L));
+    }
+
+    @Test
+    public void collectsGarbageByRetentionPolicy() throws Exception {
+        FabricatedCaches caches = new FabricatedCaches();
+        long now = System.currentTimeMillis();
+        long day = 24 * 60 * 60 * 1000L;
+
+        DownloadManager.ProgressInfo old = fabricateFinishedTask(caches, DownloadManager.TaskState.DONE, now - 40 * day, 10);
+        DownloadManager.ProgressInfo used = fabricateFinishedTask(caches, DownloadManager.TaskState.DONE, now - 2 * day, 30);
+        DownloadManager.ProgressInfo recent = fabricateFinishedTask(caches, DownloadManager.TaskState.DONE, now - day, 30);
+        DownloadManager.ProgressInfo failed = fabricateFinishedTask(caches, DownloadManager.TaskState.ERROR, now, 5);
+        DownloadManager.ProgressInfo lost = fabricateFinishedTask(caches, DownloadManager.TaskState.DONE, now, 0);
+        DownloadManager.ProgressInfo interrupted = caches.fabricateTask(DownloadManager.TaskState.IN_PROGRESS);
+
+        caches.data.deleteEntry(lost.taskId.getCacheEntryId());
+        caches.data.createEntry("orphan").close();
+
+        DownloadManager.RetentionPolicy policy = new DownloadManager.RetentionPolicy();
+        policy.setMaxAge(30 * day);
+        policy.setMaxTotalBytes(40);
+        policy.setRemovedStates(EnumSet.of(DownloadManager.TaskState.ERROR, DownloadManager.TaskState.CANCELLED));
+
+        DownloadManager dm = caches.createDownloadManager();
+        DownloadManager.RetentionReport dryRun = dm.collectGarbage(policy, true).get();
+
+        HashMap<DownloadManager.TaskId, DownloadManager.RetentionReason> expected = new HashMap<>();
+        expected.put(old.taskId, DownloadManager.RetentionReason.AGE);
+        expected.put(failed.taskId, DownloadManager.RetentionReason.STATE);
+        expected.put(lost.taskId, DownloadManager.RetentionReason.ORPHANED_RECORD);
+        // the least recently used one goes to keep within the size
+        expected.put(used.taskId, DownloadManager.RetentionReason.SIZE);
+
+        assertEquals(expected, dryRun.removed);
+        assertEquals(Arrays.asList("orphan"), dryRun.orphanedData);
+        assertEquals(45, dryRun.freedBytes);
+        assertEquals(30, dryRun.retainedBytes);
+        assertEquals(6, caches.tasks.getEntryNames().size());
+
+        DownloadManager.RetentionReport report = dm.collectGarbage(policy, false).get();
+
+        assertEquals(expected, report.removed);
+        assertEquals(2, dm.getTaskIds().size());
+        assertTrue(dm.getTaskIds().containsAll(Arrays.asList(recent.taskId, interrupted.taskId)));
+        assertEquals(2, caches.data.getEntryNames().size());
+        assertFalse(caches.data.hasEntry("orphan"));
+    }
+
+    @Test
+    public void collectingGarbageTellsAccessThroughWrappedCache() throws Exception {
+        final long day = TimeUnit.DAYS.toMillis(1);
+        long now = System.currentTimeMillis();
+
+        FabricatedCaches caches = new FabricatedCaches(new InstrumentedCache(new FileCache(folder.newFolder())));
+        DownloadManager.ProgressInfo recentlyUsed = fabricateFinishedTask(caches, DownloadManager.TaskState.DONE, now - 40 * day, 10);
+
+        DownloadManager.RetentionPolicy policy = new DownloadManager.RetentionPolicy();
+        policy.setMaxIdleTime(30 * day);
+
+        // the data was just written, so it's kept even though the task finished long ago
+        DownloadManager.RetentionReport report = caches.createDownloadManager().collectGarbage(policy, true).get();
+
+        assertTrue(report.removed.isEmpty());
+        assertEquals(10, report.retainedBytes);
+        assertTrue(caches.data.hasEntry(recentlyUsed.taskId.getCacheEntryId()));
+    }
+
+    @Test
+    public void collectingGarbageKeepsTasksWaitingForExecutor() throws Exception {
+        IoExecutor executor = new IoExecutor(1, 1, 4, IoExecutor.Backpressure.REJECT, 1000);
+        final DownloadManager[] dm = new DownloadManager[1];
+        final DownloadManager.Task[] restarted = new DownloadManager.Task[1];
+        final String[] restartedName = new String[1];
+
+        // the task is restarted after the collector read its record, and waits behind a busy transfer
+        Cache data = new MemoryCache() {
+            @Override
+            public long getEntryLength(String name) {
+                if (name.equals(restartedName[0]) && restarted[0] == null) {
+                    try {
+                        restarted[0] = dm[0].restartDownload(new DownloadManager.TaskId(name), null);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+
+                return super.getEntryLength(name);
+            }
+        };
+
+        dm[0] = new DownloadManager(taskCache, data, executor);
+        final OneShotEvent release = new OneShotEvent();
+
+        try {
+            DownloadManager.Task done = dm[0].startDownload(url, null);
+            done.get();
+
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        release.waitForSignal();
+                    } catch (InterruptedException _) {
+                        // ignored
+                    }
+                }
+            });
+
+            DownloadManager.RetentionPolicy policy = new DownloadManager.RetentionPolicy();
+            policy.setRemovedStates(EnumSet.of(DownloadManager.TaskState.DONE));
+            restartedName[0] = done.getId().getCacheEntryId();
+
+            dm[0].collectGarbage(policy, false).get();
+
+            assertTrue(dm[0].isActive(done.getId()));
+            assertTrue(taskCache.hasEntry(done.getId().getCacheEntryId()));
+
+            try {
+                dm[0].deleteTaskFromCache(done.getId());
+                fail("A task waiting for the executor was deleted");
+            } catch (IllegalArgumentException _) {
+                // expected
+            }
+
+            release.signal();
+            restarted[0].get();
+
+            assertEquals(DownloadManager.TaskState.DONE, dm[0].getTaskState(done.getId()));
+            assertTestFileContent(data.readEntry(done.getId().getCacheEntryId()));
+        } finally {
+            release.signal();
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Fabricates a task finished at the given time, whose data holds the given number of bytes.
+     */
+    private DownloadManager.ProgressInfo fabricateFinishedTask(FabricatedCaches caches, DownloadManager.TaskState state,
+                                                               long recordedAt, int dataBytes) throws IOException {
+        DownloadManager.ProgressInfo pi = new DownloadManager.ProgressInfo();
+
+        pi.taskId = new DownloadManager.TaskId(String.valueOf(System.nanoTime()));
+        pi.url = url;
+        pi.state = state;
+        pi.recordedAt = recordedAt;
+
+        caches.fabricateTask(pi);
+
+        OutputStream os = caches.data.appendToEntry(pi.taskId.getCacheEntryId());
+        os.write(new byte[dataBytes]);
+        os.close();
+
+        return pi;
+    }
+
+    /**
+     * Fabricates a task interrupted after recording some progress, whose data holds the given number of bytes.
+     */
+    private DownloadManager.ProgressInfo fabricateInterruptedTask(FabricatedCaches caches, DownloadManager.TaskState state,
+                                                                  int downloadedBytes, int dataBytes) throws IOException {
+        DownloadManager.ProgressInfo pi = new DownloadManager.ProgressInfo();
+
+        pi.taskId = new DownloadManager.TaskId(String.valueOf(System.nanoTime()));
+        pi.url = url;
+        pi.state = state;
+        pi.downloadedBytes = downloadedBytes;
+        pi.totalBytes = TestHttpServer.TEST_FILE_SIZE;
+
+        caches.fabricateTask(pi);
+
+        byte[] data = new byte[dataBytes];
+
+        for (int i = 0; i < dataBytes; i++)
+            data[i] = (byte) i;
+
+        caches.data.deleteEntry(pi.taskId.getCacheEntryId());
+        OutputStream os = caches.data.createEntry(pi.taskId.getCacheEntryId());
+        os.write(data);
+        os.close();
+
+        return pi;
+    }
+
     @Test
     public void clearsFailedAndCancelledTasks() throws Exception {
         FabricatedCaches caches = new FabricatedCaches();
@@ -286,9 +1378,33 @@ public class DownloadManagerTest {
         assertTrue(deleteFailed[0]);
     }
 
+    private void assertTestFileContent(InputStream is) throws IOException {
+        try {
+            int offset = 0;
+            int b;
+
+            while ((b = is.read()) != -1) {
+                assertEquals((byte) offset, (byte) b);
+                offset++;
+            }
+
+            assertEquals(TestHttpServer.TEST_FILE_SIZE, offset);
+        } finally {
+            is.close();
+        }
+    }
+
     private class FabricatedCaches {
         public final Cache tasks = new MemoryCache();
-        public final Cache data = new MemoryCache();
+        public final Cache data;
+
+        FabricatedCaches() {
+            this(new MemoryCache());
+        }
+
+        FabricatedCaches(Cache data) {
+            this.data = data;
+        }
 
         public void fabricateTask(DownloadManager.ProgressInfo pi) throws IOException {
             OutputStream os = tasks.createEntry(pi.taskId.getCacheEntryId());
@@ -8,8 +8,10 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.net.URL;
 import java.util.Random;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 
@@ -123,6 +125,68 @@ public class DownloaderTest {
         assertEquals(-1, is.getLength());
     }
 
+    @Test
+    public void probesContent() throws Exception {
+        server.setEntityTag("\"v1\"");
+
+        Downloader.Probe probe = downloader.probe(new URL(TestHttpServer.TEST_FILE));
+
+        assertEquals(TestHttpServer.TEST_FILE_SIZE, probe.getContentLength());
+        assertTrue(probe.acceptsRanges());
+        assertEquals("\"v1\"", probe.getEntityTag());
+        assertEquals(0, server.getRequestCount() - server.getHeadRequestCount());
+    }
+
+    @Test
+    public void reusesProbeResults() throws Exception {
+        URL url = new URL(TestHttpServer.TEST_FILE);
+
+        downloader.probe(url);
+        downloader.probe(url);
+        assertEquals(1, server.getHeadRequestCount());
+
+        downloader.invalidateProbe(url);
+        downloader.probe(url);
+        assertEquals(2, server.getHeadRequestCount());
+    }
+
+    @Test
+    public void abortsStalledRead() throws Exception {
+        server.setStallAfter(0);
+        downloader.setAbortPollInterval(50);
+
+        final Downloader.InputStream is = downloader.download(new URL(TestHttpServer.TEST_FILE));
+        final long[] abortedAt = new long[1];
+
+        Thread aborter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException _) {
+                    // ignored
+                }
+
+                abortedAt[0] = System.nanoTime();
+                is.abort();
+            }
+        });
+
+        aborter.start();
+
+        try {
+            is.read(new byte[0x100]);
+            fail("Read was not aborted");
+        } catch (InterruptedIOException _) {
+            // expected
+        }
+
+        long elapsed = System.nanoTime() - abortedAt[0];
+        aborter.join();
+
+        assertTrue(elapsed < TimeUnit.MILLISECONDS.toNanos(downloader.getReadTimeout() / 10));
+    }
+
     private int readIntoOffset(InputStream is, char[] buffer, int offset) throws IOException {
         try {
             InputStreamReader isr = new InputStreamReader(is);
@@ -0,0 +1,275 @@
+package la.manga.app.net;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ResponseCache;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import la.manga.app.storage.MemoryCache;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class HttpCacheTest {
+    private TestHttpServer server = new TestHttpServer();
+    private MemoryCache store;
+    private HttpCache cache;
+    private Downloader downloader;
+    private URL url;
+
+    @Before
+    public void setUp() throws Exception {
+        store = new MemoryCache();
+        cache = new HttpCache(store, 16 * TestHttpServer.TEST_FILE_SIZE);
+        downloader = new Downloader();
+        downloader.setResponseCache(cache);
+        url = new URL(TestHttpServer.TEST_FILE);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void servesFreshResponseFromCache() throws Exception {
+        server.setCacheControl("max-age=60");
+
+        assertFalse(downloadFully(url, false));
+        assertTrue(downloadFully(url, true));
+
+        HttpCache.Stats stats = cache.getStats();
+
+        assertEquals(1, server.getRequestCount());
+        assertEquals(1, stats.hits);
+        assertEquals(1, stats.misses);
+        assertEquals(1, stats.entries);
+        assertEquals(0.5, stats.getHitRate(), 0);
+    }
+
+    @Test
+    public void revalidatesStaleResponse() throws Exception {
+        server.setEntityTag("\"v1\"");
+
+        assertFalse(downloadFully(url, false));
+        assertTrue(downloadFully(url, true));
+
+        assertEquals(2, server.getRequestCount());
+        assertEquals(1, server.getNotModifiedCount());
+        assertEquals(1, cache.getStats().conditionalHits);
+
+        // a changed version replaces the stored one
+        server.setEntityTag("\"v2\"");
+
+        assertFalse(downloadFully(url, false));
+        assertTrue(downloadFully(url, true));
+
+        assertEquals(2, server.getNotModifiedCount());
+        assertEquals(2, cache.getStats().stores);
+        assertEquals(1, cache.getStats().entries);
+    }
+
+    @Test
+    public void doesNotStoreWhatMayNotBeStored() throws Exception {
+        server.setCacheControl("no-store");
+        server.setEntityTag("\"v1\"");
+
+        assertFalse(downloadFully(url, false));
+        assertFalse(downloadFully(url, false));
+
+        // without freshness or validators, a stored response would never be served
+        server.setCacheControl(null);
+        server.setEntityTag(null);
+
+        assertFalse(downloadFully(url, false));
+
+        assertEquals(0, cache.getStats().stores);
+        assertTrue(store.getEntryNames().isEmpty());
+    }
+
+    @Test
+    public void dropsIncompleteContent() throws Exception {
+        server.setCacheControl("max-age=60");
+
+        InputStream is = downloader.download(url);
+        is.read(new byte[0x1000]);
+        is.close();
+
+        assertEquals(0, cache.getStats().stores);
+        assertTrue(store.getEntryNames().isEmpty());
+        assertFalse(downloadFully(url, false));
+    }
+
+    @Test
+    public void storesAgainAfterContentFailsToClose() throws Exception {
+        final boolean[] failing = {true};
+
+        store = new MemoryCache() {
+            @Override
+            public OutputStream createEntry(String name, long expectedSize) {
+                final OutputStream os = super.createEntry(name, expectedSize);
+
+                if (!failing[0] || !name.endsWith(".body"))
+                    return os;
+
+                return new OutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        os.write(b);
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        os.write(b, off, len);
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        os.close();
+                        throw new IOException("Failed to flush the content.");
+                    }
+                };
+            }
+        };
+
+        cache = new HttpCache(store, 16 * TestHttpServer.TEST_FILE_SIZE);
+        downloader.setResponseCache(cache);
+        server.setCacheControl("max-age=60");
+
+        try {
+            downloadFully(url, false);
+        } catch (IOException _) {
+            // the content failed to be stored
+        }
+
+        assertTrue(store.getEntryNames().isEmpty());
+
+        failing[0] = false;
+
+        assertFalse(downloadFully(url, false));
+        assertTrue(downloadFully(url, true));
+        assertEquals(1, cache.getStats().stores);
+    }
+
+    @Test
+    public void replacesHeadersOfRevalidatedResponse() throws Exception {
+        final List<String> deleted = new ArrayList<>();
+
+        store = new MemoryCache() {
+            @Override
+            public void deleteEntry(String name) {
+                deleted.add(name);
+                super.deleteEntry(name);
+            }
+        };
+
+        cache = new HttpCache(store, 16 * TestHttpServer.TEST_FILE_SIZE);
+        downloader.setResponseCache(cache);
+        server.setEntityTag("\"v1\"");
+
+        assertFalse(downloadFully(url, false));
+        deleted.clear();
+
+        assertTrue(downloadFully(url, true));
+        assertEquals(1, cache.getStats().conditionalHits);
+
+        // the headers were never missing
+        assertTrue(deleted.isEmpty());
+        assertEquals(2, store.getEntryNames().size());
+    }
+
+    @Test
+    public void keepsWithinBudget() throws Exception {
+        server.setCacheControl("max-age=60");
+
+        HttpCache small = new HttpCache(store, 8 * TestHttpServer.TEST_FILE_SIZE + 0x10000);
+        downloader.setResponseCache(small);
+
+        for (int i = 0; i < 12; i++)
+            downloadFully(new URL(TestHttpServer.TEST_FILE + "?" + i), false);
+
+        HttpCache.Stats stats = small.getStats();
+
+        assertThat(stats.evictions, greaterThan(0L));
+        assertThat(stats.totalBytes, lessThanOrEqualTo(stats.maxBytes));
+
+        // the most recent ones are kept
+        assertTrue(downloadFully(new URL(TestHttpServer.TEST_FILE + "?11"), true));
+        assertFalse(downloadFully(new URL(TestHttpServer.TEST_FILE + "?0"), false));
+    }
+
+    @Test
+    public void keepsStoredResponsesAcrossInstances() throws Exception {
+        server.setCacheControl("max-age=60");
+        downloadFully(url, false);
+
+        downloader.setResponseCache(new HttpCache(store, 16 * TestHttpServer.TEST_FILE_SIZE));
+
+        assertTrue(downloadFully(url, true));
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void servesConnectionsProcessWide() throws Exception {
+        server.setCacheControl("max-age=60");
+        ResponseCache.setDefault(cache);
+
+        try {
+            assertEquals(TestHttpServer.TEST_FILE_SIZE, readFully(url.openStream()));
+            assertEquals(TestHttpServer.TEST_FILE_SIZE, readFully(url.openStream()));
+        } finally {
+            ResponseCache.setDefault(null);
+        }
+
+        assertEquals(1, server.getRequestCount());
+        assertEquals(1, cache.getStats().hits);
+    }
+
+    /**
+     * Downloads the test file, checking its content.
+     *
+     * @return Whether it was served from the cache.
+     */
+    private boolean downloadFully(URL url, boolean expectCached) throws IOException {
+        Downloader.InputStream is = downloader.download(url);
+        boolean cached = is.isCached();
+
+        assertEquals(TestHttpServer.TEST_FILE_SIZE, readFully(is));
+        assertEquals(expectCached, cached);
+
+        return cached;
+    }
+
+    private static int readFully(InputStream is) throws IOException {
+        try {
+            byte[] buffer = new byte[0x10000];
+            int total = 0;
+            int nread;
+
+            while ((nread = is.read(buffer)) != -1) {
+                for (int i = 0; i < nread; i++) {
+                    if (buffer[i] != (byte) (total + i))
+                        throw new AssertionError("Content differs at " + (total + i));
+                }
+
+                total += nread;
+            }
+
+            return total;
+        } finally {
+            is.close();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package la.manga.app.net;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LongHashMapTest {
+    @Test
+    public void putsGetsAndRemoves() throws Exception {
+        LongHashMap<String> map = new LongHashMap<>();
+
+        assertNull(map.put(1, "a"));
+        assertNull(map.put(0, "zero"));
+        assertEquals("a", map.put(1, "b"));
+
+        assertEquals(2, map.size());
+        assertEquals("b", map.get(1));
+        assertEquals("zero", map.get(0));
+        assertTrue(map.containsKey(0));
+        assertFalse(map.containsKey(2));
+        assertNull(map.get(2));
+
+        assertEquals("zero", map.remove(0));
+        assertEquals("b", map.remove(1));
+        assertNull(map.remove(1));
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void agreesWithHashMap() throws Exception {
+        LongHashMap<Long> map = new LongHashMap<>();
+        Map<Long, Long> expected = new HashMap<>();
+        Random random = new Random(42);
+
+        for (int i = 0; i < 200000; i++) {
+            // a narrow range of keys makes probe chains collide and wrap around
+            long key = DownloadManager.TaskId.pack(1476000000000L + random.nextInt(64), random.nextInt(64));
+
+            switch (random.nextInt(3)) {
+                case 0:
+                    assertEquals(expected.put(key, (long) i), map.put(key, (long) i));
+                    break;
+                case 1:
+                    assertEquals(expected.remove(key), map.remove(key));
+                    break;
+                default:
+                    assertEquals(expected.get(key), map.get(key));
+                    assertEquals(expected.containsKey(key), map.containsKey(key));
+            }
+
+            assertEquals(expected.size(), map.size());
+        }
+
+        for (Map.Entry<Long, Long> entry : expected.entrySet())
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+
+        assertEquals(expected.size(), map.values().size());
+    }
+}
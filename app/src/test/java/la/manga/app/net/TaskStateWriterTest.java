@@ -0,0 +1,146 @@
+package la.manga.app.net;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import la.manga.app.storage.MemoryCache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TaskStateWriterTest {
+    private CountingCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        cache = new CountingCache();
+    }
+
+    @Test
+    public void coalescesProgressWithinWindow() throws Exception {
+        TaskStateWriter writer = new TaskStateWriter(cache, 100, 32);
+
+        for (int i = 0; i < 50; i++) {
+            writer.write("a", progress(i, DownloadManager.TaskState.IN_PROGRESS));
+            writer.write("b", progress(i, DownloadManager.TaskState.IN_PROGRESS));
+        }
+
+        assertFalse(cache.hasEntry("a"));
+
+        Thread.sleep(500);
+
+        assertEquals(2, cache.creates.get());
+        assertEquals(49, read("a").downloadedBytes);
+        assertEquals(49, read("b").downloadedBytes);
+
+        TaskStateWriter.Stats stats = writer.getStats();
+
+        assertEquals(1, stats.batches);
+        assertEquals(98, stats.coalesced);
+    }
+
+    @Test
+    public void commitsDurableStateWithPendingOnes() throws Exception {
+        TaskStateWriter writer = new TaskStateWriter(cache, 60000, 32);
+
+        writer.write("a", progress(10, DownloadManager.TaskState.IN_PROGRESS));
+        writer.write("b", progress(20, DownloadManager.TaskState.IN_PROGRESS));
+        writer.writeDurably("b", progress(30, DownloadManager.TaskState.DONE));
+
+        // the terminal state is written when the call returns, and the pending progress along with it
+        assertEquals(DownloadManager.TaskState.DONE, read("b").state);
+        assertEquals(30, read("b").downloadedBytes);
+        assertEquals(10, read("a").downloadedBytes);
+        assertEquals(1, writer.getStats().batches);
+    }
+
+    @Test
+    public void commitsFullBatchRightAway() throws Exception {
+        TaskStateWriter writer = new TaskStateWriter(cache, 60000, 4);
+
+        for (int i = 0; i < 4; i++)
+            writer.write("t" + i, progress(i, DownloadManager.TaskState.IN_PROGRESS));
+
+        assertEquals(4, cache.getEntryNames().size());
+        assertEquals(0, writer.getStats().pending);
+    }
+
+    @Test
+    public void reportsFailureToTheTask() throws Exception {
+        TaskStateWriter writer = new TaskStateWriter(cache, 60000, 32);
+        cache.failing = true;
+
+        writer.write("a", progress(1, DownloadManager.TaskState.IN_PROGRESS));
+        writer.commit();
+
+        try {
+            writer.write("a", progress(2, DownloadManager.TaskState.IN_PROGRESS));
+            fail("The failed commit was not reported");
+        } catch (IOException _) {
+            // expected
+        }
+
+        try {
+            writer.writeDurably("b", progress(2, DownloadManager.TaskState.ERROR));
+            fail("The failed commit was not reported");
+        } catch (IOException _) {
+            // expected
+        }
+
+        cache.failing = false;
+        writer.writeDurably("a", progress(3, DownloadManager.TaskState.CANCELLED));
+
+        assertEquals(3, read("a").downloadedBytes);
+    }
+
+    @Test
+    public void discardsPendingStateOfDeletedTask() throws Exception {
+        TaskStateWriter writer = new TaskStateWriter(cache, 60000, 32);
+
+        writer.write("a", progress(1, DownloadManager.TaskState.IN_PROGRESS));
+        writer.discard("a");
+        writer.commit();
+
+        assertTrue(cache.getEntryNames().isEmpty());
+    }
+
+    private static DownloadManager.ProgressInfo progress(int downloadedBytes, DownloadManager.TaskState state) {
+        DownloadManager.ProgressInfo pi = new DownloadManager.ProgressInfo();
+        pi.downloadedBytes = downloadedBytes;
+        pi.state = state;
+        return pi;
+    }
+
+    private DownloadManager.ProgressInfo read(String name) throws IOException {
+        return DownloadManager.ProgressInfo.deserialize(cache.readEntry(name));
+    }
+
+    private static class CountingCache extends MemoryCache {
+        final AtomicInteger creates = new AtomicInteger();
+        volatile boolean failing = false;
+
+        @Override
+        public OutputStream createEntry(String name) {
+            if (failing)
+                throw new RuntimeException("Out of space");
+
+            creates.incrementAndGet();
+            return super.createEntry(name);
+        }
+
+        @Override
+        public OutputStream replaceEntry(String name) {
+            if (failing)
+                throw new RuntimeException("Out of space");
+
+            creates.incrementAndGet();
+            return super.replaceEntry(name);
+        }
+    }
+}
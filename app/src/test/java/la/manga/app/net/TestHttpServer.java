@@ -12,6 +12,9 @@ import java.net.SocketException;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -24,12 +27,40 @@ public class TestHttpServer extends NanoHTTPD {
     private final static int PORT = 8089;
     public final static String TEST_FILE = "http://localhost:" + PORT + "/TEST_FILE";
     public final static int TEST_FILE_SIZE = 0x100000;
-    private final byte[] buffer = getBuffer();
+    private final byte[] buffer;
+    private final String url;
     private boolean shouldFail = false;
+    private boolean ignoreRanges = false;
+    private int dropAfter = -1;
+    private final AtomicInteger requestCount = new AtomicInteger(0);
+    private final AtomicInteger headRequestCount = new AtomicInteger(0);
+    private String entityTag;
+    private String cacheControl;
+    private final AtomicInteger notModifiedCount = new AtomicInteger(0);
     private boolean useChunked = true;
+    private int stallAfter = -1;
+    private final CountDownLatch stallReleased = new CountDownLatch(1);
+    private final CountDownLatch stalled = new CountDownLatch(1);
+    private int trickleAfter = -1;
+    private int trickleInterval = 0;
+    private final AtomicInteger trickleResponses = new AtomicInteger(0);
 
     public TestHttpServer() {
-        super(PORT);
+        this(PORT, TEST_FILE_SIZE);
+    }
+
+    /**
+     * Creates a server which serves its file on another port,
+     * so that several servers can act as mirrors of each other.
+     *
+     * @param port     The port to listen on.
+     * @param fileSize The size of the served file.
+     */
+    public TestHttpServer(int port, int fileSize) {
+        super(port);
+
+        this.buffer = getBuffer(fileSize);
+        this.url = "http://localhost:" + port + "/TEST_FILE";
 
         // disable logging, since sometimes we'll do test where
         // the client behaves against the rules.
@@ -38,6 +69,65 @@ public class TestHttpServer extends NanoHTTPD {
         Logger.getLogger(NanoHTTPD.class.getName()).setLevel(Level.OFF);
     }
 
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Gets the number of requests served so far.
+     */
+    public int getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * Gets the number of HEAD requests served so far, which are also counted by {@link #getRequestCount()}.
+     */
+    public int getHeadRequestCount() {
+        return headRequestCount.get();
+    }
+
+    /**
+     * Makes responses carry an ETag header, as if the file were a specific version.
+     *
+     * @param tag The entity tag, or null to send none.
+     */
+    public void setEntityTag(String tag) {
+        entityTag = tag;
+    }
+
+    /**
+     * Makes responses carry a Cache-Control header.
+     *
+     * @param value The header value, or null to send none.
+     */
+    public void setCacheControl(String value) {
+        cacheControl = value;
+    }
+
+    /**
+     * Gets the number of conditional requests answered with 304 Not Modified.
+     */
+    public int getNotModifiedCount() {
+        return notModifiedCount.get();
+    }
+
+    /**
+     * Makes the server send the whole file for range requests, as servers without range support do.
+     */
+    public void setIgnoreRanges(boolean b) {
+        ignoreRanges = b;
+    }
+
+    /**
+     * Makes responses break off after the specified number of bytes, dropping the connection.
+     *
+     * @param bytes The number of bytes to send before dropping, or -1 to never drop.
+     */
+    public void setDropAfter(int bytes) {
+        dropAfter = bytes;
+    }
+
     public void setFailAlways(boolean b) {
         shouldFail = b;
     }
@@ -46,15 +136,76 @@ public class TestHttpServer extends NanoHTTPD {
         useChunked = b;
     }
 
+    /**
+     * Makes responses stop sending data after the specified number of bytes,
+     * without closing the connection, until the server is stopped.
+     *
+     * @param bytes The number of bytes to send before stalling, or -1 to never stall.
+     */
+    public void setStallAfter(int bytes) {
+        stallAfter = bytes;
+    }
+
+    /**
+     * Waits until a response has sent all its bytes and stalls.
+     */
+    public void awaitStall() throws InterruptedException {
+        stalled.await();
+    }
+
+    /**
+     * Makes the next responses slow down to one byte per interval after the specified
+     * number of bytes. Responses after those are served at full speed again.
+     *
+     * @param bytes     The number of bytes to send at full speed.
+     * @param interval  The time to wait before sending each of the remaining bytes, in milliseconds.
+     * @param responses The number of responses which should trickle.
+     */
+    public void setTrickleAfter(int bytes, int interval, int responses) {
+        trickleAfter = bytes;
+        trickleInterval = interval;
+        trickleResponses.set(responses);
+    }
+
+    @Override
+    public void stop() {
+        stallReleased.countDown();
+        super.stop();
+    }
+
     @Override
     public Response serve(IHTTPSession session) {
+        requestCount.incrementAndGet();
+
         if (shouldFail)
             return super.serve(session);
 
+        // answer probes without affecting how the next downloads are served
+        if (session.getMethod() == Method.HEAD) {
+            headRequestCount.incrementAndGet();
+
+            // NanoHTTPD would send a body along, so announce the length without one
+            Response response = newFixedLengthResponse(Response.Status.OK, "application/zip", "");
+            response.addHeader("Content-Length", String.valueOf(buffer.length));
+            addContentHeaders(response);
+
+            return response;
+        }
+
+        // a client which has the current version only needs to be told so
+        if (entityTag != null && entityTag.equals(session.getHeaders().get("if-none-match"))) {
+            notModifiedCount.incrementAndGet();
+
+            Response response = newFixedLengthResponse(Response.Status.NOT_MODIFIED, "application/zip", "");
+            addContentHeaders(response);
+
+            return response;
+        }
+
         int offset = 0;
         int count = buffer.length;
 
-        String range = session.getHeaders().get("range");
+        String range = ignoreRanges ? null : session.getHeaders().get("range");
 
         if (range != null) {
             String bytes = range.split("=")[1];
@@ -63,23 +214,138 @@ public class TestHttpServer extends NanoHTTPD {
             offset = Integer.parseInt(parts[0]);
 
             if (parts.length == 2)
-                count = Integer.parseInt(parts[1]) - offset + 1;
+                count = Math.min(Integer.parseInt(parts[1]) + 1, buffer.length) - offset;
+            else
+                count = buffer.length - offset;
         }
 
-        ByteArrayInputStream is = new ByteArrayInputStream(buffer, offset, count);
+        InputStream is = new ByteArrayInputStream(buffer, offset, count);
+
+        if (stallAfter != -1)
+            is = new StallingInputStream(is, stallAfter, -1);
+        else if (trickleResponses.getAndDecrement() > 0)
+            is = new StallingInputStream(is, trickleAfter, trickleInterval);
+        else if (dropAfter != -1)
+            is = new DroppingInputStream(is, dropAfter);
+
+        Response.Status status = range != null ? Response.Status.PARTIAL_CONTENT : Response.Status.OK;
+        Response response;
 
         if (useChunked)
-            return newChunkedResponse(NanoHTTPD.Response.Status.OK, "application/zip", is);
+            response = newChunkedResponse(status, "application/zip", is);
         else
-            return newFixedLengthResponse(NanoHTTPD.Response.Status.OK, "application/zip", is, (long)count);
+            response = newFixedLengthResponse(status, "application/zip", is, (long) count);
+
+        // dropping only works if the server closes the connection afterwards
+        if (dropAfter != -1)
+            response.addHeader("Connection", "close");
+
+        if (range != null)
+            response.addHeader("Content-Range", String.format("bytes %d-%d/%d", offset, offset + count - 1, buffer.length));
+
+        addContentHeaders(response);
+
+        return response;
+    }
+
+    private void addContentHeaders(Response response) {
+        if (!ignoreRanges)
+            response.addHeader("Accept-Ranges", "bytes");
+
+        if (entityTag != null)
+            response.addHeader("ETag", entityTag);
+
+        if (cacheControl != null)
+            response.addHeader("Cache-Control", cacheControl);
     }
 
-    private byte[] getBuffer() {
-        byte[] buffer = new byte[TEST_FILE_SIZE];
+    private byte[] getBuffer(int size) {
+        byte[] buffer = new byte[size];
 
         for (int i = 0; i < buffer.length; i++)
             buffer[i] = (byte) i;
 
         return buffer;
     }
+
+    /**
+     * Serves a limited number of bytes, and then either blocks until the
+     * server is stopped, or goes on serving one byte per interval.
+     */
+    private class StallingInputStream extends InputStream {
+        private final InputStream is;
+        private final int interval;
+        private int remaining;
+
+        StallingInputStream(InputStream is, int stallAfter, int interval) {
+            this.is = is;
+            this.interval = interval;
+            this.remaining = stallAfter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining == 0) {
+                try {
+                    if (interval == -1) {
+                        stalled.countDown();
+                        stallReleased.await();
+                        return -1;
+                    }
+
+                    if (stallReleased.await(interval, TimeUnit.MILLISECONDS))
+                        return -1;
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+
+                return is.read(b, off, Math.min(len, 1));
+            }
+
+            int nread = is.read(b, off, Math.min(len, remaining));
+
+            if (nread > 0)
+                remaining -= nread;
+
+            return nread;
+        }
+    }
+
+    /**
+     * Serves a limited number of bytes, and then fails, making the server drop the connection.
+     */
+    private static class DroppingInputStream extends InputStream {
+        private final InputStream is;
+        private int remaining;
+
+        DroppingInputStream(InputStream is, int dropAfter) {
+            this.is = is;
+            this.remaining = dropAfter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining == 0)
+                throw new IOException("Dropping connection");
+
+            int nread = is.read(b, off, Math.min(len, remaining));
+
+            if (nread > 0)
+                remaining -= nread;
+
+            return nread;
+        }
+    }
 }
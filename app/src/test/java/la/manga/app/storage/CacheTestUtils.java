@@ -0,0 +1,55 @@
+package la.manga.app.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Writes and reads the content of cache entries for the cache tests.
+ */
+final class CacheTestUtils {
+    private CacheTestUtils() {
+    }
+
+    /**
+     * Makes content of a size which tells apart where each byte was.
+     */
+    static byte[] pattern(int size) {
+        byte[] content = new byte[size];
+
+        for (int i = 0; i < size; i++)
+            content[i] = (byte) (i * 31);
+
+        return content;
+    }
+
+    /**
+     * Writes the content to an entry, and commits it by closing the stream.
+     */
+    static void commitBytes(OutputStream os, byte[] buffer) throws IOException {
+        try {
+            os.write(buffer);
+        } finally {
+            os.close();
+        }
+    }
+
+    /**
+     * Reads an entry to its end in small reads, and closes the stream.
+     */
+    static byte[] readBytes(InputStream is) throws IOException {
+        try {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            byte[] buffer = new byte[0x10];
+            int nbytes;
+
+            while ((nbytes = is.read(buffer)) != -1)
+                os.write(buffer, 0, nbytes);
+
+            return os.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package la.manga.app.storage;
 
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -7,23 +8,51 @@ import org.junit.rules.TemporaryFolder;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static la.manga.app.storage.CacheTestUtils.commitBytes;
+import static la.manga.app.storage.CacheTestUtils.pattern;
+import static la.manga.app.storage.CacheTestUtils.readBytes;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
 import static org.hamcrest.Matchers.in;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
 import static org.hamcrest.Matchers.not;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class FileCacheTest {
     private FileCache cache;
     private File dir;
     private int nextEntryId = 0;
 
+    private final Executor inline = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
     @Rule
     public TemporaryFolder folder = new TemporaryFolder();
 
@@ -106,27 +135,574 @@ public class FileCacheTest {
         assertEquals(0, cache.getEntryNames().size());
     }
 
-    private void commitBytes(OutputStream os, byte[] buffer) throws IOException {
+    @Test
+    public void preallocatesAndTrimsEntry() throws Exception {
+        String entryName = nextEntryName();
+        File file = new File(dir, entryName);
+
+        OutputStream os = cache.createEntry(entryName, 0x10000);
+        os.write(new byte[]{1, 2, 3});
+
+        assertEquals(0x10000, file.length());
+
+        os.close();
+
+        assertEquals(3, file.length());
+        assertArrayEquals(new byte[]{1, 2, 3}, readBytes(cache.readEntry(entryName)));
+    }
+
+    @Test
+    public void failsFastWithoutSpace() throws Exception {
+        String entryName = nextEntryName();
+
         try {
-            os.write(buffer);
-        } finally {
-            os.close();
+            cache.createEntry(entryName, cache.getAvailableSpace() + 1);
+            fail("Entry was created without enough space");
+        } catch (InsufficientSpaceException _) {
+            // expected
+        }
+
+        assertFalse(cache.hasEntry(entryName));
+    }
+
+    @Test
+    public void writesEntryAtOffset() throws Exception {
+        String entryName = nextEntryName();
+
+        commitBytes(cache.createEntry(entryName), new byte[]{1, 2, 3, 4});
+        commitBytes(cache.writeEntryAt(entryName, 2), new byte[]{9});
+
+        assertArrayEquals(new byte[]{1, 2, 9}, readBytes(cache.readEntry(entryName)));
+
+        commitBytes(cache.writeEntryAt(entryName, 5), new byte[]{7});
+
+        assertArrayEquals(new byte[]{1, 2, 9, 0, 0, 7}, readBytes(cache.readEntry(entryName)));
+    }
+
+    @Test
+    public void readsRangeOfEntry() throws Exception {
+        String entryName = nextEntryName();
+
+        commitBytes(cache.createEntry(entryName), new byte[]{1, 2, 3, 4, 5, 6});
+
+        assertArrayEquals(new byte[]{3, 4}, readBytes(cache.readEntry(entryName, 2, 2)));
+        assertArrayEquals(new byte[]{5, 6}, readBytes(cache.readEntry(entryName, 4, 10)));
+        assertArrayEquals(new byte[]{2, 3, 4, 5, 6}, readBytes(cache.readEntry(entryName, 1, -1)));
+        assertEquals(6, cache.getEntryLength(entryName));
+    }
+
+    @Test
+    public void mapsLargeRanges() throws Exception {
+        String entryName = nextEntryName();
+        byte[] content = new byte[FileCache.MAP_THRESHOLD * 2];
+
+        for (int i = 0; i < content.length; i++)
+            content[i] = (byte) i;
+
+        commitBytes(cache.createEntry(entryName), content);
+
+        ByteBuffer large = cache.getEntryBuffer(entryName, 1, -1);
+        ByteBuffer small = cache.getEntryBuffer(entryName, 1, 0x10);
+
+        assertTrue(large instanceof MappedByteBuffer);
+        assertFalse(small instanceof MappedByteBuffer);
+        assertEquals(content.length - 1, large.remaining());
+        assertEquals(0x10, small.remaining());
+
+        for (int i = 0; i < large.limit(); i++)
+            assertEquals(content[i + 1], large.get(i));
+
+        for (int i = 0; i < small.limit(); i++)
+            assertEquals(content[i + 1], small.get(i));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedEntries() throws Exception {
+        FileCache cache = new FileCache(folder.newFolder(), 10, inline);
+
+        commitBytes(cache.createEntry("a"), new byte[4]);
+        commitBytes(cache.createEntry("b"), new byte[4]);
+        readBytes(cache.readEntry("a"));
+        commitBytes(cache.createEntry("c"), new byte[4]);
+
+        assertTrue(cache.hasEntry("a"));
+        assertFalse(cache.hasEntry("b"));
+        assertTrue(cache.hasEntry("c"));
+        assertEquals(8, cache.getTotalBytes());
+        assertEquals(1, cache.getStats().evictions);
+        assertEquals(4, cache.getStats().evictedBytes);
+    }
+
+    @Test
+    public void lookingUpEntriesDoesNotMarkThemUsed() throws Exception {
+        FileCache cache = new FileCache(folder.newFolder(), 10, inline);
+
+        commitBytes(cache.createEntry("a"), new byte[4]);
+        commitBytes(cache.createEntry("b"), new byte[4]);
+
+        assertEquals(4, cache.getEntryLength("a"));
+        assertThat(cache.getEntryLastModified("a"), greaterThan(0L));
+        assertThat(cache.getEntryLastAccessed("a"), greaterThan(0L));
+        assertTrue(cache.hasEntry("a"));
+
+        commitBytes(cache.createEntry("c"), new byte[4]);
+
+        assertFalse(cache.hasEntry("a"));
+        assertTrue(cache.hasEntry("b"));
+    }
+
+    @Test
+    public void keepsPinnedEntries() throws Exception {
+        FileCache cache = new FileCache(folder.newFolder(), 10, inline);
+
+        commitBytes(cache.createEntry("a"), new byte[4]);
+        cache.pinEntry("a");
+        commitBytes(cache.createEntry("b"), new byte[4]);
+        commitBytes(cache.createEntry("c"), new byte[4]);
+
+        assertTrue(cache.hasEntry("a"));
+        assertFalse(cache.hasEntry("b"));
+
+        cache.unpinEntry("a");
+        commitBytes(cache.createEntry("d"), new byte[4]);
+
+        assertFalse(cache.hasEntry("a"));
+        assertTrue(cache.hasEntry("c"));
+        assertTrue(cache.hasEntry("d"));
+    }
+
+    @Test
+    public void keepsEntriesBeingWritten() throws Exception {
+        FileCache cache = new FileCache(folder.newFolder(), 10, inline);
+
+        commitBytes(cache.createEntry("a"), new byte[4]);
+
+        OutputStream os = cache.createEntry("b");
+        os.write(new byte[12]);
+        commitBytes(cache.createEntry("c"), new byte[1]);
+
+        assertFalse(cache.hasEntry("a"));
+        assertTrue(cache.hasEntry("b"));
+
+        os.close();
+
+        // once closed, an entry larger than the quota is evicted like any other
+        assertFalse(cache.hasEntry("b"));
+        assertThat(cache.getTotalBytes(), lessThanOrEqualTo(10L));
+    }
+
+    @Test(timeout = 30000)
+    public void evictsInlineWhileOthersWrite() throws Exception {
+        final FileCache cache = new FileCache(folder.newFolder(), 0x4000, inline);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final byte[] content = new byte[0x1000];
+        List<Thread> writers = new ArrayList<>();
+
+        // each writer evicts the others' entries, holding an entry's lock while it does
+        for (int i = 0; i < 8; i++) {
+            final String prefix = "writer" + i + "-";
+
+            writers.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int round = 0; round < 100; round++) {
+                            commitBytes(cache.createEntry(prefix + round), content);
+
+                            InputStream is = cache.readEntry(prefix + round / 2);
+
+                            if (is != null)
+                                readBytes(is);
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }));
         }
+
+        for (Thread writer : writers)
+            writer.start();
+
+        for (Thread writer : writers)
+            writer.join();
+
+        assertNull(failure.get());
+        assertThat(cache.getTotalBytes(), lessThanOrEqualTo(0x4000L));
     }
 
-    private byte[] readBytes(InputStream is) throws IOException {
+    @Test
+    public void evictsAgainAfterEvictorRejects() throws Exception {
+        final boolean[] rejecting = new boolean[]{true};
+
+        FileCache cache = new FileCache(folder.newFolder(), 10, new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                if (rejecting[0])
+                    throw new RejectedExecutionException();
+
+                runnable.run();
+            }
+        });
+
+        commitBytes(cache.createEntry("a"), new byte[8]);
+        commitBytes(cache.createEntry("b"), new byte[8]);
+
+        assertEquals(16, cache.getTotalBytes());
+
+        rejecting[0] = false;
+        commitBytes(cache.createEntry("c"), new byte[1]);
+
+        assertFalse(cache.hasEntry("a"));
+        assertThat(cache.getTotalBytes(), lessThanOrEqualTo(10L));
+    }
+
+    @Test
+    public void rebuildsIndexFromModificationTimes() throws Exception {
+        commitBytes(cache.createEntry("new"), new byte[4]);
+        commitBytes(cache.createEntry("old"), new byte[4]);
+
+        assertTrue(new File(dir, "old").setLastModified(System.currentTimeMillis() - 60000));
+
+        FileCache bounded = new FileCache(dir, 6, inline);
+
+        assertEquals(4, bounded.getTotalBytes());
+        assertTrue(bounded.hasEntry("new"));
+        assertFalse(bounded.hasEntry("old"));
+    }
+
+    @Test
+    public void evictsInTheBackground() throws Exception {
+        FileCache cache = new FileCache(folder.newFolder(), 0x1000);
+
+        for (int i = 0; i < 8; i++)
+            commitBytes(cache.createEntry(nextEntryName()), new byte[0x400]);
+
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while (cache.getTotalBytes() > cache.getMaxBytes() && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+
+        assertEquals(0x1000, cache.getTotalBytes());
+        assertEquals(4, cache.getEntryNames().size());
+    }
+
+    @Test
+    public void replacesEntryAtOnce() throws Exception {
+        commitBytes(cache.createEntry("a"), pattern(10));
+
+        OutputStream os = cache.replaceEntry("a");
+        os.write(new byte[20]);
+
+        // the old content is kept until the replacement is closed
+        assertArrayEquals(pattern(10), readBytes(cache.readEntry("a")));
+
+        os.close();
+
+        assertArrayEquals(new byte[20], readBytes(cache.readEntry("a")));
+        assertEquals(20, cache.getEntryLength("a"));
+        assertEquals(20, cache.getStats().totalBytes);
+
+        commitBytes(cache.replaceEntry("b"), pattern(5));
+        assertArrayEquals(pattern(5), readBytes(cache.readEntry("b")));
+        assertEquals(2, cache.getEntryNames().size());
+    }
+
+    @Test
+    public void dropsIncompleteReplacements() throws Exception {
+        commitBytes(cache.createEntry("a"), pattern(10));
+
+        // a replacement left behind by a crash
+        OutputStream os = cache.replaceEntry("a");
+        os.write(new byte[20]);
+
+        FileCache reopened = new FileCache(dir);
+
+        assertArrayEquals(pattern(10), readBytes(reopened.readEntry("a")));
+        assertEquals(Arrays.asList("a"), reopened.getEntryNames());
+        assertEquals(0, new File(dir, FileCache.PENDING_DIRECTORY).list().length);
+
         try {
-            ByteArrayOutputStream os = new ByteArrayOutputStream();
-            byte[] buffer = new byte[0x10];
-            int nbytes;
+            os.close();
+            fail("A dropped replacement was committed");
+        } catch (IOException _) {
+            // expected
+        }
+    }
+
+    @Test
+    public void keepsEntryMetadataInIndex() throws Exception {
+        long before = System.currentTimeMillis();
+
+        commitBytes(cache.createEntry("a"), new byte[10]);
+        assertTrue(new File(dir, "a").setLastModified(before - 60000));
+
+        FileCache reopened = new FileCache(dir);
+
+        assertEquals(10, reopened.getEntryLength("a"));
+        assertEquals(-1, reopened.getEntryLength("b"));
+        assertThat(reopened.getEntryLastModified("a"), lessThan(before));
+        assertEquals(reopened.getEntryLastModified("a"), reopened.getEntryLastAccessed("a"));
+
+        readBytes(reopened.readEntry("a"));
+        assertNull(reopened.readEntry("b"));
+
+        assertThat(reopened.getEntryLastAccessed("a"), greaterThanOrEqualTo(before));
+        assertThat(reopened.getEntryLastModified("a"), lessThan(before));
+
+        FileCache.Stats stats = reopened.getStats();
+        assertEquals(1, stats.entries);
+        assertEquals(10, stats.totalBytes);
+        assertEquals(1, stats.hits);
+        assertEquals(1, stats.misses);
+    }
+
+    @Test
+    public void shardsEntriesIntoSubdirectories() throws Exception {
+        FileCache sharded = new FileCache(dir, -1, null, FileCache.Layout.SHARDED);
+
+        for (int i = 0; i < 100; i++)
+            commitBytes(sharded.createEntry(nextEntryName()), new byte[]{(byte) i});
+
+        File[] shards = dir.listFiles();
+
+        assertThat(shards.length, lessThanOrEqualTo(FileCache.SHARDS));
+        assertThat(shards.length, greaterThan(1));
 
-            while ((nbytes = is.read(buffer)) != -1)
-                os.write(buffer, 0, nbytes);
+        for (File shard : shards)
+            assertTrue(shard.isDirectory());
 
-            return os.toByteArray();
+        assertEquals(100, sharded.getEntryNames().size());
+        assertArrayEquals(new byte[]{42}, readBytes(sharded.readEntry("test42")));
+    }
+
+    @Test
+    public void migratesBetweenLayouts() throws Exception {
+        for (int i = 0; i < 10; i++)
+            commitBytes(cache.createEntry(nextEntryName()), new byte[]{(byte) i});
+
+        FileCache sharded = new FileCache(dir, -1, null, FileCache.Layout.SHARDED);
+
+        assertEquals(10, sharded.getEntryNames().size());
+        assertArrayEquals(new byte[]{7}, readBytes(sharded.readEntry("test7")));
+        assertFalse(new File(dir, "test7").exists());
+
+        FileCache flat = new FileCache(dir);
+
+        assertEquals(10, flat.getEntryNames().size());
+        assertTrue(new File(dir, "test7").isFile());
+        assertArrayEquals(new byte[]{7}, readBytes(flat.readEntry("test7")));
+    }
+
+    @Test
+    public void keepsNewestFileOfEntryInBothLayouts() throws Exception {
+        FileCache sharded = new FileCache(dir, -1, null, FileCache.Layout.SHARDED);
+        commitBytes(sharded.createEntry("a"), new byte[]{1, 2});
+
+        // a stale copy left behind by an interrupted move
+        File stale = new File(dir, "a");
+        commitBytes(new FileOutputStream(stale), new byte[]{9, 9, 9});
+        assertTrue(stale.setLastModified(System.currentTimeMillis() - 60 * 1000));
+
+        sharded = new FileCache(dir, -1, null, FileCache.Layout.SHARDED);
+
+        assertEquals(Collections.singletonList("a"), sharded.getEntryNames());
+        assertArrayEquals(new byte[]{1, 2}, readBytes(sharded.readEntry("a")));
+        assertEquals(2, sharded.getTotalBytes());
+        assertFalse(stale.exists());
+    }
+
+    @Test
+    public void followsPreallocatedEntryWhileWritten() throws Exception {
+        final byte[] content = pattern(0x30000);
+        final OutputStream os = cache.createEntry("a", content.length * 2);
+        os.write(content, 0, 0x100);
+
+        InputStream follower = cache.followEntry("a");
+        byte[] head = new byte[0x200];
+
+        // only what was written is read, although the file is preallocated
+        assertEquals(0x100, follower.read(head));
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int offset = 0x100; offset < content.length; offset += 0x1000) {
+                        Thread.sleep(1);
+                        os.write(content, offset, Math.min(0x1000, content.length - offset));
+                    }
+
+                    os.close();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+
+        writer.start();
+
+        ByteArrayOutputStream followed = new ByteArrayOutputStream();
+        followed.write(head, 0, 0x100);
+        followed.write(readBytes(follower));
+        writer.join();
+
+        assertArrayEquals(content, followed.toByteArray());
+        assertArrayEquals(content, readBytes(cache.followEntry("a")));
+        assertNull(cache.followEntry("missing"));
+    }
+
+    @Test
+    public void followerFailsWhenEntryIsDeleted() throws Exception {
+        OutputStream os = cache.createEntry("a");
+        os.write(new byte[]{1, 2, 3});
+
+        InputStream follower = cache.followEntry("a");
+        assertEquals(3, follower.read(new byte[3]));
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException _) {
+                    // ignored
+                }
+
+                cache.deleteEntry("a");
+            }
+        }).start();
+
+        try {
+            follower.read();
+            fail("Reading a deleted entry should fail.");
+        } catch (IOException _) {
+            // expected
         } finally {
-            is.close();
+            follower.close();
+            os.close();
+        }
+
+        assertFalse(cache.hasEntry("a"));
+    }
+
+    /**
+     * Has threads work on distinct entries at once, while the names are listed.
+     */
+    @Test
+    public void worksOnDistinctEntriesConcurrently() throws Exception {
+        runContended(cache, 32, 50);
+
+        assertTrue(cache.getEntryNames().isEmpty());
+        assertEquals(0, cache.getTotalBytes());
+    }
+
+    /**
+     * Compares 32 threads working on distinct entries, with per-entry
+     * locks and with a lock around the whole cache, as it used to be.
+     * It's a benchmark, so it only runs with -Dbenchmarks=true.
+     */
+    @Test
+    public void distinctEntriesDoNotContend() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("benchmarks"));
+
+        FileCache globallyLocked = new FileCache(folder.newFolder()) {
+            @Override
+            public synchronized OutputStream createEntry(String name, long expectedSize) {
+                return super.createEntry(name, expectedSize);
+            }
+
+            @Override
+            public synchronized InputStream readEntry(String name) {
+                return super.readEntry(name);
+            }
+
+            @Override
+            public synchronized long getEntryLength(String name) {
+                return super.getEntryLength(name);
+            }
+
+            @Override
+            public synchronized void deleteEntry(String name) {
+                super.deleteEntry(name);
+            }
+
+            @Override
+            public synchronized List<String> getEntryNames() {
+                return super.getEntryNames();
+            }
+        };
+
+        long baselineTime = runContended(globallyLocked, 32, 50);
+        long stripedTime = runContended(cache, 32, 50);
+
+        System.out.println(String.format("FileCache 32 threads x 50 entries: whole-cache lock %d ms, striped %d ms",
+                baselineTime / 1000000, stripedTime / 1000000));
+    }
+
+    /**
+     * Runs threads which each create, read and delete their own entries, while another lists them.
+     *
+     * @return The time it took in nanoseconds.
+     */
+    private long runContended(final Cache cache, int threads, final int rounds) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final byte[] content = new byte[0x1000];
+        List<Thread> workers = new ArrayList<>();
+
+        for (int i = 0; i < threads; i++) {
+            final String prefix = "thread" + i + "-";
+
+            workers.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+
+                        for (int round = 0; round < rounds; round++) {
+                            String name = prefix + round;
+
+                            commitBytes(cache.createEntry(name), content);
+                            assertEquals(content.length, readBytes(cache.readEntry(name)).length);
+                            assertEquals(content.length, cache.getEntryLength(name));
+                            cache.deleteEntry(name);
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }));
         }
+
+        Thread lister = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!done.get())
+                    cache.getEntryNames();
+            }
+        });
+
+        for (Thread worker : workers)
+            worker.start();
+
+        lister.start();
+
+        long before = System.nanoTime();
+        start.countDown();
+
+        for (Thread worker : workers)
+            worker.join();
+
+        long elapsed = System.nanoTime() - before;
+        done.set(true);
+        lister.join();
+
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+
+        return elapsed;
     }
 
     private String nextEntryName() {
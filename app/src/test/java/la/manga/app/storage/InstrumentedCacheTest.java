@@ -0,0 +1,190 @@
+package la.manga.app.storage;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static la.manga.app.storage.CacheTestUtils.commitBytes;
+import static la.manga.app.storage.CacheTestUtils.readBytes;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class InstrumentedCacheTest {
+    private InstrumentedCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        cache = new InstrumentedCache(new MemoryCache());
+    }
+
+    @Test
+    public void countsOperationsAndMisses() throws Exception {
+        commitBytes(cache.createEntry("a"), new byte[100]);
+        commitBytes(cache.appendToEntry("a"), new byte[20]);
+        commitBytes(cache.createEntry("b"), new byte[5]);
+
+        assertEquals(120, readBytes(cache.readEntry("a")).length);
+        assertEquals(10, readBytes(cache.readEntry("a", 110, -1)).length);
+        assertEquals(5, cache.getEntryBuffer("b", 0, -1).remaining());
+        assertNull(cache.readEntry("missing"));
+        assertNull(cache.appendToEntry("missing"));
+        assertEquals(-1, cache.getEntryLength("missing"));
+
+        InstrumentedCache.Stats stats = cache.getStats();
+        InstrumentedCache.OperationStats reads = stats.operations.get(InstrumentedCache.Operation.READ);
+
+        assertEquals(2, stats.operations.get(InstrumentedCache.Operation.CREATE).calls);
+        assertEquals(2, reads.calls);
+        assertEquals(1, reads.misses);
+        assertEquals(2, stats.operations.get(InstrumentedCache.Operation.APPEND).calls);
+        assertEquals(1, stats.operations.get(InstrumentedCache.Operation.APPEND).misses);
+        assertEquals(1, stats.operations.get(InstrumentedCache.Operation.GET_LENGTH).misses);
+        assertEquals(125, stats.bytesWritten);
+        assertEquals(135, stats.bytesRead);
+        assertEquals(2, stats.entries);
+        assertEquals(125, stats.totalBytes);
+    }
+
+    @Test
+    public void bucketsLatencies() throws Exception {
+        assertEquals(0, InstrumentedCache.bucketOf(0));
+        assertEquals(1, InstrumentedCache.bucketOf(1));
+        assertEquals(10, InstrumentedCache.bucketOf(1000));
+        assertEquals(InstrumentedCache.BUCKETS - 1, InstrumentedCache.bucketOf(Long.MAX_VALUE));
+
+        InstrumentedCache.OperationStats stats = new InstrumentedCache.OperationStats();
+        stats.calls = 100;
+        stats.histogram[InstrumentedCache.bucketOf(1000)] = 90;
+        stats.histogram[InstrumentedCache.bucketOf(1000000)] = 10;
+
+        assertEquals(1024, stats.getPercentileNanos(0.5));
+        assertEquals(1024, stats.getPercentileNanos(0.9));
+        assertEquals(1 << 20, stats.getPercentileNanos(0.99));
+        assertEquals(0, new InstrumentedCache.OperationStats().getPercentileNanos(0.5));
+    }
+
+    @Test
+    public void dumpsStatsPeriodically() throws Exception {
+        final CountDownLatch dumps = new CountDownLatch(2);
+        final AtomicReference<InstrumentedCache.Stats> last = new AtomicReference<>();
+
+        commitBytes(cache.createEntry("a"), new byte[]{1, 2, 3});
+
+        ScheduledFuture<?> dumper = cache.dumpPeriodically(10, TimeUnit.MILLISECONDS, new InstrumentedCache.StatsListener() {
+            @Override
+            public void onStats(InstrumentedCache.Stats stats) {
+                last.set(stats);
+                dumps.countDown();
+            }
+        });
+
+        try {
+            assertTrue(dumps.await(5, TimeUnit.SECONDS));
+        } finally {
+            dumper.cancel(false);
+        }
+
+        assertEquals(1, last.get().entries);
+        assertTrue(last.get().toString().contains("CREATE: calls=1"));
+    }
+
+    @Test
+    public void timesEveryLookUp() throws Exception {
+        final int calls = 1000;
+        commitBytes(cache.createEntry("a"), new byte[]{1});
+
+        lookUp(cache, calls);
+
+        InstrumentedCache.OperationStats lookups = cache.getStats().operations.get(InstrumentedCache.Operation.HAS_ENTRY);
+
+        assertEquals(calls, lookups.calls);
+        assertThat(lookups.getPercentileNanos(0.5), greaterThan(0L));
+    }
+
+    /**
+     * Compares looking up entries with and without instrumentation. It's a
+     * benchmark, so it only runs with -Dbenchmarks=true.
+     */
+    @Test
+    public void instrumentationIsCheap() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("benchmarks"));
+
+        MemoryCache raw = new MemoryCache();
+        InstrumentedCache instrumented = new InstrumentedCache(raw);
+        final int calls = 2000000;
+
+        commitBytes(raw.createEntry("a"), new byte[]{1});
+
+        // warm up both paths
+        lookUp(raw, calls);
+        lookUp(instrumented, calls);
+
+        long before = System.nanoTime();
+        lookUp(raw, calls);
+        long rawTime = System.nanoTime() - before;
+
+        before = System.nanoTime();
+        lookUp(instrumented, calls);
+        long instrumentedTime = System.nanoTime() - before;
+
+        System.out.println(String.format("InstrumentedCache %d lookups: raw %d ms, instrumented %d ms",
+                calls, rawTime / 1000000, instrumentedTime / 1000000));
+
+        // a couple of clock reads and atomic increments per call
+        assertThat((instrumentedTime - rawTime) / calls, lessThan(1000L));
+    }
+
+    private static void lookUp(Cache cache, int calls) {
+        for (int i = 0; i < calls; i++) {
+            if (!cache.hasEntry("a"))
+                throw new AssertionError();
+        }
+    }
+
+    @Test
+    public void forwardsFollowingAndReplacing() throws Exception {
+        commitBytes(cache.createEntry("a"), new byte[]{1, 2});
+        commitBytes(cache.replaceEntry("a"), new byte[]{3, 4, 5});
+
+        assertArrayEquals(new byte[]{3, 4, 5}, readBytes(cache.followEntry("a")));
+        assertNull(cache.followEntry("missing"));
+
+        InstrumentedCache.Stats stats = cache.getStats();
+
+        assertEquals(1, stats.operations.get(InstrumentedCache.Operation.REPLACE).calls);
+        assertEquals(2, stats.operations.get(InstrumentedCache.Operation.FOLLOW).calls);
+        assertEquals(1, stats.operations.get(InstrumentedCache.Operation.FOLLOW).misses);
+        assertEquals(5, stats.bytesWritten);
+        assertEquals(3, stats.bytesRead);
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void cannotTellAccessTimesWithoutSupport() throws Exception {
+        cache.getEntryLastAccessed("a");
+    }
+
+    @Test
+    public void passesContentThrough() throws Exception {
+        byte[] content = new byte[]{1, 2, 3, 4, 5};
+        commitBytes(cache.createEntry("a", 5), content);
+        commitBytes(cache.writeEntryAt("a", 3), new byte[]{9});
+
+        assertArrayEquals(new byte[]{1, 2, 3, 9}, readBytes(cache.readEntry("a")));
+        assertTrue(cache.hasEntry("a"));
+
+        cache.clear();
+
+        assertEquals(0, cache.getEntryNames().size());
+        assertEquals(1, cache.getStats().operations.get(InstrumentedCache.Operation.CLEAR).calls);
+    }
+}
@@ -0,0 +1,193 @@
+package la.manga.app.storage;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.concurrent.Executor;
+
+import static la.manga.app.storage.CacheTestUtils.commitBytes;
+import static la.manga.app.storage.CacheTestUtils.pattern;
+import static la.manga.app.storage.CacheTestUtils.readBytes;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LogCacheTest {
+    private File dir;
+    private LogCache cache;
+
+    private final Executor inline = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() throws Exception {
+        dir = folder.newFolder();
+        cache = new LogCache(dir, 0x1000, inline);
+    }
+
+    @Test
+    public void storesSmallEntriesInOneSegment() throws Exception {
+        for (int i = 0; i < 10; i++)
+            commitBytes(cache.createEntry("e" + i), new byte[]{(byte) i, 2, 3});
+
+        assertEquals(10, cache.getEntryNames().size());
+        assertArrayEquals(new byte[]{7, 2, 3}, readBytes(cache.readEntry("e7")));
+        assertEquals(3, cache.getEntryLength("e7"));
+        assertEquals(1, cache.getStats().segments);
+        assertNull(cache.readEntry("missing"));
+    }
+
+    @Test
+    public void appendsAndRewritesEntries() throws Exception {
+        commitBytes(cache.createEntry("e"), new byte[]{1, 2});
+        commitBytes(cache.appendToEntry("e"), new byte[]{3, 4});
+
+        assertArrayEquals(new byte[]{1, 2, 3, 4}, readBytes(cache.readEntry("e")));
+
+        commitBytes(cache.writeEntryAt("e", 1), new byte[]{9});
+        assertArrayEquals(new byte[]{1, 9}, readBytes(cache.readEntry("e")));
+
+        commitBytes(cache.writeEntryAt("e", 4), new byte[]{5});
+        assertArrayEquals(new byte[]{1, 9, 0, 0, 5}, readBytes(cache.readEntry("e")));
+        assertArrayEquals(new byte[]{9, 0}, readBytes(cache.readEntry("e", 1, 2)));
+    }
+
+    @Test
+    public void appendsInPlaceToEntryOfItsOwnSegment() throws Exception {
+        byte[] large = pattern(LogCache.INLINE_LIMIT * 2);
+        commitBytes(cache.createEntry("large"), large);
+
+        LogCache.Stats before = cache.getStats();
+        OutputStream os = cache.appendToEntry("large");
+        os.write(new byte[]{1, 2, 3});
+
+        // readers see the entry as it was until the stream is closed
+        assertEquals(large.length, cache.getEntryLength("large"));
+        assertArrayEquals(large, readBytes(cache.readEntry("large")));
+
+        os.close();
+
+        LogCache.Stats after = cache.getStats();
+        byte[] appended = readBytes(cache.readEntry("large"));
+
+        // nothing was copied, so there was no old record to compact
+        assertEquals(before.compactions, after.compactions);
+        assertEquals(before.segments, after.segments);
+        assertEquals(before.totalBytes + 3, after.totalBytes);
+        assertEquals(after.totalBytes, after.liveBytes);
+        assertEquals(large.length + 3, appended.length);
+        assertArrayEquals(new byte[]{1, 2, 3}, readBytes(cache.readEntry("large", large.length, 3)));
+        assertArrayEquals(appended, readBytes(new LogCache(dir, 0x1000, inline).readEntry("large")));
+    }
+
+    @Test
+    public void keepsWhatWasAppendedInPlaceBeforeCrash() throws Exception {
+        byte[] large = pattern(LogCache.INLINE_LIMIT * 2);
+        commitBytes(cache.createEntry("large"), large);
+
+        // the stream is never closed, as if the process died
+        cache.appendToEntry("large").write(new byte[]{1, 2, 3});
+
+        LogCache reopened = new LogCache(dir, 0x1000, inline);
+
+        assertEquals(large.length + 3, reopened.getEntryLength("large"));
+        assertArrayEquals(new byte[]{1, 2, 3}, readBytes(reopened.readEntry("large", large.length, 3)));
+    }
+
+    @Test
+    public void recoversFromSegmentsAndHints() throws Exception {
+        byte[] large = pattern(LogCache.INLINE_LIMIT * 2);
+
+        // enough small entries to seal a segment, which gets a hint file
+        for (int i = 0; i < 100; i++)
+            commitBytes(cache.createEntry("e" + i), pattern(100));
+
+        commitBytes(cache.createEntry("large"), large);
+        cache.deleteEntry("e3");
+        commitBytes(cache.writeEntryAt("e4", 0), new byte[]{4});
+
+        LogCache reopened = new LogCache(dir, 0x1000, inline);
+
+        assertEquals(100, reopened.getEntryNames().size());
+        assertFalse(reopened.hasEntry("e3"));
+        assertArrayEquals(new byte[]{4}, readBytes(reopened.readEntry("e4")));
+        assertArrayEquals(pattern(100), readBytes(reopened.readEntry("e99")));
+        assertArrayEquals(large, readBytes(reopened.readEntry("large")));
+    }
+
+    @Test
+    public void dropsRecordCutShortByCrash() throws Exception {
+        commitBytes(cache.createEntry("a"), new byte[]{1, 2, 3});
+        commitBytes(cache.createEntry("b"), new byte[]{4, 5, 6});
+
+        // cut the last record short, as a crash in the middle of a write would
+        File segment = new File(dir, "00000001.seg");
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        file.setLength(file.length() - 1);
+        file.close();
+
+        LogCache reopened = new LogCache(dir, 0x1000, inline);
+
+        assertArrayEquals(new byte[]{1, 2, 3}, readBytes(reopened.readEntry("a")));
+        assertFalse(reopened.hasEntry("b"));
+
+        commitBytes(reopened.createEntry("b"), new byte[]{7});
+        assertArrayEquals(new byte[]{7}, readBytes(new LogCache(dir, 0x1000, inline).readEntry("b")));
+    }
+
+    @Test
+    public void compactsSegmentsOfDeadRecords() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 10; i++) {
+                cache.deleteEntry("e" + i);
+                commitBytes(cache.createEntry("e" + i), pattern(200 + round));
+            }
+        }
+
+        LogCache.Stats stats = cache.getStats();
+
+        assertTrue(stats.compactions > 0);
+        assertTrue(stats.totalBytes < 4 * 0x1000);
+        assertEquals(10, stats.entries);
+        assertArrayEquals(pattern(219), readBytes(cache.readEntry("e5")));
+
+        LogCache reopened = new LogCache(dir, 0x1000, inline);
+
+        assertEquals(10, reopened.getEntryNames().size());
+        assertArrayEquals(pattern(219), readBytes(reopened.readEntry("e5")));
+    }
+
+    @Test
+    public void keepsEntryDeletedWhileWritten() throws Exception {
+        OutputStream small = cache.createEntry("small");
+        OutputStream large = cache.createEntry("large");
+
+        small.write(new byte[10]);
+        large.write(new byte[LogCache.INLINE_LIMIT * 2]);
+
+        cache.deleteEntry("small");
+        cache.deleteEntry("large");
+        small.close();
+        large.close();
+
+        assertFalse(cache.hasEntry("small"));
+        assertFalse(cache.hasEntry("large"));
+
+        LogCache reopened = new LogCache(dir, 0x1000, inline);
+        assertTrue(reopened.getEntryNames().isEmpty());
+    }
+}
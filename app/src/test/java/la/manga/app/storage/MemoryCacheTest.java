@@ -0,0 +1,273 @@
+package la.manga.app.storage;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static la.manga.app.storage.CacheTestUtils.pattern;
+import static la.manga.app.storage.CacheTestUtils.readBytes;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+
+public class MemoryCacheTest {
+    private MemoryCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        cache = new MemoryCache();
+    }
+
+    @Test
+    public void readsAcrossChunks() throws Exception {
+        byte[] content = pattern(0x10000 * 3 + 100);
+
+        OutputStream os = cache.createEntry("e");
+
+        // odd-sized writes, so that they straddle chunk boundaries
+        for (int offset = 0; offset < content.length; offset += 999)
+            os.write(content, offset, Math.min(999, content.length - offset));
+
+        os.close();
+
+        assertArrayEquals(content, readBytes(cache.readEntry("e")));
+        assertEquals(content.length, cache.getEntryLength("e"));
+
+        InputStream is = cache.readEntry("e", 0x10000 - 10, 20);
+        byte[] range = readBytes(is);
+
+        for (int i = 0; i < range.length; i++)
+            assertEquals(content[0x10000 - 10 + i], range[i]);
+
+        ByteBuffer spanning = cache.getEntryBuffer("e", 0x10000 - 10, 20);
+        ByteBuffer within = cache.getEntryBuffer("e", 10, 20);
+
+        assertEquals(20, spanning.remaining());
+        assertEquals(content[0x10000 - 10], spanning.get(0));
+        assertEquals(content[0x10000 + 9], spanning.get(19));
+        assertEquals(content[10], within.get(0));
+    }
+
+    @Test
+    public void readersKeepTheirViewAcrossRewrites() throws Exception {
+        OutputStream os = cache.createEntry("e");
+        os.write(new byte[]{1, 2, 3, 4});
+
+        InputStream before = cache.readEntry("e");
+
+        cache.writeEntryAt("e", 2).write(new byte[]{9, 9, 9});
+
+        assertArrayEquals(new byte[]{1, 2, 3, 4}, readBytes(before));
+        assertArrayEquals(new byte[]{1, 2, 9, 9, 9}, readBytes(cache.readEntry("e")));
+    }
+
+    @Test
+    public void createsEntryOnceUnderContention() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger created = new AtomicInteger();
+        Thread[] threads = new Thread[32];
+
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        cache.createEntry("e");
+                        created.incrementAndGet();
+                    } catch (IllegalArgumentException _) {
+                        // another thread created it first
+                    } catch (InterruptedException _) {
+                        // ignored
+                    }
+                }
+            });
+
+            threads[i].start();
+        }
+
+        start.countDown();
+
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals(1, created.get());
+    }
+
+    /**
+     * Compares reading a 50 MB entry 10 times with copying it for each
+     * reader, as a cache backed by a ByteArrayOutputStream would do. It's a
+     * benchmark, so it only runs with -Dbenchmarks=true.
+     */
+    @Test
+    public void readingLargeEntryDoesNotCopyIt() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("benchmarks"));
+
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(allocationBean.isThreadAllocatedMemorySupported());
+
+        final int size = 50 * 1024 * 1024;
+        final int readers = 10;
+        long threadId = Thread.currentThread().getId();
+        byte[] chunk = pattern(0x10000);
+        byte[] buffer = new byte[0x10000];
+
+        // copying baseline
+        long heapBefore = allocationBean.getThreadAllocatedBytes(threadId);
+        long timeBefore = System.nanoTime();
+
+        ByteArrayOutputStream baseline = new ByteArrayOutputStream();
+
+        for (int written = 0; written < size; written += chunk.length)
+            baseline.write(chunk, 0, chunk.length);
+
+        for (int i = 0; i < readers; i++)
+            drain(new ByteArrayInputStream(baseline.toByteArray()), buffer);
+
+        long baselineHeap = allocationBean.getThreadAllocatedBytes(threadId) - heapBefore;
+        long baselineTime = System.nanoTime() - timeBefore;
+        baseline = null;
+
+        // chunked entry
+        heapBefore = allocationBean.getThreadAllocatedBytes(threadId);
+        timeBefore = System.nanoTime();
+
+        OutputStream os = cache.createEntry("large");
+
+        for (int written = 0; written < size; written += chunk.length)
+            os.write(chunk, 0, chunk.length);
+
+        os.close();
+
+        long writeHeap = allocationBean.getThreadAllocatedBytes(threadId) - heapBefore;
+        long readHeapBefore = allocationBean.getThreadAllocatedBytes(threadId);
+
+        for (int i = 0; i < readers; i++)
+            assertEquals(size, drain(cache.readEntry("large"), buffer));
+
+        long readHeap = allocationBean.getThreadAllocatedBytes(threadId) - readHeapBefore;
+        long chunkedHeap = allocationBean.getThreadAllocatedBytes(threadId) - heapBefore;
+        long chunkedTime = System.nanoTime() - timeBefore;
+
+        System.out.println(String.format("MemoryCache 50 MB x %d reads: copying %d MB in %d ms, chunked %d MB in %d ms",
+                readers, baselineHeap >> 20, baselineTime / 1000000, chunkedHeap >> 20, chunkedTime / 1000000));
+
+        // writing allocates the content once, without doubling and copying
+        assertThat(writeHeap, lessThan(size + (size >> 4) + 0L));
+
+        // readers walk the chunks, so they only allocate themselves
+        assertThat(readHeap, lessThan(0x10000L));
+        assertThat(chunkedHeap, lessThan(baselineHeap / 4));
+    }
+
+    @Test
+    public void followsEntryWhileWritten() throws Exception {
+        final byte[] content = pattern(0x30000);
+        final OutputStream os = cache.createEntry("a");
+        os.write(content, 0, 0x100);
+
+        InputStream follower = cache.followEntry("a");
+        byte[] head = new byte[0x200];
+
+        // what was written so far is read right away
+        assertEquals(0x100, follower.read(head));
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int offset = 0x100; offset < content.length; offset += 0x1000) {
+                        Thread.sleep(1);
+                        os.write(content, offset, Math.min(0x1000, content.length - offset));
+                    }
+
+                    os.close();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+
+        writer.start();
+
+        ByteArrayOutputStream followed = new ByteArrayOutputStream();
+        followed.write(head, 0, 0x100);
+        followed.write(readBytes(follower));
+        writer.join();
+
+        assertArrayEquals(content, followed.toByteArray());
+        assertArrayEquals(content, readBytes(cache.followEntry("a")));
+        assertNull(cache.followEntry("missing"));
+    }
+
+    @Test
+    public void replacesEntryAtOnce() throws Exception {
+        OutputStream os = cache.createEntry("a");
+        os.write(new byte[]{1, 2, 3});
+        os.close();
+
+        InputStream reader = cache.readEntry("a");
+
+        os = cache.replaceEntry("a");
+        os.write(new byte[]{4, 5});
+
+        assertArrayEquals(new byte[]{1, 2, 3}, readBytes(cache.readEntry("a")));
+
+        os.close();
+
+        assertArrayEquals(new byte[]{4, 5}, readBytes(cache.readEntry("a")));
+
+        // readers of the old content keep reading it
+        assertArrayEquals(new byte[]{1, 2, 3}, readBytes(reader));
+    }
+
+    @Test(expected = IOException.class)
+    public void followerFailsWhenEntryIsDeleted() throws Exception {
+        OutputStream os = cache.createEntry("a");
+        os.write(new byte[]{1, 2, 3});
+
+        final InputStream follower = cache.followEntry("a");
+        assertEquals(3, follower.read(new byte[3]));
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException _) {
+                    // ignored
+                }
+
+                cache.deleteEntry("a");
+            }
+        }).start();
+
+        follower.read();
+    }
+
+    private static long drain(InputStream is, byte[] buffer) throws IOException {
+        long total = 0;
+        int nread;
+
+        while ((nread = is.read(buffer)) != -1)
+            total += nread;
+
+        is.close();
+
+        return total;
+    }
+}
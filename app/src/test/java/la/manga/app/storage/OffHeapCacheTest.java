@@ -0,0 +1,177 @@
+package la.manga.app.storage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static la.manga.app.storage.CacheTestUtils.pattern;
+import static la.manga.app.storage.CacheTestUtils.readBytes;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class OffHeapCacheTest {
+    private static final int BLOCK = OffHeapCache.BLOCK_SIZE;
+
+    private OffHeapCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        cache = new OffHeapCache(BLOCK * 8);
+    }
+
+    @Test
+    public void storesAndAppendsEntries() throws Exception {
+        byte[] content = pattern(BLOCK * 2 + 100);
+
+        OutputStream os = cache.createEntry("e");
+        os.write(content, 0, BLOCK + 10);
+        os.close();
+
+        os = cache.appendToEntry("e");
+        os.write(content, BLOCK + 10, content.length - BLOCK - 10);
+        os.close();
+
+        assertArrayEquals(content, readBytes(cache.readEntry("e")));
+        assertEquals(content.length, cache.getEntryLength("e"));
+        assertEquals(content[BLOCK - 1], cache.getEntryBuffer("e", BLOCK - 1, 2).get(0));
+
+        byte[] range = readBytes(cache.readEntry("e", BLOCK - 5, 10));
+
+        for (int i = 0; i < range.length; i++)
+            assertEquals(content[BLOCK - 5 + i], range[i]);
+
+        assertNull(cache.appendToEntry("missing"));
+    }
+
+    @Test
+    public void evictsInClockOrder() throws Exception {
+        write("a", BLOCK * 3);
+        write("b", BLOCK * 3);
+
+        // a is referenced, so b is evicted first
+        readBytes(cache.readEntry("a"));
+        write("c", BLOCK * 3);
+
+        assertTrue(cache.hasEntry("a"));
+        assertFalse(cache.hasEntry("b"));
+        assertTrue(cache.hasEntry("c"));
+
+        OffHeapCache.Stats stats = cache.getStats();
+        assertEquals(1, stats.evictions);
+        assertEquals(BLOCK * 3, stats.evictedBytes);
+        assertEquals(BLOCK * 6, stats.footprint);
+        assertEquals(2, stats.entries);
+    }
+
+    @Test
+    public void keepsEntriesBeingWritten() throws Exception {
+        OutputStream a = cache.createEntry("a");
+        a.write(new byte[BLOCK * 4]);
+
+        OutputStream b = cache.createEntry("b");
+        b.write(new byte[BLOCK * 4]);
+
+        try {
+            b.write(new byte[1]);
+            fail("Write beyond the budget succeeded");
+        } catch (IOException _) {
+            // expected
+        }
+
+        assertTrue(cache.hasEntry("a"));
+        assertEquals(0, cache.getAvailableSpace());
+
+        a.close();
+        b.close();
+        assertEquals(BLOCK * 8, cache.getAvailableSpace());
+    }
+
+    @Test
+    public void evictsEntriesBeingRead() throws Exception {
+        byte[] content = pattern(BLOCK * 4);
+        write("a", content);
+        InputStream reader = cache.readEntry("a");
+
+        OutputStream os = cache.createEntry("b");
+        os.write(new byte[BLOCK * 4]);
+
+        // a is evicted, but its blocks are only freed once its reader is closed
+        try {
+            os.write(new byte[1]);
+            fail("Write beyond the budget succeeded");
+        } catch (IOException _) {
+            // expected
+        }
+
+        assertFalse(cache.hasEntry("a"));
+        assertEquals(1, cache.getStats().evictions);
+        assertArrayEquals(content, readBytes(reader));
+
+        os.write(new byte[1]);
+        os.close();
+
+        assertEquals(BLOCK * 4 + 1, cache.getEntryLength("b"));
+        assertEquals(BLOCK * 8, cache.getAvailableSpace());
+    }
+
+    @Test
+    public void readersKeepTheirViewAcrossRewrites() throws Exception {
+        byte[] content = pattern(BLOCK + 4);
+        write("e", content);
+
+        InputStream before = cache.readEntry("e");
+
+        OutputStream os = cache.writeEntryAt("e", BLOCK + 2);
+        os.write(new byte[]{9, 9, 9});
+        os.close();
+
+        assertArrayEquals(content, readBytes(before));
+
+        byte[] after = readBytes(cache.readEntry("e"));
+        assertEquals(BLOCK + 5, after.length);
+        assertEquals(content[BLOCK + 1], after[BLOCK + 1]);
+        assertEquals(9, after[BLOCK + 2]);
+    }
+
+    @Test
+    public void reusesBlocksOfDeletedEntries() throws Exception {
+        write("a", BLOCK * 4);
+        InputStream reader = cache.readEntry("a");
+
+        cache.deleteEntry("a");
+        assertEquals(BLOCK * 4, cache.getStats().footprint);
+
+        reader.close();
+        assertEquals(0, cache.getStats().footprint);
+
+        write("b", BLOCK * 8);
+        assertEquals(BLOCK * 8, cache.getStats().allocatedBytes);
+        assertEquals(0, cache.getStats().evictions);
+    }
+
+    @Test(expected = InsufficientSpaceException.class)
+    public void refusesEntryLargerThanBudget() throws Exception {
+        cache.createEntry("e", BLOCK * 9);
+    }
+
+    private void write(String name, int size) throws IOException {
+        write(name, pattern(size));
+    }
+
+    private void write(String name, byte[] content) throws IOException {
+        OutputStream os = cache.createEntry(name);
+
+        try {
+            os.write(content);
+        } finally {
+            os.close();
+        }
+    }
+}
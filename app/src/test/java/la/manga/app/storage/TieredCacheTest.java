@@ -0,0 +1,351 @@
+package la.manga.app.storage;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static la.manga.app.storage.CacheTestUtils.pattern;
+import static la.manga.app.storage.CacheTestUtils.readBytes;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class TieredCacheTest {
+    private CountingCache backing;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() throws Exception {
+        backing = new CountingCache();
+    }
+
+    @Test
+    public void writesThroughToBackingCache() throws Exception {
+        TieredCache cache = new TieredCache(backing, 100, 64);
+        byte[] content = pattern(50);
+
+        write(cache, "a", content);
+
+        assertArrayEquals(content, readBytes(backing.readEntry("a")));
+        backing.reads = 0;
+
+        assertArrayEquals(content, readBytes(cache.readEntry("a")));
+        assertArrayEquals(content, readBytes(cache.readEntry("a")));
+        assertEquals(0, backing.reads);
+        assertEquals(50, cache.getMemoryBytes());
+    }
+
+    @Test
+    public void promotesEntriesOnRead() throws Exception {
+        TieredCache cache = new TieredCache(backing, 100, 64);
+        byte[] content = pattern(50);
+
+        write(backing, "a", content);
+        write(backing, "large", pattern(80));
+
+        assertTrue(cache.hasEntry("a"));
+        assertEquals(new HashSet<>(Arrays.asList("a", "large")), new HashSet<>(cache.getEntryNames()));
+
+        assertArrayEquals(content, readBytes(cache.readEntry("a")));
+        assertArrayEquals(content, readBytes(cache.readEntry("a")));
+        assertEquals(1, backing.reads);
+
+        // entries beyond the size limit are always read from the backing cache
+        readBytes(cache.readEntry("large"));
+        readBytes(cache.readEntry("large"));
+        assertEquals(3, backing.reads);
+        assertEquals(50, cache.getMemoryBytes());
+    }
+
+    @Test
+    public void writesBackOnEviction() throws Exception {
+        TieredCache cache = new TieredCache(backing, 100, 64, TieredCache.WritePolicy.WRITE_BACK);
+        byte[] content = pattern(50);
+
+        write(cache, "a", content);
+        write(cache, "b", pattern(40));
+        assertFalse(backing.hasEntry("a"));
+        assertTrue(cache.hasEntry("a"));
+
+        // a is the least recently used, so it makes room for c
+        readBytes(cache.readEntry("b"));
+        write(cache, "c", pattern(30));
+
+        assertArrayEquals(content, readBytes(backing.readEntry("a")));
+        assertFalse(backing.hasEntry("b"));
+        assertFalse(backing.hasEntry("c"));
+        assertEquals(70, cache.getMemoryBytes());
+
+        cache.flush();
+
+        assertTrue(backing.hasEntry("b"));
+        assertEquals(30, backing.getEntryLength("c"));
+    }
+
+    @Test
+    public void spillsGrowingEntryToBackingCache() throws Exception {
+        TieredCache cache = new TieredCache(backing, 100, 64, TieredCache.WritePolicy.WRITE_BACK);
+        byte[] content = pattern(200);
+
+        OutputStream os = cache.createEntry("a");
+
+        for (int offset = 0; offset < content.length; offset += 25)
+            os.write(content, offset, 25);
+
+        os.close();
+
+        assertArrayEquals(content, readBytes(backing.readEntry("a")));
+        assertArrayEquals(content, readBytes(cache.readEntry("a")));
+        assertEquals(0, cache.getMemoryBytes());
+    }
+
+    @Test
+    public void deletesFromBothTiers() throws Exception {
+        TieredCache cache = new TieredCache(backing, 100, 64);
+
+        write(cache, "a", pattern(10));
+        cache.deleteEntry("a");
+
+        assertFalse(cache.hasEntry("a"));
+        assertFalse(backing.hasEntry("a"));
+        assertEquals(0, cache.getMemoryBytes());
+        assertEquals(-1, cache.getEntryLength("a"));
+    }
+
+    @Test
+    public void replacesEntryInBothTiers() throws Exception {
+        TieredCache cache = new TieredCache(backing, 100, 64, TieredCache.WritePolicy.WRITE_BACK);
+        write(cache, "a", pattern(10));
+
+        OutputStream os = cache.replaceEntry("a");
+        os.write(new byte[]{1, 2, 3});
+
+        // the old content stays until the replacement is complete
+        assertArrayEquals(pattern(10), readBytes(cache.readEntry("a")));
+
+        os.close();
+
+        assertArrayEquals(new byte[]{1, 2, 3}, readBytes(cache.readEntry("a")));
+        assertArrayEquals(new byte[]{1, 2, 3}, readBytes(backing.readEntry("a")));
+
+        // the dropped content isn't written back over the replacement
+        cache.flush();
+        assertArrayEquals(new byte[]{1, 2, 3}, readBytes(backing.readEntry("a")));
+    }
+
+    @Test
+    public void followsEntryInEitherTier() throws Exception {
+        TieredCache cache = new TieredCache(backing, 100, 64);
+
+        OutputStream small = cache.createEntry("small");
+        small.write(new byte[]{1, 2});
+        OutputStream large = cache.createEntry("large", 80);
+        large.write(new byte[]{3, 4, 5});
+
+        InputStream smallFollower = cache.followEntry("small");
+        InputStream largeFollower = cache.followEntry("large");
+
+        small.write(new byte[]{6});
+        small.close();
+        large.close();
+
+        assertArrayEquals(new byte[]{1, 2, 6}, readBytes(smallFollower));
+        assertArrayEquals(new byte[]{3, 4, 5}, readBytes(largeFollower));
+    }
+
+    @Test
+    public void countsUseInMemoryAsAccess() throws Exception {
+        FileCache files = new FileCache(folder.newFolder());
+        TieredCache cache = new TieredCache(files, 100, 64);
+
+        write(cache, "a", pattern(50));
+        long written = cache.getEntryLastAccessed("a");
+        Thread.sleep(20);
+
+        // read from memory, so the backing cache doesn't know
+        readBytes(cache.readEntry("a"));
+
+        assertThat(cache.getEntryLastAccessed("a"), greaterThan(written));
+        assertThat(cache.getEntryLastAccessed("a"), greaterThan(files.getEntryLastAccessed("a")));
+        assertEquals(-1, cache.getEntryLastAccessed("missing"));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void cannotTellAccessTimesWithoutBackingSupport() throws Exception {
+        new TieredCache(new OffHeapCache(0x10000), 100, 64).getEntryLastAccessed("a");
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void cannotReplaceWithoutBackingSupport() throws Exception {
+        new TieredCache(new OffHeapCache(0x10000), 100, 64).replaceEntry("a");
+    }
+
+    @Test
+    public void usesOtherEntriesWhileBackingCacheIsSlow() throws Exception {
+        final CountDownLatch creating = new CountDownLatch(1);
+        final CountDownLatch created = new CountDownLatch(1);
+
+        backing = new CountingCache() {
+            @Override
+            public OutputStream createEntry(String name, long expectedSize) {
+                if (name.equals("slow")) {
+                    creating.countDown();
+
+                    try {
+                        created.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+
+                return super.createEntry(name, expectedSize);
+            }
+        };
+
+        final TieredCache cache = new TieredCache(backing, 100, 64);
+        byte[] content = pattern(50);
+        write(cache, "a", content);
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(cache, "slow", pattern(10));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+
+        writer.start();
+        assertTrue(creating.await(1, TimeUnit.SECONDS));
+
+        // the entry being created in the backing cache holds up nothing else
+        assertArrayEquals(content, readBytes(cache.readEntry("a")));
+        write(cache, "b", pattern(10));
+
+        created.countDown();
+        writer.join();
+
+        assertArrayEquals(pattern(10), readBytes(cache.readEntry("slow")));
+        assertArrayEquals(pattern(10), readBytes(backing.readEntry("slow")));
+    }
+
+    @Test(timeout = 10000)
+    public void usesOtherEntriesWhileBackingCacheLooksUpSlowly() throws Exception {
+        final CountDownLatch lookingUp = new CountDownLatch(2);
+        final CountDownLatch lookedUp = new CountDownLatch(1);
+
+        backing = new CountingCache() {
+            @Override
+            public long getEntryLength(String name) {
+                if (name.equals("slow"))
+                    await();
+
+                return super.getEntryLength(name);
+            }
+
+            @Override
+            public boolean hasEntry(String name) {
+                if (name.equals("new"))
+                    await();
+
+                return super.hasEntry(name);
+            }
+
+            private void await() {
+                lookingUp.countDown();
+
+                try {
+                    lookedUp.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+
+        final TieredCache cache = new TieredCache(backing, 100, 64);
+        byte[] content = pattern(50);
+        write(cache, "a", content);
+        write(backing, "slow", pattern(10));
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    readBytes(cache.readEntry("slow"));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+
+        Thread creator = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(cache, "new", pattern(10));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+
+        reader.start();
+        creator.start();
+        assertTrue(lookingUp.await(1, TimeUnit.SECONDS));
+
+        // looking up entries in the backing cache holds up nothing else
+        assertArrayEquals(content, readBytes(cache.readEntry("a")));
+        assertEquals(50, cache.getEntryLength("a"));
+        assertTrue(cache.hasEntry("a"));
+
+        lookedUp.countDown();
+        reader.join();
+        creator.join();
+
+        assertArrayEquals(pattern(10), readBytes(cache.readEntry("new")));
+        // the slow entry was promoted all the same
+        assertEquals(70, cache.getMemoryBytes());
+    }
+
+    private static class CountingCache extends MemoryCache {
+        int reads = 0;
+
+        @Override
+        public synchronized InputStream readEntry(String name, long offset, long length) {
+            reads++;
+            return super.readEntry(name, offset, length);
+        }
+
+        @Override
+        public synchronized InputStream readEntry(String name) {
+            reads++;
+            return super.readEntry(name);
+        }
+    }
+
+    private static void write(Cache cache, String name, byte[] content) throws IOException {
+        OutputStream os = cache.createEntry(name);
+
+        try {
+            os.write(content);
+        } finally {
+            os.close();
+        }
+    }
+}